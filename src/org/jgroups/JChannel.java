@@ -3,6 +3,7 @@ package org.jgroups;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.blocks.MessageStreams;
 import org.jgroups.blocks.MethodCall;
 import org.jgroups.conf.ConfiguratorFactory;
 import org.jgroups.conf.ProtocolConfiguration;
@@ -74,6 +75,9 @@ public class JChannel extends Channel {
 
     protected final DiagnosticsHandler.ProbeHandler probe_handler=new MyProbeHandler();
 
+    /** Sends and receives streams (openStream(), setStreamListener()) */
+    protected final MessageStreams                  streams=new MessageStreams(this);
+
 
 
     /**
@@ -439,6 +443,32 @@ public class JChannel extends Channel {
         send(new Message(dst, buf, offset, length));
     }
 
+    /**
+     * Opens a stream to a member, or to all members. The data written to the stream is sent in chunks as it is
+     * written, and delivered incrementally to the {@link StreamListener} of the receiver(s), so that large amounts of
+     * data can be sent without creating a message containing all of it. Writing blocks when the receivers don't
+     * read the data fast enough. The stream has to be closed when done.
+     * @param dest The member to send the stream to, or null to send it to all members
+     * @return The stream to write the data to
+     * @since 3.6.5
+     */
+    public OutputStream openStream(Address dest) throws Exception {
+        checkClosedOrNotConnected();
+        return streams.open(dest);
+    }
+
+    /**
+     * Sets the listener which is notified when streams opened by other members ({@link #openStream(Address)}) are
+     * received. Streams received while no listener is set are discarded
+     * @since 3.6.5
+     */
+    public JChannel setStreamListener(StreamListener listener) {
+        streams.listener(listener);
+        return this;
+    }
+
+    public MessageStreams getStreams() {return streams;}
+
 
     public View getView() {
         return state == State.CONNECTED ? my_view : null;
@@ -633,6 +663,8 @@ public class JChannel extends Channel {
                 // discard local messages (sent by myself to me)
                 if(discard_own_messages && local_addr != null && msg.getSrc() != null && local_addr.equals(msg.getSrc()))
                     return null;
+                if(streams.handle(msg))
+                    return null;
                 break;
 
             case Event.VIEW_CHANGE:
@@ -641,6 +673,7 @@ public class JChannel extends Channel {
                     my_view=new View(tmp.getViewId(), tmp.getMembers());
                 else
                     my_view=tmp;
+                streams.handleView(my_view);
 
                 // Bela&Vladimir Oct 27th,2006 (JGroups 2.4): we need to set connected=true because a client can
                 // call channel.getView() in viewAccepted() callback invoked on this thread (see Event.VIEW_CHANGE handling below)
@@ -755,6 +788,7 @@ public class JChannel extends Channel {
         if(discard_own_messages && local_addr != null && batch.sender() != null && local_addr.equals(batch.sender()))
             return;
 
+        streams.handle(batch);
         for(Message msg: batch) {
             if(up_handler != null) {
                 try {
@@ -997,6 +1031,7 @@ public class JChannel extends Channel {
     }
 
     protected void stopStack(boolean stop, boolean destroy) {
+        streams.stop();
         if(prot_stack != null) {
             try {
                 if(stop)
@@ -0,0 +1,21 @@
+package org.jgroups;
+
+import java.io.InputStream;
+
+/**
+ * Notified when a member opens a stream to this member ({@link JChannel#openStream(Address)}).
+ * @author agent
+ * @since  3.6.5
+ */
+public interface StreamListener {
+
+    /**
+     * Called when a new stream is received. The method is invoked on a separate thread, so it can block while reading
+     * the stream. The data is received while it is read; if it is not read fast enough, the sender is blocked.<p/>
+     * The stream is closed when this method returns; data which has not been read is discarded. If the sender leaves
+     * before it closes the stream, reading throws an IOException.
+     * @param sender The member which opened the stream
+     * @param in The stream
+     */
+    void streamReceived(Address sender, InputStream in) throws Exception;
+}
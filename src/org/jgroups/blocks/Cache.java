@@ -3,44 +3,174 @@ package org.jgroups.blocks;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.Unsupported;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.util.Util;
 
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.*;
 import java.io.*;
 
 /**
  * Simple cache which maintains keys and value. A reaper can be enabled which periodically evicts expired entries.
- * Also, when the cache is configured to be bounded, entries in excess of the max size will be evicted on put().
+ * <p/>
+ * The cache can be bounded by the number of entries (max_num_entries) and/or by the total weight of its entries
+ * (max_weight), where the weight of an entry is computed by a {@link Weigher} (e.g. its size in bytes). When a put()
+ * exceeds a bound, entries picked by the {@link EvictionPolicy} are evicted right away. Policies track entries in O(1)
+ * per operation, so the cost of eviction is amortized over the puts, and the cache is never scanned. The default
+ * policy ({@link TinyLfuPolicy}) is frequency-aware: entries are only admitted to the main area of the cache if they
+ * are accessed more frequently than the entries they would replace. {@link LruPolicy} evicts the least recently used
+ * entries.
+ * <p/>
+ * Reads of a bounded cache are not blocked by the policy: accesses are recorded in a buffer which is applied to the
+ * policy in batches (accesses are dropped when the buffer is full). Hits, misses and evictions are exposed via JMX.
  * @author Bela Ban
  */
 @Experimental
 @Unsupported
 public class Cache<K,V> {
     private static final Log log=LogFactory.getLog(Cache.class);
+    private static final int READ_BUFFER_SIZE=128;
+
     private final ConcurrentMap<K,Value<V>> map=Util.createConcurrentMap();
     private ScheduledThreadPoolExecutor timer=new ScheduledThreadPoolExecutor(1);
     private Future task=null;
-    private final AtomicBoolean is_reaping=new AtomicBoolean(false);
 
     private Set<ChangeListener> change_listeners=new HashSet<>();
 
-    /** The maximum number of keys, When this value is exceeded we evict older entries, until we drop below this 
-     * mark again. This effectively maintains a bounded cache. A value of 0 means don't bound the cache.
+    /** The maximum number of keys, When this value is exceeded we evict entries (picked by the eviction policy),
+     * until we drop below this mark again. This effectively maintains a bounded cache. A value of 0 means don't bound
+     * the cache.
      */
     @ManagedAttribute(writable=true)
-    private int max_num_entries=0;
+    private volatile int max_num_entries=0;
+
+    /** The max total weight of all entries, e.g. in bytes. A value of 0 means don't bound the weight */
+    @ManagedAttribute(description="Max total weight (e.g. in bytes) of all entries; 0 means unbounded",writable=true)
+    private volatile long max_weight=0;
+
+    /** Computes the weight of an entry; if null, every entry has a weight of 1 */
+    private volatile Weigher<? super K,? super V> weigher;
+
+    /** Notified when entries are removed, replaced, evicted or expired */
+    private volatile RemovalListener<? super K,? super V> removal_listener;
+
+    /** Picks the entries to be evicted when the cache exceeds a bound */
+    @GuardedBy("lock")
+    private EvictionPolicy<K> eviction_policy=new TinyLfuPolicy<>();
+
+    /** Guards eviction_policy. When the cache is bounded, map is also modified with the lock held */
+    private final Lock lock=new ReentrantLock();
+
+    /** Keys read by get(), applied to the eviction policy in batches */
+    private final Queue<K> read_buffer=new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+
+    private final AtomicLong total_weight=new AtomicLong(), hits=new AtomicLong(), misses=new AtomicLong(),
+      evictions=new AtomicLong();
+
+
+    /** Computes the weight of an entry, e.g. the size of its value in bytes */
+    public interface Weigher<K,V> {
+        /** Returns the weight of an entry; needs to be &gt;= 0 */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * Notified when an entry leaves the cache, e.g. to release resources held by its value. Called for removed,
+     * replaced, evicted and expired entries; may be called with the lock of the cache held, so implementations need
+     * to be quick and must not access the cache
+     */
+    public interface RemovalListener<K,V> {
+        void removed(K key, V value);
+    }
+
+    /**
+     * Picks the entries to be evicted from a bounded cache. All methods are called with the cache's lock held, so
+     * implementations don't need to be thread safe
+     */
+    public interface EvictionPolicy<K> {
+        /** Called when a key was added to the cache */
+        void onAdd(K key);
+
+        /** Called when a key was read or updated. Keys unknown to the policy need to be ignored */
+        void onAccess(K key);
+
+        /** Called when a key was removed from the cache (other than by eviction) */
+        void onRemove(K key);
+
+        /** Removes and returns the key to be evicted next, or null if the policy has no keys */
+        K evict();
+
+        void clear();
+    }
+
 
     public int getMaxNumberOfEntries() {
         return max_num_entries;
     }
 
     public void setMaxNumberOfEntries(int max_num_entries) {
+        boolean was_bounded=isBounded();
         this.max_num_entries=max_num_entries;
+        boundsChanged(was_bounded);
+    }
+
+    public long getMaxWeight() {
+        return max_weight;
+    }
+
+    /** Sets the max total weight of all entries (as computed by the weigher). 0 means unbounded */
+    public void setMaxWeight(long max_weight) {
+        boolean was_bounded=isBounded();
+        this.max_weight=max_weight;
+        boundsChanged(was_bounded);
+    }
+
+    public Weigher<? super K,? super V> getWeigher() {
+        return weigher;
+    }
+
+    /** Sets the weigher. Should be set before entries are added, as the weights of existing entries don't change */
+    public void setWeigher(Weigher<? super K,? super V> weigher) {
+        this.weigher=weigher;
+    }
+
+    public RemovalListener<? super K,? super V> getRemovalListener() {
+        return removal_listener;
+    }
+
+    public void setRemovalListener(RemovalListener<? super K,? super V> removal_listener) {
+        this.removal_listener=removal_listener;
+    }
+
+    public EvictionPolicy<K> getEvictionPolicy() {
+        return eviction_policy;
+    }
+
+    /** Sets the eviction policy. The keys of a bounded cache are added to the new policy */
+    public void setEvictionPolicy(EvictionPolicy<K> policy) {
+        if(policy == null)
+            throw new IllegalArgumentException("eviction policy must not be null");
+        lock.lock();
+        try {
+            eviction_policy=policy;
+            read_buffer.clear();
+            if(isBounded())
+                for(K key: map.keySet())
+                    policy.onAdd(key);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isBounded() {
+        return max_num_entries > 0 || max_weight > 0;
     }
 
     public void addChangeListener(ChangeListener l) {
@@ -56,6 +186,39 @@ public class Cache<K,V> {
         return map.size();
     }
 
+    @ManagedAttribute(description="The total weight of all entries (the number of entries if no weigher is set)")
+    public long getTotalWeight() {
+        return total_weight.get();
+    }
+
+    @ManagedAttribute(description="Number of reads which found an entry")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute(description="Number of reads which didn't find an entry, or found an expired one")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute(description="The ratio of hits to all reads")
+    public double getHitRatio() {
+        long h=hits.get(), total=h + misses.get();
+        return total == 0? 0 : h / (double)total;
+    }
+
+    @ManagedAttribute(description="Number of entries evicted because the cache exceeded max_num_entries or max_weight")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedOperation(description="Resets hits, misses and evictions")
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
     @ManagedAttribute
     public boolean isReapingEnabled() {
         return task != null && !task.isCancelled();
@@ -90,65 +253,71 @@ public class Cache<K,V> {
         timer=null;
     }
 
+    /** Removes all entries. Statistics are not reset */
+    @ManagedOperation
+    public void clear() {
+        lock.lock();
+        try {
+            if(removal_listener != null) {
+                for(Iterator<Map.Entry<K,Value<V>>> it=map.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<K,Value<V>> entry=it.next();
+                    it.remove();
+                    removed(entry.getKey(), entry.getValue());
+                }
+            }
+            map.clear();
+            read_buffer.clear();
+            eviction_policy.clear();
+            total_weight.set(0);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     /**
      *
      * @param key
      * @param val
      * @param caching_time Number of milliseconds to keep an entry in the cache. -1 means don't cache (if reaping
      * is enabled, we'll evict an entry with -1 caching time), 0 means never evict. In the latter case, we can still
-     * evict an entry with 0 caching time: when we have a bounded cache, we evict in order of insertion no matter
-     * what the caching time is.
+     * evict an entry with 0 caching time: when we have a bounded cache, the eviction policy picks the entries to be
+     * evicted no matter what their caching time is.
      */
     @ManagedOperation
     public V put(K key, V val, long caching_time) {
         if(log.isTraceEnabled())
             log.trace("put(" + key + ", " + val + ", " + caching_time + ")");
         Value<V> value=new Value<>(val, caching_time);
-        Value<V> retval=map.put(key, value);
-
-        if(max_num_entries > 0 && map.size() > max_num_entries) {
-            boolean rc=is_reaping.compareAndSet(false, true);
-            if(rc) {
-                if(log.isTraceEnabled())
-                    log.trace("reaping: max_num_entries=" + max_num_entries + ", size=" + map.size());
-                timer.execute(new Runnable() {
-                    public void run() {
-                        if(max_num_entries > 0) {
-                            try {
-                                if(map.size() > max_num_entries) {
-                                    evict(); // see if we can gracefully evict expired items
-                                }
-                                if(map.size() > max_num_entries) {
-                                    // still too many entries: now evict entries based on insertion time: oldest first
-                                    int diff=map.size() - max_num_entries; // we have to evict diff entries
-                                    SortedMap<Long,K> tmp=new TreeMap<>();
-                                    for(Map.Entry<K,Value<V>> entry: map.entrySet()) {
-                                        tmp.put(entry.getValue().insertion_time, entry.getKey());
-                                    }
-
-                                    Collection<K> vals=tmp.values();
-                                    for(K k: vals) {
-                                        if(diff-- > 0) {
-                                            Value<V> v=map.remove(k);
-                                            if(log.isTraceEnabled())
-                                                log.trace("evicting " + k + ": " + v.value);
-                                        }
-                                        else
-                                            break;
-                                    }
-                                }
-                                if(log.isTraceEnabled())
-                                    log.trace("done reaping (size=" + map.size() + ")");
-                            }
-                            finally {
-                                is_reaping.set(false);
-                            }
-                        }
-                    }
-                });
-            }
+        Weigher<? super K,? super V> w=weigher;
+        value.weight=w != null? w.weigh(key, val) : 1;
+        Value<V> retval;
+
+        if(!isBounded()) {
+            retval=map.put(key, value);
+            total_weight.addAndGet(retval != null? value.weight - retval.weight : value.weight);
+            removed(key, retval);
+            return retval != null? retval.value : null;
         }
 
+        boolean evicted;
+        lock.lock();
+        try {
+            drainReadBuffer();
+            retval=map.put(key, value);
+            total_weight.addAndGet(retval != null? value.weight - retval.weight : value.weight);
+            if(retval != null)
+                eviction_policy.onAccess(key);
+            else
+                eviction_policy.onAdd(key);
+            removed(key, retval);
+            evicted=evictExcess();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(evicted)
+            notifyChangeListeners();
         return retval != null? retval.value : null;
     }
 
@@ -157,13 +326,17 @@ public class Cache<K,V> {
         if(log.isTraceEnabled())
             log.trace("get(" + key + ")");
         Value<V> val=map.get(key);
-        if(val == null)
+        if(val == null) {
+            misses.incrementAndGet();
             return null;
-        if(val.timeout == -1 ||
-                (val.timeout > 0 && val.timeout < System.currentTimeMillis())) {
-            map.remove(key);
+        }
+        if(val.isExpired(System.currentTimeMillis())) {
+            remove(key, val);
+            misses.incrementAndGet();
             return null;
         }
+        hits.incrementAndGet();
+        recordAccess(key);
         return val.value;
     }
 
@@ -179,13 +352,37 @@ public class Cache<K,V> {
     public Value<V> getEntry(K key) {
         if(log.isTraceEnabled())
             log.trace("getEntry(" + key + ")");
-        return map.get(key);
+        Value<V> val=map.get(key);
+        if(val != null) {
+            hits.incrementAndGet();
+            recordAccess(key);
+        }
+        else
+            misses.incrementAndGet();
+        return val;
     }
 
     public V remove(K key) {
         if(log.isTraceEnabled())
             log.trace("remove(" + key + ")");
-        Value<V> val=map.remove(key);
+        Value<V> val;
+        if(!isBounded()) {
+            if((val=map.remove(key)) != null)
+                total_weight.addAndGet(-val.weight);
+            removed(key, val);
+            return val != null? val.value : null;
+        }
+        lock.lock();
+        try {
+            if((val=map.remove(key)) != null) {
+                total_weight.addAndGet(-val.weight);
+                eviction_policy.onRemove(key);
+                removed(key, val);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
         return val != null? val.value : null;
     }
 
@@ -230,15 +427,14 @@ public class Cache<K,V> {
 
     private void evict() {
         boolean evicted=false;
-        for(Iterator<Map.Entry<K,Value<V>>> it=map.entrySet().iterator(); it.hasNext();) {
-            Map.Entry<K,Value<V>> entry=it.next();
+        for(Map.Entry<K,Value<V>> entry: map.entrySet()) {
             Value<V> val=entry.getValue();
             if(val != null) {
-                if(val.timeout == -1 || (val.timeout > 0 && System.currentTimeMillis() > val.insertion_time + val.timeout)) {
+                if(val.isExpired(System.currentTimeMillis())) {
                     if(log.isTraceEnabled())
                         log.trace("evicting " + entry.getKey() + ": " + entry.getValue().value);
-                    it.remove();
-                    evicted=true;
+                    if(remove(entry.getKey(), val))
+                        evicted=true;
                 }
             }
         }
@@ -246,6 +442,109 @@ public class Cache<K,V> {
             notifyChangeListeners();
     }
 
+    /** Removes key only if it is still associated with val */
+    private boolean remove(K key, Value<V> val) {
+        if(!isBounded()) {
+            boolean removed=map.remove(key, val);
+            if(removed) {
+                total_weight.addAndGet(-val.weight);
+                removed(key, val);
+            }
+            return removed;
+        }
+        lock.lock();
+        try {
+            boolean removed=map.remove(key, val);
+            if(removed) {
+                total_weight.addAndGet(-val.weight);
+                eviction_policy.onRemove(key);
+                removed(key, val);
+            }
+            return removed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Evicts the entries picked by the eviction policy until the cache is within its bounds. Called with the lock held */
+    private boolean evictExcess() {
+        boolean evicted=false;
+        for(;;) {
+            int max_entries=max_num_entries;
+            long max_wt=max_weight;
+            if(!(max_entries > 0 && map.size() > max_entries) && !(max_wt > 0 && total_weight.get() > max_wt))
+                break;
+            K victim=eviction_policy.evict();
+            if(victim == null)
+                break;
+            Value<V> val=map.remove(victim);
+            if(val != null) {
+                total_weight.addAndGet(-val.weight);
+                evictions.incrementAndGet();
+                evicted=true;
+                removed(victim, val);
+                if(log.isTraceEnabled())
+                    log.trace("evicting " + victim + ": " + val.value);
+            }
+        }
+        return evicted;
+    }
+
+    private void removed(K key, Value<V> val) {
+        RemovalListener<? super K,? super V> l=removal_listener;
+        if(l == null || val == null)
+            return;
+        try {
+            l.removed(key, val.value);
+        }
+        catch(Throwable t) {
+            log.error("failed notifying removal listener", t);
+        }
+    }
+
+    /** Records a read; the buffered reads are applied to the eviction policy when the buffer is half full */
+    private void recordAccess(K key) {
+        if(!isBounded())
+            return;
+        read_buffer.offer(key); // the access is dropped if the buffer is full
+        if(read_buffer.size() >= READ_BUFFER_SIZE / 2 && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Called with the lock held */
+    private void drainReadBuffer() {
+        for(K key; (key=read_buffer.poll()) != null;)
+            eviction_policy.onAccess(key);
+    }
+
+    /** Adds all keys to the policy when the cache becomes bounded, and evicts the entries exceeding the new bounds */
+    private void boundsChanged(boolean was_bounded) {
+        if(!isBounded())
+            return;
+        boolean evicted;
+        lock.lock();
+        try {
+            if(!was_bounded) {
+                eviction_policy.clear();
+                for(K key: map.keySet())
+                    eviction_policy.onAdd(key);
+            }
+            evicted=evictExcess();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(evicted)
+            notifyChangeListeners();
+    }
+
     private void notifyChangeListeners() {
         for(ChangeListener l: change_listeners) {
             try {
@@ -257,15 +556,18 @@ public class Cache<K,V> {
         }
     }
 
-    
+
 
     public static class Value<V> implements Externalizable {
         private V value;
 
         private long insertion_time=System.currentTimeMillis();
-        
+
         /** When the value can be reaped (in ms) */
         private transient long timeout;
+
+        /** The weight of the entry, computed by the weigher of the cache */
+        private transient int weight=1;
         private static final long serialVersionUID=-3445944261826378608L;
 
 
@@ -280,6 +582,12 @@ public class Cache<K,V> {
         public V getValue() {return value;}
         public long getInsertionTime() {return insertion_time;}
         public long getTimeout() {return timeout;}
+        public int getWeight() {return weight;}
+
+        /** Whether the value has expired: the timeout is relative to the insertion time */
+        public boolean isExpired(long now) {
+            return timeout == -1 || (timeout > 0 && now > insertion_time + timeout);
+        }
 
         public void writeExternal(ObjectOutput out) throws IOException {
             out.writeLong(timeout);
@@ -292,7 +600,237 @@ public class Cache<K,V> {
             value=(V)in.readObject();
         }
     }
-    
+
+
+    /** Evicts the least recently used (read or updated) entries */
+    public static class LruPolicy<K> implements EvictionPolicy<K> {
+        protected final LinkedHashMap<K,Boolean> keys=new LinkedHashMap<>(16, 0.75f, true); // access order
+
+        public void onAdd(K key)    {keys.put(key, Boolean.TRUE);}
+        public void onAccess(K key) {keys.get(key);}
+        public void onRemove(K key) {keys.remove(key);}
+        public void clear()         {keys.clear();}
+
+        public K evict() {
+            Iterator<K> it=keys.keySet().iterator();
+            if(!it.hasNext())
+                return null;
+            K retval=it.next();
+            it.remove();
+            return retval;
+        }
+
+        public String toString() {return "LRU (" + keys.size() + " keys)";}
+    }
+
+
+    /**
+     * Window TinyLFU: new keys are added to a small LRU window (window_percentage of all keys). Keys overflowing the
+     * window become candidates for the main area, which is a segmented LRU (probation and protected; a key read while
+     * in probation is promoted to protected). When an entry needs to be evicted, the most recent candidate is
+     * compared to the victim of the main area (the LRU key in probation) and the one which was accessed less
+     * frequently is evicted. Access frequencies are estimated by a count-min sketch, which is aged periodically by
+     * halving all counters, so that keys that were popular in the past don't stay in the cache forever.
+     * <p/>
+     * This keeps frequently used keys in the cache when it is flooded with keys which are accessed only once (e.g. a
+     * scan), while the window still gives new keys the chance to build up frequency.
+     */
+    public static class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+        protected final LinkedHashMap<K,Boolean> window=new LinkedHashMap<>(16, 0.75f, true);
+        protected final LinkedHashMap<K,Boolean> probation=new LinkedHashMap<>(16, 0.75f, true);
+        protected final LinkedHashMap<K,Boolean> protected_keys=new LinkedHashMap<>(16, 0.75f, true);
+        protected FrequencySketch                sketch=new FrequencySketch(64);
+        protected final int                      window_percentage;
+
+        /** The last key moved from the window to probation; competes with the main area's victim on eviction */
+        protected K                              candidate;
+
+        public TinyLfuPolicy() {
+            this(1);
+        }
+
+        /** @param window_percentage The size of the window as percentage of the number of keys (at least 1 key) */
+        public TinyLfuPolicy(int window_percentage) {
+            if(window_percentage < 0 || window_percentage > 100)
+                throw new IllegalArgumentException("window_percentage (" + window_percentage + ") needs to be in range [0 .. 100]");
+            this.window_percentage=window_percentage;
+        }
+
+        public int size() {return window.size() + probation.size() + protected_keys.size();}
+
+        /** The estimated access frequency of key */
+        public int frequency(K key) {return sketch.frequency(key);}
+
+        public void onAdd(K key) {
+            if(window.containsKey(key) || probation.containsKey(key) || protected_keys.containsKey(key)) {
+                onAccess(key);
+                return;
+            }
+            sketch.increment(key);
+            window.put(key, Boolean.TRUE);
+            if(size() > sketch.capacity())
+                resizeSketch(size() * 2);
+            int max_window=Math.max(1, size() * window_percentage / 100);
+            while(window.size() > max_window) {
+                K eldest=eldest(window);
+                window.remove(eldest);
+                probation.put(eldest, Boolean.TRUE);
+                candidate=eldest;
+            }
+        }
+
+        public void onAccess(K key) {
+            if(window.get(key) != null) {
+                sketch.increment(key);
+                return;
+            }
+            if(probation.remove(key) != null) {
+                sketch.increment(key);
+                protected_keys.put(key, Boolean.TRUE);
+                // the protected segment holds at most 80% of the main area
+                int max_protected=(probation.size() + protected_keys.size()) * 4 / 5;
+                while(protected_keys.size() > Math.max(1, max_protected)) {
+                    K demoted=eldest(protected_keys);
+                    protected_keys.remove(demoted);
+                    probation.put(demoted, Boolean.TRUE);
+                }
+                return;
+            }
+            if(protected_keys.get(key) != null)
+                sketch.increment(key);
+        }
+
+        public void onRemove(K key) {
+            if(window.remove(key) == null && probation.remove(key) == null)
+                protected_keys.remove(key);
+            if(key.equals(candidate))
+                candidate=null;
+        }
+
+        public K evict() {
+            K cand=candidate;
+            candidate=null;
+            if(cand != null && probation.containsKey(cand)) {
+                K victim=null;
+                for(K key: probation.keySet()) { // the LRU key in probation other than the candidate
+                    if(!key.equals(cand)) {
+                        victim=key;
+                        break;
+                    }
+                }
+                if(victim == null && !protected_keys.isEmpty())
+                    victim=eldest(protected_keys);
+                if(victim != null) {
+                    K evicted=sketch.frequency(cand) > sketch.frequency(victim)? victim : cand;
+                    remove(evicted);
+                    return evicted;
+                }
+            }
+            K retval=!probation.isEmpty()? eldest(probation)
+              : !protected_keys.isEmpty()? eldest(protected_keys) : eldest(window);
+            if(retval != null)
+                remove(retval);
+            return retval;
+        }
+
+        public void clear() {
+            window.clear();
+            probation.clear();
+            protected_keys.clear();
+            candidate=null;
+        }
+
+        public String toString() {
+            return String.format("W-TinyLFU (window=%d, probation=%d, protected=%d)",
+                                 window.size(), probation.size(), protected_keys.size());
+        }
+
+        protected void remove(K key) {
+            if(window.remove(key) == null && probation.remove(key) == null)
+                protected_keys.remove(key);
+        }
+
+        /** Creates a larger sketch and copies the frequencies of the current keys. Amortized, as the size doubles */
+        protected void resizeSketch(int capacity) {
+            FrequencySketch tmp=new FrequencySketch(capacity);
+            for(LinkedHashMap<K,Boolean> map: Arrays.asList(window, probation, protected_keys))
+                for(K key: map.keySet())
+                    tmp.set(key, sketch.frequency(key));
+            sketch=tmp;
+        }
+
+        protected static <K> K eldest(LinkedHashMap<K,Boolean> map) {
+            Iterator<K> it=map.keySet().iterator();
+            return it.hasNext()? it.next() : null;
+        }
+    }
+
+
+    /**
+     * Count-min sketch estimating access frequencies, with 4 counters per key saturating at 15. When the number of
+     * increments reaches 10 times the width of the table, all counters are halved
+     */
+    protected static class FrequencySketch {
+        protected static final int[] SEEDS={0x97cb3127, 0x5f356495, 0x8fa6cd9b, 0xd5e8c97b};
+        protected final int[] table;
+        protected int         additions;
+
+        protected FrequencySketch(int capacity) {
+            table=new int[Util.getNextHigherPowerOfTwo(capacity)];
+        }
+
+        protected int capacity() {return table.length;}
+
+        protected int frequency(Object key) {
+            int hash=spread(key.hashCode()), retval=Integer.MAX_VALUE;
+            for(int i=0; i < SEEDS.length; i++)
+                retval=Math.min(retval, table[index(hash, i)]);
+            return retval;
+        }
+
+        protected void increment(Object key) {
+            int hash=spread(key.hashCode());
+            boolean added=false;
+            for(int i=0; i < SEEDS.length; i++) {
+                int index=index(hash, i);
+                if(table[index] < 15) {
+                    table[index]++;
+                    added=true;
+                }
+            }
+            if(added && ++additions >= table.length * 10)
+                reset();
+        }
+
+        /** Sets the frequency of key to at least freq */
+        protected void set(Object key, int freq) {
+            int hash=spread(key.hashCode());
+            for(int i=0; i < SEEDS.length; i++) {
+                int index=index(hash, i);
+                table[index]=Math.max(table[index], freq);
+            }
+        }
+
+        protected void reset() {
+            for(int i=0; i < table.length; i++)
+                table[i]>>>=1;
+            additions>>>=1;
+        }
+
+        protected int index(int hash, int i) {
+            int h=(hash + SEEDS[i]) * SEEDS[i];
+            h^=h >>> 16;
+            return h & (table.length - 1);
+        }
+
+        protected static int spread(int h) {
+            h^=h >>> 16;
+            h*=0x45d9f3b;
+            h^=h >>> 16;
+            return h;
+        }
+    }
+
 
     private class Reaper implements Runnable {
 
@@ -0,0 +1,236 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.util.Util;
+
+import java.util.*;
+
+/**
+ * Consistent hash ring with virtual nodes and a precomputed segment table. Every member is placed on the ring
+ * num_virtual_nodes times, at positions derived from its address, so the load is spread evenly even with few members.
+ * <p/>
+ * The hash space is divided into num_segments segments of equal size; a key is mapped to a segment by its (spread)
+ * hashcode, and a segment is owned by the members at the first ring positions following the segment's start. The
+ * owners of all segments are computed when the ring is created, so looking up the primary owner of a key is O(1).
+ * <p/>
+ * As the positions of a member don't depend on the other members, a membership change only moves the segments
+ * between the joined or left members and the others: when a member joins, it takes over roughly
+ * num_segments / num_members segments; all other segments keep their owners. {@link #changedSegments(ConsistentHashRing)}
+ * returns the segments whose owner changed, so data migration can be restricted to the keys of those segments.
+ * <p/>
+ * Instances are immutable; a new ring is created on every view change. All members need to use the same number of
+ * virtual nodes and segments, and keys need to have a hashcode which is the same in all JVMs.
+ * @author agent
+ * @since  3.6.5
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_VIRTUAL_NODES=64;
+    public static final int DEFAULT_SEGMENTS=1024;
+
+    protected final int       num_virtual_nodes;
+    protected final int       num_segments;
+    protected final int       segment_shift;
+
+    /** The members, sorted, without duplicates */
+    protected final Address[] members;
+
+    /** The ring positions (sorted) and the index of the member (into members) at each position */
+    protected final int[]     positions;
+    protected final int[]     position_owners;
+
+    /** The index into positions of the first position following the start of each segment */
+    protected final int[]     segment_start;
+
+    /** The primary owner of each segment */
+    protected final Address[] segment_owners;
+
+
+    public ConsistentHashRing(Collection<Address> members) {
+        this(members, DEFAULT_VIRTUAL_NODES, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a ring
+     * @param members The members. The order is irrelevant; duplicates and nulls are ignored
+     * @param num_virtual_nodes The number of positions of each member on the ring
+     * @param num_segments The number of segments; rounded up to a power of 2
+     */
+    public ConsistentHashRing(Collection<Address> members, int num_virtual_nodes, int num_segments) {
+        if(num_virtual_nodes <= 0)
+            throw new IllegalArgumentException("num_virtual_nodes (" + num_virtual_nodes + ") needs to be positive");
+        if(num_segments <= 0 || num_segments > 1 << 24)
+            throw new IllegalArgumentException("num_segments (" + num_segments + ") needs to be in range [1 .. 2^24]");
+        this.num_virtual_nodes=num_virtual_nodes;
+        this.num_segments=Util.getNextHigherPowerOfTwo(num_segments);
+        this.segment_shift=32 - Integer.numberOfTrailingZeros(this.num_segments);
+
+        SortedSet<Address> tmp=new TreeSet<>();
+        if(members != null)
+            for(Address mbr: members)
+                if(mbr != null)
+                    tmp.add(mbr);
+        this.members=tmp.toArray(new Address[tmp.size()]);
+
+        // position in the upper 32 bits and member index in the lower ones: sorting orders by position
+        long[] points=new long[this.members.length * num_virtual_nodes];
+        for(int i=0, index=0; i < this.members.length; i++) {
+            int hash=this.members[i].hashCode();
+            for(int j=0; j < num_virtual_nodes; j++)
+                points[index++]=((long)position(hash, j) << 32) | i;
+        }
+        Arrays.sort(points);
+        positions=new int[points.length];
+        position_owners=new int[points.length];
+        for(int i=0; i < points.length; i++) {
+            positions[i]=(int)(points[i] >> 32);
+            position_owners[i]=(int)points[i];
+        }
+
+        segment_start=new int[this.num_segments];
+        segment_owners=new Address[this.num_segments];
+        for(int i=0; i < this.num_segments; i++) {
+            if(positions.length == 0)
+                continue;
+            int start=segmentStart(i);
+            int index=Arrays.binarySearch(positions, start);
+            if(index < 0)
+                index=-index - 1;
+            if(index == positions.length) // wrap around
+                index=0;
+            segment_start[i]=index;
+            segment_owners[i]=this.members[position_owners[index]];
+        }
+    }
+
+
+    public int           numVirtualNodes() {return num_virtual_nodes;}
+    public int           numSegments()     {return num_segments;}
+    public int           numMembers()      {return members.length;}
+    public List<Address> members()         {return Collections.unmodifiableList(Arrays.asList(members));}
+
+    /** Whether this ring contains exactly the given members (in any order) */
+    public boolean hasMembers(Collection<Address> mbrs) {
+        if(mbrs == null)
+            return members.length == 0;
+        Set<Address> tmp=mbrs instanceof Set? (Set<Address>)mbrs : new HashSet<>(mbrs);
+        if(tmp.size() != members.length)
+            return false;
+        for(Address mbr: members)
+            if(!tmp.contains(mbr))
+                return false;
+        return true;
+    }
+
+    /** Returns the segment of a key. The key's hashcode needs to be the same in all JVMs */
+    public int segment(Object key) {
+        return segment_shift == 32? 0 : (spread(key.hashCode()) ^ Integer.MIN_VALUE) >>> segment_shift;
+    }
+
+    /** Returns the primary owner of a segment, or null if the ring is empty */
+    public Address owner(int segment) {
+        return segment_owners[segment];
+    }
+
+    /** Returns the primary owner of a key, or null if the ring is empty */
+    public Address owner(Object key) {
+        return segment_owners[segment(key)];
+    }
+
+    /**
+     * Returns the owners of a key
+     * @param count The number of owners; all members if &lt;= 0 or greater than the number of members
+     * @return The primary owner followed by count-1 different backup owners
+     */
+    public List<Address> owners(Object key, int count) {
+        return owners(segment(key), count);
+    }
+
+    /** Returns the primary owner of a segment followed by count-1 different backup owners */
+    public List<Address> owners(int segment, int count) {
+        if(count <= 0 || count > members.length)
+            count=members.length;
+        List<Address> retval=new ArrayList<>(count);
+        if(count == 0)
+            return retval;
+        retval.add(segment_owners[segment]);
+        if(count == 1)
+            return retval;
+        boolean[] added=new boolean[members.length];
+        added[position_owners[segment_start[segment]]]=true;
+        for(int i=segment_start[segment] + 1; retval.size() < count; i++) {
+            int owner=position_owners[i % positions.length];
+            if(!added[owner]) {
+                added[owner]=true;
+                retval.add(members[owner]);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the segments whose primary owner in this ring differs from the one in old_ring. Both rings need to have
+     * the same number of segments
+     */
+    public BitSet changedSegments(ConsistentHashRing old_ring) {
+        if(old_ring.num_segments != num_segments)
+            throw new IllegalArgumentException("number of segments differs: " + old_ring.num_segments + " vs " + num_segments);
+        BitSet retval=new BitSet(num_segments);
+        for(int i=0; i < num_segments; i++)
+            if(!Objects.equals(segment_owners[i], old_ring.segment_owners[i]))
+                retval.set(i);
+        return retval;
+    }
+
+    /** Returns the segments whose primary owner was mbr in old_ring but is a different member in this ring */
+    public BitSet segmentsLostBy(Address mbr, ConsistentHashRing old_ring) {
+        BitSet retval=changedSegments(old_ring);
+        for(int i=retval.nextSetBit(0); i >= 0; i=retval.nextSetBit(i + 1))
+            if(!mbr.equals(old_ring.segment_owners[i]))
+                retval.clear(i);
+        return retval;
+    }
+
+    /** Returns the number of segments owned (as primary owner) by each member */
+    public Map<Address,Integer> segmentsPerMember() {
+        Map<Address,Integer> retval=new LinkedHashMap<>();
+        for(Address mbr: members)
+            retval.put(mbr, 0);
+        for(Address owner: segment_owners)
+            if(owner != null)
+                retval.put(owner, retval.get(owner) + 1);
+        return retval;
+    }
+
+    public String toString() {
+        return String.format("%d members, %d virtual nodes, %d segments: %s",
+                             members.length, num_virtual_nodes, num_segments, segmentsPerMember());
+    }
+
+
+    /** The (signed) ring position at which segment starts */
+    protected int segmentStart(int segment) {
+        return (int)((long)segment << segment_shift) ^ Integer.MIN_VALUE;
+    }
+
+    /** The position of virtual node index of the member with the given hashcode */
+    protected static int position(int member_hash, int index) {
+        long h=((long)member_hash << 32) | (index & 0xffffffffL);
+        // finalizer of MurmurHash3 (64 bit)
+        h^=h >>> 33;
+        h*=0xff51afd7ed558ccdL;
+        h^=h >>> 33;
+        h*=0xc4ceb9fe1a85ec53L;
+        h^=h >>> 33;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /** Spreads the bits of a hashcode (finalizer of MurmurHash3, 32 bit), so that similar keys hash to different segments */
+    protected static int spread(int h) {
+        h^=h >>> 16;
+        h*=0x85ebca6b;
+        h^=h >>> 13;
+        h*=0xc2b2ae35;
+        h^=h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,359 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Message;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.Util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes incoming requests (with async dispatching) on threads other than the ones which delivered them, so that slow
+ * requests neither starve fast ones nor block the transport's thread pools.
+ * <p/>
+ * Requests are partitioned into categories. A request is mapped to a category by the name or ID of the method it
+ * invokes (see {@link #mapMethod(String,String)}), or by a {@link Classifier}; unmapped requests go to the
+ * {@link #DEFAULT_CATEGORY}. Each category has
+ * <ul>
+ *     <li>a priority: the threads of the shared pool pick queued requests of higher priority categories first (e.g.
+ *         heartbeat-like RPCs before bulk RPCs)</li>
+ *     <li>a concurrency limit: the max number of requests of the category which are executed at the same time. Additional
+ *         requests are queued (up to max_queue_size) and executed as others complete</li>
+ *     <li>optionally a dedicated executor, used instead of the shared pool</li>
+ * </ul>
+ * Requests are rejected with a {@link RejectedExecutionException} (which is returned to the caller) when the queue of
+ * their category is full.
+ * <p/>
+ * Queue depths and wait/service times are exposed via JMX, e.g. by registering an instance with
+ * {@link org.jgroups.jmx.JmxConfigurator#register(Object, javax.management.MBeanServer, String)}. The pool is not
+ * stopped by the dispatchers using it; it needs to be stopped with {@link #stop()}.
+ * @author agent
+ * @since  3.6.5
+ */
+@MBean(description="Executes incoming requests on thread pools partitioned into categories")
+public class DispatchPool {
+    public static final String                    DEFAULT_CATEGORY="default";
+
+    protected static final Log                    log=LogFactory.getLog(DispatchPool.class);
+
+    protected final ConcurrentMap<String,Category> categories=Util.createConcurrentMap();
+    protected final ConcurrentMap<String,String>   method_names=Util.createConcurrentMap();
+    protected final ConcurrentMap<Short,String>    method_ids=Util.createConcurrentMap();
+    protected volatile Classifier                  classifier;
+
+    /** The shared pool; queued requests are ordered by the priority of their category */
+    protected final ThreadPoolExecutor             pool;
+    protected final AtomicLong                     seqno=new AtomicLong(0);
+
+
+    /** Maps a request to the name of a category */
+    public interface Classifier {
+        /** Returns the name of the category for req, or null for the default category */
+        String category(Message req);
+    }
+
+
+    public DispatchPool(int num_threads) {
+        this(num_threads, new DefaultThreadFactory("dispatch", true, true));
+    }
+
+    /**
+     * Creates a pool
+     * @param num_threads The number of threads of the shared pool
+     * @param factory The factory for the threads of the shared pool
+     */
+    public DispatchPool(int num_threads, ThreadFactory factory) {
+        pool=new ThreadPoolExecutor(num_threads, num_threads, 30, TimeUnit.SECONDS,
+                                    new PriorityBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        addCategory(DEFAULT_CATEGORY, 0, 0, 0);
+    }
+
+
+    /**
+     * Adds (or replaces) a category executed by the shared pool
+     * @param name The name of the category
+     * @param priority The priority; requests of categories with a higher priority are executed first
+     * @param max_concurrency The max number of requests executed at the same time; 0 means unlimited
+     * @param max_queue_size The max number of queued requests (exceeding max_concurrency); 0 means unbounded
+     */
+    public DispatchPool addCategory(String name, int priority, int max_concurrency, int max_queue_size) {
+        return addCategory(name, priority, max_concurrency, max_queue_size, null);
+    }
+
+    /**
+     * Adds (or replaces) a category
+     * @param executor A dedicated executor for the requests of this category. If null, the shared pool is used
+     */
+    public DispatchPool addCategory(String name, int priority, int max_concurrency, int max_queue_size, Executor executor) {
+        categories.put(name, new Category(name, priority, max_concurrency, max_queue_size, executor));
+        return this;
+    }
+
+    public Category category(String name) {
+        return categories.get(name);
+    }
+
+    /** Maps all requests invoking a method with the given name (MethodCall modes METHOD, TYPES and SIGNATURE) to a category */
+    public DispatchPool mapMethod(String method_name, String category) {
+        method_names.put(method_name, category);
+        return this;
+    }
+
+    /** Maps all requests invoking a method with the given ID (MethodCall mode ID) to a category */
+    public DispatchPool mapMethod(short method_id, String category) {
+        method_ids.put(method_id, category);
+        return this;
+    }
+
+    public Classifier classifier()                  {return classifier;}
+    public DispatchPool classifier(Classifier c)    {this.classifier=c; return this;}
+
+    /** Returns the category for a request, using the classifier (if set) */
+    public String classify(Message req) {
+        Classifier c=classifier;
+        String retval=c != null? c.category(req) : null;
+        return retval != null? retval : DEFAULT_CATEGORY;
+    }
+
+    /** Returns the category for a method call; falls back to {@link #classify(Message)} if the method is not mapped */
+    public String classify(MethodCall call, Message req) {
+        String retval=null;
+        if(call.getMode() == MethodCall.ID)
+            retval=method_ids.get(call.getId());
+        else if(call.getName() != null)
+            retval=method_names.get(call.getName());
+        return retval != null? retval : classify(req);
+    }
+
+
+    /**
+     * Executes a task in the given category
+     * @throws RejectedExecutionException If the queue of the category is full, or the pool has been stopped
+     */
+    public void execute(String category, Runnable task) {
+        Category cat=category != null? categories.get(category) : null;
+        if(cat == null)
+            cat=categories.get(DEFAULT_CATEGORY);
+        cat.execute(new Task(cat, task, seqno.incrementAndGet()));
+    }
+
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+
+    @ManagedAttribute(description="The number of threads of the shared pool")
+    public int getNumThreads() {return pool.getMaximumPoolSize();}
+
+    @ManagedAttribute(description="The number of currently active threads of the shared pool")
+    public int getActiveThreads() {return pool.getActiveCount();}
+
+    @ManagedAttribute(description="The number of requests waiting for execution (all categories)")
+    public int getQueueSize() {
+        int retval=0;
+        for(Category cat: categories.values())
+            retval+=cat.queueSize();
+        return retval;
+    }
+
+    @ManagedAttribute(description="The number of executed requests (all categories)")
+    public long getNumCompleted() {
+        long retval=0;
+        for(Category cat: categories.values())
+            retval+=cat.numCompleted();
+        return retval;
+    }
+
+    @ManagedAttribute(description="The number of rejected requests (all categories)")
+    public long getNumRejected() {
+        long retval=0;
+        for(Category cat: categories.values())
+            retval+=cat.numRejected();
+        return retval;
+    }
+
+    @ManagedOperation(description="Prints queue depths and wait / service times per category")
+    public String printStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Category cat: categories.values())
+            sb.append(cat).append("\n");
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Resets all statistics")
+    public void resetStats() {
+        for(Category cat: categories.values())
+            cat.resetStats();
+    }
+
+    public String toString() {
+        return String.format("%d threads, categories: %s", pool.getMaximumPoolSize(), categories.keySet());
+    }
+
+
+    /** A category of requests, with its own priority, concurrency limit, queue and statistics */
+    public class Category {
+        protected final String     name;
+        protected final int        priority;
+        protected final int        max_concurrency;
+        protected final int        max_queue_size;
+        protected final Executor   executor;
+
+        /** Requests which exceeded max_concurrency, waiting for others of the same category to complete */
+        @GuardedBy("this")
+        protected final Queue<Task> pending=new ArrayDeque<>();
+
+        /** The number of requests passed to the executor, but not yet completed */
+        @GuardedBy("this")
+        protected int               in_flight;
+
+        protected final AtomicInteger waiting=new AtomicInteger(); // queued in pending or in the executor
+        protected final AtomicInteger active=new AtomicInteger();
+        protected final AtomicLong    completed=new AtomicLong(), rejected=new AtomicLong();
+        protected final AtomicLong    total_wait_time=new AtomicLong(), total_service_time=new AtomicLong(); // ns
+
+        protected Category(String name, int priority, int max_concurrency, int max_queue_size, Executor executor) {
+            this.name=name;
+            this.priority=priority;
+            this.max_concurrency=max_concurrency;
+            this.max_queue_size=max_queue_size;
+            this.executor=executor;
+        }
+
+        public String name()            {return name;}
+        public int    priority()        {return priority;}
+        public int    maxConcurrency()  {return max_concurrency;}
+        public int    maxQueueSize()    {return max_queue_size;}
+        public int    queueSize()       {return waiting.get();}
+        public int    active()          {return active.get();}
+        public long   numCompleted()    {return completed.get();}
+        public long   numRejected()     {return rejected.get();}
+
+        /** The average time (ms) requests were queued before being executed */
+        public double avgWaitTime() {
+            long num=completed.get();
+            return num > 0? total_wait_time.get() / (num * 1000000.0) : 0;
+        }
+
+        /** The average time (ms) it took to execute a request */
+        public double avgServiceTime() {
+            long num=completed.get();
+            return num > 0? total_service_time.get() / (num * 1000000.0) : 0;
+        }
+
+        public void resetStats() {
+            completed.set(0);
+            rejected.set(0);
+            total_wait_time.set(0);
+            total_service_time.set(0);
+        }
+
+        protected void execute(Task task) {
+            synchronized(this) {
+                if(max_concurrency > 0 && in_flight >= max_concurrency) {
+                    if(max_queue_size > 0 && pending.size() >= max_queue_size) {
+                        rejected.incrementAndGet();
+                        throw new RejectedExecutionException(String.format("queue of category %s is full (%d requests)",
+                                                                           name, pending.size()));
+                    }
+                    pending.add(task);
+                    waiting.incrementAndGet();
+                    return;
+                }
+                in_flight++;
+                waiting.incrementAndGet();
+            }
+            try {
+                submit(task);
+            }
+            catch(RejectedExecutionException ex) {
+                waiting.decrementAndGet();
+                rejected.incrementAndGet();
+                release();
+                throw ex;
+            }
+        }
+
+        protected void submit(Task task) {
+            if(executor != null)
+                executor.execute(task);
+            else
+                pool.execute(task);
+        }
+
+        /** Called when a task completed: runs the next pending task, if any */
+        protected void release() {
+            Task next;
+            synchronized(this) {
+                if((next=pending.poll()) == null) {
+                    in_flight--;
+                    return;
+                }
+            }
+            try {
+                submit(next);
+            }
+            catch(RejectedExecutionException ex) { // don't drop the request: run it in the releasing thread
+                next.run();
+            }
+        }
+
+        public String toString() {
+            return String.format("%s: priority=%d, max_concurrency=%d, queued=%d, active=%d, completed=%d, rejected=%d, " +
+                                   "avg wait=%.2f ms, avg service time=%.2f ms%s",
+                                 name, priority, max_concurrency, queueSize(), active(), numCompleted(), numRejected(),
+                                 avgWaitTime(), avgServiceTime(), executor != null? " (dedicated executor)" : "");
+        }
+    }
+
+
+    /** Wraps a request; ordered by the priority of its category, then by arrival */
+    protected static class Task implements Runnable, Comparable<Task> {
+        protected final Category category;
+        protected final Runnable task;
+        protected final long     seqno;
+        protected final long     created=System.nanoTime();
+
+        protected Task(Category category, Runnable task, long seqno) {
+            this.category=category;
+            this.task=task;
+            this.seqno=seqno;
+        }
+
+        public int compareTo(Task other) {
+            if(category.priority != other.category.priority)
+                return category.priority > other.category.priority? -1 : 1;
+            return seqno < other.seqno? -1 : seqno > other.seqno? 1 : 0;
+        }
+
+        public void run() {
+            long start=System.nanoTime();
+            category.waiting.decrementAndGet();
+            category.active.incrementAndGet();
+            category.total_wait_time.addAndGet(start - created);
+            try {
+                task.run();
+            }
+            catch(Throwable t) {
+                log.error("failed executing request in category " + category.name, t);
+            }
+            finally {
+                category.total_service_time.addAndGet(System.nanoTime() - start);
+                category.completed.incrementAndGet();
+                category.active.decrementAndGet();
+                category.release();
+            }
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package org.jgroups.blocks;
 
 import org.jgroups.annotations.Experimental;
+import org.jgroups.util.DefaultThreadFactory;
 
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Entry point for GridFile and GridInputStream / GridOutputStream
+ * <p/>
+ * Streams transfer one chunk per request by default. With read_ahead &gt; 0, input streams fetch the next read_ahead
+ * chunks in parallel while the current chunk is being read, and with write_behind &gt; 0, output streams keep up to
+ * write_behind chunks in flight and only block when all of them are outstanding. The I/O is done by a thread pool
+ * shared by all streams of a filesystem.
  * @author Bela Ban
  */
 @Experimental
@@ -14,6 +24,9 @@ public class GridFilesystem {
     protected final ReplCache<String,GridFile.Metadata>  metadata;
     protected final int                                  default_chunk_size;
     protected final short                                default_repl_count;
+    protected int                                        read_ahead;   // number of chunks to prefetch
+    protected int                                        write_behind; // max number of chunk puts in flight
+    protected ExecutorService                            io_pool;
 
 
 
@@ -35,6 +48,46 @@ public class GridFilesystem {
         this(data, metadata, (short)1, 8000);
     }
 
+    public int getReadAhead() {
+        return read_ahead;
+    }
+
+    /** Sets the number of chunks input streams fetch ahead of the current chunk. 0 disables read-ahead */
+    public GridFilesystem setReadAhead(int read_ahead) {
+        this.read_ahead=read_ahead;
+        return this;
+    }
+
+    public int getWriteBehind() {
+        return write_behind;
+    }
+
+    /**
+     * Sets the max number of chunks output streams write in the background. With 0, chunks are written with
+     * asynchronous (unacknowledged) puts
+     */
+    public GridFilesystem setWriteBehind(int write_behind) {
+        this.write_behind=write_behind;
+        return this;
+    }
+
+    /** Sets the thread pool used for read-ahead and write-behind. If not set, a pool is created on demand */
+    public GridFilesystem setIOPool(ExecutorService io_pool) {
+        this.io_pool=io_pool;
+        return this;
+    }
+
+    /** Shuts down the thread pool created for read-ahead and write-behind */
+    public void stop() {
+        ExecutorService pool;
+        synchronized(this) {
+            pool=io_pool;
+            io_pool=null;
+        }
+        if(pool != null)
+            pool.shutdownNow();
+    }
+
     public File getFile(String pathname) {
         return getFile(pathname, default_chunk_size);
     }
@@ -72,13 +125,15 @@ public class GridFilesystem {
         if(!file.createNewFile())
             throw new IOException("creation of " + pathname + " failed");
 
-        return new GridOutputStream(file, append, data, repl_count, chunk_size);
+        return new GridOutputStream(file, append, data, repl_count, chunk_size, write_behind,
+                                    write_behind > 0? ioPool() : null);
     }
 
     public OutputStream getOutput(GridFile file) throws IOException {
         if(!file.createNewFile())
             throw new IOException("creation of " + file + " failed");
-        return new GridOutputStream(file, false, data, default_repl_count, default_chunk_size);
+        return new GridOutputStream(file, false, data, default_repl_count, default_chunk_size, write_behind,
+                                    write_behind > 0? ioPool() : null);
     }
     
 
@@ -87,7 +142,7 @@ public class GridFilesystem {
         GridFile file=(GridFile)getFile(pathname);
         if(!file.exists())
             throw new FileNotFoundException(pathname);
-        return new GridInputStream(file, data, default_chunk_size);
+        return new GridInputStream(file, data, default_chunk_size, read_ahead, read_ahead > 0? ioPool() : null);
     }
 
     public InputStream getInput(File pathname) throws FileNotFoundException {
@@ -105,4 +160,16 @@ public class GridFilesystem {
         for(int i=0; i < num_chunks; i++)
             data.remove(path + ".#" + i, synchronous);
     }
+
+    protected synchronized ExecutorService ioPool() {
+        if(io_pool == null) {
+            int num_threads=Runtime.getRuntime().availableProcessors() * 4; // the threads mostly wait for responses
+            ThreadPoolExecutor pool=new ThreadPoolExecutor(num_threads, num_threads, 30, TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue<Runnable>(),
+                                                           new DefaultThreadFactory("GridFS-IO", true));
+            pool.allowCoreThreadTimeOut(true);
+            io_pool=pool;
+        }
+        return io_pool;
+    }
 }
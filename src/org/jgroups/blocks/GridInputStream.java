@@ -5,8 +5,16 @@ import org.jgroups.logging.LogFactory;
 import org.jgroups.annotations.Experimental;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
+ * Reads a {@link GridFile} chunk by chunk. With read_ahead &gt; 0, the next read_ahead chunks are fetched in parallel
+ * (by the I/O pool) while the current chunk is being read. {@link #read(long,byte[],int,int)} reads from a given
+ * position without changing the position of the stream, and {@link #position(long)} moves the stream.
  * @author Bela Ban
  */
 @Experimental
@@ -19,15 +27,27 @@ public class GridInputStream extends InputStream {
     int                            local_index=0;
     byte[]                         current_buffer=null;
     boolean                        end_reached=false;
+    protected final int            read_ahead;
+    protected final ExecutorService io_pool;
+    /** Chunks being fetched by the I/O pool, keyed by chunk number */
+    protected final Map<Integer,Future<byte[]>> prefetched=new HashMap<>();
+    protected int                  num_chunks=-1;          // number of chunks when read-ahead started, -1 if unknown
     final static Log               log=LogFactory.getLog(GridInputStream.class);
 
 
 
     GridInputStream(GridFile file, ReplCache<String, byte[]> cache, int chunk_size) throws FileNotFoundException {
+        this(file, cache, chunk_size, 0, null);
+    }
+
+    GridInputStream(GridFile file, ReplCache<String, byte[]> cache, int chunk_size,
+                    int read_ahead, ExecutorService io_pool) throws FileNotFoundException {
         this.file=file;
         this.name=file.getPath();
         this.cache=cache;
         this.chunk_size=chunk_size;
+        this.read_ahead=io_pool != null? read_ahead : 0;
+        this.io_pool=io_pool;
     }
 
 
@@ -37,15 +57,13 @@ public class GridInputStream extends InputStream {
         if(bytes_remaining_to_read == 0) {
             if(end_reached)
                 return -1;
-            current_buffer=fetchNextChunk();
-            local_index=0;
-            if(current_buffer == null)
+            if(!nextChunk())
                 return -1;
-            else if(current_buffer.length < chunk_size)
-                end_reached=true;
             bytes_remaining_to_read=getBytesRemainingInChunk();
+            if(bytes_remaining_to_read == 0)
+                return -1;
         }
-        int retval=current_buffer[local_index++];
+        int retval=current_buffer[local_index++] & 0xff;
         index++;
         return retval;
     }
@@ -59,18 +77,13 @@ public class GridInputStream extends InputStream {
         while(len > 0) {
             int bytes_remaining_to_read=getBytesRemainingInChunk();
             if(bytes_remaining_to_read == 0) {
-                if(end_reached)
-                    return bytes_read > 0? bytes_read : -1;
-                current_buffer=fetchNextChunk();
-                local_index=0;
-                if(current_buffer == null)
+                if(end_reached || !nextChunk())
                     return bytes_read > 0? bytes_read : -1;
-                else if(current_buffer.length < chunk_size)
-                    end_reached=true;
                 bytes_remaining_to_read=getBytesRemainingInChunk();
+                if(bytes_remaining_to_read == 0)
+                    return bytes_read > 0? bytes_read : -1;
             }
             int bytes_to_read=Math.min(len, bytes_remaining_to_read);
-            // bytes_to_read=Math.min(bytes_to_read, current_buffer.length - local_index);
             System.arraycopy(current_buffer, local_index, b, off, bytes_to_read);
             local_index+=bytes_to_read;
             off+=bytes_to_read;
@@ -82,33 +95,152 @@ public class GridInputStream extends InputStream {
         return bytes_read;
     }
 
+    /**
+     * Reads up to len bytes starting at position into b, without changing the position of the stream. All chunks of
+     * the range are fetched with a single request
+     * @return The number of bytes read, or -1 if position is at or beyond the end of the file
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("position (" + position + ") must not be negative");
+        if(len == 0)
+            return 0;
+        int first=(int)(position / chunk_size), last=(int)((position + len - 1) / chunk_size);
+        List<String> keys=new ArrayList<>(last - first + 1);
+        for(int i=first; i <= last; i++)
+            keys.add(getKey(i));
+        Map<String,byte[]> chunks=cache.getAll(keys);
+
+        int bytes_read=0;
+        for(int i=first; i <= last && len > 0; i++) {
+            byte[] chunk=chunks.get(getKey(i));
+            if(chunk == null)
+                break;
+            int chunk_offset=i == first? (int)(position % chunk_size) : 0;
+            if(chunk_offset >= chunk.length)
+                break;
+            int bytes_to_read=Math.min(len, chunk.length - chunk_offset);
+            System.arraycopy(chunk, chunk_offset, b, off, bytes_to_read);
+            off+=bytes_to_read;
+            len-=bytes_to_read;
+            bytes_read+=bytes_to_read;
+            if(chunk.length < chunk_size) // last chunk
+                break;
+        }
+        return bytes_read > 0? bytes_read : -1;
+    }
+
+    /** Returns the position of the stream */
+    public long position() {
+        return index;
+    }
+
+    /** Sets the position of the stream. The next read starts at the given position */
+    public GridInputStream position(long new_position) {
+        if(new_position < 0 || new_position > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("position (" + new_position + ") must be in range [0 .. 2^31-1]");
+        if(new_position / chunk_size != getChunkNumber() || current_buffer == null) {
+            current_buffer=null;
+            end_reached=false;
+        }
+        else
+            local_index=(int)(new_position % chunk_size);
+        index=(int)new_position;
+        return this;
+    }
+
     public long skip(long n) throws IOException {
-        throw new UnsupportedOperationException();
+        if(n <= 0)
+            return 0;
+        long length=file.length();
+        long skipped=Math.min(n, Math.max(0, length - index));
+        position(index + skipped);
+        return skipped;
     }
 
     public int available() throws IOException {
-        throw new UnsupportedOperationException();
+        return getBytesRemainingInChunk();
     }
 
     public void close() throws IOException {
         local_index=index=0;
+        current_buffer=null;
         end_reached=false;
+        for(Future<byte[]> future: prefetched.values())
+            future.cancel(true);
+        prefetched.clear();
+        num_chunks=-1;
     }
 
     private int getBytesRemainingInChunk() {
         // return chunk_size - local_index;
-        return current_buffer == null? 0 : current_buffer.length - local_index;
+        return current_buffer == null? 0 : Math.max(0, current_buffer.length - local_index);
     }
 
-    private byte[] fetchNextChunk() {
+    /** Fetches the chunk containing index. Returns false if there is no such chunk */
+    private boolean nextChunk() throws IOException {
         int chunk_number=getChunkNumber();
-        String key=name + ".#" + chunk_number;
-        byte[] val= cache.get(key);
+        current_buffer=fetchChunk(chunk_number);
+        if(current_buffer == null)
+            return false;
+        local_index=index - chunk_number * chunk_size;
+        if(current_buffer.length < chunk_size)
+            end_reached=true;
+        return true;
+    }
+
+    private byte[] fetchChunk(int chunk_number) throws IOException {
+        byte[] val;
+        Future<byte[]> future=prefetched.remove(chunk_number);
+        if(read_ahead > 0)
+            prefetch(chunk_number + 1);
+        if(future != null) {
+            try {
+                val=future.get();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted fetching chunk " + chunk_number + " of " + name);
+            }
+            catch(ExecutionException e) {
+                throw new IOException("failed fetching chunk " + chunk_number + " of " + name, e.getCause());
+            }
+        }
+        else
+            val=cache.get(getKey(chunk_number));
         if(log.isTraceEnabled())
-            log.trace("fetching index=" + index + ", key=" + key +": " + (val != null? val.length + " bytes" : "null"));
+            log.trace("fetching index=" + index + ", key=" + getKey(chunk_number) +": " + (val != null? val.length + " bytes" : "null"));
         return val;
     }
 
+    /** Starts fetching the chunks [from .. from+read_ahead-1] which are not yet being fetched. Stops at the end of the file */
+    private void prefetch(int from) {
+        if(num_chunks < 0)
+            num_chunks=(int)((file.length() + chunk_size - 1) / chunk_size);
+        // drop chunks which were skipped by a change of position
+        for(Iterator<Map.Entry<Integer,Future<byte[]>>> it=prefetched.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer,Future<byte[]>> entry=it.next();
+            if(entry.getKey() < from || entry.getKey() >= from + read_ahead) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+        for(int i=from; i < from + read_ahead && i < num_chunks; i++) {
+            if(prefetched.containsKey(i))
+                continue;
+            final String key=getKey(i);
+            prefetched.put(i, io_pool.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return cache.get(key);
+                }
+            }));
+        }
+    }
+
+    private String getKey(int chunk_number) {
+        return name + ".#" + chunk_number;
+    }
+
     private int getChunkNumber() {
         return index / chunk_size;
     }
@@ -5,8 +5,17 @@ import org.jgroups.logging.LogFactory;
 import org.jgroups.annotations.Experimental;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
+ * Writes a {@link GridFile} chunk by chunk. By default, every chunk is written with an asynchronous put. With
+ * write_behind &gt; 0, chunks are written with synchronous puts by the I/O pool, and up to write_behind chunks are in
+ * flight: a write only blocks when a chunk is full and write_behind chunks are outstanding. The length of the file is
+ * updated in order, as the chunks complete, and {@link #close()} returns when all chunks have been written.
  * @author Bela Ban
  */
 @Experimental
@@ -19,18 +28,29 @@ public class GridOutputStream extends OutputStream {
     int                            index=0;                // index into the file for writing
     int                            local_index=0;
     final byte[]                   current_buffer;
+    protected final int            write_behind;
+    protected final ExecutorService io_pool;
+    /** Chunk puts in flight, in the order in which they were submitted */
+    protected final Deque<Write>   in_flight=new ArrayDeque<>();
     static final Log               log=LogFactory.getLog(GridOutputStream.class);
     
 
     
     GridOutputStream(GridFile file, boolean append, ReplCache<String,byte[]> cache,
                      short repl_count, int chunk_size) throws FileNotFoundException {
+        this(file, append, cache, repl_count, chunk_size, 0, null);
+    }
+
+    GridOutputStream(GridFile file, boolean append, ReplCache<String,byte[]> cache,
+                     short repl_count, int chunk_size, int write_behind, ExecutorService io_pool) throws FileNotFoundException {
         this.file=file;
         this.name=file.getPath();
         this.cache=cache;
         this.repl_count=repl_count;
         this.chunk_size=chunk_size;
         current_buffer=new byte[chunk_size];
+        this.write_behind=io_pool != null? write_behind : 0;
+        this.io_pool=io_pool;
     }
 
 
@@ -75,19 +95,37 @@ public class GridOutputStream extends OutputStream {
 
 
     public void close() throws IOException {
-        flush();
-        reset();
+        try {
+            flush();
+            awaitWrites(0);
+        }
+        finally {
+            reset();
+        }
     }
 
     public void flush() throws IOException {
         int chunk_number=getChunkNumber();
-        String key=name + ".#" + chunk_number;
-        byte[] val=new byte[local_index];
+        final String key=name + ".#" + chunk_number;
+        final byte[] val=new byte[local_index];
         System.arraycopy(current_buffer, 0, val, 0, local_index);
-        cache.put(key, val, repl_count, 0);
+        if(write_behind > 0) {
+            // a chunk flushed before it was full must not overtake its next version
+            Write last=in_flight.peekLast();
+            awaitWrites(last != null && last.chunk_number == chunk_number? 0 : write_behind - 1);
+            Future<?> future=io_pool.submit(new Runnable() {
+                public void run() {
+                    cache.put(key, val, repl_count, 0, true);
+                }
+            });
+            in_flight.add(new Write(future, chunk_number, index));
+        }
+        else {
+            cache.put(key, val, repl_count, 0);
+            file.setLength(index);
+        }
         if(log.isTraceEnabled())
             log.trace("put(): index=" + index + ", key=" + key + ": " + val.length + " bytes");
-        file.setLength(index);
     }
 
     private int getBytesRemainingInChunk() {
@@ -102,6 +140,45 @@ public class GridOutputStream extends OutputStream {
 
     private void reset() {
         index=local_index=0;
+        for(Write write: in_flight)
+            write.future.cancel(true);
+        in_flight.clear();
+    }
+
+    /** Waits until at most max_in_flight writes are in flight, and updates the length of the file */
+    private void awaitWrites(int max_in_flight) throws IOException {
+        int length=-1;
+        try {
+            while(in_flight.size() > max_in_flight) {
+                Write write=in_flight.peek();
+                write.future.get();
+                in_flight.poll();
+                length=write.length;
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted writing " + name);
+        }
+        catch(ExecutionException e) {
+            throw new IOException("failed writing " + name, e.getCause());
+        }
+        finally {
+            if(length >= 0)
+                file.setLength(length);
+        }
+    }
+
+    protected static class Write {
+        protected final Future<?> future;
+        protected final int       chunk_number;
+        protected final int       length; // the length of the file when this write has completed
+
+        protected Write(Future<?> future, int chunk_number, int length) {
+            this.future=future;
+            this.chunk_number=chunk_number;
+            this.length=length;
+        }
     }
 
 
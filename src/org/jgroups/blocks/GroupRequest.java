@@ -9,10 +9,8 @@ import org.jgroups.protocols.relay.SiteAddress;
 import org.jgroups.util.Rsp;
 import org.jgroups.util.RspList;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -63,6 +61,11 @@ public class GroupRequest<T> extends Request {
     @GuardedBy("lock")
     int num_received;    // number of responses (values, exceptions or suspicions)
 
+    /** The members whose responses have already been passed to the RspHandler (null if no handler is set) */
+    protected final Set<Address> handled;
+
+    @GuardedBy("lock")
+    protected int                handlers_pending; // responses passed to the RspHandler whose handle() has not returned
 
 
     
@@ -79,12 +82,22 @@ public class GroupRequest<T> extends Request {
         super(msg, corr, options);
         int size=targets.size();
         requests=new HashMap<>(size);
+        handled=createHandledSet(options);
+        setTargets(targets);
+    }
+
+    /** Creates a request with a given ID; used for requests which are sent as part of a batch */
+    protected GroupRequest(Message msg, RequestCorrelator corr, Collection<Address> targets, RequestOptions options, long req_id) {
+        super(msg, corr, options, req_id);
+        requests=new HashMap<>(targets.size());
+        handled=createHandledSet(options);
         setTargets(targets);
     }
 
     public GroupRequest(Message msg, RequestCorrelator corr, Address target, RequestOptions options) {
         super(msg, corr, options);
         requests=new HashMap<>(1);
+        handled=createHandledSet(options);
         setTarget(target);
     }
 
@@ -118,7 +131,7 @@ public class GroupRequest<T> extends Request {
             return;
 
         RspFilter rsp_filter=options.getRspFilter();
-        boolean responseReceived=false;
+        boolean responseReceived=false, handle=false;
 
         lock.lock();
         try {
@@ -131,10 +144,11 @@ public class GroupRequest<T> extends Request {
                     else
                         rsp.setValue((T)response_value);
                     num_valid++;
+                    handle=addToHandled(rsp);
                 }
             }
 
-            done=responsesComplete() || (rsp_filter != null && !rsp_filter.needMoreResponses());
+            done=receivedAll() || (rsp_filter != null && !rsp_filter.needMoreResponses());
             if(responseReceived || done)
                 cond.signal(true); // wakes up execute()
             if(done && corr != null)
@@ -143,6 +157,8 @@ public class GroupRequest<T> extends Request {
         finally {
             lock.unlock();
         }
+        if(handle)
+            handleRsp(rsp);
         if(responseReceived || done)
             checkCompletion(this);
     }
@@ -158,7 +174,7 @@ public class GroupRequest<T> extends Request {
         if(suspected_member == null)
             return;
 
-        boolean changed=false;
+        boolean changed=false, handle=false;
         Rsp<T> rsp=requests.get(suspected_member);
         if(rsp !=  null) {
             if(rsp.setSuspected()) {
@@ -167,6 +183,7 @@ public class GroupRequest<T> extends Request {
                 try {
                     if(!(rsp.wasReceived() || rsp.wasUnreachable()))
                         num_received++;
+                    handle=addToHandled(rsp);
                     cond.signal(true);
                 }
                 finally {
@@ -175,8 +192,11 @@ public class GroupRequest<T> extends Request {
             }
         }
 
-        if(changed)
+        if(changed) {
+            if(handle)
+                handleRsp(rsp);
             checkCompletion(this);
+        }
     }
 
     public void siteUnreachable(String site) {
@@ -192,15 +212,19 @@ public class GroupRequest<T> extends Request {
                 if(rsp !=  null) {
                     if(rsp.setUnreachable()) {
                         changed=true;
+                        boolean handle;
                         lock.lock();
                         try {
                             if(!(rsp.wasReceived() || rsp.wasSuspected()))
                                 num_received++;
+                            handle=addToHandled(rsp);
                             cond.signal(true);
                         }
                         finally {
                             lock.unlock();
                         }
+                        if(handle)
+                            handleRsp(rsp);
                     }
                 }
 
@@ -235,7 +259,7 @@ public class GroupRequest<T> extends Request {
         if(mbrs == null)
             return;
 
-        boolean changed=false;
+        List<Rsp<T>> changed_rsps=null;
 
         lock.lock();
         try {
@@ -247,23 +271,29 @@ public class GroupRequest<T> extends Request {
                     if(rsp.setSuspected()) {
                         if(!(rsp.wasReceived() || rsp.wasUnreachable()))
                             num_received++;
-                        changed=true;
+                        if(changed_rsps == null)
+                            changed_rsps=new ArrayList<>();
+                        if(addToHandled(rsp))
+                            changed_rsps.add(rsp);
                     }
                 }
             }
-            if(changed)
+            if(changed_rsps != null)
                 cond.signal(true);
         }
         finally {
             lock.unlock();
         }
-        if(changed)
+        if(changed_rsps != null) {
+            for(Rsp<T> rsp: changed_rsps)
+                handleRsp(rsp);
             checkCompletion(this);
+        }
     }
 
     /** Marks all responses with an exception (unless a response was already marked as done) */
     public void transportClosed() {
-        boolean changed=false;
+        List<Rsp<T>> changed_rsps=null;
 
         lock.lock();
         try {
@@ -272,18 +302,24 @@ public class GroupRequest<T> extends Request {
                 if(rsp != null && !(rsp.wasReceived() || rsp.wasSuspected() || rsp.wasUnreachable())) {
                     rsp.setException(new IllegalStateException("transport was closed"));
                     num_received++;
-                    changed=true;
+                    if(changed_rsps == null)
+                        changed_rsps=new ArrayList<>();
+                    if(addToHandled(rsp))
+                        changed_rsps.add(rsp);
                 }
             }
-            if(changed) {
+            if(changed_rsps != null) {
                 cond.signal(true);
             }
         }
         finally {
             lock.unlock();
         }
-        if(changed)
+        if(changed_rsps != null) {
+            for(Rsp<T> rsp: changed_rsps)
+                handleRsp(rsp);
             checkCompletion(this);
+        }
     }
 
     /* -------------------- End of Interface RspCollector ----------------------------------- */
@@ -299,25 +335,34 @@ public class GroupRequest<T> extends Request {
 
 
     public RspList<T> get() throws InterruptedException, ExecutionException {
+        boolean expired;
         lock.lock();
         try {
+            addWaiter();
             waitForResults(0);
         }
         finally {
+            expired=removeWaiter();
             lock.unlock();
         }
+        if(expired)
+            checkCompletion(this);
         return getResults();
     }
 
     public RspList<T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        boolean ok;
+        boolean ok, expired;
         lock.lock();
         try {
+            addWaiter();
             ok=waitForResults(unit.toMillis(timeout));
         }
         finally {
+            expired=removeWaiter();
             lock.unlock();
         }
+        if(expired)
+            checkCompletion(this);
         if(!ok)
             throw new TimeoutException();
         return getResults();
@@ -350,6 +395,56 @@ public class GroupRequest<T> extends Request {
             requests.put(mbr, new Rsp<T>(mbr));
     }
 
+    protected static Set<Address> createHandledSet(RequestOptions options) {
+        return options != null && options.getRspHandler() != null?
+          Collections.newSetFromMap(new ConcurrentHashMap<Address,Boolean>()) : null;
+    }
+
+    /**
+     * Registers a response which needs to be passed to the RspHandler. The request is only complete when the handler
+     * has returned for every registered response
+     * @return True if handleRsp() needs to be called, false if no handler is set or the response has already been
+     *         passed to it
+     */
+    @GuardedBy("lock")
+    protected boolean addToHandled(Rsp<T> rsp) {
+        if(handled == null || !handled.add(rsp.getSender()))
+            return false;
+        handlers_pending++;
+        return true;
+    }
+
+    /**
+     * Passes a response registered with addToHandled() to the RspHandler. If the handler returns false, the request is
+     * completed right away and removed from the correlator. Must not be called with the lock held
+     */
+    @SuppressWarnings("unchecked")
+    protected void handleRsp(Rsp<T> rsp) {
+        RspHandler<T> handler=(RspHandler<T>)options.getRspHandler();
+        boolean more=true;
+        try {
+            more=handler.handle(rsp);
+        }
+        catch(Throwable t) {
+            log.error("failed invoking response handler for " + rsp.getSender(), t);
+        }
+        finally {
+            lock.lock();
+            try {
+                if(!more) { // marks the request as done (although not all responses may have been received)
+                    done=true;
+                    if(corr != null)
+                        corr.done(req_id);
+                }
+                handlers_pending--;
+                cond.signal(true);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
     private static int determineMajority(int i) {
         return i < 2? i : (i / 2) + 1;
     }
@@ -367,8 +462,14 @@ public class GroupRequest<T> extends Request {
     }
 
 
+    /** Complete when all required responses have been received, and the RspHandler (if set) has processed them */
     @GuardedBy("lock")
     protected boolean responsesComplete() {
+        return handlers_pending == 0 && receivedAll();
+    }
+
+    @GuardedBy("lock")
+    protected boolean receivedAll() {
         if(done)
             return true;
 
@@ -0,0 +1,220 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.TimeScheduler;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Used by the owner of keys to track which members hold copies of the keys in their L1 caches, and to invalidate those
+ * copies when the keys are modified. This allows members to keep entries in their L1 caches indefinitely, instead of
+ * expiring them after a short time and fetching them again from the owner.
+ * <p/>
+ * Every member holding L1 copies is assigned a small index, and the holders of a key are kept as a bitmap of member
+ * indexes. When a key is modified, its holders are removed (a holder is added again when it fetches the key the next
+ * time), and the key is added to the pending invalidations of every holder. Pending invalidations are sent in batches:
+ * at most every interval ms, or when max_batch_size keys are pending for a member, the {@link Sender} is invoked once
+ * per member with all of its keys. An interval of 0 sends invalidations right away.
+ * <p/>
+ * Holders which evicted a key in the meantime receive a superfluous invalidation, which is harmless. Tracking
+ * information of a key is kept until the key is modified.
+ * @author agent
+ * @since  3.6.5
+ */
+public class L1Invalidator<K> {
+    protected static final Log log=LogFactory.getLog(L1Invalidator.class);
+
+    protected final Sender<K>     sender;
+    protected final TimeScheduler timer;
+    protected volatile long       interval=20;
+    protected volatile int        max_batch_size=1000;
+
+    /** The indexes of the members holding L1 copies of each key */
+    @GuardedBy("this")
+    protected final Map<K,BitSet>           holders=new HashMap<>();
+
+    @GuardedBy("this")
+    protected final Map<Address,Integer>    indexes=new HashMap<>();
+
+    /** Member by index; null entries are free indexes */
+    @GuardedBy("this")
+    protected final List<Address>           members=new ArrayList<>();
+
+    @GuardedBy("this")
+    protected Map<Address,Collection<K>>    pending=new HashMap<>();
+
+    @GuardedBy("this")
+    protected Future<?>                     flush_task;
+
+    protected final AtomicLong num_invalidations=new AtomicLong(), num_messages=new AtomicLong();
+
+
+    /** Sends the invalidations for a member */
+    public interface Sender<K> {
+        void sendInvalidations(Address dest, Collection<K> keys) throws Exception;
+    }
+
+
+    /**
+     * Creates an invalidator
+     * @param sender Called to send the invalidations to a member
+     * @param timer Used to send batches of invalidations. May be null if interval is 0
+     */
+    public L1Invalidator(Sender<K> sender, TimeScheduler timer) {
+        this.sender=sender;
+        this.timer=timer;
+    }
+
+    public long             interval()              {return interval;}
+    /** Sets the max time (ms) invalidations are delayed to be sent in batches. 0 sends them right away */
+    public L1Invalidator<K> interval(long interval) {this.interval=interval; return this;}
+    public int              maxBatchSize()          {return max_batch_size;}
+    public L1Invalidator<K> maxBatchSize(int size)  {this.max_batch_size=size; return this;}
+
+    /** The number of keys of which at least one member holds a copy */
+    public synchronized int numTrackedKeys()        {return holders.size();}
+    /** The number of keys invalidated at other members (a key invalidated at 2 members counts twice) */
+    public long             numInvalidations()      {return num_invalidations.get();}
+    /** The number of invalidation messages sent */
+    public long             numMessages()           {return num_messages.get();}
+
+
+    /** Records that holder has a copy of key in its L1 cache */
+    public synchronized void addHolder(K key, Address holder) {
+        BitSet bits=holders.get(key);
+        if(bits == null)
+            holders.put(key, bits=new BitSet());
+        bits.set(index(holder));
+    }
+
+    /**
+     * Invalidates the L1 copies of key at all holders except one
+     * @param key The key which was modified
+     * @param except A member whose copy is not invalidated (e.g. the writer, which caches the new value), or null
+     */
+    public void invalidate(K key, Address except) {
+        boolean send_now;
+        synchronized(this) {
+            BitSet bits=holders.remove(key);
+            if(bits == null)
+                return;
+            send_now=interval <= 0;
+            Integer except_index=except != null? indexes.get(except) : null;
+            for(int i=bits.nextSetBit(0); i >= 0; i=bits.nextSetBit(i + 1)) {
+                Address holder=members.get(i);
+                if(holder == null || (except_index != null && i == except_index))
+                    continue;
+                Collection<K> keys=pending.get(holder);
+                if(keys == null)
+                    pending.put(holder, keys=new LinkedHashSet<>());
+                keys.add(key);
+                if(keys.size() >= max_batch_size)
+                    send_now=true;
+            }
+            if(except_index != null && bits.get(except_index)) // except keeps its copy
+                holders.put(key, bitSetOf(except_index));
+            if(!send_now && !pending.isEmpty())
+                scheduleFlush();
+        }
+        if(send_now)
+            flush();
+    }
+
+    /** Sends all pending invalidations */
+    public void flush() {
+        Map<Address,Collection<K>> tmp;
+        synchronized(this) {
+            if(pending.isEmpty())
+                return;
+            tmp=pending;
+            pending=new HashMap<>();
+        }
+        for(Map.Entry<Address,Collection<K>> entry: tmp.entrySet()) {
+            Collection<K> keys=entry.getValue();
+            try {
+                sender.sendInvalidations(entry.getKey(), keys);
+                num_invalidations.addAndGet(keys.size());
+                num_messages.incrementAndGet();
+            }
+            catch(Throwable t) {
+                log.warn("failed sending " + keys.size() + " invalidations to " + entry.getKey(), t);
+            }
+        }
+    }
+
+    /**
+     * Drops the members which are not in the given membership: their index is freed and they're removed as holders of
+     * all keys
+     */
+    public synchronized void retainAll(Collection<Address> mbrs) {
+        BitSet left=new BitSet();
+        for(Iterator<Map.Entry<Address,Integer>> it=indexes.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Address,Integer> entry=it.next();
+            if(!mbrs.contains(entry.getKey())) {
+                left.set(entry.getValue());
+                members.set(entry.getValue(), null);
+                pending.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        if(left.isEmpty())
+            return;
+        for(Iterator<BitSet> it=holders.values().iterator(); it.hasNext();) {
+            BitSet bits=it.next();
+            bits.andNot(left);
+            if(bits.isEmpty())
+                it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        holders.clear();
+        pending.clear();
+    }
+
+    public String toString() {
+        return String.format("%d tracked keys, %d invalidations in %d messages",
+                             numTrackedKeys(), numInvalidations(), numMessages());
+    }
+
+
+    /** Returns the index of a member, assigning the lowest free index if it doesn't have one yet */
+    @GuardedBy("this")
+    protected int index(Address mbr) {
+        Integer index=indexes.get(mbr);
+        if(index != null)
+            return index;
+        int free=members.indexOf(null);
+        if(free < 0) {
+            free=members.size();
+            members.add(mbr);
+        }
+        else
+            members.set(free, mbr);
+        indexes.put(mbr, free);
+        return free;
+    }
+
+    @GuardedBy("this")
+    protected void scheduleFlush() {
+        if(flush_task != null && !flush_task.isDone())
+            return;
+        flush_task=timer.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected static BitSet bitSetOf(int index) {
+        BitSet retval=new BitSet();
+        retval.set(index);
+        return retval;
+    }
+}
@@ -13,6 +13,7 @@ import org.jgroups.stack.StateTransferInfo;
 import org.jgroups.util.*;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -44,6 +45,8 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
     protected MembershipListener                    membership_listener;
     protected RequestHandler                        req_handler;
     protected boolean                               async_dispatching;
+    protected boolean                               coalesce_replies;
+    protected DispatchPool                          dispatch_pool;
     protected ProtocolAdapter                       prot_adapter;
     protected volatile Collection<Address>          members=new HashSet<>();
     protected Address                               local_addr;
@@ -97,6 +100,34 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
     }
 
 
+    public boolean coalesceReplies() {return coalesce_replies;}
+
+    /**
+     * If true, replies to the same caller which are sent concurrently (e.g. by multiple threads invoking requests
+     * from the same sender) are sent together in a single message
+     */
+    public MessageDispatcher coalesceReplies(boolean flag) {
+        coalesce_replies=flag;
+        if(corr != null)
+            corr.coalesceReplies(flag);
+        return this;
+    }
+
+
+    public DispatchPool dispatchPool() {return dispatch_pool;}
+
+    /**
+     * Sets a pool on which incoming requests are executed, rather than on the threads delivering them. Setting a
+     * pool enables async dispatching. The pool is not stopped when this dispatcher is stopped
+     */
+    public MessageDispatcher dispatchPool(DispatchPool pool) {
+        dispatch_pool=pool;
+        if(pool != null)
+            asyncDispatching(true);
+        return this;
+    }
+
+
     public UpHandler getProtocolAdapter() {
         return prot_adapter;
     }
@@ -131,7 +162,8 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
 
     public void start() {
         if(corr == null)
-            corr=createRequestCorrelator(prot_adapter, this, local_addr).asyncDispatching(async_dispatching);
+            corr=createRequestCorrelator(prot_adapter, this, local_addr).asyncDispatching(async_dispatching)
+              .coalesceReplies(coalesce_replies);
         correlatorStarted();
         corr.start();
 
@@ -143,6 +175,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
                 corr.registerProbeHandler(transport);
             }
             TP transport=channel.getProtocolStack().getTransport();
+            corr.threadFactory(transport.getThreadFactory());
             hardware_multicast_supported=transport.supportsMulticasting();
             transport.registerProbeHandler(probe_handler);
         }
@@ -293,6 +326,62 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
 
 
 
+    /**
+     * Sends a message to all members and passes every response to a handler as soon as it has been received, rather
+     * than when all responses are available. The call doesn't block.
+     * @param dests A list of group members from which to expect responses (if the call is blocking).
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call. The mode must not be GET_NONE
+     * @param handler The handler which is invoked for every response. When it returns false, the request is done and
+     *                is removed from the request correlator, so responses arriving later are discarded
+     * @return NotifyingFuture<T> A future which is done when all responses have been received or the handler
+     *         terminated the request
+     * @throws Exception If the request cannot be sent
+     */
+    public <T> NotifyingFuture<RspList<T>> castMessageStreaming(final Collection<Address> dests, Message msg,
+                                                                RequestOptions options,
+                                                                RspHandler<T> handler) throws Exception {
+        return castMessageStreaming(dests, msg, options, handler, null);
+    }
+
+    /**
+     * Sends a message to all members and returns a stream over the responses, which are returned in the order in
+     * which they arrive. The call doesn't block. Responses are buffered until the consumer fetches them; a warning is
+     * logged when more than high_water_mark responses are buffered. Closing the stream cancels the request.
+     * @param dests A list of group members from which to expect responses (if the call is blocking).
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call. The mode must not be GET_NONE. The timeout applies
+     *                to the iteration over all responses
+     * @param high_water_mark The number of buffered responses above which a warning is logged
+     * @return RspStream<T> The stream of responses
+     * @throws Exception If the request cannot be sent
+     */
+    public <T> RspStream<T> castMessageStreaming(final Collection<Address> dests, Message msg,
+                                                 RequestOptions options, int high_water_mark) throws Exception {
+        RspStream<T> stream=new RspStream<>(high_water_mark, options.getTimeout());
+        stream.future(castMessageStreaming(dests, msg, options, stream, stream));
+        return stream;
+    }
+
+    protected <T> NotifyingFuture<RspList<T>> castMessageStreaming(final Collection<Address> dests, Message msg,
+                                                                   RequestOptions options, RspHandler<T> handler,
+                                                                   FutureListener<RspList<T>> listener) throws Exception {
+        if(options.getMode() == ResponseMode.GET_NONE)
+            throw new IllegalArgumentException("streaming of responses requires a synchronous call (mode != GET_NONE)");
+        RequestOptions opts=new RequestOptions(options).setRspHandler(handler); // options may be shared between calls
+        GroupRequest<T> req=cast(dests, msg, opts, false, listener);
+        if(req != null) {
+            @SuppressWarnings("unchecked") // Request implements the raw NotifyingFuture
+            NotifyingFuture<RspList<T>> retval=req;
+            return retval;
+        }
+        NullFuture<RspList<T>> future=new NullFuture<>(new RspList<T>());
+        if(listener != null)
+            listener.futureDone(future);
+        return future;
+    }
+
+
     protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg, RequestOptions options,
                                        boolean block_for_results, FutureListener<RspList<T>> listener) throws Exception {
         if(msg.getDest() != null && !(msg.getDest() instanceof AnycastAddress))
@@ -304,6 +393,118 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
                 msg.setScope(options.getScope());
         }
 
+        List<Address> real_dests=computeTargets(dests, msg, options);
+        if(real_dests.isEmpty())
+            return null;
+
+        if(options != null) {
+            boolean async=options.getMode() == ResponseMode.GET_NONE;
+            if(options.getAnycasting()) {
+                if(async) async_anycasts.incrementAndGet();
+                else sync_anycasts.incrementAndGet();
+            }
+            else {
+                if(async) async_multicasts.incrementAndGet();
+                else sync_multicasts.incrementAndGet();
+            }
+        }
+
+        GroupRequest<T> req=new GroupRequest<>(msg, corr, real_dests, options);
+        if(listener != null)
+            req.setListener(listener);
+        if(options != null) {
+            req.setResponseFilter(options.getRspFilter());
+            req.setAnycasting(options.getAnycasting());
+        }
+        req.setBlockForResults(block_for_results);
+        req.execute();
+        return req;
+    }
+
+    protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg, RequestOptions options,
+                                       boolean block_for_results) throws Exception {
+        return cast(dests, msg, options, block_for_results, null);
+    }
+
+
+    /**
+     * Sends a batch of requests in a single message to the members in dests (anycast), or to all members if dests is
+     * null. The receivers process every request of the batch separately, but return all responses to the
+     * batch in a single message. The options (e.g. mode and timeout) apply to every request.<p/>
+     * Response filters are not supported: a filter is stateful, but would be shared by all requests of the batch.
+     * @param dests A list of group members to which the batch is sent and from which to expect responses (if the
+     *              call is blocking). All members if null
+     * @param requests The buffers of the requests to be sent
+     * @param options A set of options that govern the call. See {@link org.jgroups.blocks.RequestOptions} for details.
+     *                Synchronous calls with the default timeout are used if null
+     * @return A list of RspLists, one per request in the same order as requests
+     * @throws Exception If the batch cannot be sent
+     * @throws IllegalArgumentException If options has a response filter
+     */
+    public <T> List<RspList<T>> castMessageBatch(final Collection<Address> dests, List<Buffer> requests,
+                                                 RequestOptions options) throws Exception {
+        if(options == null)
+            options=RequestOptions.SYNC();
+        if(options.getRspFilter() != null)
+            throw new IllegalArgumentException("response filters are not supported by batched requests");
+        List<GroupRequest<T>> reqs=castBatch(dests, requests, options, true);
+        List<RspList<T>> retval=new ArrayList<>(requests.size());
+        for(int i=0; i < requests.size(); i++)
+            retval.add(reqs != null? reqs.get(i).getResults() : new RspList<T>());
+        return retval;
+    }
+
+
+    protected <T> List<GroupRequest<T>> castBatch(final Collection<Address> dests, List<Buffer> requests,
+                                                  RequestOptions options, boolean block_for_results) throws Exception {
+        if(requests == null || requests.isEmpty())
+            return null;
+        if(options == null)
+            options=RequestOptions.SYNC();
+        if(dests != null && !options.getAnycasting())  // send the batch only to dests
+            options=new RequestOptions(options).setAnycasting(true); // options may be shared between calls
+        Message msg=new Message().setBuffer(RequestCorrelator.marshalBatch(requests));
+        msg.setFlag(options.getFlags()).setTransientFlag(options.getTransientFlags());
+        if(options.getScope() > 0)
+            msg.setScope(options.getScope());
+
+        List<Address> real_dests=computeTargets(dests, msg, options);
+        if(real_dests.isEmpty())
+            return null;
+
+        boolean async=options.getMode() == ResponseMode.GET_NONE;
+        AtomicInteger counter=options.getAnycasting()? (async? async_anycasts : sync_anycasts)
+          : (async? async_multicasts : sync_multicasts);
+        counter.addAndGet(requests.size());
+
+        long first_id=Request.getRequestIds(requests.size());
+        List<GroupRequest<T>> reqs=new ArrayList<>(requests.size());
+        for(int i=0; i < requests.size(); i++) {
+            GroupRequest<T> req=new GroupRequest<>(msg, corr, real_dests, options, first_id + i);
+            req.setBlockForResults(block_for_results);
+            reqs.add(req);
+        }
+
+        try {
+            corr.sendRequestBatch(first_id, real_dests, msg, async? null : reqs, options);
+        }
+        catch(Exception ex) {
+            for(int i=0; i < requests.size(); i++)
+                corr.done(first_id + i);
+            throw ex;
+        }
+        if(async || !block_for_results)
+            return reqs;
+
+        long timeout=options.getTimeout(), deadline=System.currentTimeMillis() + timeout;
+        for(GroupRequest<T> req: reqs)
+            req.waitForCompletion(timeout > 0? Math.max(1, deadline - System.currentTimeMillis()) : 0);
+        return reqs;
+    }
+
+
+    /** Returns the members which should receive a message sent to dests (all members if null) */
+    protected List<Address> computeTargets(final Collection<Address> dests, Message msg, RequestOptions options) {
         List<Address> real_dests;
         // we need to clone because we don't want to modify the original
         if(dests != null) {
@@ -338,39 +539,9 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         if(log.isTraceEnabled())
             log.trace("real_dests=" + real_dests);
 
-        if(real_dests.isEmpty()) {
-            if(log.isTraceEnabled())
-                log.trace("destination list is empty, won't send message");
-            return null;
-        }
-
-        if(options != null) {
-            boolean async=options.getMode() == ResponseMode.GET_NONE;
-            if(options.getAnycasting()) {
-                if(async) async_anycasts.incrementAndGet();
-                else sync_anycasts.incrementAndGet();
-            }
-            else {
-                if(async) async_multicasts.incrementAndGet();
-                else sync_multicasts.incrementAndGet();
-            }
-        }
-
-        GroupRequest<T> req=new GroupRequest<>(msg, corr, real_dests, options);
-        if(listener != null)
-            req.setListener(listener);
-        if(options != null) {
-            req.setResponseFilter(options.getRspFilter());
-            req.setAnycasting(options.getAnycasting());
-        }
-        req.setBlockForResults(block_for_results);
-        req.execute();
-        return req;
-    }
-
-    protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg, RequestOptions options,
-                                       boolean block_for_results) throws Exception {
-        return cast(dests, msg, options, block_for_results, null);
+        if(real_dests.isEmpty() && log.isTraceEnabled())
+            log.trace("destination list is empty, won't send message");
+        return real_dests;
     }
 
 
@@ -493,6 +664,18 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
 
     /* -------------------- AsyncRequestHandler Interface --------------------- */
     public void handle(Message request, Response response) throws Exception {
+        DispatchPool pool=dispatch_pool;
+        if(pool != null) {
+            pool.execute(pool.classify(request), new AsyncRequest(request, response));
+            return;
+        }
+        handleRequest(request, response);
+    }
+    /* ------------------ End of AsyncRequestHandler Interface----------------- */
+
+
+    /** Handles a request in the caller's thread and sends the response (if not null) */
+    protected void handleRequest(Message request, Response response) throws Exception {
         if(req_handler != null) {
             if(req_handler instanceof AsyncRequestHandler)
                 ((AsyncRequestHandler)req_handler).handle(request, response);
@@ -508,7 +691,6 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         if(response != null)
             response.send(retval, false);
     }
-    /* ------------------ End of AsyncRequestHandler Interface----------------- */
 
 
 
@@ -657,6 +839,30 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
     }
 
 
+    /** A request which is executed by the dispatch pool */
+    protected class AsyncRequest implements Runnable {
+        protected final Message  request;
+        protected final Response response;
+
+        protected AsyncRequest(Message request, Response response) {
+            this.request=request;
+            this.response=response;
+        }
+
+        public void run() {
+            try {
+                handleRequest(request, response);
+            }
+            catch(Throwable t) {
+                if(response != null)
+                    response.send(new InvocationTargetException(t), true);
+                else
+                    log.error(local_addr + ": failed executing request from " + request.getSrc(), t);
+            }
+        }
+    }
+
+
     class ProtocolAdapter extends Protocol implements UpHandler {
 
 
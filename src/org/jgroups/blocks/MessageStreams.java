@@ -0,0 +1,347 @@
+package org.jgroups.blocks;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.protocols.TP;
+import org.jgroups.util.BlockingInputStream;
+import org.jgroups.util.Bits;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends and receives streams of data over a channel, used by {@link JChannel#openStream(Address)} and
+ * {@link JChannel#setStreamListener(StreamListener)}.<p/>
+ * The data written to a stream is sent in chunks of chunk_size bytes, as regular messages, so it is reliably
+ * transmitted in order (UNICAST3, NAKACK2) and subject to flow control (UFC, MFC). A receiver writes the chunks into a
+ * bounded buffer, from which the {@link StreamListener} reads. When the buffer is full, delivery of the sender's messages
+ * blocks until the listener has read more data, so that no credits are sent back to the sender, which eventually
+ * blocks, too. Neither side ever holds more than a few chunks of a stream in memory.
+ * @author agent
+ * @since  3.6.5
+ */
+public class MessageStreams {
+    protected final JChannel ch;
+    protected final short    id=ClassConfigurator.getProtocolId(MessageStreams.class);
+    protected final Log      log=LogFactory.getLog(MessageStreams.class);
+
+    /** Number of bytes sent in a message */
+    protected int            chunk_size=32000;
+
+    /** Number of bytes of a received stream that are buffered until they're read */
+    protected int            buffer_size=256000;
+
+    protected StreamListener listener;
+
+    protected final AtomicLong stream_ids=new AtomicLong(1);
+
+    /** The streams received, per sender and stream ID */
+    protected final ConcurrentMap<Address,ConcurrentMap<Long,StreamInput>> streams=Util.createConcurrentMap();
+
+    /** The IDs of the streams discarded because no listener was set, per sender. Their chunks are dropped until EOF */
+    protected final ConcurrentMap<Address,Set<Long>> discarded=Util.createConcurrentMap();
+
+
+    public MessageStreams(JChannel ch) {
+        this.ch=ch;
+    }
+
+    public int            chunkSize()                    {return chunk_size;}
+    public MessageStreams chunkSize(int size)            {this.chunk_size=size; return this;}
+    public int            bufferSize()                   {return buffer_size;}
+    public MessageStreams bufferSize(int size)           {this.buffer_size=size; return this;}
+    public StreamListener listener()                     {return listener;}
+    public MessageStreams listener(StreamListener l)     {this.listener=l; return this;}
+
+    /** Returns the number of streams currently received */
+    public int numReceivedStreams() {
+        int retval=0;
+        for(Map<Long,StreamInput> map: streams.values())
+            retval+=map.size();
+        return retval;
+    }
+
+    /** Returns the number of streams which are currently discarded */
+    public int numDiscardedStreams() {
+        int retval=0;
+        for(Set<Long> ids: discarded.values())
+            retval+=ids.size();
+        return retval;
+    }
+
+
+    /** Opens a stream to dest, or to all members if dest is null */
+    public OutputStream open(Address dest) {
+        return new StreamOutput(dest, stream_ids.getAndIncrement());
+    }
+
+    /**
+     * Handles a chunk of a stream. Blocks until the chunk has been added to the stream's buffer
+     * @return True if msg was part of a stream, false if it is a regular message
+     */
+    public boolean handle(Message msg) {
+        Header tmp=msg.getHeader(id);
+        if(!(tmp instanceof StreamHeader)) // a header of a different class with the same ID is not ours
+            return false;
+        StreamHeader hdr=(StreamHeader)tmp;
+        Address sender=msg.getSrc();
+        StreamInput in;
+        switch(hdr.type) {
+            case StreamHeader.DATA:
+                if((in=getStream(sender, hdr.stream_id)) != null) {
+                    try {
+                        in.write(msg.getRawBuffer(), msg.getOffset(), msg.getLength()); // blocks when the buffer is full
+                    }
+                    catch(IOException e) {
+                        log.error("%s: failed adding data to stream %d from %s: %s", ch.getAddress(), hdr.stream_id, sender, e);
+                    }
+                }
+                break;
+            case StreamHeader.EOF:
+                if((in=getStream(sender, hdr.stream_id)) != null) { // creates the stream if it is empty
+                    streams.get(sender).remove(hdr.stream_id);
+                    Util.close(in);
+                }
+                else {
+                    Set<Long> ids=discarded.get(sender);
+                    if(ids != null)
+                        ids.remove(hdr.stream_id);
+                }
+                break;
+        }
+        return true;
+    }
+
+    /** Removes the streams from batch and handles them */
+    public void handle(MessageBatch batch) {
+        for(Message msg: batch)
+            if(handle(msg))
+                batch.remove(msg);
+    }
+
+    /** Aborts the streams received from members which are not in the view */
+    public void handleView(View view) {
+        for(Address sender: streams.keySet())
+            if(!view.containsMember(sender))
+                abort(streams.remove(sender), sender + " left");
+        for(Address sender: discarded.keySet())
+            if(!view.containsMember(sender))
+                discarded.remove(sender);
+    }
+
+    /** Aborts all streams received */
+    public void stop() {
+        for(Address sender: streams.keySet())
+            abort(streams.remove(sender), "the channel was disconnected");
+        discarded.clear();
+    }
+
+
+    /** Returns the stream, or creates it (and passes it to the listener) on reception of the first chunk */
+    protected StreamInput getStream(final Address sender, long stream_id) {
+        ConcurrentMap<Long,StreamInput> map=streams.get(sender);
+        if(map == null) {
+            ConcurrentMap<Long,StreamInput> tmp=streams.putIfAbsent(sender, map=Util.createConcurrentMap());
+            if(tmp != null)
+                map=tmp;
+        }
+        StreamInput in=map.get(stream_id);
+        if(in != null)
+            return in;
+
+        Set<Long> ids=discarded.get(sender);
+        if(ids != null && ids.contains(stream_id)) // the rest of a discarded stream is dropped, too
+            return null;
+        final StreamListener l=listener;
+        if(l == null) {
+            if(ids == null) {
+                Set<Long> tmp=discarded.putIfAbsent(sender, ids=Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>()));
+                if(tmp != null)
+                    ids=tmp;
+            }
+            if(ids.add(stream_id)) // warn only once per stream
+                log.warn("%s: discarding stream %d from %s as no stream listener is set", ch.getAddress(), stream_id, sender);
+            return null;
+        }
+        final StreamInput input=new StreamInput(buffer_size);
+        map.put(stream_id, input);
+        Runnable reader=new Runnable() {
+            public void run() {
+                try {
+                    l.streamReceived(sender, input);
+                }
+                catch(Throwable t) {
+                    log.error("%s: stream listener failed processing a stream from %s: %s", ch.getAddress(), sender, t);
+                }
+                finally {
+                    Util.close(input); // unblocks the sender's messages, the remaining chunks are discarded
+                }
+            }
+        };
+        TP transport=ch.getProtocolStack().getTransport();
+        Thread thread=transport.getThreadFactory().newThread(reader, "StreamReader-" + sender);
+        thread.start();
+        return input;
+    }
+
+    protected static void abort(Map<Long,StreamInput> map, String reason) {
+        if(map == null)
+            return;
+        for(StreamInput in: map.values())
+            in.abort(reason);
+        map.clear();
+    }
+
+
+    /** Buffers the data of a received stream. Reading an aborted stream throws an exception when all data was read */
+    protected static class StreamInput extends BlockingInputStream {
+        protected volatile String abort_reason;
+
+        protected StreamInput(int capacity) {
+            super(capacity);
+        }
+
+        protected void abort(String reason) {
+            abort_reason=reason;
+            Util.close(this);
+        }
+
+        public int read() throws IOException {
+            return checkAborted(super.read());
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return checkAborted(super.read(b, off, len));
+        }
+
+        protected int checkAborted(int retval) throws IOException {
+            if(retval == -1 && abort_reason != null)
+                throw new IOException("stream was aborted: " + abort_reason);
+            return retval;
+        }
+    }
+
+
+    /**
+     * Collects the written data in a buffer of chunk_size bytes, which is sent when full. Sending blocks when the
+     * receivers are not able to keep up
+     */
+    protected class StreamOutput extends OutputStream {
+        protected final Address dest;
+        protected final long    stream_id;
+        protected byte[]        buf=new byte[chunk_size];
+        protected int           pos;
+        protected boolean       closed;
+
+        protected StreamOutput(Address dest, long stream_id) {
+            this.dest=dest;
+            this.stream_id=stream_id;
+        }
+
+        public void write(int b) throws IOException {
+            checkClosed();
+            buf[pos++]=(byte)b;
+            if(pos == buf.length)
+                sendChunk();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            while(len > 0) {
+                int num=Math.min(len, buf.length - pos);
+                System.arraycopy(b, off, buf, pos, num);
+                pos+=num;
+                off+=num;
+                len-=num;
+                if(pos == buf.length)
+                    sendChunk();
+            }
+        }
+
+        public void flush() throws IOException {
+            checkClosed();
+            if(pos > 0)
+                sendChunk();
+        }
+
+        public void close() throws IOException {
+            if(closed)
+                return;
+            flush();
+            closed=true;
+            buf=null;
+            send(new Message(dest).putHeader(id, new StreamHeader(StreamHeader.EOF, stream_id)));
+        }
+
+        protected void sendChunk() throws IOException {
+            // the message keeps the buffer (e.g. for retransmission), so we need a new one for the next chunk
+            send(new Message(dest, buf, 0, pos).putHeader(id, new StreamHeader(StreamHeader.DATA, stream_id)));
+            buf=new byte[chunk_size];
+            pos=0;
+        }
+
+        protected void send(Message msg) throws IOException {
+            try {
+                ch.send(msg);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("sending of stream " + stream_id + " was interrupted");
+            }
+            catch(Exception e) {
+                throw new IOException("failed sending data of stream " + stream_id, e);
+            }
+        }
+
+        protected void checkClosed() throws IOException {
+            if(closed)
+                throw new IOException("stream " + stream_id + " is closed");
+        }
+    }
+
+
+    public static class StreamHeader extends Header {
+        protected static final byte DATA=1, EOF=2;
+
+        protected byte type;
+        protected long stream_id;
+
+        public StreamHeader() {}
+
+        public StreamHeader(byte type, long stream_id) {
+            this.type=type;
+            this.stream_id=stream_id;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            Bits.writeLong(stream_id, out);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            stream_id=Bits.readLong(in);
+        }
+
+        public int size() {
+            return Global.BYTE_SIZE + Bits.size(stream_id);
+        }
+
+        public String toString() {
+            return (type == DATA? "DATA" : "EOF") + " [stream_id=" + stream_id + "]";
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.jgroups.blocks;
 
 
+import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.*;
@@ -9,8 +10,9 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -33,7 +35,7 @@ public class MethodCall implements Externalizable, Streamable {
     protected Object[]           args;
 
     /** The class types, e.g., new Class[]{String.class, int.class}. */
-    protected Class[]            types;
+    protected Class<?>[]         types;
 
     /** The Method of the call. */
     protected Method             method;
@@ -54,6 +56,21 @@ public class MethodCall implements Externalizable, Streamable {
     /** Use an ID to map to a method */
     protected static final short ID=3;
 
+    /** Set in the mode byte written by {@link #writeTo(DataOutput)} if types are written compactly (writeType()).
+     * Without it, types are Java serialized (the format used before 3.6.5), so calls from older members can still be
+     * read. Members older than 3.6.5 cannot read calls in modes METHOD and TYPES from newer members */
+    protected static final byte  COMPACT_TYPES=0x10;
+
+    // encodings of a type in a signature (writeType())
+    protected static final byte  TYPE_NULL=0, TYPE_PRIMITIVE=1, TYPE_MAGIC_NUMBER=2, TYPE_NAME=3;
+
+    protected static final Class<?>[] PRIMITIVES={boolean.class, byte.class, char.class, short.class, int.class,
+      long.class, float.class, double.class, void.class};
+
+    /** Caches the classes of types read by name (keys=class names). Only classes loaded by the class loader of
+     * MethodCall (or one of its parents) are cached, so application class loaders are not kept alive by the cache */
+    protected static final ConcurrentMap<String,Class<?>> type_cache=Util.createConcurrentMap();
+
 
 
     /**
@@ -81,7 +98,7 @@ public class MethodCall implements Externalizable, Streamable {
     }
 
 
-    public MethodCall(String method_name, Object[] args, Class[] types) {
+    public MethodCall(String method_name, Object[] args, Class<?>[] types) {
         this.method_name=method_name;
         this.args=args;
         this.types=types;
@@ -152,7 +169,7 @@ public class MethodCall implements Externalizable, Streamable {
 
     /** Called by the ProbeHandler impl. All args are strings. Needs to find a method where all parameter
      * types are primitive types, so the strings can be converted */
-    public static Method findMethod(Class target_class, String method_name, Object[] args) throws Exception {
+    public static Method findMethod(Class<?> target_class, String method_name, Object[] args) throws Exception {
         int len=args != null? args.length : 0;
         Method retval=null;
         Method[] methods=getAllMethods(target_class);
@@ -183,9 +200,9 @@ public class MethodCall implements Externalizable, Streamable {
      * The method walks up the class hierarchy and returns <i>all</i> methods of this class
      * and those inherited from superclasses and superinterfaces.
      */
-    static Method[] getAllMethods(Class target) {
-        Class superclass = target;
-        List methods = new ArrayList();
+    static Method[] getAllMethods(Class<?> target) {
+        Class<?> superclass = target;
+        List<Method[]> methods = new ArrayList<>();
         int size = 0;
 
         while(superclass != null) {
@@ -207,8 +224,7 @@ public class MethodCall implements Externalizable, Streamable {
 
         Method[] result = new Method[size];
         int index = 0;
-        for(Iterator i = methods.iterator(); i.hasNext();) {
-            Method[] m = (Method[])i.next();
+        for(Method[] m: methods) {
             System.arraycopy(m, 0, result, index, m.length);
             index += m.length;
         }
@@ -222,10 +238,10 @@ public class MethodCall implements Externalizable, Streamable {
      *
      * @return the matching method or null if no mathching method has been found.
      */
-    static Method getMethod(Class target, String methodName, Class[] types) {
+    static Method getMethod(Class<?> target, String methodName, Class<?>[] types) {
 
         if (types == null) {
-            types = new Class[0];
+            types = new Class<?>[0];
         }
 
         Method[] methods = getAllMethods(target);
@@ -234,7 +250,7 @@ public class MethodCall implements Externalizable, Streamable {
             if (!methodName.equals(m.getName())) {
                 continue;
             }
-            Class[] parameters = m.getParameterTypes();
+            Class<?>[] parameters = m.getParameterTypes();
             if (types.length != parameters.length) {
                 continue;
             }
@@ -262,7 +278,7 @@ public class MethodCall implements Externalizable, Streamable {
         if(target == null)
             throw new IllegalArgumentException("target is null");
 
-        Class cl=target.getClass();
+        Class<?> cl=target.getClass();
         Method meth=null;
 
         switch(mode) {
@@ -305,10 +321,10 @@ public class MethodCall implements Externalizable, Streamable {
     }
 
 
-    static Class[] getTypesFromString(Class cl, String[] signature) throws Exception {
+    static Class<?>[] getTypesFromString(Class<?> cl, String[] signature) throws Exception {
         String  name;
-        Class   parameter;
-        Class[] mytypes=new Class[signature.length];
+        Class<?>   parameter;
+        Class<?>[] mytypes=new Class<?>[signature.length];
 
         for(int i=0; i < signature.length; i++) {
             name=signature[i];
@@ -415,8 +431,8 @@ public class MethodCall implements Externalizable, Streamable {
 
         switch(mode) {
         case METHOD:
-            Class[] parametertypes=(Class[])in.readObject();
-            Class   declaringclass=(Class)in.readObject();
+            Class<?>[] parametertypes=(Class<?>[])in.readObject();
+            Class<?>   declaringclass=(Class<?>)in.readObject();
             try {
                 method=declaringclass.getDeclaredMethod(method_name, parametertypes);
             }
@@ -425,7 +441,7 @@ public class MethodCall implements Externalizable, Streamable {
             }
             break;
         case TYPES:
-            types=(Class[])in.readObject();
+            types=(Class<?>[])in.readObject();
             break;
         case ID:
             break;
@@ -436,7 +452,7 @@ public class MethodCall implements Externalizable, Streamable {
     }
 
     public void writeTo(DataOutput out) throws Exception {
-        out.write(mode);
+        out.write(mode == ID? mode : mode | COMPACT_TYPES);
 
         switch(mode) {
             case METHOD:
@@ -459,16 +475,18 @@ public class MethodCall implements Externalizable, Streamable {
 
 
     public void readFrom(DataInput in) throws Exception {
-        mode=in.readByte();
+        byte tmp=in.readByte();
+        boolean compact=(tmp & COMPACT_TYPES) != 0;
+        mode=(short)(tmp & ~COMPACT_TYPES);
 
         switch(mode) {
             case METHOD:
                 method_name=Bits.readString(in);
-                readMethod(in);
+                readMethod(in, compact);
                 break;
             case TYPES:
                 method_name=Bits.readString(in);
-                readTypes(in);
+                readTypes(in, compact);
                 break;
             case ID:
                 method_id=in.readShort();
@@ -500,38 +518,29 @@ public class MethodCall implements Externalizable, Streamable {
 
 
     protected void writeTypes(DataOutput out) throws Exception {
-        int types_len=types != null? types.length : 0;
-        out.write(types_len);
-        if(types_len > 0)
-            for(Class<?> type: types)
-                Util.objectToStream(type, out);
+        writeTypes(types, out);
     }
 
-    protected void readTypes(DataInput in) throws Exception {
-        int types_len=in.readByte();
-        if(types_len > 0) {
-            types=new Class<?>[types_len];
-            for(int i=0; i < types_len; i++)
-                types[i]=(Class)Util.objectFromStream(in);
-        }
+    protected void readTypes(DataInput in, boolean compact) throws Exception {
+        types=readTypesFrom(in, compact);
     }
 
     protected void writeMethod(DataOutput out) throws Exception {
         if(method != null) {
             out.write(1);
-            Util.objectToStream(method.getParameterTypes(),out);
-            Util.objectToStream(method.getDeclaringClass(),out);
+            writeTypes(method.getParameterTypes(), out);
+            writeType(method.getDeclaringClass(), out);
         }
         else
             out.write(0);
     }
 
-    protected void readMethod(DataInput in) throws Exception {
+    protected void readMethod(DataInput in, boolean compact) throws Exception {
         if(in.readByte() == 1) {
-            Class[] parametertypes=(Class[])Util.objectFromStream(in);
-            Class   declaringclass=(Class)Util.objectFromStream(in);
+            Class<?>[] parametertypes=compact? readTypesFrom(in, true) : (Class<?>[])Util.objectFromStream(in);
+            Class<?>   declaringclass=compact? readType(in) : (Class<?>)Util.objectFromStream(in);
             try {
-                method=declaringclass.getDeclaredMethod(method_name, parametertypes);
+                method=declaringclass.getDeclaredMethod(method_name, parametertypes != null? parametertypes : new Class<?>[0]);
             }
             catch(NoSuchMethodException e) {
                 throw new IOException(e.toString());
@@ -539,6 +548,79 @@ public class MethodCall implements Externalizable, Streamable {
         }
     }
 
+    protected static void writeTypes(Class<?>[] types, DataOutput out) throws Exception {
+        int types_len=types != null? types.length : 0;
+        out.write(types_len);
+        for(int i=0; i < types_len; i++)
+            writeType(types[i], out);
+    }
+
+    protected static Class<?>[] readTypesFrom(DataInput in, boolean compact) throws Exception {
+        int types_len=in.readByte();
+        if(types_len <= 0)
+            return null;
+        Class<?>[] retval=new Class<?>[types_len];
+        for(int i=0; i < types_len; i++)
+            retval[i]=compact? readType(in) : (Class<?>)Util.objectFromStream(in);
+        return retval;
+    }
+
+    /**
+     * Writes a type compactly: primitive types as an index, classes registered with
+     * {@link org.jgroups.conf.ClassConfigurator} as their magic number and all other classes by name
+     */
+    protected static void writeType(Class<?> type, DataOutput out) throws Exception {
+        if(type == null) {
+            out.write(TYPE_NULL);
+            return;
+        }
+        if(type.isPrimitive()) {
+            for(int i=0; i < PRIMITIVES.length; i++) {
+                if(PRIMITIVES[i] == type) {
+                    out.write(TYPE_PRIMITIVE);
+                    out.write(i);
+                    return;
+                }
+            }
+        }
+        short magic=ClassConfigurator.getMagicNumber(type);
+        if(magic != -1) {
+            out.write(TYPE_MAGIC_NUMBER);
+            out.writeShort(magic);
+            return;
+        }
+        out.write(TYPE_NAME);
+        out.writeUTF(type.getName());
+    }
+
+    protected static Class<?> readType(DataInput in) throws Exception {
+        byte type=in.readByte();
+        switch(type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_PRIMITIVE:
+                return PRIMITIVES[in.readByte()];
+            case TYPE_MAGIC_NUMBER:
+                short magic=in.readShort();
+                Class<?> clazz=ClassConfigurator.get(magic);
+                if(clazz == null)
+                    throw new ClassNotFoundException("class for magic number " + magic + " cannot be found");
+                return clazz;
+            case TYPE_NAME:
+                String name=in.readUTF();
+                Class<?> retval=type_cache.get(name);
+                if(retval == null) {
+                    retval=name.startsWith("[")? Class.forName(name, false, MethodCall.class.getClassLoader())
+                      : Util.loadClass(name, MethodCall.class);
+                    if(isLoadedByOwnClassLoader(retval))
+                        type_cache.putIfAbsent(name, retval);
+                }
+                return retval;
+            default:
+                throw new IllegalStateException("type " + type + " unknown");
+        }
+    }
+
 
 
 
@@ -576,7 +658,39 @@ public class MethodCall implements Externalizable, Streamable {
           type == float.class       || type == Float.class     ||
           type == double.class      || type == Double.class;
     }
-}
 
+    /** Whether a class was loaded by the class loader of MethodCall or one of its parents */
+    protected static boolean isLoadedByOwnClassLoader(Class<?> clazz) {
+        ClassLoader loader=clazz.getClassLoader();
+        if(loader == null) // bootstrap class loader
+            return true;
+        for(ClassLoader cl=MethodCall.class.getClassLoader(); cl != null; cl=cl.getParent())
+            if(cl == loader)
+                return true;
+        return false;
+    }
+
+    /** Key for the method cache of {@link RpcDispatcher}: target class, method name and argument types */
+    protected static class Signature {
+        protected final Class<?>   target;
+        protected final String     name;
+        protected final Class<?>[] types;
+        protected final int        hash;
+
+        protected Signature(Class<?> target, String name, Class<?>[] types) {
+            this.target=target;
+            this.name=name;
+            this.types=types;
+            this.hash=31 * (31 * target.hashCode() + (name != null? name.hashCode() : 0)) + Arrays.hashCode(types);
+        }
 
+        public int hashCode() {return hash;}
 
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Signature))
+                return false;
+            Signature other=(Signature)obj;
+            return target == other.target && Util.match(name, other.name) && Arrays.equals(types, other.types);
+        }
+    }
+}
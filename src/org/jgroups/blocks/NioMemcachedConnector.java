@@ -0,0 +1,819 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Version;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.Util;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memcached connector which serves all clients with a single selector thread, and processes their requests with a
+ * small thread pool. Unlike {@link MemcachedConnector}, the number of threads doesn't grow with the number of clients.
+ * <p/>
+ * Both the text and the binary memcached protocol are supported; the protocol is detected per request (binary
+ * requests start with the magic byte 0x80), so both can be used on the same port. Supported are get, gets, set, delete,
+ * stats, version and quit (text) and GET, GETQ, GETK, GETKQ, SET, SETQ, DELETE, DELETEQ, NOOP, VERSION, STAT, QUIT and
+ * QUITQ (binary).
+ * <p/>
+ * All complete requests in the input of a connection are processed together: the keys of consecutive gets (e.g. a
+ * pipeline of GETKQs, or a text get with multiple keys) are fetched with a single
+ * {@link PartitionedHashMap#getAll(java.util.Collection)}, which sends one request per owner. The responses of all
+ * requests are written to the output buffer of the connection and sent with a single write.
+ * <p/>
+ * Every connection has an input and an output buffer, which are reused for all of its requests. A buffer grows when a
+ * request or response doesn't fit (up to max_request_size for requests), and shrinks back to buffer_size when empty.
+ * While a connection's requests are processed, or its responses cannot be written completely, no more input is read
+ * from it.
+ * @author agent
+ * @since  3.6.5
+ */
+public class NioMemcachedConnector implements Runnable {
+    @ManagedAttribute(writable=false)
+    protected int port=11211;
+
+    @ManagedAttribute(writable=false)
+    protected InetAddress bind_addr;
+
+    protected PartitionedHashMap<String,byte[]> cache;
+
+    @ManagedAttribute(description="Max number of threads processing requests",writable=true)
+    protected int max_threads=Runtime.getRuntime().availableProcessors() * 8;
+
+    @ManagedAttribute(description="Time (ms) after which an idle processing thread is terminated",writable=true)
+    protected long idle_time=5000L;
+
+    @ManagedAttribute(description="Initial size of the input and output buffer of a connection",writable=false)
+    protected int buffer_size=4096;
+
+    @ManagedAttribute(description="Max size of a request (including the value); larger requests close the connection",
+                      writable=true)
+    protected int max_request_size=(1 << 20) + 512;
+
+    protected Executor                      thread_pool;
+    protected ServerSocketChannel           srv_channel;
+    protected Selector                      selector;
+    protected volatile Thread               thread;
+    /** Connections whose interest ops need to be changed by the selector thread */
+    protected final Queue<Connection>       updates=new ConcurrentLinkedQueue<>();
+    protected long                          start_time;
+
+    @ManagedAttribute(description="Number of open client connections")
+    protected final AtomicInteger           curr_connections=new AtomicInteger();
+    @ManagedAttribute(description="Number of client connections accepted")
+    protected final AtomicLong              total_connections=new AtomicLong();
+    @ManagedAttribute(description="Number of keys requested by gets")
+    protected final AtomicLong              cmd_get=new AtomicLong();
+    @ManagedAttribute(description="Number of keys found by gets")
+    protected final AtomicLong              get_hits=new AtomicLong();
+    @ManagedAttribute(description="Number of bulk lookups (PartitionedHashMap.getAll()) done for gets")
+    protected final AtomicLong              bulk_gets=new AtomicLong();
+    @ManagedAttribute(description="Number of sets")
+    protected final AtomicLong              cmd_set=new AtomicLong();
+    @ManagedAttribute(description="Number of deletes")
+    protected final AtomicLong              cmd_delete=new AtomicLong();
+    @ManagedAttribute(description="Number of bytes read from clients")
+    protected final AtomicLong              bytes_read=new AtomicLong();
+    @ManagedAttribute(description="Number of bytes written to clients")
+    protected final AtomicLong              bytes_written=new AtomicLong();
+
+    protected static final Log              log=LogFactory.getLog(NioMemcachedConnector.class);
+    protected static final Charset          CHARSET=Charset.forName("UTF-8");
+
+    protected static final byte[] STORED="STORED\r\n".getBytes(), DELETED="DELETED\r\n".getBytes(),
+      END="END\r\n".getBytes(), RN="\r\n".getBytes(), VALUE="VALUE ".getBytes(), ERROR="ERROR\r\n".getBytes();
+
+    // binary protocol
+    protected static final byte   REQUEST_MAGIC=(byte)0x80, RESPONSE_MAGIC=(byte)0x81;
+    protected static final int    HEADER_SIZE=24;
+    protected static final byte   GET=0x00, SET=0x01, DELETE=0x04, QUIT=0x07, GETQ=0x09, NOOP=0x0a, VERSION=0x0b,
+      GETK=0x0c, GETKQ=0x0d, STAT=0x10, SETQ=0x11, DELETEQ=0x14, QUITQ=0x17;
+    protected static final short  STATUS_OK=0x0000, STATUS_NOT_FOUND=0x0001, STATUS_TOO_LARGE=0x0003,
+      STATUS_INVALID_ARGS=0x0004, STATUS_UNKNOWN_COMMAND=0x0081, STATUS_INTERNAL_ERROR=0x0084;
+
+
+    public NioMemcachedConnector(InetAddress bind_addr, int port, PartitionedHashMap<String,byte[]> cache) {
+        this.bind_addr=bind_addr;
+        this.cache=cache;
+        this.port=port;
+    }
+
+    public InetAddress                        getBindAddress()                      {return bind_addr;}
+    public NioMemcachedConnector              setBindAddress(InetAddress addr)      {this.bind_addr=addr; return this;}
+    public int                                getPort()                             {return port;}
+    public NioMemcachedConnector              setPort(int port)                     {this.port=port; return this;}
+    public PartitionedHashMap<String,byte[]>  getCache()                            {return cache;}
+    public NioMemcachedConnector              setCache(PartitionedHashMap<String,byte[]> c) {this.cache=c; return this;}
+    public int                                getMaxThreads()                       {return max_threads;}
+    public NioMemcachedConnector              setMaxThreads(int max)                {this.max_threads=max; return this;}
+    public long                               getIdleTime()                         {return idle_time;}
+    public NioMemcachedConnector              setIdleTime(long time)                {this.idle_time=time; return this;}
+    public int                                getBufferSize()                       {return buffer_size;}
+    public NioMemcachedConnector              setBufferSize(int size)               {this.buffer_size=size; return this;}
+    public int                                getMaxRequestSize()                   {return max_request_size;}
+    public NioMemcachedConnector              setMaxRequestSize(int size)           {this.max_request_size=size; return this;}
+    public Executor                           getThreadPool()                       {return thread_pool;}
+
+    public NioMemcachedConnector setThreadPool(Executor thread_pool) {
+        if(this.thread_pool instanceof ExecutorService)
+            ((ExecutorService)this.thread_pool).shutdown();
+        this.thread_pool=thread_pool;
+        return this;
+    }
+
+    /** Returns the address the connector listens on (useful when port was 0) */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return srv_channel != null? (InetSocketAddress)srv_channel.socket().getLocalSocketAddress() : null;
+    }
+
+
+    public Map<String,Object> getStats() {
+        Map<String,Object> stats=new LinkedHashMap<>();
+        long now=System.currentTimeMillis();
+        stats.put("uptime", (now - start_time) / 1000L);
+        stats.put("time", now / 1000L);
+        stats.put("version", Version.printVersion());
+        stats.put("curr_connections", curr_connections.get());
+        stats.put("total_connections", total_connections.get());
+        stats.put("cmd_get", cmd_get.get());
+        stats.put("cmd_set", cmd_set.get());
+        stats.put("get_hits", get_hits.get());
+        stats.put("get_misses", cmd_get.get() - get_hits.get());
+        stats.put("bulk_gets", bulk_gets.get());
+        stats.put("cmd_delete", cmd_delete.get());
+        stats.put("bytes_read", bytes_read.get());
+        stats.put("bytes_written", bytes_written.get());
+        return stats;
+    }
+
+    @ManagedOperation(description="Resets all statistics")
+    public void resetStats() {
+        for(AtomicLong counter: Arrays.asList(cmd_get, get_hits, bulk_gets, cmd_set, cmd_delete, bytes_read, bytes_written))
+            counter.set(0);
+    }
+
+
+    @ManagedOperation
+    public void start() throws IOException {
+        selector=Selector.open();
+        srv_channel=ServerSocketChannel.open();
+        srv_channel.socket().setReuseAddress(true);
+        srv_channel.socket().bind(new InetSocketAddress(bind_addr, port), 50);
+        srv_channel.configureBlocking(false);
+        srv_channel.register(selector, SelectionKey.OP_ACCEPT);
+        if(thread_pool == null) {
+            ThreadPoolExecutor pool=new ThreadPoolExecutor(max_threads, max_threads, idle_time, TimeUnit.MILLISECONDS,
+                                                           new LinkedBlockingQueue<Runnable>(),
+                                                           new DefaultThreadFactory("Memcached", true, true));
+            pool.allowCoreThreadTimeOut(true);
+            thread_pool=pool;
+        }
+        start_time=System.currentTimeMillis();
+        thread=new Thread(this, "MemcachedConnector-Selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @ManagedOperation
+    public void stop() throws IOException {
+        thread=null;
+        if(selector != null) {
+            selector.wakeup();
+            for(SelectionKey key: keys()) {
+                Object attachment=key.attachment();
+                if(attachment instanceof Connection)
+                    ((Connection)attachment).close();
+            }
+            Util.close(selector);
+        }
+        Util.close(srv_channel);
+        if(thread_pool instanceof ExecutorService)
+            ((ExecutorService)thread_pool).shutdown();
+    }
+
+    public void run() {
+        System.out.println("NioMemcachedConnector listening on " + srv_channel.socket().getLocalSocketAddress());
+        while(thread != null && Thread.currentThread().equals(thread)) {
+            try {
+                selector.select();
+                for(Connection conn; (conn=updates.poll()) != null;)
+                    conn.updateInterest();
+                for(Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key=it.next();
+                    it.remove();
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn=(Connection)key.attachment();
+                    try {
+                        if(key.isWritable())
+                            conn.writable();
+                        if(key.isValid() && key.isReadable())
+                            conn.readable();
+                    }
+                    catch(Throwable t) {
+                        conn.close();
+                    }
+                }
+            }
+            catch(ClosedSelectorException closed) {
+                break;
+            }
+            catch(Throwable t) {
+                if(thread != null && log.isWarnEnabled())
+                    log.warn("failure in selector loop", t);
+            }
+        }
+    }
+
+    protected Set<SelectionKey> keys() {
+        try {
+            return new HashSet<>(selector.keys());
+        }
+        catch(ClosedSelectorException ex) {
+            return Collections.emptySet();
+        }
+    }
+
+    protected void accept() throws IOException {
+        for(SocketChannel client; (client=srv_channel.accept()) != null;) {
+            try {
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                Connection conn=new Connection(client);
+                conn.key=client.register(selector, SelectionKey.OP_READ, conn);
+                curr_connections.incrementAndGet();
+                total_connections.incrementAndGet();
+            }
+            catch(IOException ex) {
+                Util.close(client);
+            }
+        }
+    }
+
+
+    /**
+     * A client connection. The selector thread reads into the input buffer; the input is then processed by a thread
+     * from the pool, which writes the responses. Only one of them accesses the buffers at any given time: the
+     * selector thread doesn't read while the input is processed, and doesn't write while no output is pending
+     */
+    protected class Connection implements Runnable {
+        protected final SocketChannel ch;
+        protected SelectionKey        key;
+        protected ByteBuffer          in;    // write mode (the selector thread appends to it)
+        protected ByteBuffer          out;   // write mode while responses are added, read mode while they are sent
+        protected int                 needed;          // the size of the (partial) request at the head of the input
+        protected volatile int        interest=SelectionKey.OP_READ;
+        protected volatile boolean    close_when_flushed;
+        protected final AtomicInteger closed=new AtomicInteger();
+
+        protected Connection(SocketChannel ch) {
+            this.ch=ch;
+            this.in=ByteBuffer.allocate(buffer_size);
+            this.out=ByteBuffer.allocate(buffer_size);
+        }
+
+        /** Called by the selector thread when input is available: reads it and hands it to the pool */
+        protected void readable() throws IOException {
+            int num=ch.read(in);
+            if(num < 0) {
+                close();
+                return;
+            }
+            bytes_read.addAndGet(num);
+            if(num == 0 || (needed > in.position() && in.hasRemaining()))
+                return; // the request is still incomplete
+            key.interestOps(0);
+            thread_pool.execute(this);
+        }
+
+        /** Called by the selector thread when the pending output can be written */
+        protected void writable() throws IOException {
+            if(flush()) {
+                if(close_when_flushed)
+                    close();
+                else
+                    key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /** Processes all complete requests in the input and sends the responses */
+        public void run() {
+            try {
+                in.flip();
+                try {
+                    process();
+                }
+                finally {
+                    in.compact();
+                }
+                in=ensureInputCapacity(in, needed);
+                out.flip();
+                boolean flushed=flush();
+                if(flushed && close_when_flushed) {
+                    close();
+                    return;
+                }
+                setInterest(flushed? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            }
+            catch(Throwable t) {
+                if(log.isTraceEnabled())
+                    log.trace("closing connection to " + ch.socket().getRemoteSocketAddress() + ": " + t);
+                close();
+            }
+        }
+
+        /** Writes the output (in read mode). Returns true if everything was written; the buffer is then reset */
+        protected boolean flush() throws IOException {
+            bytes_written.addAndGet(ch.write(out));
+            if(out.hasRemaining())
+                return false;
+            if(out.capacity() > buffer_size)
+                out=ByteBuffer.allocate(buffer_size);
+            else
+                out.clear();
+            return true;
+        }
+
+        protected void setInterest(int ops) {
+            interest=ops;
+            updates.add(this);
+            selector.wakeup();
+        }
+
+        /** Called by the selector thread */
+        protected void updateInterest() {
+            if(key.isValid())
+                key.interestOps(interest);
+        }
+
+        protected void close() {
+            if(!closed.compareAndSet(0, 1))
+                return;
+            if(key != null)
+                key.cancel();
+            Util.close(ch);
+            curr_connections.decrementAndGet();
+        }
+
+        /** Parses all complete requests from the input (in read mode) and executes them */
+        protected void process() throws IOException {
+            List<Request> requests=new ArrayList<>();
+            needed=0;
+            try {
+                while(in.hasRemaining()) {
+                    int start=in.position();
+                    Request req=in.get(start) == REQUEST_MAGIC? parseBinary() : parseText();
+                    if(req == null) { // incomplete
+                        in.position(start);
+                        break;
+                    }
+                    requests.add(req);
+                    if(req.quit())
+                        break;
+                }
+            }
+            catch(RequestTooLargeException too_large) {
+                execute(requests);
+                if(too_large.binary)
+                    binaryResponse(too_large.opcode, STATUS_TOO_LARGE, too_large.opaque, null, null);
+                else
+                    write("SERVER_ERROR object too large for cache\r\n");
+                in.position(in.limit());
+                close_when_flushed=true;
+                return;
+            }
+            execute(requests);
+        }
+
+        protected void execute(List<Request> requests) {
+            for(int i=0; i < requests.size(); i++) {
+                Request req=requests.get(i);
+                if(req.isGet()) {
+                    // fetch the keys of all consecutive gets with a single bulk lookup
+                    int end=i + 1;
+                    while(end < requests.size() && requests.get(end).isGet())
+                        end++;
+                    List<Request> gets=requests.subList(i, end);
+                    executeGets(gets);
+                    i=end - 1;
+                    continue;
+                }
+                try {
+                    execute(req);
+                }
+                catch(Throwable t) {
+                    if(req.binary)
+                        binaryResponse(req.opcode, STATUS_INTERNAL_ERROR, req.opaque, null, null);
+                    else
+                        write("SERVER_ERROR " + t + "\r\n");
+                }
+            }
+        }
+
+        protected void executeGets(List<Request> gets) {
+            Set<String> keys=new LinkedHashSet<>();
+            for(Request req: gets)
+                keys.addAll(req.keys);
+            Map<String,byte[]> values;
+            try {
+                if(keys.size() == 1)
+                    values=singleGet(keys.iterator().next());
+                else {
+                    values=cache.getAll(keys);
+                    bulk_gets.incrementAndGet();
+                }
+            }
+            catch(Throwable t) {
+                for(Request req: gets) {
+                    if(req.binary)
+                        binaryResponse(req.opcode, STATUS_INTERNAL_ERROR, req.opaque, null, null);
+                    else
+                        write("SERVER_ERROR " + t + "\r\n");
+                }
+                return;
+            }
+            for(Request req: gets) {
+                if(req.binary) {
+                    String key=req.keys.get(0);
+                    byte[] val=values.get(key);
+                    cmd_get.incrementAndGet();
+                    if(val != null)
+                        get_hits.incrementAndGet();
+                    boolean with_key=req.opcode == GETK || req.opcode == GETKQ;
+                    boolean quiet=req.opcode == GETQ || req.opcode == GETKQ;
+                    if(val != null)
+                        binaryResponse(req.opcode, STATUS_OK, req.opaque, with_key? key : null, val);
+                    else if(!quiet)
+                        binaryResponse(req.opcode, STATUS_NOT_FOUND, req.opaque, with_key? key : null, null);
+                    continue;
+                }
+                for(String key: req.keys) {
+                    byte[] val=values.get(key);
+                    cmd_get.incrementAndGet();
+                    if(val == null)
+                        continue;
+                    get_hits.incrementAndGet();
+                    ensureOutputCapacity(key.length() * 4 + val.length + 48);
+                    out.put(VALUE);
+                    write(key);
+                    write(req.cas? " 0 " + val.length + " 0\r\n" : " 0 " + val.length + "\r\n"); // cas is not supported
+                    out.put(val).put(RN);
+                }
+                write(END);
+            }
+        }
+
+        protected Map<String,byte[]> singleGet(String key) {
+            byte[] val=cache.get(key);
+            return val != null? Collections.singletonMap(key, val) : Collections.<String,byte[]>emptyMap();
+        }
+
+        protected void execute(Request req) {
+            switch(req.type) {
+                case SET:
+                    cmd_set.incrementAndGet();
+                    if(req.caching_time < 0) // absolute expiration time in the past
+                        cache.remove(req.key);
+                    else
+                        cache.put(req.key, req.value, req.caching_time);
+                    if(req.binary) {
+                        if(req.opcode != SETQ)
+                            binaryResponse(req.opcode, STATUS_OK, req.opaque, null, null);
+                    }
+                    else if(!req.noreply)
+                        write(STORED);
+                    break;
+                case DELETE:
+                    cmd_delete.incrementAndGet();
+                    cache.remove(req.key);
+                    if(req.binary) {
+                        if(req.opcode != DELETEQ)
+                            binaryResponse(req.opcode, STATUS_OK, req.opaque, null, null);
+                    }
+                    else if(!req.noreply)
+                        write(DELETED);
+                    break;
+                case STATS:
+                    Map<String,Object> stats=getStats();
+                    if(req.binary) {
+                        for(Map.Entry<String,Object> entry: stats.entrySet())
+                            binaryResponse(req.opcode, STATUS_OK, req.opaque, entry.getKey(),
+                                           String.valueOf(entry.getValue()).getBytes(CHARSET));
+                        binaryResponse(req.opcode, STATUS_OK, req.opaque, null, null);
+                    }
+                    else {
+                        StringBuilder sb=new StringBuilder();
+                        for(Map.Entry<String,Object> entry: stats.entrySet())
+                            sb.append("STAT ").append(entry.getKey()).append(' ').append(entry.getValue()).append("\r\n");
+                        write(sb.append("END\r\n").toString());
+                    }
+                    break;
+                case VERSION:
+                    if(req.binary)
+                        binaryResponse(req.opcode, STATUS_OK, req.opaque, null, Version.printVersion().getBytes(CHARSET));
+                    else
+                        write("VERSION " + Version.printVersion() + "\r\n");
+                    break;
+                case NOOP:
+                    binaryResponse(req.opcode, STATUS_OK, req.opaque, null, null);
+                    break;
+                case QUIT:
+                    if(req.binary && req.opcode == QUIT)
+                        binaryResponse(req.opcode, STATUS_OK, req.opaque, null, null);
+                    close_when_flushed=true;
+                    break;
+                case ERROR:
+                    if(req.binary)
+                        binaryResponse(req.opcode, req.status, req.opaque, null, null);
+                    else
+                        write(req.error != null? req.error : ERROR);
+                    break;
+            }
+        }
+
+
+        /** Parses a binary request. Returns null if the request is incomplete */
+        protected Request parseBinary() throws RequestTooLargeException {
+            int start=in.position();
+            if(in.remaining() < HEADER_SIZE) {
+                needed=HEADER_SIZE;
+                return null;
+            }
+            byte opcode=in.get(start + 1);
+            int key_length=in.getShort(start + 2) & 0xffff, extras_length=in.get(start + 4) & 0xff;
+            int body_length=in.getInt(start + 8), opaque=in.getInt(start + 12);
+            if(body_length < 0 || HEADER_SIZE + (long)body_length > max_request_size)
+                throw new RequestTooLargeException(true, opcode, opaque);
+            if(in.remaining() < HEADER_SIZE + body_length) {
+                needed=HEADER_SIZE + body_length;
+                return null;
+            }
+            in.position(start + HEADER_SIZE);
+            Request req=new Request(true, opcode, opaque);
+            int value_length=body_length - key_length - extras_length;
+            if(value_length < 0) {
+                in.position(start + HEADER_SIZE + body_length);
+                return req.error(STATUS_INVALID_ARGS);
+            }
+            int extras_pos=in.position();
+            in.position(extras_pos + extras_length);
+            String key=key_length > 0? readString(key_length) : null;
+            switch(opcode) {
+                case GET: case GETQ: case GETK: case GETKQ:
+                    if(key == null)
+                        return req.error(STATUS_INVALID_ARGS).skip(in, value_length);
+                    req.type=Type.GET;
+                    req.keys=Collections.singletonList(key);
+                    break;
+                case SET: case SETQ:
+                    if(key == null || extras_length != 8)
+                        return req.error(STATUS_INVALID_ARGS).skip(in, value_length);
+                    req.type=Type.SET;
+                    req.key=key;
+                    req.caching_time=cachingTime(in.getInt(extras_pos + 4) & 0xffffffffL);
+                    req.value=new byte[value_length];
+                    in.get(req.value);
+                    break;
+                case DELETE: case DELETEQ:
+                    if(key == null)
+                        return req.error(STATUS_INVALID_ARGS).skip(in, value_length);
+                    req.type=Type.DELETE;
+                    req.key=key;
+                    break;
+                case STAT:
+                    req.type=Type.STATS;
+                    break;
+                case VERSION:
+                    req.type=Type.VERSION;
+                    break;
+                case NOOP:
+                    req.type=Type.NOOP;
+                    break;
+                case QUIT: case QUITQ:
+                    req.type=Type.QUIT;
+                    break;
+                default:
+                    req.error(STATUS_UNKNOWN_COMMAND);
+                    break;
+            }
+            in.position(start + HEADER_SIZE + body_length);
+            return req;
+        }
+
+        /** Parses a text request. Returns null if the request is incomplete */
+        protected Request parseText() throws IOException {
+            int start=in.position(), eol=-1;
+            for(int i=start; i < in.limit(); i++) {
+                if(in.get(i) == '\n') {
+                    eol=i;
+                    break;
+                }
+            }
+            if(eol < 0) {
+                if(in.remaining() >= max_request_size)
+                    throw new RequestTooLargeException(false, (byte)0, 0);
+                needed=in.remaining() + 1;
+                return null;
+            }
+            int line_end=eol > start && in.get(eol - 1) == '\r'? eol - 1 : eol;
+            String line=readString(line_end - start);
+            in.position(eol + 1);
+            String[] args=line.trim().split(" +");
+            Request req=new Request(false, (byte)0, 0);
+            String cmd=args[0];
+            try {
+                switch(cmd) {
+                    case "get":
+                    case "gets":
+                        if(args.length < 2)
+                            return req.error(ERROR);
+                        req.type=Type.GET;
+                        req.cas=cmd.equals("gets");
+                        req.keys=Arrays.asList(args).subList(1, args.length);
+                        return req;
+                    case "set":
+                        if(args.length < 5)
+                            return req.error(ERROR);
+                        int length=Integer.parseInt(args[4]);
+                        if(length < 0 || eol + 1 - start + (long)length + 2 > max_request_size)
+                            throw new RequestTooLargeException(false, (byte)0, 0);
+                        if(in.remaining() < length + 2) {
+                            needed=eol + 1 - start + length + 2;
+                            return null;
+                        }
+                        req.type=Type.SET;
+                        req.key=args[1];
+                        req.caching_time=cachingTime(Long.parseLong(args[3]));
+                        req.noreply=args.length > 5 && args[5].equals("noreply");
+                        req.value=new byte[length];
+                        in.get(req.value);
+                        if(in.get() != '\r' || in.get() != '\n')
+                            return req.error("CLIENT_ERROR bad data chunk\r\n".getBytes());
+                        return req;
+                    case "delete":
+                        if(args.length < 2)
+                            return req.error(ERROR);
+                        req.type=Type.DELETE;
+                        req.key=args[1];
+                        req.noreply=args[args.length - 1].equals("noreply");
+                        return req;
+                    case "stats":
+                        req.type=Type.STATS;
+                        return req;
+                    case "version":
+                        req.type=Type.VERSION;
+                        return req;
+                    case "quit":
+                        req.type=Type.QUIT;
+                        return req;
+                    default:
+                        return req.error(ERROR);
+                }
+            }
+            catch(NumberFormatException ex) {
+                return req.error("CLIENT_ERROR bad command line format\r\n".getBytes());
+            }
+        }
+
+        protected String readString(int length) {
+            String retval=new String(in.array(), in.arrayOffset() + in.position(), length, CHARSET);
+            in.position(in.position() + length);
+            return retval;
+        }
+
+        protected void binaryResponse(byte opcode, short status, int opaque, String key, byte[] value) {
+            byte[] key_bytes=key != null? key.getBytes(CHARSET) : null;
+            boolean with_flags=status == STATUS_OK && (opcode == GET || opcode == GETQ || opcode == GETK || opcode == GETKQ);
+            int key_length=key_bytes != null? key_bytes.length : 0, extras_length=with_flags? 4 : 0;
+            int body_length=key_length + extras_length + (value != null? value.length : 0);
+            ensureOutputCapacity(HEADER_SIZE + body_length);
+            out.put(RESPONSE_MAGIC).put(opcode).putShort((short)key_length).put((byte)extras_length).put((byte)0)
+              .putShort(status).putInt(body_length).putInt(opaque).putLong(0);
+            if(with_flags)
+                out.putInt(0); // flags are not supported
+            if(key_bytes != null)
+                out.put(key_bytes);
+            if(value != null)
+                out.put(value);
+        }
+
+        protected void write(String s) {
+            write(s.getBytes(CHARSET));
+        }
+
+        protected void write(byte[] buf) {
+            ensureOutputCapacity(buf.length);
+            out.put(buf);
+        }
+
+        protected void ensureOutputCapacity(int space) {
+            if(out.remaining() >= space)
+                return;
+            ByteBuffer tmp=ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + space));
+            out.flip();
+            out=tmp.put(out);
+        }
+    }
+
+    /** Makes room for a request of the given size in the input (in write mode), or shrinks an empty input */
+    protected ByteBuffer ensureInputCapacity(ByteBuffer in, int request_size) {
+        if(request_size > in.capacity()) {
+            ByteBuffer tmp=ByteBuffer.allocate(Math.min(Math.max(in.capacity() * 2, request_size), max_request_size));
+            in.flip();
+            return tmp.put(in);
+        }
+        if(in.position() == 0 && in.capacity() > buffer_size)
+            return ByteBuffer.allocate(buffer_size);
+        return in;
+    }
+
+    /**
+     * Converts a memcached expiration time into a caching time (ms). Values of up to 30 days are relative (0 is forever),
+     * larger values are absolute unix times; -1 is returned if the time has already passed
+     */
+    protected static long cachingTime(long exptime) {
+        if(exptime <= 60L * 60 * 24 * 30)
+            return exptime * 1000L;
+        long time=exptime * 1000L - System.currentTimeMillis();
+        return time > 0? time : -1;
+    }
+
+
+    protected enum Type {GET, SET, DELETE, STATS, VERSION, NOOP, QUIT, ERROR}
+
+    protected static class Request {
+        protected final boolean binary;
+        protected byte          opcode;
+        protected final int     opaque;
+        protected Type          type;
+        protected String        key;
+        protected List<String>  keys;
+        protected byte[]        value;
+        protected long          caching_time;
+        protected boolean       noreply;
+        protected boolean       cas;    // text gets
+        protected short         status; // binary ERROR
+        protected byte[]        error;  // text ERROR
+
+        protected Request(boolean binary, byte opcode, int opaque) {
+            this.binary=binary;
+            this.opcode=opcode;
+            this.opaque=opaque;
+        }
+
+        protected boolean isGet() {return type == Type.GET;}
+        protected boolean quit()  {return type == Type.QUIT;}
+
+        protected Request error(short status) {
+            this.type=Type.ERROR;
+            this.status=status;
+            return this;
+        }
+
+        protected Request error(byte[] error) {
+            this.type=Type.ERROR;
+            this.error=error;
+            return this;
+        }
+
+        protected Request skip(ByteBuffer buf, int length) {
+            buf.position(buf.position() + length);
+            return this;
+        }
+
+        public String toString() {
+            return String.format("%s%s: %s", binary? "binary " : "", type, key != null? key : keys);
+        }
+    }
+
+    protected static class RequestTooLargeException extends StreamCorruptedException {
+        private static final long serialVersionUID=-8302958410238750183L;
+        protected final boolean binary;
+        protected final byte    opcode;
+        protected final int     opaque;
+
+        protected RequestTooLargeException(boolean binary, byte opcode, int opaque) {
+            super("request too large");
+            this.binary=binary;
+            this.opcode=opcode;
+            this.opaque=opaque;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.jgroups.blocks;
+
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores byte arrays outside of the Java heap, in slabs of direct memory, so that large amounts of data don't add to
+ * the cost of garbage collection.
+ * <p/>
+ * Every slab is divided into chunks of the same size; chunk sizes are powers of 2 between {@link #MIN_CHUNK_SIZE} and
+ * the slab size, and a byte array is stored in a chunk of the smallest size it fits into. Freed chunks are reused for
+ * arrays of the same size class; slabs are allocated on demand until max_size is reached. Arrays larger than the slab
+ * size get a slab of their own, which is released when the array is freed.
+ * <p/>
+ * {@link #put(byte[],int,int)} returns a {@link Ref}, which is kept on the heap (e.g. in the index of a cache) and is
+ * used to read or free the array. A ref becomes stale when its array is freed: reading a stale ref returns null, even
+ * when the chunk has been reused for a different array in the meantime. Every slab has a generation which is unique in
+ * the store, so a stale ref is also detected when the id of its (released) slab has been reused for a new slab, e.g.
+ * after a huge array was freed or after {@link #clear()}.
+ * @author agent
+ * @since  3.6.5
+ */
+public class OffHeapStore {
+    public static final int MIN_CHUNK_SIZE=64;
+
+    protected final int             slab_size;
+    protected final long            max_size;
+
+    @GuardedBy("this")
+    protected final List<Slab>      slabs=new ArrayList<>();
+
+    /** Free chunks (addresses) per size class */
+    @GuardedBy("this")
+    protected final LongStack[]     free_chunks;
+
+    @GuardedBy("this")
+    protected long                  allocated; // the size of all slabs
+
+    @GuardedBy("this")
+    protected long                  used;      // the size of all chunks in use
+
+    @GuardedBy("this")
+    protected int                   num_arrays;
+
+    /** The generation of the next slab; never reset, so that refs to released slabs can't match a new slab */
+    @GuardedBy("this")
+    protected long                  next_generation=1;
+
+
+    /** A reference to an array in the store */
+    public static final class Ref {
+        protected final long address;    // slab id in the upper 32 bits, chunk index in the lower 32 bits
+        protected final long generation; // of the slab
+        protected final int  stamp;
+        protected final int  length;
+
+        protected Ref(long address, long generation, int stamp, int length) {
+            this.address=address;
+            this.generation=generation;
+            this.stamp=stamp;
+            this.length=length;
+        }
+
+        /** The length of the array */
+        public int length() {return length;}
+
+        public String toString() {
+            return String.format("%d:%d (%d bytes)", address >>> 32, (int)address, length);
+        }
+    }
+
+
+    /**
+     * Creates a store
+     * @param slab_size The size of a slab; rounded up to a power of 2
+     * @param max_size The max number of bytes of direct memory allocated for slabs
+     */
+    public OffHeapStore(int slab_size, long max_size) {
+        if(slab_size < MIN_CHUNK_SIZE)
+            throw new IllegalArgumentException("slab_size (" + slab_size + ") must be >= " + MIN_CHUNK_SIZE);
+        this.slab_size=Util.getNextHigherPowerOfTwo(slab_size);
+        this.max_size=max_size;
+        int num_classes=sizeClass(this.slab_size) + 1;
+        free_chunks=new LongStack[num_classes];
+        for(int i=0; i < num_classes; i++)
+            free_chunks[i]=new LongStack();
+    }
+
+    public int                   slabSize()       {return slab_size;}
+    public long                  maxSize()        {return max_size;}
+    /** The number of bytes of direct memory allocated for slabs */
+    public synchronized long     allocatedBytes() {return allocated;}
+    /** The number of bytes of all chunks in use */
+    public synchronized long     usedBytes()      {return used;}
+    /** The number of arrays in the store */
+    public synchronized int      size()           {return num_arrays;}
+
+    /** Returns the number of bytes of direct memory used to store an array of the given length */
+    public int chunkSize(int length) {
+        return length > slab_size? length : MIN_CHUNK_SIZE << sizeClass(length);
+    }
+
+    /**
+     * Copies an array into the store
+     * @return A ref to the copy, or null if the store has no space left for the array
+     */
+    public Ref put(byte[] buf, int offset, int length) {
+        long address;
+        Slab slab;
+        synchronized(this) {
+            address=allocate(length);
+            if(address < 0)
+                return null;
+            slab=slabs.get((int)(address >>> 32));
+        }
+        int index=(int)address;
+        ByteBuffer tmp=slab.buf.duplicate();
+        tmp.position(index * slab.chunk_size);
+        tmp.put(buf, offset, length);
+        slab.lock.readLock().lock();
+        try {
+            return new Ref(address, slab.generation, slab.stamps[index], length);
+        }
+        finally {
+            slab.lock.readLock().unlock();
+        }
+    }
+
+    public Ref put(byte[] buf) {
+        return put(buf, 0, buf.length);
+    }
+
+    /** Returns a copy of the array referenced by ref, or null if the ref is stale */
+    public byte[] get(Ref ref) {
+        Slab slab=slab((int)(ref.address >>> 32));
+        if(slab == null || slab.generation != ref.generation)
+            return null;
+        int index=(int)ref.address;
+        slab.lock.readLock().lock();
+        try {
+            if(slab.stamps[index] != ref.stamp)
+                return null;
+            byte[] retval=new byte[ref.length];
+            ByteBuffer tmp=slab.buf.duplicate();
+            tmp.position(index * slab.chunk_size);
+            tmp.get(retval);
+            return retval;
+        }
+        finally {
+            slab.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Frees the array referenced by ref. Readers with a copy of ref will get null from then on
+     * @return True if the array was freed, false if ref was stale
+     */
+    public boolean free(Ref ref) {
+        int slab_id=(int)(ref.address >>> 32), index=(int)ref.address;
+        Slab slab=slab(slab_id);
+        if(slab == null || slab.generation != ref.generation)
+            return false;
+        slab.lock.writeLock().lock();
+        try {
+            if(slab.stamps[index] != ref.stamp)
+                return false;
+            slab.stamps[index]++;
+        }
+        finally {
+            slab.lock.writeLock().unlock();
+        }
+        synchronized(this) {
+            if(slab(slab_id) != slab) // the store was cleared in the meantime
+                return true;
+            used-=slab.chunk_size;
+            num_arrays--;
+            if(slab.huge) {
+                slabs.set(slab_id, null); // the direct memory is released when the slab is garbage collected
+                allocated-=slab.buf.capacity();
+            }
+            else
+                free_chunks[sizeClass(slab.chunk_size)].push(ref.address);
+        }
+        return true;
+    }
+
+    /** Removes all arrays and releases all slabs. All refs become stale */
+    public synchronized void clear() {
+        for(Slab slab: slabs) {
+            if(slab == null)
+                continue;
+            slab.lock.writeLock().lock();
+            try {
+                for(int i=0; i < slab.stamps.length; i++)
+                    slab.stamps[i]++;
+            }
+            finally {
+                slab.lock.writeLock().unlock();
+            }
+        }
+        slabs.clear();
+        for(LongStack stack: free_chunks)
+            stack.clear();
+        allocated=used=num_arrays=0;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d arrays, %s used, %s allocated (max: %s)", num_arrays, Util.printBytes(used),
+                             Util.printBytes(allocated), Util.printBytes(max_size));
+    }
+
+
+    /** Returns the address of a free chunk for an array of the given length, or -1 if there's no space left */
+    @GuardedBy("this")
+    protected long allocate(int length) {
+        long address;
+        if(length > slab_size) {
+            if(allocated + length > max_size)
+                return -1;
+            address=(long)addSlab(new Slab(length, 1, true, next_generation++)) << 32;
+        }
+        else {
+            int size_class=sizeClass(length);
+            LongStack stack=free_chunks[size_class];
+            if(stack.isEmpty()) {
+                if(allocated + slab_size > max_size)
+                    return -1;
+                int chunk_size=MIN_CHUNK_SIZE << size_class;
+                int num_chunks=slab_size / chunk_size;
+                long slab_id=addSlab(new Slab(chunk_size, num_chunks, false, next_generation++));
+                for(int i=num_chunks - 1; i >= 0; i--)
+                    stack.push(slab_id << 32 | i);
+            }
+            address=stack.pop();
+        }
+        used+=slabs.get((int)(address >>> 32)).chunk_size;
+        num_arrays++;
+        return address;
+    }
+
+    /** Returns the slab with the given id, or null if it was released */
+    protected synchronized Slab slab(int id) {
+        return id < slabs.size()? slabs.get(id) : null;
+    }
+
+    /** Adds a slab, reusing the id of a released slab if possible, and returns its id */
+    @GuardedBy("this")
+    protected int addSlab(Slab slab) {
+        allocated+=slab.buf.capacity();
+        int id=slabs.indexOf(null);
+        if(id >= 0)
+            slabs.set(id, slab);
+        else {
+            id=slabs.size();
+            slabs.add(slab);
+        }
+        return id;
+    }
+
+    /** Returns the index of the smallest size class (MIN_CHUNK_SIZE * 2^index) which can hold length bytes */
+    protected static int sizeClass(int length) {
+        if(length <= MIN_CHUNK_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+
+    protected static class Slab {
+        protected final ByteBuffer    buf;
+        protected final int           chunk_size;
+        protected final boolean       huge; // a slab for a single array larger than slab_size
+        protected final long          generation;
+        /** Incremented when a chunk is freed, so that refs to the previous array can be detected as stale */
+        @GuardedBy("lock")
+        protected final int[]         stamps;
+        protected final ReadWriteLock lock=new ReentrantReadWriteLock();
+
+        protected Slab(int chunk_size, int num_chunks, boolean huge, long generation) {
+            this.buf=ByteBuffer.allocateDirect(chunk_size * num_chunks);
+            this.chunk_size=chunk_size;
+            this.huge=huge;
+            this.generation=generation;
+            this.stamps=new int[num_chunks];
+        }
+    }
+
+    /** A stack of longs, to keep the free chunks without boxing */
+    protected static class LongStack {
+        protected long[] elements=new long[16];
+        protected int    size;
+
+        protected void    push(long element) {
+            if(size == elements.length)
+                elements=Arrays.copyOf(elements, size * 2);
+            elements[size++]=element;
+        }
+        protected long    pop()     {return elements[--size];}
+        protected boolean isEmpty() {return size == 0;}
+        protected void    clear()   {size=0;}
+    }
+}
@@ -11,6 +11,7 @@ import org.jgroups.annotations.Unsupported;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.Buffer;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.ByteArrayInputStream;
@@ -19,18 +20,22 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Hashmap which distributes its keys and values across the cluster. A PUT/GET/REMOVE computes the cluster node to which
  * or from which to get/set the key/value from a hash of the key and then forwards the request to the remote cluster node.
  * We also maintain a local cache (L1 cache) which is a bounded cache that caches retrieved keys/values. <br/>
+ * When L1 invalidation is enabled, the owner of a key keeps track of the members which cached the key in their L1
+ * caches (see {@link L1Invalidator}) and invalidates their copies (in batches) when the key is modified or removed.
+ * Members can then keep L1 entries until they're invalidated (or expire), instead of fetching them from the owner
+ * again after a short caching time. <br/>
  * Todos:<br/>
  * <ol>
  * <li>Use MarshalledValue to keep track of byte[] buffers, and be able to compute the exact size of the cache. This is
  *     good for maintaining a bounded cache (rather than using the number of entries)
- * <li>Provide a better consistent hashing algorithm than ConsistentHashFunction as default
  * <li>GUI (showing at least the topology and L1 and L2 caches)
  * <li>Notifications (puts, removes, gets etc)
- * <li>Invalidation of L1 caches (if used) on removal/put of item
  * <li>Benchmarks, comparison to memcached
  * <li>Documentation, comparison to memcached
  * </ol>
@@ -67,9 +72,32 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     @ManagedAttribute(writable=true)
     private boolean migrate_data=false;
 
-    private static final short PUT     = 1;
-    private static final short GET     = 2;
-    private static final short REMOVE  = 3;
+    /** Whether owners track the L1 copies of their keys and invalidate them on modification. Needs to be set before
+     * {@link #start()}, and the same in all members */
+    @ManagedAttribute(description="Whether owners invalidate the L1 copies of keys which are modified or removed")
+    private boolean l1_invalidation=false;
+
+    @ManagedAttribute(description="Max time (ms) invalidations are delayed to be sent in batches. 0 sends them right away",
+                      writable=true)
+    private long invalidation_interval=20;
+
+    private L1Invalidator<K> invalidator;
+
+    /** Incremented on every invalidation received; a fetched value is only added to the L1 cache when no invalidation
+     * was received while it was being fetched, as the invalidation might have been for the fetched value */
+    private final AtomicLong invalidation_seqno=new AtomicLong();
+
+    private final AtomicLong num_remote_gets=new AtomicLong(), num_l1_hits=new AtomicLong(),
+      num_invalidations_received=new AtomicLong();
+
+    private static final short PUT         = 1;
+    private static final short GET         = 2;
+    private static final short REMOVE      = 3;
+    private static final short PUT_TRACKED = 4;
+    private static final short GET_TRACKED = 5;
+    private static final short INVALIDATE  = 6;
+    private static final short PUT_MANY    = 7;
+    private static final short GET_MANY    = 8;
 
     protected static final Map<Short,Method> methods=Util.createConcurrentMap(8);
 
@@ -82,6 +110,12 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             methods.put(GET, PartitionedHashMap.class.getMethod("_get",
                                                                Object.class));
             methods.put(REMOVE, PartitionedHashMap.class.getMethod("_remove", Object.class));
+            methods.put(PUT_TRACKED, PartitionedHashMap.class.getMethod("_put", Object.class, Object.class,
+                                                                        long.class, Address.class));
+            methods.put(GET_TRACKED, PartitionedHashMap.class.getMethod("_get", Object.class, Address.class));
+            methods.put(INVALIDATE, PartitionedHashMap.class.getMethod("_invalidate", Collection.class));
+            methods.put(PUT_MANY, PartitionedHashMap.class.getMethod("_putMany", Map.class, long.class, Address.class));
+            methods.put(GET_MANY, PartitionedHashMap.class.getMethod("_getMany", Collection.class, Address.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -169,6 +203,61 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         this.migrate_data=migrate_data;
     }
 
+    public boolean isL1Invalidation() {
+        return l1_invalidation;
+    }
+
+    public void setL1Invalidation(boolean l1_invalidation) {
+        this.l1_invalidation=l1_invalidation;
+    }
+
+    public long getInvalidationInterval() {
+        return invalidation_interval;
+    }
+
+    public void setInvalidationInterval(long invalidation_interval) {
+        this.invalidation_interval=invalidation_interval;
+        if(invalidator != null)
+            invalidator.interval(invalidation_interval);
+    }
+
+    @ManagedAttribute(description="Number of GETs sent to the owner of a key")
+    public long getNumRemoteGets() {
+        return num_remote_gets.get();
+    }
+
+    @ManagedAttribute(description="Number of GETs served from the L1 cache")
+    public long getNumL1Hits() {
+        return num_l1_hits.get();
+    }
+
+    @ManagedAttribute(description="Number of keys invalidated in the L1 cache by their owners")
+    public long getNumInvalidationsReceived() {
+        return num_invalidations_received.get();
+    }
+
+    @ManagedAttribute(description="Number of keys invalidated at other members")
+    public long getNumInvalidationsSent() {
+        return invalidator != null? invalidator.numInvalidations() : 0;
+    }
+
+    @ManagedAttribute(description="Number of invalidation messages sent")
+    public long getNumInvalidationMessages() {
+        return invalidator != null? invalidator.numMessages() : 0;
+    }
+
+    @ManagedAttribute(description="Number of keys of which members hold copies in their L1 caches")
+    public int getNumTrackedKeys() {
+        return invalidator != null? invalidator.numTrackedKeys() : 0;
+    }
+
+    @ManagedOperation
+    public void resetStats() {
+        num_remote_gets.set(0);
+        num_l1_hits.set(0);
+        num_invalidations_received.set(0);
+    }
+
     public HashFunction getHashFunction() {
         return hash_function;
     }
@@ -208,8 +297,10 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
 
     @ManagedOperation
     public void start() throws Exception {
-        hash_function=new ConsistentHashFunction<>();
-        addMembershipListener((MembershipListener)hash_function);
+        if(hash_function == null)
+            hash_function=new ConsistentHashFunction<>();
+        if(hash_function instanceof MembershipListener)
+            addMembershipListener((MembershipListener)hash_function);
         ch=new JChannel(props);
         disp=new RpcDispatcher(ch, null, this, this);
         RpcDispatcher.Marshaller marshaller=new CustomMarshaller();
@@ -224,12 +315,23 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         ch.connect(cluster_name);
         local_addr=ch.getAddress();
         view=ch.getView();
+        if(l1_invalidation) {
+            TimeScheduler timer=ch.getProtocolStack().getTransport().getTimer();
+            invalidator=new L1Invalidator<>(new L1Invalidator.Sender<K>() {
+                public void sendInvalidations(Address dest, Collection<K> keys) throws Exception {
+                    disp.callRemoteMethod(dest, new MethodCall(INVALIDATE, keys),
+                                          new RequestOptions(ResponseMode.GET_NONE, call_timeout));
+                }
+            }, timer).interval(invalidation_interval);
+        }
     }
 
     @ManagedOperation
     public void stop() {
         if(l1_cache != null)
             l1_cache.stop();
+        if(invalidator != null)
+            invalidator.flush();
         if(migrate_data) {
             List<Address> members_without_me=new ArrayList<>(view.getMembers());
             members_without_me.remove(local_addr);
@@ -265,14 +367,122 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     @ManagedOperation
     public void put(K key, V val, long caching_time) {
         Address dest_node=getNode(key);
+        boolean tracked=invalidator != null && l1_cache != null && caching_time >= 0;
+        // with L1 invalidation, the value is cached before the PUT is sent, so an invalidation caused by a
+        // subsequent write of a different member cannot be overtaken by the caching of our value
+        if(l1_cache != null && caching_time >= 0)
+            l1_cache.put(key, val, caching_time);
         if(dest_node.equals(local_addr)) {
             l2_cache.put(key, val, caching_time);
+            if(invalidator != null)
+                invalidator.invalidate(key, null);
         }
-        else {
+        else if(tracked)
+            sendPut(dest_node, new MethodCall(PUT_TRACKED, key, val, caching_time, local_addr), false);
+        else
             sendPut(dest_node, key, val, caching_time, false);
+    }
+
+    /**
+     * Adds all key/value pairs of a map to the cache. The keys are grouped by owner, and every owner is sent a single
+     * message with all of its keys
+     * @param map The key/value pairs
+     * @param caching_time Time to live, see {@link #put(Object,Object,long)}
+     */
+    public void putAll(Map<K,V> map, long caching_time) {
+        boolean tracked=invalidator != null && l1_cache != null && caching_time >= 0;
+        Map<Address,Map<K,V>> entries_by_owner=new HashMap<>();
+        for(Map.Entry<K,V> entry: map.entrySet()) {
+            K key=entry.getKey();
+            Address owner=getNode(key);
+            Map<K,V> entries=entries_by_owner.get(owner);
+            if(entries == null)
+                entries_by_owner.put(owner, entries=new HashMap<>());
+            entries.put(key, entry.getValue());
+            if(l1_cache != null && caching_time >= 0)
+                l1_cache.put(key, entry.getValue(), caching_time);
         }
-        if(l1_cache != null && caching_time >= 0)
-            l1_cache.put(key, val, caching_time);
+        for(Map.Entry<Address,Map<K,V>> entry: entries_by_owner.entrySet()) {
+            Address owner=entry.getKey();
+            Map<K,V> entries=entry.getValue();
+            if(owner.equals(local_addr)) {
+                for(Map.Entry<K,V> e: entries.entrySet()) {
+                    l2_cache.put(e.getKey(), e.getValue(), caching_time);
+                    if(invalidator != null)
+                        invalidator.invalidate(e.getKey(), null);
+                }
+            }
+            else
+                sendPut(owner, new MethodCall(PUT_MANY, entries, caching_time, tracked? local_addr : null), false);
+        }
+    }
+
+    public void putAll(Map<K,V> map) {
+        putAll(map, caching_time);
+    }
+
+    /**
+     * Returns the values of the given keys. Keys found in the L1 cache are returned from it; the remaining keys are
+     * grouped by owner, and a GET for all keys of an owner is sent to all owners in parallel
+     * @param keys The keys
+     * @return A map with the keys which were found and their values
+     */
+    public Map<K,V> getAll(Collection<K> keys) {
+        Map<K,V> retval=new HashMap<>(keys.size());
+        Map<Address,List<K>> keys_by_owner=new HashMap<>();
+        for(K key: keys) {
+            if(l1_cache != null) {
+                V val=l1_cache.get(key);
+                if(val != null) {
+                    num_l1_hits.incrementAndGet();
+                    retval.put(key, val);
+                    continue;
+                }
+            }
+            Address owner=getNode(key);
+            List<K> list=keys_by_owner.get(owner);
+            if(list == null)
+                keys_by_owner.put(owner, list=new ArrayList<>());
+            list.add(key);
+        }
+        if(keys_by_owner.isEmpty())
+            return retval;
+
+        long seqno=invalidation_seqno.get();
+        Address reader=invalidator != null && l1_cache != null? local_addr : null;
+        Map<Address,Future<Map<K,Cache.Value<V>>>> futures=new HashMap<>(keys_by_owner.size());
+        for(Map.Entry<Address,List<K>> entry: keys_by_owner.entrySet()) {
+            Address owner=entry.getKey();
+            if(owner.equals(local_addr))
+                continue;
+            try {
+                num_remote_gets.incrementAndGet();
+                Future<Map<K,Cache.Value<V>>> future=disp.callRemoteMethodWithFuture(owner,
+                                                                                      new MethodCall(GET_MANY, entry.getValue(), reader),
+                                                                                      new RequestOptions(ResponseMode.GET_FIRST, call_timeout));
+                futures.put(owner, future);
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("_getMany() failed", t);
+            }
+        }
+
+        // while the GETs are in progress, we fetch the keys we own ourselves
+        List<K> local_keys=keys_by_owner.get(local_addr);
+        if(local_keys != null)
+            addValues(retval, _getMany(local_keys, null), seqno);
+
+        for(Map.Entry<Address,Future<Map<K,Cache.Value<V>>>> entry: futures.entrySet()) {
+            try {
+                addValues(retval, entry.getValue().get(), seqno);
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("_getMany() from " + entry.getKey() + " failed", t);
+            }
+        }
+        return retval;
     }
 
     @ManagedOperation
@@ -280,6 +490,7 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         if(l1_cache != null) {
             V val=l1_cache.get(key);
             if(val != null) {
+                num_l1_hits.incrementAndGet();
                 if(log.isTraceEnabled())
                     log.trace("returned value " + val + " for " + key + " from L1 cache");
                 return val;
@@ -289,19 +500,22 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         Cache.Value<V> val;
         try {
             Address dest_node=getNode(key);
+            long seqno=invalidation_seqno.get();
             // if we are the destination, don't invoke an RPC but return the item from our L2 cache directly !
             if(dest_node.equals(local_addr)) {
                 val=l2_cache.getEntry(key);
             }
             else {
-                val=(Cache.Value<V>)disp.callRemoteMethod(dest_node,
-                                                          new MethodCall(GET, key),
+                MethodCall call=invalidator != null && l1_cache != null? new MethodCall(GET_TRACKED, key, local_addr)
+                  : new MethodCall(GET, key);
+                num_remote_gets.incrementAndGet();
+                val=(Cache.Value<V>)disp.callRemoteMethod(dest_node, call,
                                                           new RequestOptions(ResponseMode.GET_FIRST,
                                                           call_timeout));
             }
             if(val != null) {
                 V retval=val.getValue();
-                if(l1_cache != null && val.getTimeout() >= 0)
+                if(l1_cache != null && val.getTimeout() >= 0 && seqno == invalidation_seqno.get())
                     l1_cache.put(key, retval, val.getTimeout());
                 return retval;
             }
@@ -321,6 +535,8 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         try {
             if(dest_node.equals(local_addr)) {
                 l2_cache.remove(key);
+                if(invalidator != null)
+                    invalidator.invalidate(key, null);
             }
             else {
                 disp.callRemoteMethod(dest_node, new MethodCall(REMOVE, key), new RequestOptions(ResponseMode.GET_NONE, call_timeout));
@@ -336,9 +552,21 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     
 
     public V _put(K key, V val, long caching_time) {
+        return _put(key, val, caching_time, null);
+    }
+
+    /** Puts the key into the L2 cache and invalidates the L1 copies of all members except writer */
+    public V _put(K key, V val, long caching_time, Address writer) {
         if(log.isTraceEnabled())
             log.trace("_put(" + key + ", " + val + ", " + caching_time + ")");
-        return l2_cache.put(key, val, caching_time);
+        V retval=l2_cache.put(key, val, caching_time);
+        if(invalidator != null) {
+            invalidateLocally(key);
+            invalidator.invalidate(key, writer);
+            if(writer != null)
+                invalidator.addHolder(key, writer);
+        }
+        return retval;
     }
 
     public Cache.Value<V> _get(K key) {
@@ -347,10 +575,52 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         return l2_cache.getEntry(key);
     }
 
+    /** Returns the value of key and registers reader as holder of an L1 copy */
+    public Cache.Value<V> _get(K key, Address reader) {
+        if(log.isTraceEnabled())
+            log.trace("_get(" + key + ", " + reader + ")");
+        // register the reader before reading: a write after the read will invalidate the reader's copy
+        if(invalidator != null && reader != null)
+            invalidator.addHolder(key, reader);
+        return l2_cache.getEntry(key);
+    }
+
     public V _remove(K key) {
         if(log.isTraceEnabled())
             log.trace("_remove(" + key + ")");
-        return l2_cache.remove(key);
+        V retval=l2_cache.remove(key);
+        if(invalidator != null) {
+            invalidateLocally(key);
+            invalidator.invalidate(key, null);
+        }
+        return retval;
+    }
+
+    public void _putMany(Map<K,V> map, long caching_time, Address writer) {
+        for(Map.Entry<K,V> entry: map.entrySet())
+            _put(entry.getKey(), entry.getValue(), caching_time, writer);
+    }
+
+    /** Returns the keys which were found and their values. If reader is non-null, it's registered as holder of L1 copies */
+    public Map<K,Cache.Value<V>> _getMany(Collection<K> keys, Address reader) {
+        Map<K,Cache.Value<V>> retval=new HashMap<>(keys.size());
+        for(K key: keys) {
+            Cache.Value<V> val=reader != null? _get(key, reader) : _get(key);
+            if(val != null)
+                retval.put(key, val);
+        }
+        return retval;
+    }
+
+    /** Removes keys (which were modified by their owner) from the L1 cache */
+    public void _invalidate(Collection<K> keys) {
+        if(log.isTraceEnabled())
+            log.trace("_invalidate(" + keys + ")");
+        invalidation_seqno.incrementAndGet();
+        num_invalidations_received.addAndGet(keys.size());
+        if(l1_cache != null)
+            for(K key: keys)
+                l1_cache.remove(key);
     }
 
 
@@ -364,6 +634,15 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             l.viewAccepted(new_view);
         }
 
+        // keys may have new owners which don't know about our L1 copies; members which left release their index
+        if(invalidator != null) {
+            invalidation_seqno.incrementAndGet();
+            invalidator.retainAll(new_view.getMembers());
+            invalidator.clear();
+            if(l1_cache != null)
+                l1_cache.clear();
+        }
+
         if(migrate_data) {
             migrateData();
         }
@@ -399,9 +678,24 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     }
 
 
+    /** Moves the keys which are not owned by us anymore to their new owners */
     private void migrateData() {
+        ConsistentHashRing ring=null;
+        BitSet lost=null; // the segments we owned in the previous view, but don't own anymore
+        if(hash_function instanceof VirtualNodeHashFunction) {
+            VirtualNodeHashFunction<K> func=(VirtualNodeHashFunction<K>)hash_function;
+            ConsistentHashRing prev=func.previousRing();
+            ring=func.ring();
+            if(prev != null && ring != null && local_addr != null) {
+                lost=ring.segmentsLostBy(local_addr, prev);
+                if(lost.isEmpty())
+                    return;
+            }
+        }
         for(Map.Entry<K,Cache.Value<V>> entry: l2_cache.entrySet()) {
             K key=entry.getKey();
+            if(lost != null && !lost.get(ring.segment(key)))
+                continue;
             Address node=getNode(key);
             if(!node.equals(local_addr)) {
                 Cache.Value<V> val=entry.getValue();
@@ -414,10 +708,13 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     }
 
     private void sendPut(Address dest, K key, V val, long caching_time, boolean synchronous) {
+        sendPut(dest, new MethodCall(PUT, key, val, caching_time), synchronous);
+    }
+
+    private void sendPut(Address dest, MethodCall call, boolean synchronous) {
         try {
             ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
-            disp.callRemoteMethod(dest, new MethodCall(PUT, key, val, caching_time),
-                                  new RequestOptions(mode, call_timeout));
+            disp.callRemoteMethod(dest, call, new RequestOptions(mode, call_timeout));
         }
         catch(Throwable t) {
             if(log.isWarnEnabled())
@@ -425,11 +722,88 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         }
     }
 
+    /** Adds fetched values to result, and to the L1 cache if no invalidation was received since seqno was read */
+    private void addValues(Map<K,V> result, Map<K,Cache.Value<V>> values, long seqno) {
+        if(values == null)
+            return;
+        boolean cache=l1_cache != null && seqno == invalidation_seqno.get();
+        for(Map.Entry<K,Cache.Value<V>> entry: values.entrySet()) {
+            Cache.Value<V> val=entry.getValue();
+            result.put(entry.getKey(), val.getValue());
+            if(cache && val.getTimeout() >= 0)
+                l1_cache.put(entry.getKey(), val.getValue(), val.getTimeout());
+        }
+    }
+
+    /** Removes a key modified by a different member from our L1 cache */
+    private void invalidateLocally(K key) {
+        if(l1_cache != null) {
+            invalidation_seqno.incrementAndGet();
+            l1_cache.remove(key);
+        }
+    }
+
     private Address getNode(K key) {
         return hash_function.hash(key, null);
     }
 
 
+    /**
+     * Hash function based on a {@link ConsistentHashRing} with virtual nodes, which is rebuilt on every view change.
+     * Spreads keys evenly across the members, and only moves the keys of the segments whose owner changed.
+     * <p/>
+     * Not used by default: to use it, call {@link #setHashFunction(HashFunction)} on <em>all</em> members, as it maps
+     * keys to different members than {@link ConsistentHashFunction} (the default)
+     */
+    public static class VirtualNodeHashFunction<K> implements MembershipListener, HashFunction<K> {
+        protected final int                 num_virtual_nodes, num_segments;
+        protected volatile ConsistentHashRing ring, prev_ring;
+        /** Ring for a membership passed to {@link #hash(Object,java.util.List)} which differs from the current view */
+        protected volatile ConsistentHashRing tmp_ring;
+
+        public VirtualNodeHashFunction() {
+            this(ConsistentHashRing.DEFAULT_VIRTUAL_NODES, ConsistentHashRing.DEFAULT_SEGMENTS);
+        }
+
+        public VirtualNodeHashFunction(int num_virtual_nodes, int num_segments) {
+            this.num_virtual_nodes=num_virtual_nodes;
+            this.num_segments=num_segments;
+        }
+
+        /** The ring of the current view */
+        public ConsistentHashRing ring()         {return ring;}
+
+        /** The ring of the previous view */
+        public ConsistentHashRing previousRing() {return prev_ring;}
+
+        public Address hash(K key, List<Address> members) {
+            ConsistentHashRing r=ring;
+            if(members != null && !members.isEmpty() && (r == null || !r.hasMembers(members))) {
+                r=tmp_ring;
+                if(r == null || !r.hasMembers(members))
+                    tmp_ring=r=new ConsistentHashRing(members, num_virtual_nodes, num_segments);
+            }
+            return r != null? r.owner(key) : null;
+        }
+
+        public void viewAccepted(View new_view) {
+            prev_ring=ring;
+            ring=new ConsistentHashRing(new_view.getMembers(), num_virtual_nodes, num_segments);
+            if(log.isTraceEnabled())
+                log.trace("segments: " + ring);
+        }
+
+        public void suspect(Address suspected_mbr) {
+        }
+
+        public void block() {
+        }
+
+        public void unblock() {
+        }
+    }
+
+
     public static class ConsistentHashFunction<K> implements MembershipListener, HashFunction<K> {
         private SortedMap<Short,Address> nodes=new TreeMap<>();
         private final static int HASH_SPACE=2048; // must be > max number of nodes in a cluster, and a power of 2
@@ -550,7 +924,7 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             if(buf == null)
                 return null;
 
-            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf));
+            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf, offset, length));
             byte type=in.readByte();
             if(type == NULL)
                 return null;
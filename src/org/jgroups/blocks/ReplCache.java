@@ -14,6 +14,7 @@ import java.io.*;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -31,6 +32,11 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     /** The local bounded cache, to speed up access to frequently accessed entries. Can be disabled or enabled */
     private Cache<K,V> l1_cache=null;
 
+    /** Incremented whenever a key is removed from the L1 cache because it was modified. A value fetched from other
+     * members is only added to the L1 cache if no key was removed while it was fetched, or else we might cache a value
+     * which was modified during the GET */
+    private final AtomicLong l1_invalidation_seqno=new AtomicLong();
+
     private static final Log log=LogFactory.getLog(ReplCache.class);
     private JChannel ch=null;
     private Address local_addr=null;
@@ -48,6 +54,15 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     @ManagedAttribute
     private short default_replication_count=1; // no replication by default
 
+    /** Max number of bytes of direct memory used to store the values of the L2 cache; 0 stores values on the heap */
+    @ManagedAttribute(description="Max number of bytes of direct memory for the values of the L2 cache (0: on-heap)")
+    private long off_heap_size=0;
+
+    @ManagedAttribute(description="Size of the slabs of direct memory for the values of the L2 cache")
+    private int off_heap_slab_size=1 << 20;
+
+    private OffHeapStore off_heap_store;
+
     private HashFunction<K> hash_function=null;
 
     private HashFunctionFactory<K> hash_function_factory=new HashFunctionFactory<K>() {
@@ -71,6 +86,8 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     private static final short GET         = 3;
     private static final short REMOVE      = 4;
     private static final short REMOVE_MANY = 5;
+    private static final short PUT_MANY    = 6;
+    private static final short GET_MANY    = 7;
 
     protected static final Map<Short, Method> methods=Util.createConcurrentMap(8);
     private TimeScheduler timer;
@@ -94,6 +111,8 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                                                        Object.class));
             methods.put(REMOVE, ReplCache.class.getMethod("_remove", Object.class));
             methods.put(REMOVE_MANY, ReplCache.class.getMethod("_removeMany", Set.class));
+            methods.put(PUT_MANY, ReplCache.class.getMethod("_putMany", Map.class, short.class, long.class));
+            methods.put(GET_MANY, ReplCache.class.getMethod("_getMany", Collection.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -202,6 +221,41 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         this.default_replication_count=default_replication_count;
     }
 
+    public long getOffHeapSize() {
+        return off_heap_size;
+    }
+
+    /**
+     * Stores the values of the L2 cache (serialized) in up to off_heap_size bytes of direct memory, instead of on the
+     * heap. The L2 cache is then bounded by the off-heap memory, and evicts entries when it is full. Needs to be set
+     * before {@link #start()}
+     */
+    public void setOffHeapSize(long off_heap_size) {
+        this.off_heap_size=off_heap_size;
+    }
+
+    public int getOffHeapSlabSize() {
+        return off_heap_slab_size;
+    }
+
+    public void setOffHeapSlabSize(int off_heap_slab_size) {
+        this.off_heap_slab_size=off_heap_slab_size;
+    }
+
+    public OffHeapStore getOffHeapStore() {
+        return off_heap_store;
+    }
+
+    @ManagedAttribute(description="Number of bytes of direct memory used by values of the L2 cache")
+    public long getOffHeapUsed() {
+        return off_heap_store != null? off_heap_store.usedBytes() : 0;
+    }
+
+    @ManagedAttribute(description="Number of bytes of direct memory allocated for values of the L2 cache")
+    public long getOffHeapAllocated() {
+        return off_heap_store != null? off_heap_store.allocatedBytes() : 0;
+    }
+
     public HashFunction getHashFunction() {
         return hash_function;
     }
@@ -263,6 +317,8 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         }
         if(hash_function == null)
             hash_function=new ConsistentHashFunction<>();
+        if(off_heap_size > 0)
+            startOffHeapStore();
 
         ch=new JChannel(props);
         disp=new RpcDispatcher(ch, null, this, this);
@@ -318,6 +374,12 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         }
         l2_cache.removeChangeListener(this);
         l2_cache.stop();
+        if(off_heap_store != null) {
+            l2_cache.clear();
+            l2_cache.setRemovalListener(null);
+            off_heap_store.clear();
+            off_heap_store=null;
+        }
         disp.stop();
         ch.close();
     }
@@ -385,6 +447,98 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         put(key, val, default_replication_count, caching_time);
     }
 
+    /**
+     * Places all key/value pairs of a map into the cluster, with a single multicast. Every node only stores the keys
+     * it hosts according to the consistent hash
+     * @param map The key/value pairs, keys and values need to be serializable
+     * @param repl_count Number of replicas, see {@link #put(Object,Object,short,long,boolean)}
+     * @param timeout Expiration time, see {@link #put(Object,Object,short,long,boolean)}
+     * @param synchronous Whether or not to block until all cluster nodes have applied the changes
+     */
+    public void putAll(Map<K,V> map, short repl_count, long timeout, boolean synchronous) {
+        if(repl_count == 0) {
+            if(log.isWarnEnabled())
+                log.warn("repl_count of 0 is invalid, data will not be stored in the cluster");
+            return;
+        }
+        if(map.isEmpty())
+            return;
+        try {
+            ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
+            disp.callRemoteMethods(null, new MethodCall(PUT_MANY, new HashMap<>(map), repl_count, timeout),
+                                   new RequestOptions(mode, call_timeout));
+        }
+        catch(Throwable t) {
+            if(log.isWarnEnabled())
+                log.warn("putAll() failed", t);
+        }
+        if(l1_cache != null && timeout >= 0)
+            for(Map.Entry<K,V> entry: map.entrySet())
+                l1_cache.put(entry.getKey(), entry.getValue(), timeout);
+    }
+
+    public void putAll(Map<K,V> map) {
+        putAll(map, default_replication_count, caching_time, false);
+    }
+
+    /**
+     * Returns the values of the given keys. Keys are looked up in the L1 and in the local cache first; all remaining
+     * keys are fetched with a single cluster wide GET
+     * @param keys The keys, have to be serializable
+     * @return A map with the keys which were found and their values
+     */
+    public Map<K,V> getAll(Collection<K> keys) {
+        Map<K,V> retval=new HashMap<>(keys.size());
+        List<K> missing=new ArrayList<>();
+        for(K key: keys) {
+            if(l1_cache != null) {
+                V val=l1_cache.get(key);
+                if(val != null) {
+                    retval.put(key, val);
+                    continue;
+                }
+            }
+            Cache.Value<Value<V>> val=l2_cache.getEntry(key);
+            V real_value=val != null && val.getValue() != null? val.getValue().getVal() : null;
+            if(real_value != null) {
+                if(l1_cache != null && val.getTimeout() >= 0)
+                    l1_cache.put(key, real_value, val.getTimeout());
+                retval.put(key, real_value);
+            }
+            else
+                missing.add(key);
+        }
+        if(missing.isEmpty())
+            return retval;
+
+        long seqno=l1_invalidation_seqno.get();
+        try {
+            RspList<Map<K,Cache.Value<Value<V>>>> rsps=disp.callRemoteMethods(null,
+                                                                              new MethodCall(GET_MANY, missing),
+                                                                              new RequestOptions(ResponseMode.GET_ALL, call_timeout));
+            boolean cache=l1_cache != null && seqno == l1_invalidation_seqno.get();
+            for(Rsp<Map<K,Cache.Value<Value<V>>>> rsp: rsps.values()) {
+                if(!rsp.wasReceived() || rsp.hasException() || rsp.getValue() == null)
+                    continue;
+                for(Map.Entry<K,Cache.Value<Value<V>>> entry: rsp.getValue().entrySet()) {
+                    K key=entry.getKey();
+                    Cache.Value<Value<V>> val=entry.getValue();
+                    V real_value=val.getValue() != null? val.getValue().getVal() : null;
+                    if(real_value == null || retval.containsKey(key))
+                        continue;
+                    retval.put(key, real_value);
+                    if(cache && val.getTimeout() >= 0)
+                        l1_cache.put(key, real_value, val.getTimeout());
+                }
+            }
+        }
+        catch(Throwable t) {
+            if(log.isWarnEnabled())
+                log.warn("getAll() failed", t);
+        }
+        return retval;
+    }
+
 
     
     /**
@@ -414,11 +568,12 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                 V real_value=tmp.getVal();
                 if(real_value != null && l1_cache != null && val.getTimeout() >= 0)
                     l1_cache.put(key, real_value, val.getTimeout());
-                return tmp.getVal();
+                return real_value;
             }
         }
 
         // 3. Execute a cluster wide GET
+        long seqno=l1_invalidation_seqno.get();
         try {
             RspList<Object> rsps=disp.callRemoteMethods(null,
                                                 new MethodCall(GET, key),
@@ -432,7 +587,8 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                     tmp=val.getValue();
                     if(tmp != null) {
                         V real_value=tmp.getVal();
-                        if(real_value != null && l1_cache != null && val.getTimeout() >= 0)
+                        if(real_value != null && l1_cache != null && val.getTimeout() >= 0
+                          && seqno == l1_invalidation_seqno.get())
                             l1_cache.put(key, real_value, val.getTimeout());
                         return real_value;
                     }
@@ -530,11 +686,14 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         if(log.isTraceEnabled())
             log.trace("_put(" + key + ", " + val + ", " + repl_count + ", " + timeout + ")");
 
-        Value<V> value=new Value<>(val, repl_count);
+        OffHeapStore store=off_heap_store;
+        Value<V> value=store != null? Value.create(store, val, repl_count) : new Value<>(val, repl_count);
         Value<V> retval=l2_cache.put(key, value, timeout);
 
-        if(l1_cache != null)
+        if(l1_cache != null) {
+            l1_invalidation_seqno.incrementAndGet();
             l1_cache.remove(key);
+        }
 
         notifyChangeListeners();
 
@@ -547,12 +706,30 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         return l2_cache.getEntry(key);
     }
 
+    public void _putMany(Map<K,V> map, short repl_count, long timeout) {
+        for(Map.Entry<K,V> entry: map.entrySet())
+            _put(entry.getKey(), entry.getValue(), repl_count, timeout);
+    }
+
+    /** Returns the keys which are stored locally and their values */
+    public Map<K,Cache.Value<Value<V>>> _getMany(Collection<K> keys) {
+        Map<K,Cache.Value<Value<V>>> retval=new HashMap<>();
+        for(K key: keys) {
+            Cache.Value<Value<V>> val=l2_cache.getEntry(key);
+            if(val != null)
+                retval.put(key, val);
+        }
+        return retval;
+    }
+
     public V _remove(K key) {
         if(log.isTraceEnabled())
             log.trace("_remove(" + key + ")");
         Value<V> retval=l2_cache.remove(key);
-        if(l1_cache != null)
+        if(l1_cache != null) {
+            l1_invalidation_seqno.incrementAndGet();
             l1_cache.remove(key);
+        }
         notifyChangeListeners();
         return retval != null? retval.getVal() : null;
     }
@@ -695,7 +872,23 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                     log.trace("old nodes: " + tmp_old + "\nnew nodes: " + tmp_new);
                 if(tmp_old != null && tmp_new != null && tmp_old.equals(tmp_new))
                     continue;
-                mcastPut(key, real_value, repl_count, val.getTimeout(), false);
+                if(tmp_old == null || tmp_new == null)
+                    mcastPut(key, real_value, repl_count, val.getTimeout(), false);
+                else {
+                    // only the new owners receive the key, from the first old owner which is still a member
+                    Address sender=null;
+                    for(Address old_owner: tmp_old) {
+                        if(new_nodes.contains(old_owner)) {
+                            sender=old_owner;
+                            break;
+                        }
+                    }
+                    if(sender == null || sender.equals(local_addr)) {
+                        for(Address new_owner: tmp_new)
+                            if(!tmp_old.contains(new_owner) && !new_owner.equals(local_addr))
+                                move(new_owner, key, real_value, repl_count, val.getTimeout(), false);
+                    }
+                }
                 if(tmp_new != null && !tmp_new.contains(local_addr)) {
                     _remove(key);
                 }
@@ -731,6 +924,30 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         }
     }
 
+    /**
+     * Creates the off-heap store and bounds the L2 cache by it: the weight of an entry is the direct memory used by
+     * its value. As memory in partially used slabs of the different chunk sizes can't be used for other chunk sizes,
+     * the bound is lower than the store's max size by one slab per chunk size
+     */
+    private void startOffHeapStore() {
+        final OffHeapStore store=new OffHeapStore(off_heap_slab_size, off_heap_size);
+        int num_chunk_sizes=Integer.numberOfTrailingZeros(store.slabSize() / OffHeapStore.MIN_CHUNK_SIZE) + 1;
+        long max_weight=Math.max(off_heap_size - (long)store.slabSize() * num_chunk_sizes, off_heap_size / 2);
+        l2_cache.setWeigher(new Cache.Weigher<K,Value<V>>() {
+            public int weigh(K key, Value<V> value) {
+                return value.ref != null? store.chunkSize(value.ref.length()) : value.serializedSize();
+            }
+        });
+        l2_cache.setRemovalListener(new Cache.RemovalListener<K,Value<V>>() {
+            public void removed(K key, Value<V> value) {
+                if(value.ref != null)
+                    store.free(value.ref);
+            }
+        });
+        l2_cache.setMaxWeight(max_weight);
+        off_heap_store=store;
+    }
+
     private void mcastPut(K key, V val, short repl_count, long caching_time, boolean synchronous) {
         try {
             ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
@@ -772,6 +989,41 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         void changed();
     }
     
+    /**
+     * Hash function based on a {@link ConsistentHashRing} with virtual nodes. The owners of a key are the primary owner
+     * of its segment followed by the next replication_count-1 different members on the ring, so a view change only
+     * changes the owners of the segments adjacent to the positions of the joined or left members.
+     * <p/>
+     * Not used by default: to use it, set a {@link HashFunctionFactory} creating it on <em>all</em> members, as it
+     * maps keys to different members than {@link ConsistentHashFunction} (the default)
+     */
+    public static class VirtualNodeHashFunction<K> implements HashFunction<K> {
+        protected final int                   num_virtual_nodes, num_segments;
+        protected volatile ConsistentHashRing ring;
+
+        public VirtualNodeHashFunction() {
+            this(ConsistentHashRing.DEFAULT_VIRTUAL_NODES, ConsistentHashRing.DEFAULT_SEGMENTS);
+        }
+
+        public VirtualNodeHashFunction(int num_virtual_nodes, int num_segments) {
+            this.num_virtual_nodes=num_virtual_nodes;
+            this.num_segments=num_segments;
+        }
+
+        public ConsistentHashRing ring() {return ring;}
+
+        public List<Address> hash(K key, short replication_count) {
+            ConsistentHashRing r=ring;
+            return r != null? r.owners(key, replication_count) : new ArrayList<Address>();
+        }
+
+        public void installNodes(List<Address> nodes) {
+            ring=new ConsistentHashRing(nodes, num_virtual_nodes, num_segments);
+            if(log.isTraceEnabled())
+                log.trace("segments: " + ring);
+        }
+    }
+    
     public static class ConsistentHashFunction<K> implements HashFunction<K> {
         private SortedMap<Short,Address> nodes=new TreeMap<>();
         private final static int HASH_SPACE=2048; // must be > max number of nodes in a cluster and a power of 2
@@ -833,10 +1085,29 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
 
 
 
+    /**
+     * The value of an entry and its replication count. The value is either kept as an object, or serialized: values
+     * received from other nodes are deserialized on first access, and values of the L2 cache are kept in an
+     * {@link OffHeapStore} when off-heap storage is enabled (and deserialized on every access). Serialized values are
+     * sent without being deserialized.<p/>
+     * Java serialization uses the same fields and serialVersionUID as before 3.6.5, so persisted values can still be
+     * read. However, the RPCs of ReplCache send values in a new wire format (see {@link #writeTo(java.io.DataOutput)}),
+     * which older versions cannot read, so all members of a cluster need to run 3.6.5 or higher.
+     */
     public static class Value<V> implements Serializable {
-        private final V val;
-        private final short replication_count;
+        private transient V                val;
+        /** The serialized value, if it was received from a different node and not yet deserialized */
+        private transient byte[]           serialized;
+        /** The serialized value in the off-heap store */
+        private transient OffHeapStore.Ref ref;
+        private transient OffHeapStore     store;
+        private transient short            replication_count;
         private static final long serialVersionUID=-2892941069742740027L;
+        /** The fields of Value before 3.6.5, written by {@link #writeObject(java.io.ObjectOutputStream)} */
+        private static final ObjectStreamField[] serialPersistentFields={
+          new ObjectStreamField("val", Object.class),
+          new ObjectStreamField("replication_count", Short.TYPE)
+        };
 
 
         public Value(V val, short replication_count) {
@@ -844,17 +1115,129 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
             this.replication_count=replication_count;
         }
 
-        public V getVal() {
-            return val;
+        protected Value(byte[] serialized, short replication_count) {
+            this.serialized=serialized;
+            this.replication_count=replication_count;
         }
 
+        /**
+         * Creates a value stored in the off-heap store. If the store is full, the serialized value is kept on the
+         * heap instead
+         */
+        public static <V> Value<V> create(OffHeapStore store, V val, short replication_count) {
+            if(val == null)
+                return new Value<>((V)null, replication_count);
+            byte[] buf;
+            try {
+                buf=Util.objectToByteBuffer(val);
+            }
+            catch(Exception e) {
+                throw new IllegalArgumentException("failed serializing " + val, e);
+            }
+            OffHeapStore.Ref ref=store.put(buf);
+            if(ref == null)
+                return new Value<>(buf, replication_count);
+            Value<V> retval=new Value<>((V)null, replication_count);
+            retval.ref=ref;
+            retval.store=store;
+            return retval;
+        }
+
+        /**
+         * Returns the value. Returns null if the value is stored off-heap and was removed from the cache in the
+         * meantime (e.g. by a concurrent put)
+         */
+        @SuppressWarnings("unchecked")
+        public V getVal() {
+            V tmp=val;
+            if(tmp != null)
+                return tmp;
+            byte[] buf=serializedValue();
+            if(buf == null)
+                return null;
+            try {
+                tmp=(V)Util.objectFromByteBuffer(buf);
+            }
+            catch(Exception e) {
+                throw new IllegalStateException("failed deserializing value", e);
+            }
+            if(ref == null) { // off-heap values are not kept on the heap
+                val=tmp;
+                serialized=null;
+            }
+            return tmp;
+        }
 
         public short getReplicationCount() {
             return replication_count;
         }
 
+        /** Whether the value is kept in an off-heap store */
+        public boolean isOffHeap() {
+            return ref != null;
+        }
+
+        /** Writes the replication count and the serialized value */
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeShort(replication_count);
+            byte[] buf=serializedValue();
+            if(buf == null)
+                out.writeInt(-1);
+            else {
+                out.writeInt(buf.length);
+                out.write(buf);
+            }
+        }
+
+        /** Reads a value written by {@link #writeTo(java.io.DataOutput)}. The value is deserialized on first access */
+        public static <V> Value<V> readFrom(DataInput in) throws Exception {
+            short repl_count=in.readShort();
+            int len=in.readInt();
+            if(len < 0)
+                return new Value<>((V)null, repl_count);
+            byte[] buf=new byte[len];
+            in.readFully(buf);
+            return new Value<>(buf, repl_count);
+        }
+
         public String toString() {
-            return val + " (" + replication_count + ")";
+            return getVal() + " (" + replication_count + ")";
+        }
+
+        /** The size of the serialized value if it's kept on the heap */
+        protected int serializedSize() {
+            byte[] tmp=serialized;
+            return tmp != null? tmp.length : 1;
+        }
+
+        /** Returns the serialized value, or null if the value is null or was removed from the off-heap store */
+        protected byte[] serializedValue() {
+            if(ref != null)
+                return store.get(ref);
+            byte[] tmp=serialized;
+            if(tmp != null)
+                return tmp;
+            V v=val;
+            try {
+                return v != null? Util.objectToByteBuffer(v) : null;
+            }
+            catch(Exception e) {
+                throw new IllegalStateException("failed serializing " + v, e);
+            }
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields=out.putFields();
+            fields.put("val", getVal());
+            fields.put("replication_count", replication_count);
+            out.writeFields();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields=in.readFields();
+            val=(V)fields.get("val", null);
+            replication_count=fields.get("replication_count", (short)0);
         }
     }
 
@@ -864,7 +1247,8 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         static final byte OBJ         = 1;
         static final byte METHOD_CALL = 2;
         static final byte VALUE       = 3;
-        
+        static final byte REPL_VALUE  = 4; // a Cache.Value containing a ReplCache.Value
+
 
         public Buffer objectToBuffer(Object obj) throws Exception {
             ByteArrayOutputStream out_stream=new ByteArrayOutputStream(35);
@@ -891,6 +1275,13 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                         }
                     }
                 }
+                else if(obj instanceof Cache.Value && ((Cache.Value)obj).getValue() instanceof Value) {
+                    // the serialized value is copied into the buffer, without deserializing it
+                    Cache.Value<?> value=(Cache.Value<?>)obj;
+                    out.writeByte(REPL_VALUE);
+                    out.writeLong(value.getTimeout());
+                    ((Value<?>)value.getValue()).writeTo(out);
+                }
                 else if(obj instanceof Cache.Value) {
                     Cache.Value value=(Cache.Value)obj;
                     out.writeByte(VALUE);
@@ -932,6 +1323,10 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                 Object obj=Util.objectFromStream(in);
                 return new Cache.Value(obj, expiration_time);
             }
+            else if(type == REPL_VALUE) {
+                long expiration_time=in.readLong();
+                return new Cache.Value<Value<Object>>(Value.readFrom(in), expiration_time);
+            }
             else
                 return Util.objectFromStream(in);
         }
@@ -1,16 +1,21 @@
 package org.jgroups.blocks;
 
 import org.jgroups.*;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.StateChunkReader;
+import org.jgroups.util.StateChunkWriter;
 import org.jgroups.util.Util;
 
 import java.io.*;
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of a {@link java.util.concurrent.ConcurrentMap} with replication of the contents across a cluster.
@@ -22,6 +27,44 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * A <code>ReplicatedHashMap</code> allows one to implement a distributed naming service in just a couple of lines.
  * <p>
  * An instance of this class will contact an existing member of the group to fetch its initial state.
+ * <p/>
+ * <h3>Batching</h3>
+ * When batching is enabled ({@link #setBatchInterval(long)}), put(), putAll(), remove(key) and clear() are not
+ * replicated right away, but buffered for at most batch_interval ms, or until max_batch_size keys are buffered. Multiple
+ * mutations of the same key within a batch collapse into the last one. A batch is replicated in a single RPC, which
+ * applies all of its mutations in one go. The following guarantees hold:
+ * <ul>
+ *     <li>Mutations issued by the same member are applied by all members in issue order. Mutations of the same key
+ *         within a batch are collapsed, so intermediate values are never seen by other members (nor by
+ *         notifications)</li>
+ *     <li>A mutation becomes visible (at all members including the issuer) when its batch has been delivered, i.e.
+ *         after at most batch_interval ms plus the time to replicate the batch. The return values of put() and
+ *         remove() take the issuer's pending mutations into account</li>
+ *     <li>Conditional mutations (putIfAbsent(), replace(), remove(key,value)) are not batched: they first send the
+ *         pending batch, then replicate themselves, so their order relative to batched mutations is preserved. With
+ *         blocking updates, the pending batch has been applied locally when their return value is computed</li>
+ *     <li>There is no ordering between mutations of different members (as without batching)</li>
+ *     <li>With blocking updates, the RPC sending a batch blocks until all members have applied it; but the mutations
+ *         themselves return immediately. {@link #flush()} sends the pending batch right away. Batches are sent by a
+ *         dedicated thread when batch_interval elapses</li>
+ * </ul>
+ * Batches are replicated with a method (_applyBatch()) which members running a version prior to 3.6.5 don't know, so
+ * batching must only be enabled when all members run 3.6.5 or later.
+ * <h3>State transfer</h3>
+ * The state is streamed in chunks of at most state_chunk_size bytes ({@link #setStateChunkSize(int)}): the state
+ * provider iterates over its (live) map without copying or locking it, and the joiner applies every chunk as it
+ * arrives, so neither side needs to hold the entire state in memory. This works best with a streaming state transfer
+ * protocol (STATE or STATE_SOCK).
+ * <p/>
+ * Mutations received by the joiner while the state is being transferred are not applied right away, but appended to a
+ * catch-up log. When the state has been applied, the log is replayed in order, and subsequent mutations are applied
+ * directly again. As the state provider doesn't block updates during the transfer, a mutation may be contained in
+ * the state and also be replayed; this is harmless for put(), putAll(), remove() and clear(), which overwrite the
+ * transferred value.
+ * <p/>
+ * Members running a version prior to 3.6.5 cannot read the chunked state. During a rolling upgrade, set
+ * {@link #setLegacyStateFormat(boolean)} on the upgraded members, so that they send the state in the old format.
+ * The state received from an older member is recognized and read in the old format.
  *
  * @author Bela Ban
  */
@@ -48,6 +91,7 @@ public class ReplicatedHashMap<K, V> extends
     private static final short REPLACE_IF_EXISTS=6;
     private static final short REPLACE_IF_EQUALS=7;
     private static final short CLEAR=8;
+    private static final short BATCH=9;
 
     protected static Map<Short,Method> methods;
 
@@ -73,6 +117,7 @@ public class ReplicatedHashMap<K, V> extends
                                                                              Object.class,
                                                                              Object.class));
             methods.put(CLEAR, ReplicatedHashMap.class.getMethod("_clear"));
+            methods.put(BATCH, ReplicatedHashMap.class.getMethod("_applyBatch", boolean.class, Object[].class, Object[].class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -93,6 +138,47 @@ public class ReplicatedHashMap<K, V> extends
     /** wrapped map instance */
     protected ConcurrentMap<K,V> map=null;
 
+    /** Max time (ms) mutations are buffered before they're replicated as a batch. 0 disables batching */
+    protected volatile long      batch_interval;
+
+    /** Max number of keys in a batch; when reached, the batch is sent right away */
+    protected int                max_batch_size=1000;
+
+    /** Buffered mutations (keys are Ks, a value of REMOVED is a removal) in order of (first) modification */
+    @GuardedBy("batch_lock")
+    protected Map<Object,Object> batch=new LinkedHashMap<>();
+
+    /** Whether clear() was called after the last batch was sent: receivers clear their map before applying the batch */
+    @GuardedBy("batch_lock")
+    protected boolean            batch_clear;
+
+    protected final Lock         batch_lock=new ReentrantLock();
+
+    /** Signalled when a mutation is added to an empty batch */
+    protected final Condition    not_empty=batch_lock.newCondition();
+
+    /** Sends batches when batch_interval elapsed; started on the first batched mutation */
+    protected volatile Thread    flusher;
+
+    /** Serializes sending of batches and non-batched mutations, so that they're sent in issue order */
+    protected final Lock         send_lock=new ReentrantLock();
+
+    protected final AtomicLong   num_batches=new AtomicLong(), num_batched=new AtomicLong(), num_collapsed=new AtomicLong();
+
+    protected static final Object REMOVED=new Object();
+
+    /** Max size (bytes) of a chunk of state */
+    protected int                state_chunk_size=64 * 1024;
+
+    /** Whether to send the state in the format of versions prior to 3.6.5 (a single serialized HashMap) */
+    protected boolean            legacy_state_format;
+
+    /** Mutations received while the state is transferred; replayed when done. Null when no state is transferred */
+    @GuardedBy("catch_up_lock")
+    protected List<MethodCall>   catch_up_log;
+
+    protected final Lock         catch_up_lock=new ReentrantLock();
+
 
 
 
@@ -122,7 +208,14 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     protected final void init() {
-        disp=new RpcDispatcher(channel, this, this, this);
+        disp=new RpcDispatcher(channel, this, this, this) {
+            public Object handle(Message req) throws Exception {
+                MethodCall call=methodCall(req);
+                if(call == null || addToCatchUpLog(call))
+                    return null;
+                return call.invoke(server_obj);
+            }
+        };
         disp.setMethodLookup(new MethodLookup() {
             public Method findMethod(short id) {
                 return methods.get(id);
@@ -160,12 +253,82 @@ public class ReplicatedHashMap<K, V> extends
         call_options.setTimeout(timeout);
     }
 
+    public boolean isBatching() {
+        return batch_interval > 0;
+    }
+
+    public long getBatchInterval() {
+        return batch_interval;
+    }
+
+    /**
+     * Sets the max time (in milliseconds) mutations are buffered before they're replicated as a batch. 0 disables
+     * batching (the default), and sends the mutations buffered so far
+     */
+    public void setBatchInterval(long batch_interval) {
+        this.batch_interval=batch_interval;
+        if(batch_interval <= 0)
+            flush();
+    }
+
+    public int getMaxBatchSize() {
+        return max_batch_size;
+    }
+
+    /** Sets the max number of (distinct) keys of a batch */
+    public void setMaxBatchSize(int max_batch_size) {
+        this.max_batch_size=max_batch_size;
+    }
+
+    /** The number of batches sent */
+    public long getNumBatches() {
+        return num_batches.get();
+    }
+
+    /** The number of mutations that were replicated as part of a batch */
+    public long getNumBatchedMutations() {
+        return num_batched.get();
+    }
+
+    /** The number of mutations which were overwritten by later mutations of the same key in the same batch */
+    public long getNumCollapsedMutations() {
+        return num_collapsed.get();
+    }
+
+    public int getStateChunkSize() {
+        return state_chunk_size;
+    }
+
+    /** Sets the max size (in bytes) of the chunks in which the state is sent to a joiner */
+    public void setStateChunkSize(int state_chunk_size) {
+        this.state_chunk_size=state_chunk_size;
+    }
+
+    public boolean isLegacyStateFormat() {
+        return legacy_state_format;
+    }
+
+    /**
+     * Sends the state as a single serialized HashMap (the format of versions prior to 3.6.5) rather than in chunks.
+     * Needs to be set while members running an older version may join, as they can only read the old format. The
+     * received state is read in either format
+     */
+    public void setLegacyStateFormat(boolean legacy_state_format) {
+        this.legacy_state_format=legacy_state_format;
+    }
+
     /**
-     * Fetches the state
+     * Fetches the state. Mutations received until the state has been applied are logged and replayed afterwards
      * @param state_timeout
      */
     public final void start(long state_timeout) throws Exception {
-        channel.getState(null, state_timeout);
+        startCatchUp();
+        try {
+            channel.getState(null, state_timeout);
+        }
+        finally {
+            endCatchUp();
+        }
     }
 
     public Address getLocalAddress() {
@@ -192,6 +355,8 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public void stop() {
+        stopFlusher();
+        flush();
         if(disp != null) {
             disp.stop();
             disp=null;
@@ -214,6 +379,8 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key or value is null
      */
     public V put(K key, V value) {
+        if(isBatching())
+            return addToBatch(key, value);
         V prev_val=get(key);
         try {
             MethodCall call=new MethodCall(PUT, key, value);
@@ -234,11 +401,12 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key or value is null
      */
     public V putIfAbsent(K key, V value) {
+        flushIfBatching();
         V prev_val=get(key);
 
         try {
             MethodCall call=new MethodCall(PUT_IF_ABSENT, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(call);
         }
         catch(Exception e) {
             throw new RuntimeException("putIfAbsent(" + key + ", " + value + ") failed", e);
@@ -255,6 +423,11 @@ public class ReplicatedHashMap<K, V> extends
      *                mappings to be stored in this map
      */
     public void putAll(Map<? extends K,? extends V> m) {
+        if(isBatching()) {
+            for(Map.Entry<? extends K,? extends V> entry: m.entrySet())
+                addToBatch(entry.getKey(), entry.getValue());
+            return;
+        }
         try {
             MethodCall call=new MethodCall(PUT_ALL, m);
             disp.callRemoteMethods(null, call, call_options);
@@ -268,6 +441,19 @@ public class ReplicatedHashMap<K, V> extends
      * Removes all of the mappings from this map.
      */
     public void clear() {
+        if(isBatching()) {
+            batch_lock.lock();
+            try {
+                num_collapsed.addAndGet(batch.size());
+                batch.clear();
+                batch_clear=true;
+                scheduleFlush();
+            }
+            finally {
+                batch_lock.unlock();
+            }
+            return;
+        }
         try {
             MethodCall call=new MethodCall(CLEAR);
             disp.callRemoteMethods(null, call, call_options);
@@ -289,6 +475,8 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key is null
      */
     public V remove(Object key) {
+        if(isBatching())
+            return addToBatch(key, REMOVED);
         V retval=get(key);
         try {
             MethodCall call=new MethodCall(REMOVE, key);
@@ -307,12 +495,13 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key is null
      */
     public boolean remove(Object key, Object value) {
+        flushIfBatching();
         Object val=get(key);
         boolean removed=val != null && value != null && val.equals(value);
 
         try {
             MethodCall call=new MethodCall(REMOVE_IF_EQUALS, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(call);
         }
         catch(Exception e) {
             throw new RuntimeException("remove(" + key + ", " + value + ") failed", e);
@@ -327,12 +516,13 @@ public class ReplicatedHashMap<K, V> extends
      *                 if any of the arguments are null
      */
     public boolean replace(K key, V oldValue, V newValue) {
+        flushIfBatching();
         Object val=get(key);
         boolean replaced=val != null && oldValue != null && val.equals(oldValue);
 
         try {
             MethodCall call=new MethodCall(REPLACE_IF_EQUALS, key, oldValue, newValue);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(call);
         }
         catch(Exception e) {
             throw new RuntimeException("replace(" + key
@@ -354,11 +544,12 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key or value is null
      */
     public V replace(K key, V value) {
+        flushIfBatching();
         V retval=get(key);
 
         try {
             MethodCall call=new MethodCall(REPLACE_IF_EXISTS, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(call);
         }
         catch(Exception e) {
             throw new RuntimeException("replace(" + key + ", " + value + ") failed", e);
@@ -366,6 +557,165 @@ public class ReplicatedHashMap<K, V> extends
         return retval;
     }
 
+    /**
+     * Sends the pending batch (if any) right away. With blocking updates, this method returns when all members
+     * have applied the batch
+     */
+    public void flush() {
+        send_lock.lock();
+        try {
+            sendBatch();
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the pending batch before a conditional mutation computes its return value from the local map, so that
+     * the value includes the pending mutations of this member
+     */
+    protected void flushIfBatching() {
+        if(isBatching())
+            flush();
+    }
+
+
+    /** Sends a non-batched mutation; the pending batch is sent first to preserve the order of mutations */
+    protected void invoke(MethodCall call) throws Exception {
+        if(!isBatching()) {
+            disp.callRemoteMethods(null, call, call_options);
+            return;
+        }
+        send_lock.lock();
+        try {
+            sendBatch();
+            disp.callRemoteMethods(null, call, call_options);
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a mutation to the pending batch, collapsing it with a pending mutation of the same key
+     * @return The previous value of key, taking pending mutations into account
+     */
+    @SuppressWarnings("unchecked")
+    protected V addToBatch(Object key, Object value) {
+        if(key == null || value == null)
+            throw new NullPointerException("key and value must not be null");
+        Object prev;
+        boolean send;
+        batch_lock.lock();
+        try {
+            prev=batch.put(key, value);
+            if(prev != null)
+                num_collapsed.incrementAndGet();
+            else
+                prev=batch_clear? null : map.get(key);
+            send=batch.size() >= max_batch_size;
+            if(!send)
+                scheduleFlush();
+        }
+        finally {
+            batch_lock.unlock();
+        }
+        if(send)
+            flush();
+        return prev == REMOVED? null : (V)prev;
+    }
+
+    /** Wakes up the flusher (starting it if needed), which sends the batch when batch_interval has elapsed */
+    @GuardedBy("batch_lock")
+    protected void scheduleFlush() {
+        if(flusher == null) {
+            flusher=channel.getProtocolStack().getTransport().getThreadFactory()
+              .newThread(new Runnable() {
+                  public void run() {
+                      runFlusher();
+                  }
+              }, "ReplicatedHashMap-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        not_empty.signal();
+    }
+
+    /**
+     * Loop of the flusher thread: waits until mutations have been added to the batch, then sends the batch after
+     * batch_interval ms. Batches are sent by this dedicated thread rather than a timer thread, as sending may block
+     * (with blocking updates) and would delay other timer tasks
+     */
+    protected void runFlusher() {
+        final Thread current=Thread.currentThread();
+        while(flusher == current) {
+            batch_lock.lock();
+            try {
+                while(batch.isEmpty() && !batch_clear && flusher == current)
+                    not_empty.await();
+            }
+            catch(InterruptedException e) {
+                continue; // re-checks whether the flusher was stopped
+            }
+            finally {
+                batch_lock.unlock();
+            }
+            Util.sleep(batch_interval);
+            if(flusher == current)
+                flush();
+        }
+    }
+
+    protected void stopFlusher() {
+        Thread tmp;
+        batch_lock.lock();
+        try {
+            tmp=flusher;
+            flusher=null;
+        }
+        finally {
+            batch_lock.unlock();
+        }
+        if(tmp != null)
+            tmp.interrupt();
+    }
+
+    /** Sends the pending batch. Needs to be called with send_lock held */
+    @GuardedBy("send_lock")
+    protected void sendBatch() {
+        Map<Object,Object> tmp;
+        boolean clear;
+        batch_lock.lock();
+        try {
+            if(batch.isEmpty() && !batch_clear)
+                return;
+            tmp=batch;
+            clear=batch_clear;
+            batch=new LinkedHashMap<>();
+            batch_clear=false;
+        }
+        finally {
+            batch_lock.unlock();
+        }
+
+        Object[] keys=new Object[tmp.size()], values=new Object[tmp.size()];
+        int index=0;
+        for(Map.Entry<Object,Object> entry: tmp.entrySet()) {
+            keys[index]=entry.getKey();
+            Object val=entry.getValue();
+            values[index++]=val == REMOVED? null : val;
+        }
+        try {
+            disp.callRemoteMethods(null, new MethodCall(BATCH, clear, keys, values), call_options);
+            num_batches.incrementAndGet();
+            num_batched.addAndGet(keys.length);
+        }
+        catch(Exception e) {
+            log.error("failed sending batch of " + keys.length + " mutations", e);
+        }
+    }
+
     /*------------------------ Callbacks -----------------------*/
 
     public V _put(K key, V value) {
@@ -412,6 +762,24 @@ public class ReplicatedHashMap<K, V> extends
             notif.contentsCleared();
     }
 
+    /**
+     * Applies a batch of mutations
+     * @param clear Whether to clear the map before applying the mutations
+     * @param keys The keys
+     * @param values The values; a null value removes the corresponding key
+     */
+    @SuppressWarnings("unchecked")
+    public void _applyBatch(boolean clear, Object[] keys, Object[] values) {
+        if(clear)
+            _clear();
+        for(int i=0; i < keys.length; i++) {
+            if(values[i] == null)
+                _remove(keys[i]);
+            else
+                _put((K)keys[i], (V)values[i]);
+        }
+    }
+
     public V _remove(Object key) {
         V retval=map.remove(key);
         if(retval != null) {
@@ -456,16 +824,59 @@ public class ReplicatedHashMap<K, V> extends
     
 
     public void getState(OutputStream ostream) throws Exception {
-        K key;
-        V val;
-        HashMap<K,V> copy=new HashMap<>();
-        ObjectOutputStream oos=null;
+        if(legacy_state_format) {
+            getLegacyState(ostream);
+            return;
+        }
+        StateChunkWriter writer=new StateChunkWriter(ostream, state_chunk_size);
+        DataOutput out=writer.output();
+        for(Map.Entry<K,V> entry: map.entrySet()) { // the live map: no copy, and updates are not blocked
+            Util.objectToStream(entry.getKey(), out);
+            Util.objectToStream(entry.getValue(), out);
+            writer.entryWritten();
+        }
+        writer.close();
+        if(log.isDebugEnabled())
+            log.debug("state sent: " + writer);
+    }
 
-        for(Map.Entry<K,V> entry:entrySet()) {
-            key=entry.getKey();
-            val=entry.getValue();
-            copy.put(key, val);
+    @SuppressWarnings("unchecked")
+    public void setState(InputStream istream) throws Exception {
+        startCatchUp();
+        try {
+            // the old format is a Java serialization stream, which starts with a magic number (0xACED): the chunked
+            // format starts with the (positive) number of entries of the first chunk, or 0 if the state is empty
+            BufferedInputStream in=new BufferedInputStream(istream, 2);
+            in.mark(2);
+            boolean legacy=in.read() == 0xAC && in.read() == 0xED;
+            in.reset();
+            if(legacy) {
+                setLegacyState(in);
+                return;
+            }
+            StateChunkReader reader=new StateChunkReader(in);
+            for(int num; (num=reader.nextChunk()) > 0;) {
+                DataInput input=reader.input();
+                Map<K,V> entries=new HashMap<>(num * 2);
+                for(int i=0; i < num; i++) {
+                    K key=(K)Util.objectFromStream(input);
+                    V val=(V)Util.objectFromStream(input);
+                    entries.put(key, val);
+                }
+                _putAll(entries);
+            }
+            if(log.isDebugEnabled())
+                log.debug("state received successfully: " + reader);
         }
+        finally {
+            endCatchUp();
+        }
+    }
+
+    /** Writes the state in the format of versions prior to 3.6.5: a copy of the map as a serialized HashMap */
+    protected void getLegacyState(OutputStream ostream) throws Exception {
+        HashMap<K,V> copy=new HashMap<>(map);
+        ObjectOutputStream oos=null;
         try {
             oos=new ObjectOutputStream(new BufferedOutputStream(ostream, 1024));
             oos.writeObject(copy);
@@ -473,10 +884,14 @@ public class ReplicatedHashMap<K, V> extends
         finally {
             Util.close(oos);
         }
+        if(log.isDebugEnabled())
+            log.debug("state sent in legacy format: " + copy.size() + " entries");
     }
 
-    public void setState(InputStream istream) throws Exception {
-        HashMap<K,V> new_copy=null;
+    /** Reads the state sent by a member running a version prior to 3.6.5 */
+    @SuppressWarnings("unchecked")
+    protected void setLegacyState(InputStream istream) throws Exception {
+        HashMap<K,V> new_copy;
         ObjectInputStream ois=null;
         try {
             ois=new ObjectInputStream(istream);
@@ -487,9 +902,68 @@ public class ReplicatedHashMap<K, V> extends
         }
         if(new_copy != null)
             _putAll(new_copy);
-
         if(log.isDebugEnabled())
-            log.debug("state received successfully");
+            log.debug("state received successfully (legacy format)");
+    }
+
+    /** Starts logging incoming mutations (instead of applying them), unless already logging */
+    protected void startCatchUp() {
+        catch_up_lock.lock();
+        try {
+            if(catch_up_log == null)
+                catch_up_log=new ArrayList<>();
+        }
+        finally {
+            catch_up_lock.unlock();
+        }
+    }
+
+    /** Appends a mutation to the catch-up log. Returns false if no state is being transferred */
+    protected boolean addToCatchUpLog(MethodCall call) {
+        catch_up_lock.lock();
+        try {
+            if(catch_up_log == null)
+                return false;
+            catch_up_log.add(call);
+            return true;
+        }
+        finally {
+            catch_up_lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the logged mutations in order, then stops logging. Mutations arriving during the replay are logged, too,
+     * and applied in a subsequent round, so the order of mutations is preserved
+     */
+    protected void endCatchUp() {
+        for(;;) {
+            List<MethodCall> calls;
+            catch_up_lock.lock();
+            try {
+                if(catch_up_log == null)
+                    return;
+                if(catch_up_log.isEmpty()) {
+                    catch_up_log=null;
+                    return;
+                }
+                calls=catch_up_log;
+                catch_up_log=new ArrayList<>();
+            }
+            finally {
+                catch_up_lock.unlock();
+            }
+            if(log.isDebugEnabled())
+                log.debug("applying " + calls.size() + " mutations received during state transfer");
+            for(MethodCall call: calls) {
+                try {
+                    call.invoke(this);
+                }
+                catch(Exception e) {
+                    log.error("failed applying " + call, e);
+                }
+            }
+        }
     }
 
     /*------------------- Membership Changes ----------------------*/
@@ -7,6 +7,12 @@ import org.jgroups.annotations.Unsupported;
 import org.jgroups.jmx.JmxConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.Bits;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.StateChunkReader;
+import org.jgroups.util.StateChunkWriter;
+import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
 import javax.management.MBeanServer;
@@ -19,6 +25,20 @@ import java.util.*;
 /**
  * A tree-like structure that is replicated across several members. Updates will be multicast to all group
  * members reliably and in the same order.
+ * <p/>
+ * Updates are replicated as fine-grained operations (set keys at a node, remove a key, remove a node) in a compact
+ * binary format. Every put() is replicated, even when it doesn't change the local copy of the node, as a concurrent
+ * update by a different member may still be in flight. Operations issued while a previous batch is being sent are
+ * queued and sent together in the next message (at most max_batch_size operations per message).
+ * <p/>
+ * The state is a snapshot of the tree, encoded as the same operations, and streamed to a joiner node by node, in chunks
+ * of at most state_chunk_size bytes; the joiner applies every chunk as it arrives. Nodes without data which have
+ * children are omitted, as applying the operations of their children recreates them. The state provider doesn't
+ * block updates during the transfer; instead the joiner logs the operations it receives until the snapshot has been
+ * applied, and then replays them in order. Every message carries a per-sender seqno, and the state starts with the
+ * highest seqno applied per sender, so that the joiner skips the logged messages already contained in the state.
+ * Both the format of the updates and the state format are incompatible (in both directions) with the ones of versions
+ * prior to 3.6.5, so a member cannot join a cluster whose members run an older version, or vice versa.
  * @author Bela Ban Jan 17 2002
  * @author <a href="mailto:aolias@yahoo.com">Alfonso Olias-Sanz</a>
  */
@@ -32,8 +52,27 @@ public class ReplicatedTree extends ReceiverAdapter {
     String groupname="ReplicatedTree-Group";
     final List<Address> members=new ArrayList<>();
     long state_fetch_timeout=10000;
+    int state_chunk_size=64 * 1024;
+
+    /** Updates received while the state is transferred; replayed when done. Null when no state is transferred */
+    List<Batch> catch_up_log;
+    final Object catch_up_lock=new Object();
     boolean jmx=false;
 
+    /** The max number of operations sent in a single message */
+    int max_batch_size=500;
+
+    /** Operations waiting to be multicast. Only one thread sends at a time; it also sends the ops queued meanwhile */
+    final List<Op> pending_ops=new ArrayList<>();
+    boolean sending; // guarded by pending_ops
+    long num_ops_sent, num_batches_sent;
+
+    /** The seqno of the next message we send. Guarded by pending_ops */
+    long seqno=1;
+
+    /** The seqno of the last message applied, per sender. Guarded by this */
+    final Map<Address,Long> applied_seqnos=new HashMap<>();
+
     protected final Log log=LogFactory.getLog(this.getClass());
 
 
@@ -119,6 +158,36 @@ public class ReplicatedTree extends ReceiverAdapter {
         root=n;
     }
 
+    public int getStateChunkSize() {
+        return state_chunk_size;
+    }
+
+    /** Sets the max size (in bytes) of the chunks in which the state is sent to a joiner */
+    public void setStateChunkSize(int state_chunk_size) {
+        this.state_chunk_size=state_chunk_size;
+    }
+
+    public int getMaxBatchSize() {
+        return max_batch_size;
+    }
+
+    /** Sets the max number of operations sent in a single message */
+    public void setMaxBatchSize(int max_batch_size) {
+        if(max_batch_size < 1)
+            throw new IllegalArgumentException("max_batch_size (" + max_batch_size + ") must be >= 1");
+        this.max_batch_size=max_batch_size;
+    }
+
+    /** The number of operations multicast by this member */
+    public long getNumOpsSent() {
+        return num_ops_sent;
+    }
+
+    /** The number of messages in which the operations were multicast */
+    public long getNumBatchesSent() {
+        return num_batches_sent;
+    }
+
     public Address getLocalAddress() {
         return channel != null? channel.getAddress() : null;
     }
@@ -132,7 +201,13 @@ public class ReplicatedTree extends ReceiverAdapter {
      * Fetch the group state from the current coordinator. If successful, this will trigger setState().
      */
     public void fetchState(long timeout) throws Exception {
-        channel.getState(null, timeout);
+        startCatchUp();
+        try {
+            channel.getState(null, timeout);
+        }
+        finally {
+            endCatchUp();
+        }
     }
 
 
@@ -148,7 +223,7 @@ public class ReplicatedTree extends ReceiverAdapter {
 
 
     public final void start() throws Exception {
-        channel.getState(null, state_fetch_timeout);
+        fetchState(state_fetch_timeout);
     }
 
 
@@ -165,33 +240,14 @@ public class ReplicatedTree extends ReceiverAdapter {
      * @param fqn The fully qualified name of the new node
      * @param data The new data. May be null if no data should be set in the node.
      */
+    @SuppressWarnings("unchecked")
     public void put(String fqn, HashMap data) {
-        if(!remote_calls) {
+        if(!remote_calls || !send_message) {
             _put(fqn, data);
             return;
         }
-
-		//Changes done by <aos>
-		//if true, propagate action to the group
-        if(send_message) {
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast PUT request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(
-                                null,
-                                null,
-                                new Request(Request.PUT, fqn, data)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting PUT request: " + ex);
-            }
-        }
-        else {
-            _put(fqn, data);
-        }
+        if(fqn != null) // the op may be sent later, so it needs its own copy of data
+            send(Op.put(fqn, data != null? new HashMap<String,Object>(data) : null));
     }
 
 
@@ -204,33 +260,12 @@ public class ReplicatedTree extends ReceiverAdapter {
      * @param value The value
      */
     public void put(String fqn, String key, Object value) {
-        if(!remote_calls) {
+        if(!remote_calls || !send_message) {
             _put(fqn, key, value);
             return;
         }
-
-        //Changes done by <aos>
-        //if true, propagate action to the group
-        if(send_message) {
-
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast PUT request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(
-                                null,
-                                null,
-                                new Request(Request.PUT, fqn, key, value)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting PUT request: " + ex);
-            }
-        }
-        else {
-            _put(fqn, key, value);
-        }
+        if(fqn != null && key != null && value != null)
+            send(Op.put(fqn, Collections.singletonMap(key, value)));
     }
 
 
@@ -239,28 +274,12 @@ public class ReplicatedTree extends ReceiverAdapter {
      * @param fqn The fully qualified name of the node.
      */
     public void remove(String fqn) {
-        if(!remote_calls) {
+        if(!remote_calls || !send_message) {
             _remove(fqn);
             return;
         }
-		//Changes done by <aos>
-		//if true, propagate action to the group
-        if(send_message) {
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast REMOVE request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(null, null, new Request(Request.REMOVE, fqn)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting REMOVE request: " + ex);
-            }
-        }
-        else {
-            _remove(fqn);
-        }
+        if(fqn != null)
+            send(Op.remove(fqn));
     }
 
 
@@ -270,31 +289,12 @@ public class ReplicatedTree extends ReceiverAdapter {
      * @param key The key to be removed
      */
     public void remove(String fqn, String key) {
-        if(!remote_calls) {
+        if(!remote_calls || !send_message) {
             _remove(fqn, key);
             return;
         }
-		//Changes done by <aos>
-		//if true, propagate action to the group
-        if(send_message) {
-            if(channel == null) {
-                if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast REMOVE request");
-                return;
-            }
-            try {
-                channel.send(
-                        new Message(
-                                null,
-                                null,
-                                new Request(Request.REMOVE, fqn, key)));
-            }
-            catch(Exception ex) {
-                if(log.isErrorEnabled()) log.error("failure bcasting REMOVE request: " + ex);
-            }
-        }
-        else {
-            _remove(fqn, key);
-        }
+        if(fqn != null && key != null)
+            send(Op.removeKey(fqn, key));
     }
 
 
@@ -426,21 +426,30 @@ public class ReplicatedTree extends ReceiverAdapter {
     /* --------------------- Callbacks -------------------------- */
 
 
+    @SuppressWarnings("unchecked")
     public void _put(String fqn, HashMap data) {
+        _put(fqn, (HashMap<String,Object>)data, true);
+    }
+
+    void _put(String fqn, HashMap<String,Object> data, boolean notify) {
         Node n;
         StringHolder child_name=new StringHolder();
         boolean child_exists=false;
 
         if(fqn == null) return;
-        n=findParentNode(fqn, child_name, true); // create all nodes if they don't exist
-        if(child_name.getValue() != null) {
-            child_exists=n.childExists(child_name.getValue());
-            n.createChild(child_name.getValue(), fqn, n, data);
-        }
-        else {
-            child_exists=true;
-            n.setData(data);
+        synchronized(this) {
+            n=findParentNode(fqn, child_name, true); // create all nodes if they don't exist
+            if(child_name.getValue() != null) {
+                child_exists=n.childExists(child_name.getValue());
+                n.createChild(child_name.getValue(), fqn, n, data);
+            }
+            else {
+                child_exists=true;
+                n.setData(data);
+            }
         }
+        if(!notify)
+            return;
         if(child_exists)
             notifyNodeModified(fqn);
         else
@@ -454,14 +463,16 @@ public class ReplicatedTree extends ReceiverAdapter {
         boolean child_exists=false;
 
         if(fqn == null || key == null || value == null) return;
-        n=findParentNode(fqn, child_name, true);
-        if(child_name.getValue() != null) {
-            child_exists=n.childExists(child_name.getValue());
-            n.createChild(child_name.getValue(), fqn, n, key, value);
-        }
-        else {
-            child_exists=true;
-            n.setData(key, value);
+        synchronized(this) {
+            n=findParentNode(fqn, child_name, true);
+            if(child_name.getValue() != null) {
+                child_exists=n.childExists(child_name.getValue());
+                n.createChild(child_name.getValue(), fqn, n, key, value);
+            }
+            else {
+                child_exists=true;
+                n.setData(key, value);
+            }
         }
         if(child_exists)
             notifyNodeModified(fqn);
@@ -475,14 +486,15 @@ public class ReplicatedTree extends ReceiverAdapter {
         StringHolder child_name=new StringHolder();
 
         if(fqn == null) return;
-        if(fqn.equals(SEPARATOR)) {
-            root.removeAll();
-            notifyNodeRemoved(fqn);
-            return;
+        synchronized(this) {
+            if(fqn.equals(SEPARATOR))
+                root.removeAll();
+            else {
+                n=findParentNode(fqn, child_name, false);
+                if(n == null) return;
+                n.removeChild(child_name.getValue(), fqn);
+            }
         }
-        n=findParentNode(fqn, child_name, false);
-        if(n == null) return;
-        n.removeChild(child_name.getValue(), fqn);
         notifyNodeRemoved(fqn);
     }
 
@@ -491,9 +503,11 @@ public class ReplicatedTree extends ReceiverAdapter {
         Node n;
 
         if(fqn == null || key == null) return;
-        n=findNode(fqn);
-        if(n != null)
-            n.removeData(key);
+        synchronized(this) {
+            n=findNode(fqn);
+            if(n != null)
+                n.removeData(key);
+        }
     }
 
 
@@ -501,9 +515,11 @@ public class ReplicatedTree extends ReceiverAdapter {
         Node n;
 
         if(fqn == null) return;
-        n=findNode(fqn);
-        if(n != null)
-            n.removeData();
+        synchronized(this) {
+            n=findNode(fqn);
+            if(n != null)
+                n.removeData();
+        }
     }
 
 
@@ -516,55 +532,237 @@ public class ReplicatedTree extends ReceiverAdapter {
 
     /*-------------------- MessageListener ----------------------*/
 
-    /** Callback. Process the contents of the message; typically an _add() or _set() request */
+    /** Callback. Applies the batch of operations in the message, or logs it while the state is transferred */
     public void receive(Message msg) {
-        Request req=null;
-
         if(msg == null || msg.getLength() == 0)
             return;
+        Batch batch;
         try {
-            req=(Request)msg.getObject();
-
-            String fqn=req.fqn;
-            switch(req.type) {
-                case Request.PUT:
-                    if(req.key != null && req.value != null)
-                        _put(fqn, req.key, req.value);
-                    else
-                        _put(fqn, req.data);
-                    break;
-                case Request.REMOVE:
-                    if(req.key != null)
-                        _remove(fqn, req.key);
-                    else
-                        _remove(fqn);
-                    break;
-                default:
-                    if(log.isErrorEnabled()) log.error("type " + req.type + " unknown");
-                    break;
-            }
+            batch=readBatch(msg.getSrc(), msg.getRawBuffer(), msg.getOffset(), msg.getLength());
         }
         catch(Exception ex) {
-            if(log.isErrorEnabled()) log.error("failed unmarshalling request: " + ex);
+            if(log.isErrorEnabled()) log.error("failed unmarshalling operations: " + ex);
+            return;
+        }
+        if(!addToCatchUpLog(batch))
+            apply(batch);
+    }
+
+    /** Applies the operations of a batch, unless the batch has already been applied (e.g. as part of the state) */
+    void apply(Batch batch) {
+        if(batch.sender != null) {
+            synchronized(this) {
+                Long last=applied_seqnos.get(batch.sender);
+                if(last != null && batch.seqno <= last)
+                    return;
+            }
+        }
+        for(Op op: batch.ops)
+            apply(op);
+        if(batch.sender != null) {
+            synchronized(this) {
+                applied_seqnos.put(batch.sender, batch.seqno);
+            }
+        }
+    }
+
+    void apply(Op op) {
+        switch(op.type) {
+            case Op.PUT:
+                _put(op.fqn, op.data);
+                break;
+            case Op.REMOVE:
+                _remove(op.fqn);
+                break;
+            case Op.REMOVE_KEY:
+                _remove(op.fqn, op.key);
+                break;
+            default:
+                if(log.isErrorEnabled()) log.error("type " + op.type + " unknown");
+                break;
         }
     }
 
 
+    /**
+     * Streams the tree node by node (depth-first), as PUT operations. Only the node currently written is copied (with
+     * the tree locked), so updates are not blocked by the state transfer. The nodes are preceded by the seqnos of the
+     * last messages applied before the first node is copied; messages applied later may or may not be contained in the
+     * copied nodes, and will be replayed by the joiner. As all operations set or remove values, this is idempotent
+     */
     public void getState(OutputStream ostream) throws Exception {
-        Util.objectToStream(root.clone(), new DataOutputStream(ostream));
+        DataOutputStream dos=ostream instanceof DataOutputStream? (DataOutputStream)ostream : new DataOutputStream(ostream);
+        Map<Address,Long> seqnos;
+        synchronized(this) {
+            seqnos=new HashMap<>(applied_seqnos);
+        }
+        dos.writeInt(seqnos.size());
+        for(Map.Entry<Address,Long> entry: seqnos.entrySet()) {
+            Util.writeAddress(entry.getKey(), dos);
+            dos.writeLong(entry.getValue());
+        }
+        StateChunkWriter writer=new StateChunkWriter(dos, state_chunk_size);
+        DataOutput out=writer.output();
+        Deque<Node> stack=new ArrayDeque<>();
+        stack.push(root);
+        while(!stack.isEmpty()) {
+            Node n=stack.pop();
+            HashMap<String,Object> data;
+            Node[] children;
+            synchronized(this) {
+                data=n.data != null? new HashMap<>(n.data) : null;
+                children=n.children != null? n.children.values().toArray(new Node[n.children.size()]) : null;
+            }
+            if(data != null || children == null || children.length == 0) { // inner nodes are created by their children
+                Op.put(n.fqn, data).writeTo(out);
+                writer.entryWritten();
+            }
+            if(children != null)
+                for(int i=children.length - 1; i >= 0; i--) // parents are written before their children
+                    stack.push(children[i]);
+        }
+        writer.close();
     }
 
 
+    /**
+     * Applies the operations as they arrive and emits nodeAdded() notifications for all nodes of the new tree. Updates
+     * received in the meantime are replayed afterwards, except those already contained in the state
+     */
     public void setState(InputStream istream) throws Exception {
-        Object obj=Util.objectFromStream(new DataInputStream(istream));
-        root=(Node)((Node)obj).clone();
-        notifyAllNodesCreated(root);
+        startCatchUp();
+        try {
+            DataInputStream dis=istream instanceof DataInputStream? (DataInputStream)istream : new DataInputStream(istream);
+            Map<Address,Long> seqnos=new HashMap<>();
+            for(int i=0, size=dis.readInt(); i < size; i++) {
+                Address sender=Util.readAddress(dis);
+                seqnos.put(sender, dis.readLong());
+            }
+            synchronized(this) {
+                root=new Node(SEPARATOR, SEPARATOR, null, null);
+                applied_seqnos.clear();
+                applied_seqnos.putAll(seqnos);
+            }
+            StateChunkReader reader=new StateChunkReader(dis);
+            for(int num; (num=reader.nextChunk()) > 0;) {
+                DataInput in=reader.input();
+                for(int i=0; i < num; i++) {
+                    Op op=new Op();
+                    op.readFrom(in);
+                    _put(op.fqn, op.data, false);
+                }
+            }
+            notifyAllNodesCreated(root);
+        }
+        finally {
+            endCatchUp();
+        }
     }
 
     /*-------------------- End of MessageListener ----------------------*/
 
 
 
+    /**
+     * Queues an operation for multicasting. If no other thread is sending, the caller sends the queued operations
+     * (including the ones added while it is sending), max_batch_size operations per message
+     */
+    void send(Op op) {
+        if(channel == null) {
+            if(log.isErrorEnabled()) log.error("channel is null, cannot broadcast " + op);
+            return;
+        }
+        synchronized(pending_ops) {
+            pending_ops.add(op);
+            if(sending)
+                return;
+            sending=true;
+        }
+        for(;;) {
+            List<Op> batch;
+            long batch_seqno;
+            synchronized(pending_ops) {
+                if(pending_ops.isEmpty()) {
+                    sending=false;
+                    return;
+                }
+                List<Op> tmp=pending_ops.subList(0, Math.min(pending_ops.size(), max_batch_size));
+                batch=new ArrayList<>(tmp);
+                tmp.clear();
+                batch_seqno=seqno++;
+            }
+            try {
+                channel.send(new Message(null, writeOps(batch_seqno, batch)));
+                num_ops_sent+=batch.size();
+                num_batches_sent++;
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled()) log.error("failure bcasting " + batch.size() + " operations: " + t);
+            }
+        }
+    }
+
+    static byte[] writeOps(long seqno, List<Op> ops) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(ops.size() * 32 + 12);
+        out.writeLong(seqno);
+        out.writeInt(ops.size());
+        for(Op op: ops)
+            op.writeTo(out);
+        return Arrays.copyOf(out.buffer(), out.position());
+    }
+
+    static Batch readBatch(Address sender, byte[] buf, int offset, int length) throws Exception {
+        DataInput in=new ByteArrayDataInputStream(buf, offset, length);
+        long seqno=in.readLong();
+        int num=in.readInt();
+        List<Op> ops=new ArrayList<>(num);
+        for(int i=0; i < num; i++) {
+            Op op=new Op();
+            op.readFrom(in);
+            ops.add(op);
+        }
+        return new Batch(sender, seqno, ops);
+    }
+
+
+    void startCatchUp() {
+        synchronized(catch_up_lock) {
+            if(catch_up_log == null)
+                catch_up_log=new ArrayList<>();
+        }
+    }
+
+    /** Appends a batch to the catch-up log. Returns false if no state is being transferred */
+    boolean addToCatchUpLog(Batch batch) {
+        synchronized(catch_up_lock) {
+            if(catch_up_log == null)
+                return false;
+            catch_up_log.add(batch);
+            return true;
+        }
+    }
+
+    /**
+     * Applies the logged updates in order (including the ones logged during the replay), then stops logging. Batches
+     * contained in the state are skipped
+     */
+    void endCatchUp() {
+        for(;;) {
+            List<Batch> batches;
+            synchronized(catch_up_lock) {
+                if(catch_up_log == null)
+                    return;
+                if(catch_up_log.isEmpty()) {
+                    catch_up_log=null;
+                    return;
+                }
+                batches=catch_up_log;
+                catch_up_log=new ArrayList<>();
+            }
+            for(Batch batch: batches)
+                apply(batch);
+        }
+    }
 
 
     /*----------------------- MembershipListener ------------------------*/
@@ -575,6 +773,9 @@ public class ReplicatedTree extends ReceiverAdapter {
             notifyViewChange(new_view);
             members.clear();
             members.addAll(new_mbrs);
+            synchronized(this) {
+                applied_seqnos.keySet().retainAll(new_mbrs);
+            }
         }
 		//if size is bigger than one, there are more peers in the group
 		//otherwise there is only one server.
@@ -847,72 +1048,112 @@ public class ReplicatedTree extends ReceiverAdapter {
     }
 
 
+    /** The operations of a message, with the sender and the sender's seqno of the message */
+    protected static class Batch {
+        final Address  sender;
+        final long     seqno;
+        final List<Op> ops;
+
+        protected Batch(Address sender, long seqno, List<Op> ops) {
+            this.sender=sender;
+            this.seqno=seqno;
+            this.ops=ops;
+        }
+    }
+
+
     /**
-     * Class used to multicast add(), remove() and set() methods to all members.
+     * An update of the tree: sets keys at a node (creating the node if needed), removes a node, or removes a key
      */
-    private static class Request implements Serializable {
-        static final int PUT=1;
-        static final int REMOVE=2;
-
-        int type=0;
-        String fqn=null;
-        String key=null;
-        Object value=null;
-        HashMap data=null;
-        private static final long serialVersionUID = 7772753222127676782L;
-
-        private Request(int type, String fqn) {
+    protected static class Op implements Streamable {
+        static final byte PUT=1;
+        static final byte REMOVE=2;
+        static final byte REMOVE_KEY=3;
+
+        byte                    type;
+        String                  fqn;
+        String                  key;  // REMOVE_KEY
+        HashMap<String,Object>  data; // PUT, null if the node is only created
+
+        public Op() { // for unmarshalling
+        }
+
+        protected Op(byte type, String fqn) {
             this.type=type;
             this.fqn=fqn;
         }
 
-        private Request(int type, String fqn, HashMap data) {
-            this(type, fqn);
-            this.data=data;
+        static Op put(String fqn, Map<String,Object> data) {
+            Op op=new Op(PUT, fqn);
+            if(data != null)
+                op.data=data instanceof HashMap? (HashMap<String,Object>)data : new HashMap<>(data);
+            return op;
         }
 
-        private Request(int type, String fqn, String key) {
-            this(type, fqn);
-            this.key=key;
+        static Op remove(String fqn) {
+            return new Op(REMOVE, fqn);
         }
 
-        private Request(int type, String fqn, String key, Object value) {
-            this(type, fqn);
-            this.key=key;
-            this.value=value;
+        static Op removeKey(String fqn, String key) {
+            Op op=new Op(REMOVE_KEY, fqn);
+            op.key=key;
+            return op;
         }
 
-        public String toString() {
-            StringBuilder sb=new StringBuilder();
-            sb.append(type2String(type)).append(" (");
-            if(fqn != null) sb.append(" fqn=" + fqn);
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            Bits.writeString(fqn, out);
             switch(type) {
                 case PUT:
-                    if(data != null) sb.append(", data=" + data);
-                    if(key != null) sb.append(", key=" + key);
-                    if(value != null) sb.append(", value=" + value);
+                    out.writeInt(data != null? data.size() : -1);
+                    if(data != null) {
+                        for(Map.Entry<String,Object> entry: data.entrySet()) {
+                            Bits.writeString(entry.getKey(), out);
+                            Util.objectToStream(entry.getValue(), out);
+                        }
+                    }
                     break;
-                case REMOVE:
-                    if(key != null) sb.append(", key=" + key);
+                case REMOVE_KEY:
+                    Bits.writeString(key, out);
+                    break;
+            }
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            fqn=Bits.readString(in);
+            switch(type) {
+                case PUT:
+                    int size=in.readInt();
+                    if(size >= 0) {
+                        data=new HashMap<>(size * 2);
+                        for(int i=0; i < size; i++) {
+                            String k=Bits.readString(in);
+                            data.put(k, Util.objectFromStream(in));
+                        }
+                    }
                     break;
-                default:
+                case REMOVE_KEY:
+                    key=Bits.readString(in);
                     break;
             }
-            sb.append(')');
-            return sb.toString();
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder(type2String(type)).append(" (fqn=").append(fqn);
+            if(data != null) sb.append(", data=").append(data);
+            if(key != null) sb.append(", key=").append(key);
+            return sb.append(')').toString();
         }
 
         static String type2String(int t) {
             switch(t) {
-                case PUT:
-                    return "PUT";
-                case REMOVE:
-                    return "REMOVE";
-                default:
-                    return "UNKNOWN";
+                case PUT:        return "PUT";
+                case REMOVE:     return "REMOVE";
+                case REMOVE_KEY: return "REMOVE_KEY";
+                default:         return "UNKNOWN";
             }
         }
-
     }
 
 
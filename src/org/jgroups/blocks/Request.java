@@ -45,13 +45,24 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
 
     protected volatile FutureListener listener;
 
+    @GuardedBy("lock")
+    protected int                     waiters;         // number of threads blocked in get()
+
+    @GuardedBy("lock")
+    protected boolean                 expiry_deferred; // the timeout elapsed while a thread was blocked in get()
+
 
     
     public Request(Message request, RequestCorrelator corr, RequestOptions options) {
+        this(request, corr, options, getRequestId());
+    }
+
+    /** Creates a request with a given ID, e.g. one of a block of IDs returned by {@link #getRequestIds(int)} */
+    protected Request(Message request, RequestCorrelator corr, RequestOptions options, long req_id) {
         this.request_msg=request;
         this.corr=corr;
         this.options=options;
-        this.req_id=getRequestId();
+        this.req_id=req_id;
     }
 
 
@@ -81,12 +92,23 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
         }
 
         sendRequest();
-        if(!block_for_results || options.getMode() == ResponseMode.GET_NONE)
+        if(options.getMode() == ResponseMode.GET_NONE)
             return true;
+        if(!block_for_results) {
+            corr.expireAfter(req_id, options.getTimeout()); // nobody waits for the results: let the correlator expire us
+            return true;
+        }
+        return waitForCompletion(options.getTimeout());
+    }
 
+    /**
+     * Blocks until all responses have been received, or the timeout (ms) elapsed. Used by {@link #execute()}, or
+     * directly when the request was sent as part of a batch
+     */
+    protected boolean waitForCompletion(long timeout) throws InterruptedException {
         lock.lock();
         try {
-            return responsesComplete(options.getTimeout());
+            return responsesComplete(timeout);
         }
         finally {
             done=true;
@@ -122,6 +144,55 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
     }
 
 
+    /**
+     * Completes the request when its timeout elapsed. Responses which have not yet been received stay missing. If a
+     * caller is blocked in get(), the timeout passed to get() applies instead, and the request is completed when the
+     * last such caller returns without the request having completed
+     */
+    public void timedOut() {
+        lock.lock();
+        try {
+            if(done)
+                return;
+            if(waiters > 0) {
+                expiry_deferred=true;
+                return;
+            }
+            expire();
+        }
+        finally {
+            lock.unlock();
+        }
+        checkCompletion(this);
+    }
+
+    /** Called with the lock held by a thread about to block in get() */
+    @GuardedBy("lock")
+    protected void addWaiter() {
+        waiters++;
+    }
+
+    /**
+     * Called with the lock held by a thread returning from get()
+     * @return True if the request expired, as its timeout elapsed while a caller was blocked in get(). The caller
+     *         then needs to call {@link #checkCompletion(java.util.concurrent.Future)} after releasing the lock
+     */
+    @GuardedBy("lock")
+    protected boolean removeWaiter() {
+        if(--waiters > 0 || !expiry_deferred || responsesComplete())
+            return false;
+        expire();
+        return true;
+    }
+
+    @GuardedBy("lock")
+    protected void expire() {
+        done=true;
+        if(corr != null)
+            corr.done(req_id);
+        cond.signal(true);
+    }
+
     public boolean cancel(boolean mayInterruptIfRunning) {
         lock.lock();
         try {
@@ -174,6 +245,11 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
         return REQUEST_ID.incrementAndGet();
     }
 
+    /** Reserves a block of num consecutive request IDs and returns the first one */
+    protected static long getRequestIds(int num) {
+        return REQUEST_ID.getAndAdd(num) + 1;
+    }
+
     /** This method runs with lock locked (called by <code>execute()</code>). */
     @GuardedBy("lock")
     protected boolean responsesComplete(final long timeout) throws InterruptedException {
@@ -9,16 +9,16 @@ import org.jgroups.protocols.TP;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Bits;
-import org.jgroups.util.Buffer;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.NotSerializableException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -43,8 +43,17 @@ public class RequestCorrelator {
     /** The protocol layer to use to pass up/down messages. Can be either a Protocol or a Transport */
     protected Protocol                               transport;
 
-    /** The table of pending requests (keys=Long (request IDs), values=<tt>RequestEntry</tt>) */
-    protected final ConcurrentMap<Long,RspCollector> requests=Util.createConcurrentMap();
+    /** The table of pending requests (keys=request IDs, values=<tt>RspCollector</tt>) */
+    protected final ConcurrentLongMap<RspCollector>  requests=new ConcurrentLongMap<>();
+
+    /** Expires pending non-blocking requests (e.g. futures) whose timeout elapsed */
+    protected final TimeoutWheel                     timeout_wheel=new TimeoutWheel(512, 10, new TimeoutWheel.Handler() {
+        public void expired(long req_id) {
+            RspCollector coll=requests.get(req_id);
+            if(coll instanceof Request)
+                ((Request)coll).timedOut(); // removes the request, unless a caller is blocked in get()
+        }
+    }, null, "RequestCorrelator-timeouts");
 
 
     /** The handler for the incoming requests. It is called from inside the dispatcher thread */
@@ -66,6 +75,12 @@ public class RequestCorrelator {
     /** Whether or not to use async dispatcher */
     protected boolean                                async_dispatching=false;
 
+    /** If true, replies to the same destination which are sent concurrently are coalesced into a single message */
+    protected boolean                                coalesce_replies=false;
+
+    /** Replies queued for sending when coalesce_replies is true (keys=destinations) */
+    protected final ConcurrentMap<Address,ReplyQueue> reply_queues=Util.createConcurrentMap();
+
     private final MyProbeHandler                     probe_handler=new MyProbeHandler(requests);
 
     protected static final Log                       log=LogFactory.getLog(RequestCorrelator.class);
@@ -113,6 +128,12 @@ public class RequestCorrelator {
     public void                     setMarshaller(RpcDispatcher.Marshaller marshaller) {this.marshaller=marshaller;}
     public boolean                  asyncDispatching() {return async_dispatching;}
     public RequestCorrelator        asyncDispatching(boolean flag) {async_dispatching=flag; return this;}
+    public boolean                  coalesceReplies() {return coalesce_replies;}
+    public RequestCorrelator        coalesceReplies(boolean flag) {coalesce_replies=flag; return this;}
+    public int                      numPendingRequests() {return requests.size();}
+
+    /** Sets the factory (usually the transport's) which creates the thread expiring pending requests */
+    public RequestCorrelator        threadFactory(ThreadFactory f) {timeout_wheel.threadFactory(f); return this;}
 
     public void sendRequest(long id, List<Address> dest_mbrs, Message msg, RspCollector coll) throws Exception {
         sendRequest(id, dest_mbrs, msg, coll, new RequestOptions().setAnycasting(false));
@@ -153,7 +174,44 @@ public class RequestCorrelator {
             // make sure no view is received before we add ourself as a view handler (https://issues.jboss.org/browse/JGRP-1428)
             coll.viewChange(view);
         }
+        sendToTargets(dest_mbrs, msg, options);
+    }
+
+    /**
+     * Sends a batch of requests to a group in a single message. The requests have consecutive IDs, starting at
+     * first_id; the buffer of the message needs to have been created with {@link #marshalBatch(java.util.List)}.
+     * On the receiver side, every request is dispatched separately and the replies are sent back in a single
+     * response message.
+     *
+     * @param first_id The ID of the first request in the batch. Request i in the batch has ID first_id+i
+     * @param dest_mbrs The list of members who should receive the batch
+     * @param msg The message carrying the batched requests
+     * @param colls The response collectors, one per request in the order of the batch. If null, no responses
+     *              are expected
+     */
+    public void sendRequestBatch(long first_id, Collection<Address> dest_mbrs, Message msg,
+                                 List<? extends RspCollector> colls, RequestOptions options) throws Exception {
+        if(transport == null) {
+            if(log.isWarnEnabled()) log.warn("transport is not available !");
+            return;
+        }
 
+        Header hdr=options.hasExclusionList()?
+          new MultiDestinationHeader(Header.REQ_BATCH, first_id, (colls != null), this.id, options.exclusionList())
+          : new Header(Header.REQ_BATCH, first_id, (colls != null), this.id);
+        msg.putHeader(this.id, hdr);
+
+        if(colls != null) {
+            long req_id=first_id;
+            for(RspCollector coll: colls) {
+                addEntry(req_id++, coll);
+                coll.viewChange(view); // JGRP-1428
+            }
+        }
+        sendToTargets(dest_mbrs, msg, options);
+    }
+
+    protected void sendToTargets(Collection<Address> dest_mbrs, Message msg, RequestOptions options) throws Exception {
         if(options.getAnycasting()) {
             if(options.useAnycastAddresses()) {
                 Message copy=msg.copy(true);
@@ -216,6 +274,15 @@ public class RequestCorrelator {
         removeEntry(id);
     }
 
+    /**
+     * Completes the request with the given ID (by calling {@link Request#timedOut()}) unless it is done within
+     * timeout ms. Used for requests which don't have a caller blocking for their results
+     */
+    public void expireAfter(long id, long timeout) {
+        if(timeout > 0)
+            timeout_wheel.add(id, timeout);
+    }
+
 
     /**
      * <b>Callback</b>.
@@ -266,6 +333,7 @@ public class RequestCorrelator {
 
     public void stop() {
         started=false;
+        timeout_wheel.stop();
         for(RspCollector coll: requests.values())
             coll.transportClosed();
         requests.clear();
@@ -330,6 +398,8 @@ public class RequestCorrelator {
             if(coll != null)
                 coll.viewChange(new_view);
         }
+        if(new_view != null)
+            reply_queues.keySet().retainAll(new_view.getMembers());
     }
 
 
@@ -377,26 +447,18 @@ public class RequestCorrelator {
                 handleRequest(msg, hdr);
                 break;
 
+            case Header.REQ_BATCH:
+                handleRequestBatch(msg, hdr);
+                break;
+
             case Header.RSP:
             case Header.EXC_RSP:
-                RspCollector coll=requests.get(hdr.id);
-                if(coll != null) {
-                    boolean is_exception=hdr.type == Header.EXC_RSP;
-                    Address sender=msg.getSrc();
-                    Object retval;
-                    byte[] buf=msg.getRawBuffer();
-                    int offset=msg.getOffset(), length=msg.getLength();
-                    try {
-                        retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
-                                Util.objectFromByteBuffer(buf, offset, length);
-                    }
-                    catch(Exception e) {
-                        log.error("failed unmarshalling buffer into return value", e);
-                        retval=e;
-                        is_exception=true;
-                    }
-                    coll.receiveResponse(retval, sender, is_exception);
-                }
+                handleResponse(msg.getSrc(), hdr.id, msg.getRawBuffer(), msg.getOffset(), msg.getLength(),
+                               hdr.type == Header.EXC_RSP);
+                break;
+
+            case Header.RSP_BATCH:
+                handleResponseBatch(msg);
                 break;
 
             default:
@@ -480,6 +542,130 @@ public class RequestCorrelator {
     }
 
 
+    /**
+     * Handles a batch of requests (sent with {@link #sendRequestBatch}). Every request is passed to the request
+     * handler separately; the replies are collected and sent back in a single response message once all requests
+     * of the batch have been processed.
+     */
+    protected void handleRequestBatch(Message req, Header hdr) {
+        Message[] reqs;
+        try {
+            reqs=unmarshalBatch(req);
+        }
+        catch(Exception e) {
+            log.error(local_addr + ": failed unmarshalling request batch from " + req.getSrc(), e);
+            return;
+        }
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("calling (").append((request_handler != null? request_handler.getClass().getName() : "null")).
+                      append(") with request batch ").append(hdr.id).append("-").append(hdr.id + reqs.length -1));
+
+        ReplyBatch batch=hdr.rsp_expected? new ReplyBatch(req.getSrc(), req.getFlags(), hdr.id, reqs.length) : null;
+        for(int i=0; i < reqs.length; i++) {
+            if(async_dispatching && request_handler instanceof AsyncRequestHandler) {
+                Response rsp=batch != null? batch.response(i) : null;
+                try {
+                    ((AsyncRequestHandler)request_handler).handle(reqs[i], rsp);
+                }
+                catch(Throwable t) {
+                    if(rsp != null)
+                        rsp.send(new InvocationTargetException(t), true);
+                    else
+                        log.error(local_addr + ": failed dispatching request asynchronously: " + t);
+                }
+                continue;
+            }
+
+            Object  retval;
+            boolean threw_exception=false;
+            try {
+                retval=request_handler.handle(reqs[i]);
+            }
+            catch(Throwable t) {
+                threw_exception=true;
+                retval=new InvocationTargetException(t);
+            }
+            if(batch != null)
+                batch.add(i, retval, threw_exception);
+        }
+    }
+
+
+    protected void handleResponse(Address sender, long req_id, byte[] buf, int offset, int length, boolean is_exception) {
+        RspCollector coll=requests.get(req_id);
+        if(coll == null)
+            return;
+        Object retval;
+        try {
+            retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
+              Util.objectFromByteBuffer(buf, offset, length);
+        }
+        catch(Exception e) {
+            log.error("failed unmarshalling buffer into return value", e);
+            retval=e;
+            is_exception=true;
+        }
+        coll.receiveResponse(retval, sender, is_exception);
+    }
+
+    /** Demultiplexes a batch of responses and passes each response to the collector registered under its request ID */
+    protected void handleResponseBatch(Message msg) {
+        byte[] buf=msg.getRawBuffer();
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, msg.getOffset(), msg.getLength());
+        try {
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                long    req_id=Bits.readLong(in);
+                boolean is_exception=in.readBoolean();
+                int     len=in.readInt(), offset=in.position();
+                in.skipBytes(len);
+                handleResponse(msg.getSrc(), req_id, buf, offset, len, is_exception);
+            }
+        }
+        catch(Exception e) {
+            log.error(local_addr + ": failed unmarshalling response batch from " + msg.getSrc(), e);
+        }
+    }
+
+
+    /**
+     * Marshals the buffers of a number of requests into a single buffer, which can then be sent with
+     * {@link #sendRequestBatch(long, java.util.Collection, org.jgroups.Message, java.util.List, RequestOptions)}
+     */
+    public static Buffer marshalBatch(List<Buffer> reqs) {
+        int size=Global.INT_SIZE;
+        for(Buffer req: reqs)
+            size+=Global.INT_SIZE + req.getLength();
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+        out.writeInt(reqs.size());
+        for(Buffer req: reqs) {
+            out.writeInt(req.getLength());
+            out.write(req.getBuf(), req.getOffset(), req.getLength());
+        }
+        return out.getBuffer();
+    }
+
+    /** Splits a batch into individual requests. The requests share the buffer of the batch (no copying) */
+    protected static Message[] unmarshalBatch(Message batch) throws Exception {
+        byte[] buf=batch.getRawBuffer();
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, batch.getOffset(), batch.getLength());
+        Message[] reqs=new Message[in.readInt()];
+        for(int i=0; i < reqs.length; i++) {
+            int len=in.readInt(), offset=in.position();
+            in.skipBytes(len);
+            reqs[i]=batch.copy(false).setBuffer(buf, offset, len);
+        }
+        return reqs;
+    }
+
+    protected Buffer marshalReply(Object reply) throws Exception {
+        if(marshaller != null)
+            return marshaller.objectToBuffer(reply);
+        byte[] tmp=Util.objectToByteBuffer(reply);
+        return tmp != null? new Buffer(tmp) : null;
+    }
+
+
     protected void sendReply(final Message req, final long req_id, Object reply, boolean is_exception) {
         Object rsp_buf; // either byte[] or Buffer
         try {  // retval could be an exception, or a real value
@@ -500,6 +686,12 @@ public class RequestCorrelator {
             }
         }
 
+        if(coalesce_replies && req.getSrc() != null) {
+            Buffer buf=rsp_buf instanceof Buffer? (Buffer)rsp_buf : rsp_buf != null? new Buffer((byte[])rsp_buf) : null;
+            queueReply(req.getSrc(), new Reply(req_id, is_exception, req.getFlags(), buf));
+            return;
+        }
+
         Message rsp=req.makeReply().setFlag(req.getFlags()).clearFlag(Message.Flag.RSVP, Message.Flag.SCOPED);
         if(rsp_buf instanceof Buffer)
             rsp.setBuffer((Buffer)rsp_buf);
@@ -524,6 +716,89 @@ public class RequestCorrelator {
         ;
     }
 
+    /**
+     * Adds a reply to the queue for its destination. If no other thread is currently sending replies to that
+     * destination, the caller drains the queue and sends all replies it finds as one message; otherwise the reply
+     * is picked up by the thread which is already sending. Replies produced close together therefore travel
+     * together, without adding any delay to a reply sent in isolation.
+     */
+    protected void queueReply(Address dest, Reply reply) {
+        ReplyQueue queue=reply_queues.get(dest);
+        if(queue == null) {
+            ReplyQueue tmp=reply_queues.putIfAbsent(dest, queue=new ReplyQueue());
+            if(tmp != null)
+                queue=tmp;
+        }
+        queue.queue.add(reply);
+        if(queue.count.getAndIncrement() > 0)
+            return; // another thread is draining the queue and will send our reply, too
+
+        List<Reply> list=new ArrayList<>();
+        int num_drained;
+        do {
+            Reply r;
+            while((r=queue.queue.poll()) != null)
+                list.add(r);
+            num_drained=list.size();
+            sendReplies(dest, list);
+            list.clear();
+        }
+        while(queue.count.addAndGet(-num_drained) > 0);
+    }
+
+    /** Sends a list of replies to dest. Consecutive replies with the same flags are sent in the same message */
+    protected void sendReplies(Address dest, List<Reply> replies) {
+        int start=0;
+        for(int i=1; i <= replies.size(); i++) {
+            if(i == replies.size() || replies.get(i).flags != replies.get(start).flags) {
+                sendReplies(dest, replies.get(start).flags, replies.subList(start, i));
+                start=i;
+            }
+        }
+    }
+
+    protected void sendReplies(Address dest, short flags, List<Reply> replies) {
+        if(replies.isEmpty())
+            return;
+        Message rsp=new Message(dest).setFlag(flags).clearFlag(Message.Flag.RSVP, Message.Flag.SCOPED);
+        if(replies.size() == 1) {
+            Reply reply=replies.get(0);
+            if(reply.buf != null)
+                rsp.setBuffer(reply.buf);
+            sendResponse(rsp, reply.req_id, reply.is_exception);
+            return;
+        }
+
+        int size=Global.INT_SIZE;
+        for(Reply reply: replies)
+            size+=Bits.size(reply.req_id) + Global.BYTE_SIZE + Global.INT_SIZE + (reply.buf != null? reply.buf.getLength() : 0);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+        try {
+            out.writeInt(replies.size());
+            for(Reply reply: replies) {
+                Bits.writeLong(reply.req_id, out);
+                out.writeBoolean(reply.is_exception);
+                if(reply.buf != null) {
+                    out.writeInt(reply.buf.getLength());
+                    out.write(reply.buf.getBuf(), reply.buf.getOffset(), reply.buf.getLength());
+                }
+                else
+                    out.writeInt(0);
+            }
+        }
+        catch(Exception ex) {
+            log.error("failed marshalling " + replies.size() + " rsps to " + dest, ex);
+            return;
+        }
+        rsp.setBuffer(out.getBuffer());
+        prepareResponse(rsp);
+        Header rsp_hdr=new Header(Header.RSP_BATCH, replies.get(0).req_id, false, id);
+        rsp.putHeader(id, rsp_hdr);
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("sending ").append(replies.size()).append(" rsps to ").append(dest));
+        transport.down(new Event(Event.MSG, rsp));
+    }
+
     // .......................................................................
 
 
@@ -546,6 +821,97 @@ public class RequestCorrelator {
     }
 
 
+    /** A marshalled reply, waiting to be sent as part of a batch */
+    protected static class Reply {
+        protected final long    req_id;
+        protected final boolean is_exception;
+        protected final short   flags;
+        protected final Buffer  buf;
+
+        public Reply(long req_id, boolean is_exception, short flags, Buffer buf) {
+            this.req_id=req_id;
+            this.is_exception=is_exception;
+            this.flags=flags;
+            this.buf=buf;
+        }
+    }
+
+    protected static class ReplyQueue {
+        protected final java.util.Queue<Reply> queue=new ConcurrentLinkedQueue<>();
+        protected final AtomicInteger          count=new AtomicInteger(0); // number of replies added but not yet sent
+    }
+
+
+    /**
+     * Collects the replies to a batch of requests. When the replies for all requests of the batch have been
+     * added, they're sent back in a single message
+     */
+    protected class ReplyBatch {
+        protected final Address dest;
+        protected final short   flags;
+        protected final long    first_id;
+        protected final Reply[]   replies;
+        protected final boolean[] added;       // guarded by this
+        protected int             num_replies; // guarded by this
+
+        public ReplyBatch(Address dest, short flags, long first_id, int size) {
+            this.dest=dest;
+            this.flags=flags;
+            this.first_id=first_id;
+            this.replies=new Reply[size];
+            this.added=new boolean[size];
+        }
+
+        public void add(int index, Object reply, boolean is_exception) {
+            Buffer buf;
+            try {
+                buf=marshalReply(reply);
+            }
+            catch(Throwable t) {
+                try {  // this call should succeed (all exceptions are serializable)
+                    buf=marshalReply(t);
+                    is_exception=true;
+                }
+                catch(Throwable tt) {
+                    log.error("failed marshalling rsp (" + reply + "): " + tt);
+                    add(index, null); // the request's caller will time out
+                    return;
+                }
+            }
+            add(index, new Reply(first_id + index, is_exception, flags, buf));
+        }
+
+        public Response response(final int index) {
+            return new Response() {
+                public void send(Object reply, boolean is_exception) {
+                    add(index, reply, is_exception);
+                }
+
+                public void send(Message reply, boolean is_exception) {
+                    add(index, new Reply(first_id + index, is_exception, flags, reply.getRawBuffer() != null?
+                      new Buffer(reply.getRawBuffer(), reply.getOffset(), reply.getLength()) : null));
+                }
+            };
+        }
+
+        protected void add(int index, Reply reply) {
+            synchronized(this) {
+                if(index < 0 || index >= replies.length || added[index])
+                    return;
+                added[index]=true;
+                replies[index]=reply;
+                if(++num_replies < replies.length)
+                    return;
+            }
+            List<Reply> list=new ArrayList<>(replies.length);
+            for(Reply r: replies)
+                if(r != null)
+                    list.add(r);
+            sendReplies(dest, flags, list);
+        }
+    }
+
+
     /**
      * The header for <tt>RequestCorrelator</tt> messages
      */
@@ -553,6 +919,8 @@ public class RequestCorrelator {
         public static final byte REQ     = 0;
         public static final byte RSP     = 1;
         public static final byte EXC_RSP = 2; // exception
+        public static final byte REQ_BATCH = 3; // a number of requests with consecutive IDs, starting at id
+        public static final byte RSP_BATCH = 4; // a number of responses, each carrying its own request ID
 
         /** Type of header: request or reply */
         public byte    type;
@@ -597,6 +965,10 @@ public class RequestCorrelator {
                     break;
                 case EXC_RSP: ret.append("EXC_RSP");
                     break;
+                case REQ_BATCH: ret.append("REQ_BATCH");
+                    break;
+                case RSP_BATCH: ret.append("RSP_BATCH");
+                    break;
                 default: ret.append("<unknown>");
             }
             ret.append(", id=" + id);
@@ -667,9 +1039,9 @@ public class RequestCorrelator {
 
 
     private static class MyProbeHandler implements DiagnosticsHandler.ProbeHandler {
-        private final ConcurrentMap<Long,RspCollector> requests;
+        private final ConcurrentLongMap<RspCollector> requests;
 
-        private MyProbeHandler(ConcurrentMap<Long,RspCollector> requests) {
+        private MyProbeHandler(ConcurrentLongMap<RspCollector> requests) {
             this.requests=requests;
         }
 
@@ -679,10 +1051,13 @@ public class RequestCorrelator {
             Map<String,String> retval=new HashMap<>();
             for(String key: keys) {
                 if(key.equals("requests")) {
-                    StringBuilder sb=new StringBuilder();
-                    for(Map.Entry<Long,RspCollector> entry: requests.entrySet()) {
-                        sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
-                    }
+                    final StringBuilder sb=new StringBuilder();
+                    requests.forEach(new ConcurrentLongMap.Visitor<RspCollector>() {
+                        public boolean visit(long key, RspCollector value) {
+                            sb.append(key).append(": ").append(value).append("\n");
+                            return true;
+                        }
+                    });
                     retval.put("requests", sb.toString());
                     break;
                 }
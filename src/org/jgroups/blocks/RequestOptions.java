@@ -27,6 +27,9 @@ public class RequestOptions {
     /** Allows for filtering of responses */
     protected RspFilter     rsp_filter;
 
+    /** Is passed every response as soon as it arrives, and can terminate the request early */
+    protected RspHandler<?> rsp_handler;
+
     /** The scope of a message, allows for concurrent delivery of messages from the same sender */
     protected short         scope;
 
@@ -73,6 +76,7 @@ public class RequestOptions {
         this.timeout=opts.timeout;
         this.use_anycasting=opts.use_anycasting;
         this.rsp_filter=opts.rsp_filter;
+        this.rsp_handler=opts.rsp_handler;
         this.scope=opts.scope;
         this.flags=opts.flags;
         this.transient_flags=opts.transient_flags;
@@ -137,6 +141,15 @@ public class RequestOptions {
         return this;
     }
 
+    public RspHandler<?> getRspHandler() {
+        return rsp_handler;
+    }
+
+    public RequestOptions setRspHandler(RspHandler<?> rsp_handler) {
+        this.rsp_handler=rsp_handler;
+        return this;
+    }
+
     public short getFlags() {
         return flags;
     }
@@ -5,6 +5,7 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.util.*;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
 
@@ -30,6 +31,13 @@ public class RpcDispatcher extends MessageDispatcher {
 
     protected MethodLookup  method_lookup=null;
 
+    /** Caches the methods returned by method_lookup (keys=method IDs) */
+    protected final Map<Short,Method> methods=Util.createConcurrentMap();
+
+    /** Caches the methods of server_obj found for calls in mode TYPES (keys=method name and argument types). Kept per
+     * dispatcher rather than in a static map, so that the cache doesn't keep application class loaders alive */
+    protected final Map<MethodCall.Signature,Method> signatures=Util.createConcurrentMap();
+
 
     public RpcDispatcher() {
     }
@@ -93,6 +101,8 @@ public class RpcDispatcher extends MessageDispatcher {
 
     public void setServerObject(Object server_obj) {
         this.server_obj=server_obj;
+        methods.clear();
+        signatures.clear();
     }
 
     public MethodLookup getMethodLookup() {
@@ -101,6 +111,7 @@ public class RpcDispatcher extends MessageDispatcher {
 
     public void setMethodLookup(MethodLookup method_lookup) {
         this.method_lookup=method_lookup;
+        methods.clear();
     }
 
 
@@ -162,6 +173,81 @@ public class RpcDispatcher extends MessageDispatcher {
     }
 
 
+    /**
+     * Invokes a number of methods in all members and expects responses from members contained in dests (or all
+     * members if dests is null). The calls are sent in a single message and the responses of each member are
+     * returned in a single message, too. The calls are invoked in the order in which they are listed.
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param calls The methods (plus args) to be invoked
+     * @param options A collection of call options, e.g. sync versus async, timeout etc. Applies to every call.
+     *                Response filters are not supported
+     * @return A list of RspLists, one for each call in calls (in the same order)
+     * @throws Exception If the sending of the message threw an exception. Note that <em>no</em> exception will be
+     *                   thrown if any of the target members threw an exception, but this exception will be in the Rsp
+     *                   object for the particular member in the RspList
+     */
+    public <T> List<RspList<T>> callRemoteMethodsBatch(Collection<Address> dests, List<MethodCall> calls,
+                                                       RequestOptions options) throws Exception {
+        if(dests != null && dests.isEmpty()) { // don't send if dest list is empty
+            if(log.isTraceEnabled())
+                log.trace("destination list of " + calls.size() + " calls is empty: no need to send message");
+            List<RspList<T>> retval=new ArrayList<>(calls.size());
+            for(int i=0; i < calls.size(); i++)
+                retval.add(new RspList<T>());
+            return retval;
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_calls=").append(calls).
+              append(", options=").append(options));
+
+        List<Buffer> bufs=new ArrayList<>(calls.size());
+        for(MethodCall call: calls) {
+            Object buf=req_marshaller != null? req_marshaller.objectToBuffer(call) : Util.objectToByteBuffer(call);
+            bufs.add(buf instanceof Buffer? (Buffer)buf : new Buffer((byte[])buf));
+        }
+
+        List<RspList<T>> retval=super.castMessageBatch(dests, bufs, options);
+        if(log.isTraceEnabled()) log.trace("responses: " + retval);
+        return retval;
+    }
+
+
+    /**
+     * Invokes a method in all members and passes every response to handler as soon as it has been received. The call
+     * doesn't block.
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options; the mode must not be GET_NONE
+     * @param handler Invoked for every response. Returning false terminates the call
+     * @return NotifyingFuture A future which is done when all responses have been received, or the handler
+     *         terminated the call
+     * @throws Exception If the sending of the message threw an exception
+     */
+    public <T> NotifyingFuture<RspList<T>> callRemoteMethodsStreaming(Collection<Address> dests, MethodCall method_call,
+                                                                      RequestOptions options,
+                                                                      RspHandler<T> handler) throws Exception {
+        if(dests != null && dests.isEmpty())
+            return new NullFuture<RspList<T>>(new RspList<T>());
+        return super.castMessageStreaming(dests, createMessage(method_call), options, handler);
+    }
+
+    /**
+     * Invokes a method in all members and returns a stream over the responses, in the order in which they arrive.
+     * The call doesn't block. See {@link RspStream} for details.
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options; the mode must not be GET_NONE
+     * @param high_water_mark The number of buffered responses above which a warning is logged
+     * @return RspStream The responses. Closing the stream before it is exhausted cancels the call
+     * @throws Exception If the sending of the message threw an exception
+     */
+    public <T> RspStream<T> callRemoteMethodsStreaming(Collection<Address> dests, MethodCall method_call,
+                                                       RequestOptions options, int high_water_mark) throws Exception {
+        return super.castMessageStreaming(dests, createMessage(method_call), options, high_water_mark);
+    }
+
+
     /**
      * Invokes a method in all members and expects responses from members contained in dests (or all members if dests is null).
      * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
@@ -305,12 +391,51 @@ public class RpcDispatcher extends MessageDispatcher {
             corr.setMarshaller(rsp_marshaller);
     }
 
+    protected Message createMessage(MethodCall method_call) throws Exception {
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(method_call) : Util.objectToByteBuffer(method_call);
+        Message msg=new Message();
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        return msg;
+    }
+
 
     /**
      * Message contains MethodCall. Execute it against *this* object and return result.
      * Use MethodCall.invoke() to do this. Return result.
      */
     public Object handle(Message req) throws Exception {
+        MethodCall method_call=methodCall(req);
+        return method_call != null? method_call.invoke(server_obj) : null;
+    }
+
+    /**
+     * With a dispatch pool, the method call is unmarshalled in the delivering thread to determine its category, and
+     * then invoked by the pool
+     */
+    public void handle(Message req, Response rsp) throws Exception {
+        DispatchPool pool=dispatch_pool;
+        if(pool == null) {
+            super.handle(req, rsp);
+            return;
+        }
+        MethodCall method_call=methodCall(req);
+        if(method_call == null) {
+            if(rsp != null)
+                rsp.send(null, false);
+            return;
+        }
+        pool.execute(pool.classify(method_call, req), new AsyncInvocation(method_call, req, rsp));
+    }
+
+
+    /**
+     * Unmarshals the MethodCall from a request and resolves its method if the call uses a method ID
+     * @return The method call, or null if no server object is registered or the message is empty
+     */
+    protected MethodCall methodCall(Message req) throws Exception {
         if(server_obj == null) {
             if(log.isErrorEnabled()) log.error("no method handler is registered. Discarding request.");
             return null;
@@ -335,13 +460,54 @@ public class RpcDispatcher extends MessageDispatcher {
         if(method_call.getMode() == MethodCall.ID) {
             if(method_lookup == null)
                 throw new Exception("MethodCall uses ID=" + method_call.getId() + ", but method_lookup has not been set");
-            Method m=method_lookup.findMethod(method_call.getId());
-            if(m == null)
-                throw new Exception("no method found for " + method_call.getId());
+            Method m=methods.get(method_call.getId());
+            if(m == null) {
+                if((m=method_lookup.findMethod(method_call.getId())) == null)
+                    throw new Exception("no method found for " + method_call.getId());
+                methods.put(method_call.getId(), m);
+            }
             method_call.setMethod(m);
         }
-            
-        return method_call.invoke(server_obj);
+        else if(method_call.getMode() == MethodCall.TYPES) {
+            Class<?> cl=server_obj.getClass();
+            MethodCall.Signature sig=new MethodCall.Signature(cl, method_call.getName(), method_call.types);
+            Method m=signatures.get(sig);
+            if(m == null && (m=MethodCall.getMethod(cl, method_call.getName(), method_call.types)) != null)
+                signatures.put(sig, m);
+            if(m != null)
+                method_call.setMethod(m);
+        }
+        return method_call;
+    }
+
+
+    /** Invokes an unmarshalled method call in a thread of the dispatch pool */
+    protected class AsyncInvocation implements Runnable {
+        protected final MethodCall method_call;
+        protected final Message    request;
+        protected final Response   response;
+
+        protected AsyncInvocation(MethodCall method_call, Message request, Response response) {
+            this.method_call=method_call;
+            this.request=request;
+            this.response=response;
+        }
+
+        public void run() {
+            Object  retval;
+            boolean threw_exception=false;
+            try {
+                retval=method_call.invoke(server_obj);
+            }
+            catch(Throwable t) {
+                retval=new InvocationTargetException(t);
+                threw_exception=true;
+            }
+            if(response != null)
+                response.send(retval, threw_exception);
+            else if(threw_exception)
+                log.error(local_addr + ": failed invoking " + method_call + " from " + request.getSrc(), (Throwable)retval);
+        }
     }
 
 
@@ -0,0 +1,29 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.Rsp;
+
+/**
+ * Receives the responses of a group request one by one, as soon as they arrive, and decides when the request is
+ * done. This is a generalization of {@link RspFilter}: the handler is passed every outcome (value, exception,
+ * suspicion or unreachable site) for every target, and can terminate the request at any time.
+ * <p/>
+ * When the handler returns false, the request completes immediately: the caller is unblocked and the request is
+ * removed from the {@link RequestCorrelator}, so responses which arrive later are discarded.
+ * <p/>
+ * The handler is invoked by the threads delivering the responses, possibly concurrently, so implementations need to
+ * be thread-safe. A handler must not block: a blocked delivering thread also holds up all other messages from the same
+ * sender, e.g. the responses to other requests. Work which takes longer should be handed off to a different thread
+ * (see {@link RspStream}).
+ * @author agent
+ * @since  3.6.5
+ */
+public interface RspHandler<T> {
+
+    /**
+     * Called for every target of a request as soon as its response has been received, or the target was suspected
+     * or is unreachable. Invoked at most once per target.
+     * @param rsp The response
+     * @return True if more responses are needed, false if the request is done
+     */
+    boolean handle(Rsp<T> rsp);
+}
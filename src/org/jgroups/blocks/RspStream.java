@@ -0,0 +1,225 @@
+package org.jgroups.blocks;
+
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.FutureListener;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Iterates over the responses of a group request in the order in which they arrive. Responses are buffered until
+ * the consumer fetches them. The threads delivering responses are never blocked, as a blocked delivery thread would
+ * also hold up all other messages from the same sender (e.g. responses to other requests). When the consumer falls
+ * behind and more than high_water_mark responses are buffered, a warning is logged.
+ * <p/>
+ * The iteration ends when all responses required by the request's mode have been received, or when the timeout of the
+ * request elapsed. A consumer which doesn't need more responses calls {@link #close()}, which cancels the request and
+ * removes it from the {@link RequestCorrelator} right away.
+ * <p/>
+ * Instances are not reusable; an instance is returned by
+ * {@link MessageDispatcher#castMessageStreaming(java.util.Collection, org.jgroups.Message, RequestOptions, int)}.
+ * Iteration is done by a single consumer thread.
+ * @author agent
+ * @since  3.6.5
+ */
+public class RspStream<T> implements RspHandler<T>, FutureListener<RspList<T>>, Iterator<Rsp<T>>, Iterable<Rsp<T>>, Closeable {
+    protected final Lock        lock=new ReentrantLock();
+    protected final Condition   not_empty=lock.newCondition();
+
+    @GuardedBy("lock")
+    protected final Queue<Rsp<T>> queue=new ArrayDeque<>(16);
+    protected final int         high_water_mark;
+
+    @GuardedBy("lock")
+    protected boolean           warned;   // a warning about exceeding high_water_mark has been logged
+
+    /** The time (System.nanoTime()) at which the request times out, or 0 if it never times out */
+    protected final long        deadline;
+
+    @GuardedBy("lock")
+    protected boolean           complete; // the request is done: no more responses will be added
+
+    @GuardedBy("lock")
+    protected boolean           closed;   // the consumer closed the stream, or the request timed out
+
+    protected boolean           timed_out;
+    protected Rsp<T>            next;     // the next element returned by next(), accessed only by the consumer
+    protected volatile Future<RspList<T>> future;
+
+    protected static final Log  log=LogFactory.getLog(RspStream.class);
+
+
+    /**
+     * Creates a stream
+     * @param high_water_mark The number of buffered responses above which a warning is logged
+     * @param timeout The max time (ms) to wait for responses. 0 waits until the request completes
+     */
+    public RspStream(int high_water_mark, long timeout) {
+        if(high_water_mark <= 0)
+            throw new IllegalArgumentException("high_water_mark (" + high_water_mark + ") needs to be positive");
+        this.high_water_mark=high_water_mark;
+        this.deadline=timeout > 0? System.nanoTime() + TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS) : 0;
+    }
+
+    public int               highWaterMark()      {return high_water_mark;}
+    public boolean           timedOut()           {return timed_out;}
+    public Future<RspList<T>> future()            {return future;}
+
+    /** Sets the future of the request, which is cancelled when the stream is closed */
+    public RspStream<T> future(Future<RspList<T>> f) {
+        this.future=f;
+        boolean is_closed;
+        lock.lock();
+        try {
+            is_closed=closed;
+        }
+        finally {
+            lock.unlock();
+        }
+        if(is_closed && f != null)
+            f.cancel(false);
+        return this;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a response to the queue. Called by the request; never blocks */
+    public boolean handle(Rsp<T> rsp) {
+        lock.lock();
+        try {
+            if(closed)
+                return false;
+            queue.add(rsp);
+            not_empty.signal();
+            if(queue.size() > high_water_mark && !warned) {
+                warned=true;
+                log.warn("%d responses are buffered (high water mark: %d): the consumer is falling behind",
+                         queue.size(), high_water_mark);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when the request is done; no more responses will be added after this */
+    public void futureDone(Future<RspList<T>> f) {
+        lock.lock();
+        try {
+            complete=true;
+            not_empty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public Iterator<Rsp<T>> iterator() {
+        return this;
+    }
+
+    /**
+     * Blocks until the next response is available, the request completed or the timeout elapsed
+     * @return True if a response is available, false if the stream is exhausted
+     */
+    public boolean hasNext() {
+        if(next != null)
+            return true;
+        boolean expired=false;
+        lock.lock();
+        try {
+            for(;;) {
+                if((next=queue.poll()) != null)
+                    return true;
+                if(complete || closed)
+                    return false;
+                if(deadline == 0)
+                    not_empty.await();
+                else {
+                    long wait_time=deadline - System.nanoTime();
+                    if(wait_time <= 0) {
+                        expired=true;
+                        return false;
+                    }
+                    not_empty.await(wait_time, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            lock.unlock();
+            if(expired) {
+                timed_out=true;
+                close();
+            }
+        }
+    }
+
+    public Rsp<T> next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        Rsp<T> rsp=next;
+        next=null;
+        return rsp;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Closes the stream: buffered responses are dropped, and the request is cancelled (which removes it from the
+     * request correlator)
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if(closed)
+                return;
+            closed=true;
+            queue.clear();
+            not_empty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        Future<RspList<T>> f=future;
+        if(f != null)
+            f.cancel(false);
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("%d buffered responses (high water mark=%d)%s%s", queue.size(), high_water_mark,
+                                 complete? ", complete" : "", closed? ", closed" : "");
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
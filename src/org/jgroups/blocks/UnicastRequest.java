@@ -206,25 +206,34 @@ public class UnicastRequest<T> extends Request {
 
 
     public T get() throws InterruptedException, ExecutionException {
+        boolean expired=false;
         lock.lock();
         try {
+            addWaiter();
             waitForResults(0);
             return getValue();
         }
         finally {
+            expired=removeWaiter();
             lock.unlock();
+            if(expired)
+                checkCompletion(this);
         }
     }
 
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        boolean ok;
+        boolean ok, expired;
         lock.lock();
         try {
+            addWaiter();
             ok=waitForResults(unit.toMillis(timeout));
         }
         finally {
+            expired=removeWaiter();
             lock.unlock();
         }
+        if(expired)
+            checkCompletion(this);
         if(!ok)
             throw new TimeoutException();
         return getValue();
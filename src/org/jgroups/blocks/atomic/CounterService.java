@@ -34,6 +34,21 @@ public class CounterService {
         return counter_prot.getOrCreateCounter(name, initial_value);
     }
 
+    /**
+     * Returns an existing counter, or creates a new one if none exists. The counter reserves ranges of
+     * reservation_size values at the coordinator and hands them out locally, so that incrementAndGet() contacts the
+     * coordinator only once every reservation_size calls. Values are unique, but not ordered across members; see
+     * {@link COUNTER#getOrCreateCounter(String,long,int)} for details
+     * @param name Name of the counter, different counters have to have different names
+     * @param initial_value The initial value of a new counter if there is no existing counter. Ignored
+     * if the counter already exists
+     * @param reservation_size The number of values to reserve at a time
+     * @return The counter implementation
+     */
+    public Counter getOrCreateCounter(String name, long initial_value, int reservation_size) {
+        return counter_prot.getOrCreateCounter(name, initial_value, reservation_size);
+    }
+
   
     /**
      * Deletes a counter instance (on the coordinator)
@@ -51,5 +66,7 @@ public class CounterService {
 
     public String dumpPendingRequests() {return counter_prot.dumpPendingRequests();}
 
+    public String printCounterStats() {return counter_prot.printCounterStats();}
+
 
 }
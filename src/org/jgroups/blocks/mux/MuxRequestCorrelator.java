@@ -1,6 +1,7 @@
 package org.jgroups.blocks.mux;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.jgroups.Address;
 import org.jgroups.Message;
@@ -33,6 +34,12 @@ public class MuxRequestCorrelator extends RequestCorrelator {
         super.sendRequest(requestId, dest_mbrs, msg, coll, options);
     }
 
+    @Override
+    public void sendRequestBatch(long firstId, Collection<Address> dest_mbrs, Message msg, List<? extends RspCollector> colls, RequestOptions options) throws Exception {
+        msg.putHeader(MUX_ID, header);
+        super.sendRequestBatch(firstId, dest_mbrs, msg, colls, options);
+    }
+
     @Override
     public void sendUnicastRequest(long id, Address target, Message msg, RspCollector coll) throws Exception {
         msg.putHeader(MUX_ID, header);
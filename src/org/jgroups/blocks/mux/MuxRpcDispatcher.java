@@ -3,10 +3,12 @@ package org.jgroups.blocks.mux;
 import org.jgroups.*;
 import org.jgroups.blocks.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Buffer;
 import org.jgroups.util.FutureListener;
 import org.jgroups.util.RspList;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * A multiplexed message dispatcher.
@@ -94,4 +96,12 @@ public class MuxRpcDispatcher extends RpcDispatcher {
         RspFilter filter = options.getRspFilter();
         return super.cast(dests, msg, options.setRspFilter(NoMuxHandlerRspFilter.createInstance(filter)), blockForResults, listener);
     }
+
+    @Override
+    protected <T> List<GroupRequest<T>> castBatch(Collection<Address> dests, List<Buffer> requests, RequestOptions options,
+                                                  boolean blockForResults) throws Exception {
+        // the filter is shared by all requests of the batch, which is fine as it has no state
+        RequestOptions opts=new RequestOptions(options).setRspFilter(new NoMuxHandlerRspFilter());
+        return super.castBatch(dests, requests, opts, blockForResults);
+    }
 }
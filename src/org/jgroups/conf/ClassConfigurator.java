@@ -111,6 +111,9 @@ public class ClassConfigurator {
             }
 
             Class clazz=Util.loadClass(tuple.getVal2(), ClassConfigurator.class);
+            if(protocol_names.containsKey(m))
+                throw new Exception("ID " + m + " (" + clazz.getName() + ") is already used by " +
+                                      protocol_names.get(m).getName() + "; make sure that all protocol IDs are unique");
             if(protocol_ids.containsKey(clazz))
                 throw new Exception("ID " + m + " (" + clazz.getName() + ')' +
                                       " is already in protocol-ids map; make sure that all protocol IDs are unique");
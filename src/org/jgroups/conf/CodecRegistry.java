@@ -0,0 +1,92 @@
+package org.jgroups.conf;
+
+import org.jgroups.util.Streamable;
+import org.jgroups.util.TypeCodec;
+import org.jgroups.util.Util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps classes to {@link TypeCodec}s, which marshal instances of those classes in a compact binary format instead of
+ * using Java serialization. Similar to the magic numbers in {@link ClassConfigurator}, every codec is registered
+ * under an ID, which is written instead of the class name. All members of a cluster have to register the same codecs
+ * under the same IDs; members older than 3.6.5 cannot read objects marshalled with a codec. As the registry keeps
+ * the registered classes (and therefore their class loaders) alive, an application should remove its codecs when it is
+ * undeployed.
+ * <p/>
+ * The codecs are used by {@link Util#objectToStream(Object, java.io.DataOutput)} and
+ * {@link Util#objectToByteBuffer(Object)} (and the corresponding read methods) for objects which are neither primitive
+ * types nor {@link org.jgroups.util.Streamable}, e.g. the arguments and return values of RPCs. A codec is only used
+ * for instances of exactly the registered class, not for subclasses.
+ * @author agent
+ * @since  3.6.5
+ */
+public class CodecRegistry {
+    protected static final ConcurrentMap<Class<?>,Entry> classes=Util.createConcurrentMap();
+    protected static final ConcurrentMap<Short,Entry>    ids=Util.createConcurrentMap();
+
+
+    /**
+     * Registers a codec for a class
+     * @param id The ID of the codec. Needs to be >= 0
+     * @param clazz The class
+     * @param codec The codec which marshals instances of clazz
+     * @throws IllegalArgumentException If the ID is negative or already taken, a codec for clazz is already present,
+     *                                  or clazz is a primitive type (or String or byte[]) or {@link Streamable}
+     */
+    public static synchronized <T> void add(short id, Class<T> clazz, TypeCodec<? super T> codec) throws IllegalArgumentException {
+        if(id < 0)
+            throw new IllegalArgumentException("codec ID (" + id + ") must not be negative");
+        if(Util.isPrimitiveType(clazz) || Streamable.class.isAssignableFrom(clazz))
+            throw new IllegalArgumentException("class " + clazz.getName() + " is a primitive type or Streamable, and " +
+                                                 "is always marshalled without a codec");
+        if(ids.containsKey(id))
+            throw new IllegalArgumentException("codec ID " + id + " for class " + clazz.getName() + " is already present");
+        if(classes.containsKey(clazz))
+            throw new IllegalArgumentException("a codec for class " + clazz.getName() + " is already present");
+        Entry entry=new Entry(id, clazz, codec);
+        ids.put(id, entry);
+        classes.put(clazz, entry);
+    }
+
+    public static synchronized void remove(short id) {
+        Entry entry=ids.remove(id);
+        if(entry != null)
+            classes.remove(entry.clazz);
+    }
+
+    /** Returns the entry for a given class, or null if no codec has been registered for the class */
+    public static Entry get(Class<?> clazz) {
+        return classes.get(clazz);
+    }
+
+    /** Returns the entry for a given ID, or null if no codec has been registered under the ID */
+    public static Entry get(short id) {
+        return ids.get(id);
+    }
+
+    public static String print() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Short,Entry> entry: ids.entrySet())
+            sb.append(entry.getKey()).append(":\t").append(entry.getValue().clazz.getName()).append("\n");
+        return sb.toString();
+    }
+
+
+    public static class Entry {
+        protected final short        id;
+        protected final Class<?>     clazz;
+        protected final TypeCodec<?> codec;
+
+        public Entry(short id, Class<?> clazz, TypeCodec<?> codec) {
+            this.id=id;
+            this.clazz=clazz;
+            this.codec=codec;
+        }
+
+        public short        id()    {return id;}
+        public Class<?>     clazz() {return clazz;}
+        public TypeCodec<?> codec() {return codec;}
+    }
+}
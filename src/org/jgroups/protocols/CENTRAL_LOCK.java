@@ -9,6 +9,8 @@ import org.jgroups.util.Owner;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -24,6 +26,16 @@ import java.util.*;
  * B in turn copies all existing locks over to C and - when locks are acquired or released - forwards this
  * information to C as well.
  * <p/>
+ * With lock_caching enabled, a member keeps a lock after unlocking it, and re-acquires it without contacting the
+ * coordinator, until a different owner requests the lock: the coordinator then revokes the lock and the member
+ * releases it (immediately if it is unlocked, else on unlock). Cached locks which haven't been used for
+ * lock_lease_time ms are released, and all cached locks are released when the coordinator changes.<br/>
+ * Locks are cached per owner, which is address:thread-id by default: a lock cached by one thread is revoked when a
+ * different thread of the same member requests it, and the lock is then acquired via the coordinator. Cached locks are
+ * not handed over between threads, as the coordinator knows only the owner which acquired the lock. To share cached
+ * locks between the threads of a member, set use_thread_id_for_lock_owner to false; the lock is then owned by the
+ * member, and doesn't provide mutual exclusion between its threads.
+ * <p/>
  * An alternative is also the {@link org.jgroups.protocols.PEER_LOCK} protocol.
  * @author Bela Ban
  * @since 2.12
@@ -39,6 +51,17 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
       "See https://issues.jboss.org/browse/JGRP-1886 for details")
     protected boolean             use_thread_id_for_lock_owner=true;
 
+    @Property(description="If true, a member keeps a lock after unlocking it until a different owner requests the " +
+      "lock, so that the lock can be re-acquired without contacting the coordinator. Unless use_thread_id_for_lock_owner " +
+      "is false, a different thread of the same member is a different owner")
+    protected boolean             lock_caching=false;
+
+    @Property(description="Time (ms) after which an unused cached lock is released. 0 keeps cached locks until they " +
+      "are revoked")
+    protected long                lock_lease_time=30000;
+
+    protected Future<?>           lease_task;
+
     protected Address             coord;
 
     @ManagedAttribute
@@ -56,6 +79,52 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
         return use_thread_id_for_lock_owner? super.getOwner(): new Owner(local_addr, -1);
     }
 
+    protected boolean cacheLocks() {
+        return lock_caching;
+    }
+
+    public boolean getLockCaching() {
+        return lock_caching;
+    }
+
+    public CENTRAL_LOCK setLockCaching(boolean lock_caching) {
+        this.lock_caching=lock_caching;
+        return this;
+    }
+
+    public long getLockLeaseTime() {
+        return lock_lease_time;
+    }
+
+    public CENTRAL_LOCK setLockLeaseTime(long lock_lease_time) {
+        this.lock_lease_time=lock_lease_time;
+        return this;
+    }
+
+    public void start() throws Exception {
+        super.start();
+        if(lock_caching && lock_lease_time > 0) {
+            final long interval=Math.max(1, lock_lease_time / 2);
+            lease_task=getTransport().getTimer().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    releaseCachedLocks(lock_lease_time);
+                }
+
+                public String toString() {
+                    return CENTRAL_LOCK.class.getSimpleName() + ": LeaseTask (interval=" + interval + " ms)";
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if(lease_task != null) {
+            lease_task.cancel(false);
+            lease_task=null;
+        }
+        super.stop();
+    }
+
     public Address getCoord() {
         return coord;
     }
@@ -145,9 +214,12 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
                 copyLocksTo(copy_locks_list);
         }
 
-        // For all non-acquired client locks, send the GRANT_LOCK request to the new coordinator (if changed)
-        if(old_coord != null && !old_coord.equals(coord))
+        // For all non-acquired client locks, send the GRANT_LOCK request to the new coordinator (if changed). Cached
+        // locks are released, as the new coordinator may not know about them
+        if(old_coord != null && !old_coord.equals(coord)) {
+            releaseCachedLocks(0);
             client_lock_table.resendPendingLockRequests();
+        }
     }
 
     public void lockCreated(String name) {
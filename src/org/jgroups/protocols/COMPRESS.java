@@ -5,23 +5,30 @@ import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.Message;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.MessageBatch;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.zip.DataFormatException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages
  * sent across the wire. Should ideally be layered somewhere above a
- * fragmentation protocol (e.g. FRAG).
+ * fragmentation protocol (e.g. FRAG).<p/>
+ * The compression codec is pluggable ({@link Compressor}): deflate (optionally with a preset dictionary, which helps
+ * with small messages), LZ4 (much faster than deflate) or a custom implementation. A thread takes a compressor from a
+ * pool (or creates a new one if the pool is empty) and returns it when done; up to pool_size idle compressors are
+ * kept, and the others are destroyed, which releases the native memory of deflate. A message batch is uncompressed
+ * with a single compressor. All members have to use the same codec (and dictionary).
  * 
  * @author Bela Ban
  */
@@ -29,45 +36,96 @@ import java.util.zip.Inflater;
 public class COMPRESS extends Protocol {   
 
     /* -----------------------------------------    Properties     -------------------------------------------------- */
+
+    @Property(description="The compression codec: \"deflate\" (java.util.zip), \"lz4\" (faster, but compresses less) " +
+      "or the fully qualified name of a class implementing org.jgroups.util.Compressor. All members have to use the " +
+      "same codec",writable=false)
+    protected String compressor="deflate";
     
     @Property(description="Compression level (from java.util.zip.Deflater) " +
-      "(0=no compression, 1=best speed, 9=best compression). Default is 9")
+      "(0=no compression, 1=best speed, 9=best compression). Default is 9. Used by deflate only")
     protected int compression_level=Deflater.BEST_COMPRESSION; // this is 9
+
+    @Property(description="File (on the classpath or file system) containing a preset dictionary used by deflate, " +
+      "e.g. created by DeflateCompressor.trainDictionary(). All members have to use the same dictionary",writable=false)
+    protected String dictionary;
    
     @Property(description="Minimal payload size of a message (in bytes) for compression to kick in. Default is 500 bytes")
     protected long min_size=500;
     
-    @Property(description="Number of inflaters/deflaters for concurrent processing. Default is 2 ")
-    protected int pool_size=2;
+    @Property(description="Max number of idle compressors kept for reuse. When more threads compress or uncompress " +
+      "concurrently, additional compressors are created and destroyed after use. Default is the number of cores")
+    protected int pool_size=Runtime.getRuntime().availableProcessors();
+
+
+    /* --------------------------------------------- JMX  ---------------------------------------------- */
+    @ManagedAttribute(description="Number of messages compressed")
+    protected final AtomicLong num_compressed=new AtomicLong();
+
+    @ManagedAttribute(description="Number of messages uncompressed")
+    protected final AtomicLong num_uncompressed=new AtomicLong();
+
+    @ManagedAttribute(description="Number of bytes of the compressed messages, before compression")
+    protected final AtomicLong original_bytes=new AtomicLong();
+
+    @ManagedAttribute(description="Number of bytes of the compressed messages, after compression")
+    protected final AtomicLong compressed_bytes=new AtomicLong();
     
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
-    
-    
-    protected BlockingQueue<Deflater> deflater_pool=null;
-    protected BlockingQueue<Inflater> inflater_pool=null;
+    protected static final int MAX_POOLED_SIZE=1 << 16; // larger buffers are not kept by a thread
+
+    protected byte[]                   dict;
+
+    // the idle compressors; created in init()
+    protected BlockingQueue<Context>   pool;
 
     
 
     public COMPRESS() {      
     }
 
+    public COMPRESS setCompressor(String compressor) {this.compressor=compressor; return this;}
+    public COMPRESS setDictionary(byte[] dict)       {this.dict=dict; return this;}
+    public COMPRESS setMinSize(long min_size)        {this.min_size=min_size; return this;}
+    public COMPRESS setPoolSize(int pool_size)       {this.pool_size=pool_size; return this;}
+
+    @ManagedAttribute(description="Number of idle compressors in the pool")
+    public int getIdleCompressors() {
+        BlockingQueue<Context> tmp=pool;
+        return tmp != null? tmp.size() : 0;
+    }
+
+    @ManagedAttribute(description="Ratio of the size of compressed messages after and before compression")
+    public double getCompressionRatio() {
+        long original=original_bytes.get();
+        return original > 0? compressed_bytes.get() / (double)original : 0;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_compressed.set(0);
+        num_uncompressed.set(0);
+        original_bytes.set(0);
+        compressed_bytes.set(0);
+    }
+
 
     public void init() throws Exception {
-        deflater_pool=new ArrayBlockingQueue<>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            deflater_pool.add(new Deflater(compression_level));
-        inflater_pool=new ArrayBlockingQueue<>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            inflater_pool.add(new Inflater());
+        if(dictionary != null && dict == null)
+            dict=readDictionary(dictionary);
+        if(pool_size < 1)
+            throw new IllegalArgumentException("pool_size (" + pool_size + ") must be >= 1");
+        createCompressor().destroy(); // fails if the codec is invalid
+        pool=new ArrayBlockingQueue<>(pool_size);
     }
 
     public void destroy() {
-        for(Deflater deflater: deflater_pool)
-            deflater.end();
-        for(Inflater inflater: inflater_pool)
-            inflater.end();
-    }   
+        if(pool == null)
+            return;
+        for(Context ctx; (ctx=pool.poll()) != null;)
+            ctx.compressor.destroy();
+    }
 
 
     /**
@@ -82,38 +140,31 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             int length=msg.getLength(); // takes offset/length (if set) into account
             if(length >= min_size) {
-                byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
-                byte[] compressed_payload=new byte[length];
-                Deflater deflater=null;
+                Context ctx=acquire();
+                byte[] compressed;
+                int compressed_size;
                 try {
-                    deflater=deflater_pool.take();
-                    deflater.reset();
-                    deflater.setInput(payload, msg.getOffset(), length);
-                    deflater.finish();
-                    deflater.deflate(compressed_payload);
-                    int compressed_size=deflater.getTotalOut();
-
-                    if(compressed_size < length ) { // JGRP-1000
-                        byte[] new_payload=new byte[compressed_size];
-                        System.arraycopy(compressed_payload,0,new_payload,0,compressed_size);
-                        Message copy=msg.copy(false).setBuffer(new_payload).putHeader(this.id,new CompressHeader(length));
-                        if(log.isTraceEnabled())
-                            log.trace("down(): compressed payload from " + length + " bytes to " + compressed_size + " bytes");
-                        return down_prot.down(new Event(Event.MSG, copy));
-                    }
-                    else {
-                        if(log.isTraceEnabled())
-                            log.trace("down(): skipping compression since the compressed message (" + compressed_size +
-                                        ") is not smaller than the original (" + length + ")");
-                    }
-                }
-                catch(InterruptedException e) {
-                    Thread.currentThread().interrupt(); // set interrupt flag again
-                    throw new RuntimeException(e);
+                    byte[] buf=ctx.buffer(length);
+                    // here we get the ref so we can avoid copying
+                    compressed_size=ctx.compressor.compress(msg.getRawBuffer(), msg.getOffset(), length, buf, 0, length);
+                    compressed=compressed_size >= 0 && compressed_size < length? Arrays.copyOf(buf, compressed_size) : null;
                 }
                 finally {
-                    if(deflater != null)
-                        deflater_pool.offer(deflater);
+                    release(ctx);
+                }
+                if(compressed != null) { // JGRP-1000
+                    Message copy=msg.copy(false).setBuffer(compressed).putHeader(this.id,new CompressHeader(length));
+                    num_compressed.incrementAndGet();
+                    original_bytes.addAndGet(length);
+                    compressed_bytes.addAndGet(compressed_size);
+                    if(log.isTraceEnabled())
+                        log.trace("down(): compressed payload from " + length + " bytes to " + compressed_size + " bytes");
+                    return down_prot.down(new Event(Event.MSG, copy));
+                }
+                else {
+                    if(log.isTraceEnabled())
+                        log.trace("down(): skipping compression since the compressed message is not smaller than the " +
+                                    "original (" + length + ")");
                 }
             }
         }
@@ -131,7 +182,14 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
             if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size);
+                Context ctx=acquire();
+                Message uncompressed_msg;
+                try {
+                    uncompressed_msg=uncompress(ctx.compressor, msg, hdr.original_size);
+                }
+                finally {
+                    release(ctx);
+                }
                 if(uncompressed_msg != null) {
                     if(log.isTraceEnabled())
                         log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
@@ -143,52 +201,107 @@ public class COMPRESS extends Protocol {
     }
 
     public void up(MessageBatch batch) {
-        for(Message msg: batch) {
-            CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
-            if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size);
-                if(uncompressed_msg != null) {
-                    if(log.isTraceEnabled())
-                        log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
-                    batch.replace(msg, uncompressed_msg); // replace msg in batch with uncompressed_msg
+        Context ctx=null; // acquired once for the entire batch
+        try {
+            for(Message msg: batch) {
+                CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
+                if(hdr != null) {
+                    if(ctx == null)
+                        ctx=acquire();
+                    Message uncompressed_msg=uncompress(ctx.compressor, msg, hdr.original_size);
+                    if(uncompressed_msg != null) {
+                        if(log.isTraceEnabled())
+                            log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
+                        batch.replace(msg, uncompressed_msg); // replace msg in batch with uncompressed_msg
+                    }
                 }
             }
         }
+        finally {
+            if(ctx != null)
+                release(ctx);
+        }
 
         if(!batch.isEmpty())
             up_prot.up(batch);
     }
 
     /** Returns a new message as a result of uncompressing msg, or null if msg couldn't be uncompressed */
-    protected Message uncompress(Message msg, int original_size) {
+    protected Message uncompress(Compressor comp, Message msg, int original_size) {
         byte[] compressed_payload=msg.getRawBuffer();
         if(compressed_payload != null && compressed_payload.length > 0) {
             byte[] uncompressed_payload=new byte[original_size];
-            Inflater inflater=null;
             try {
-                inflater=inflater_pool.take();
-                inflater.reset();
-                inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
-                try {
-                    inflater.inflate(uncompressed_payload);
-                    // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
-                    return msg.copy(false).setBuffer(uncompressed_payload);
-                }
-                catch(DataFormatException e) {
-                    log.error(Util.getMessage("CompressionFailure"), e);
-                }
+                comp.uncompress(compressed_payload, msg.getOffset(), msg.getLength(), uncompressed_payload, 0, original_size);
+                num_uncompressed.incrementAndGet();
+                // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
+                return msg.copy(false).setBuffer(uncompressed_payload);
             }
-            catch(InterruptedException e) {
-                Thread.currentThread().interrupt(); // set the interrupt bit again, so caller can handle it
-            }
-            finally {
-                if(inflater != null)
-                    inflater_pool.offer(inflater);
+            catch(Exception e) {
+                log.error(Util.getMessage("CompressionFailure"), e);
             }
         }
         return null;
     }
 
+    /** Takes an idle compressor from the pool, or creates a new one if the pool is empty */
+    protected Context acquire() {
+        Context ctx=pool.poll();
+        if(ctx != null)
+            return ctx;
+        try {
+            return new Context(createCompressor());
+        }
+        catch(Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Returns a compressor to the pool, or destroys it if the pool is full */
+    protected void release(Context ctx) {
+        if(!pool.offer(ctx))
+            ctx.compressor.destroy();
+    }
+
+    protected Compressor createCompressor() throws Exception {
+        if(compressor.equalsIgnoreCase("deflate"))
+            return new DeflateCompressor(compression_level, dict);
+        if(compressor.equalsIgnoreCase("lz4"))
+            return new LZ4Compressor();
+        return (Compressor)Util.loadClass(compressor, getClass()).newInstance();
+    }
+
+    protected static byte[] readDictionary(String name) throws Exception {
+        InputStream in=Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+        if(in == null)
+            in=new FileInputStream(name);
+        try {
+            return Util.readFileContents(in);
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
+
+    /** A compressor and its buffer, used by one thread at a time */
+    protected static class Context {
+        protected final Compressor compressor;
+        protected byte[]           buf;
+
+        protected Context(Compressor compressor) {
+            this.compressor=compressor;
+        }
+
+        protected byte[] buffer(int size) {
+            if(buf != null && buf.length >= size)
+                return buf;
+            byte[] tmp=new byte[size];
+            if(size <= MAX_POOLED_SIZE)
+                buf=tmp;
+            return tmp;
+        }
+    }
 
 
     public static class CompressHeader extends Header {
@@ -15,10 +15,15 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Protocol which is used by {@link org.jgroups.blocks.atomic.CounterService} to provide a distributed atomic counter
+ * <p/>
+ * All updates are sent to the coordinator. To reduce the number of requests, concurrent addAndGet() calls for the same
+ * counter from the same member are coalesced into a single request (coalesce_updates), and a counter can reserve a
+ * range of values which are then handed out locally (see {@link #getOrCreateCounter(String,long,int)}).
  * @author Bela Ban
  * @since 3.0.0
  */
@@ -37,6 +42,13 @@ public class COUNTER extends Protocol {
     @Property(description="Number of backup coordinators. Modifications are asynchronously sent to all backup coordinators")
     protected int num_backups=1;
 
+    @Property(description="If true, concurrent addAndGet() calls for the same counter from the same member are " +
+      "coalesced into a single request to the coordinator")
+    protected boolean coalesce_updates;
+
+    @ManagedAttribute(description="Number of updates which were sent to the coordinator as part of another update")
+    protected final AtomicLong num_coalesced_updates=new AtomicLong();
+
     protected Address local_addr;
 
     /** Set to true during reconciliation process, will cause all requests to be discarded */
@@ -60,6 +72,14 @@ public class COUNTER extends Protocol {
     // (client side) pending requests
     protected final Map<Owner,Tuple<Request,Promise>> pending_requests=Util.createConcurrentMap(20);
 
+    // (client side) coalesces concurrent updates of a counter into a single request
+    protected final ConcurrentMap<String,UpdateBatcher> batchers=Util.createConcurrentMap(20);
+
+    // (client side) statistics, per counter
+    protected final ConcurrentMap<String,CounterStats> counter_stats=Util.createConcurrentMap(20);
+
+    protected Future<?> rate_task;
+
     protected static final byte REQUEST  = 1;
     protected static final byte RESPONSE = 2;
     
@@ -115,6 +135,15 @@ public class COUNTER extends Protocol {
         this.bypass_bundling=bypass_bundling;
     }
 
+    public boolean getCoalesceUpdates() {
+        return coalesce_updates;
+    }
+
+    public COUNTER setCoalesceUpdates(boolean coalesce_updates) {
+        this.coalesce_updates=coalesce_updates;
+        return this;
+    }
+
 
     @ManagedAttribute
     public String getAddress() {
@@ -132,6 +161,56 @@ public class COUNTER extends Protocol {
     }
 
 
+    public void start() throws Exception {
+        super.start();
+        rate_task=getTransport().getTimer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for(CounterStats stats: counter_stats.values())
+                    stats.computeRate();
+            }
+
+            public String toString() {
+                return COUNTER.class.getSimpleName() + ": RateTask";
+            }
+        }, 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if(rate_task != null) {
+            rate_task.cancel(false);
+            rate_task=null;
+        }
+        super.stop();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_coalesced_updates.set(0);
+        for(CounterStats stats: counter_stats.values())
+            stats.reset();
+    }
+
+    /**
+     * Returns a counter which reserves ranges of reservation_size values at the coordinator, and hands them out
+     * locally: incrementAndGet() and addAndGet() (with 0 < delta <= reservation_size) only contact the coordinator
+     * when the current range is used up. This is useful for ID generators: the values returned are unique across the
+     * cluster, but values returned by different members are not ordered, and unused values of a range are lost
+     * (e.g. when a member leaves). get() returns the value at the coordinator, which includes reserved values.<br/>
+     * As the values already reserved would be handed out again by the coordinator, the counter must not be decremented:
+     * addAndGet() with a negative delta and decrementAndGet() throw an IllegalArgumentException. This applies only to
+     * the returned counter; other members must not decrement the counter either.
+     * @param name The name of the counter
+     * @param initial_value The initial value of a new counter
+     * @param reservation_size The number of values to reserve at a time. 1 doesn't reserve any values.
+     * @return The counter
+     */
+    public Counter getOrCreateCounter(String name, long initial_value, int reservation_size) {
+        if(reservation_size < 1)
+            throw new IllegalArgumentException("reservation_size (" + reservation_size + ") must be >= 1");
+        getOrCreateCounter(name, initial_value);
+        return reservation_size == 1? new CounterImpl(name) : new ReservingCounter(name, reservation_size);
+    }
+
     public Counter getOrCreateCounter(String name, long initial_value) {
         if(local_addr == null)
             throw new IllegalArgumentException("the channel needs to be connected before creating or getting a counter");
@@ -154,6 +233,8 @@ public class COUNTER extends Protocol {
         sendRequest(coord, req);
         if(!local_addr.equals(coord))
             counters.remove(name);
+        batchers.remove(name);
+        counter_stats.remove(name);
     }
 
 
@@ -382,6 +463,15 @@ public class COUNTER extends Protocol {
         return sb.toString();
     }
 
+    @ManagedOperation(description="Dumps the number of operations, requests to the coordinator, reservations and " +
+      "the rate (operations/sec in the last second) of all counters used by this member")
+    public String printCounterStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String,CounterStats> entry: counter_stats.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
     @ManagedOperation(description="Dumps all pending requests")
     public String dumpPendingRequests() {
         StringBuilder sb=new StringBuilder();
@@ -428,6 +518,26 @@ public class COUNTER extends Protocol {
         return new Owner(local_addr, Thread.currentThread().getId());
     }
 
+    protected CounterStats getStats(String name) {
+        CounterStats stats=counter_stats.get(name);
+        if(stats == null) {
+            CounterStats tmp=counter_stats.putIfAbsent(name, stats=new CounterStats());
+            if(tmp != null)
+                stats=tmp;
+        }
+        return stats;
+    }
+
+    protected UpdateBatcher getBatcher(String name) {
+        UpdateBatcher batcher=batchers.get(name);
+        if(batcher == null) {
+            UpdateBatcher tmp=batchers.putIfAbsent(name, batcher=new UpdateBatcher(name));
+            if(tmp != null)
+                batcher=tmp;
+        }
+        return batcher;
+    }
+
 
     protected void sendRequest(Address dest, Request req) {
         try {
@@ -624,10 +734,12 @@ public class COUNTER extends Protocol {
 
 
     protected class CounterImpl implements Counter {
-        protected final String  name;
+        protected final String       name;
+        protected final CounterStats stats;
 
         protected CounterImpl(String name) {
             this.name = name;
+            this.stats=getStats(name);
         }
 
         public String getName() {
@@ -641,6 +753,7 @@ public class COUNTER extends Protocol {
 
         @Override
         public void set(long new_value) {
+            stats.num_ops.incrementAndGet();
             if(local_addr.equals(coord)) {
                 VersionedValue val=getCounter(name);
                 val.set(new_value);
@@ -648,6 +761,7 @@ public class COUNTER extends Protocol {
                     updateBackups(name, val.value, val.version);
                 return;
             }
+            stats.num_requests.incrementAndGet();
             Owner owner=getOwner();
             Request req=new SetRequest(owner, name, new_value);
             Promise<long[]> promise=new Promise<>();
@@ -664,6 +778,7 @@ public class COUNTER extends Protocol {
 
         @Override
         public boolean compareAndSet(long expect, long update) {
+            stats.num_ops.incrementAndGet();
             if(local_addr.equals(coord)) {
                 VersionedValue val=getCounter(name);
                 boolean retval=val.compareAndSet(expect, update) != null;
@@ -671,6 +786,7 @@ public class COUNTER extends Protocol {
                     updateBackups(name, val.value, val.version);
                 return retval;
             }
+            stats.num_requests.incrementAndGet();
             Owner owner=getOwner();
             Request req=new CompareAndSetRequest(owner, name, expect, update);
             Promise<long[]> promise=new Promise<>();
@@ -700,6 +816,11 @@ public class COUNTER extends Protocol {
 
         @Override
         public long addAndGet(long delta) {
+            stats.num_ops.incrementAndGet();
+            return _addAndGet(delta);
+        }
+
+        protected long _addAndGet(long delta) {
             if(local_addr.equals(coord)) {
                 VersionedValue val=getCounter(name);
                 long retval=val.addAndGet(delta)[0];
@@ -707,19 +828,7 @@ public class COUNTER extends Protocol {
                     updateBackups(name, val.value, val.version);
                 return retval;
             }
-            Owner owner=getOwner();
-            Request req=new AddAndGetRequest(owner, name, delta);
-            Promise<long[]> promise=new Promise<>();
-            pending_requests.put(owner, new Tuple<Request,Promise>(req, promise));
-            sendRequest(coord, req);
-            Object obj=promise.getResultWithTimeout(timeout);
-            if(obj instanceof Throwable)
-                throw new IllegalStateException((Throwable)obj);
-            long[] result=(long[])obj;
-            long value=result[0], version=result[1];
-            if(!coord.equals(local_addr))
-                counters.put(name, new VersionedValue(value, version));
-            return value;
+            return coalesce_updates? getBatcher(name).addAndGet(delta) : sendAddAndGet(name, delta);
         }
 
         @Override
@@ -730,6 +839,187 @@ public class COUNTER extends Protocol {
     }
 
 
+    /** Sends an AddAndGetRequest to the coordinator and returns the new value */
+    protected long sendAddAndGet(String name, long delta) {
+        getStats(name).num_requests.incrementAndGet();
+        Owner owner=getOwner();
+        Request req=new AddAndGetRequest(owner, name, delta);
+        Promise<long[]> promise=new Promise<>();
+        pending_requests.put(owner, new Tuple<Request,Promise>(req, promise));
+        sendRequest(coord, req);
+        Object obj=promise.getResultWithTimeout(timeout);
+        if(obj instanceof Throwable)
+            throw new IllegalStateException((Throwable)obj);
+        long[] result=(long[])obj;
+        long value=result[0], version=result[1];
+        if(!coord.equals(local_addr))
+            counters.put(name, new VersionedValue(value, version));
+        return value;
+    }
+
+
+    /** Hands out values from a range reserved at the coordinator. The counter can only be incremented */
+    protected class ReservingCounter extends CounterImpl {
+        protected final int reservation_size;
+        protected long      current, last; // the values in range [current+1 .. last] haven't yet been handed out
+
+        protected ReservingCounter(String name, int reservation_size) {
+            super(name);
+            this.reservation_size=reservation_size;
+        }
+
+        @Override
+        public long addAndGet(long delta) {
+            if(delta < 0)
+                throw new IllegalArgumentException("counter " + name + " reserves values and cannot be decremented (delta="
+                                                     + delta + ")");
+            if(delta == 0 || delta > reservation_size)
+                return super.addAndGet(delta);
+            stats.num_ops.incrementAndGet();
+            synchronized(this) {
+                if(last - current < delta) {
+                    last=_addAndGet(reservation_size);
+                    current=last - reservation_size;
+                    stats.num_reservations.incrementAndGet();
+                }
+                return current+=delta;
+            }
+        }
+
+        @Override
+        public void set(long new_value) {
+            super.set(new_value);
+            clearRange();
+        }
+
+        @Override
+        public boolean compareAndSet(long expect, long update) {
+            boolean retval=super.compareAndSet(expect, update);
+            if(retval)
+                clearRange();
+            return retval;
+        }
+
+        protected synchronized void clearRange() {
+            current=last;
+        }
+
+        @Override
+        public String toString() {
+            synchronized(this) {
+                return super.toString() + ", reserved: " + (last - current);
+            }
+        }
+    }
+
+
+    /**
+     * Coalesces concurrent addAndGet() calls for the same counter: while a request is in progress, the deltas of
+     * other callers are queued, and then sent as a single request. Each caller gets the value the counter would have
+     * had if the deltas had been applied one by one, in the order of arrival
+     */
+    protected class UpdateBatcher {
+        protected final String name;
+        protected List<Update> queue=new ArrayList<>();
+        protected boolean      sending;
+
+        protected UpdateBatcher(String name) {
+            this.name=name;
+        }
+
+        protected long addAndGet(long delta) {
+            Update update=new Update(delta);
+            List<Update> batch;
+            synchronized(this) {
+                queue.add(update);
+                boolean interrupted=false;
+                while(sending && !update.done) {
+                    try {
+                        this.wait();
+                    }
+                    catch(InterruptedException e) {
+                        interrupted=true; // like Promise.getResultWithTimeout(), we don't throw an exception
+                    }
+                }
+                if(interrupted)
+                    Thread.currentThread().interrupt();
+                if(update.done)
+                    return update.get();
+                // we're the sender of the next batch, which includes all updates queued so far
+                sending=true;
+                batch=queue;
+                queue=new ArrayList<>();
+            }
+
+            try {
+                long sum=0;
+                for(Update u: batch)
+                    sum+=u.delta;
+                if(batch.size() > 1)
+                    num_coalesced_updates.addAndGet(batch.size() - 1);
+                long value=sendAddAndGet(name, sum), tmp=value - sum;
+                for(Update u: batch)
+                    u.value=tmp+=u.delta;
+            }
+            catch(RuntimeException ex) {
+                for(Update u: batch)
+                    u.ex=ex;
+            }
+            finally {
+                synchronized(this) {
+                    for(Update u: batch)
+                        u.done=true;
+                    sending=false;
+                    this.notifyAll();
+                }
+            }
+            return update.get();
+        }
+    }
+
+    protected static class Update {
+        protected final long       delta;
+        protected long             value;
+        protected RuntimeException ex;
+        protected boolean          done;
+
+        protected Update(long delta) {
+            this.delta=delta;
+        }
+
+        protected long get() {
+            if(ex != null)
+                throw ex;
+            return value;
+        }
+    }
+
+
+    protected static class CounterStats {
+        protected final AtomicLong num_ops=new AtomicLong();          // operations invoked on this member
+        protected final AtomicLong num_requests=new AtomicLong();     // requests sent to the coordinator
+        protected final AtomicLong num_reservations=new AtomicLong(); // ranges reserved
+        protected long             last_ops;
+        protected volatile long    rate;                              // ops/sec in the last second
+
+        protected synchronized void computeRate() {
+            long ops=num_ops.get();
+            rate=ops - last_ops;
+            last_ops=ops;
+        }
+
+        protected synchronized void reset() {
+            num_ops.set(0);
+            num_requests.set(0);
+            num_reservations.set(0);
+            last_ops=rate=0;
+        }
+
+        public String toString() {
+            return String.format("ops=%d, requests=%d, reservations=%d, rate=%d ops/sec",
+                                 num_ops.get(), num_requests.get(), num_reservations.get(), rate);
+        }
+    }
 
 
     protected abstract static class Request implements Streamable {
@@ -0,0 +1,406 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts and authenticates messages with AES in Galois/Counter Mode (AES-GCM). Contrary to {@link ENCRYPT}, a
+ * receiver not only cannot read a message without the key, but also detects (and drops) messages which were modified
+ * in transit.<p/>
+ * All members have to use the same secret key, which is read from a keystore (key_store_name) or set with
+ * {@link #setSecretKey(SecretKey)} before the channel is connected. Keys are not exchanged between members, use
+ * {@link ENCRYPT} for that. The key can be changed at runtime; messages encrypted with the previous key are still
+ * decrypted, so that messages in flight during a key change are not lost.<p/>
+ * Every message is encrypted with a random 96-bit IV. As the key is shared by all members, and random IVs may collide,
+ * the key should be changed before the members of a cluster have sent a total of 2^32 messages with it (NIST SP
+ * 800-38D).<p/>
+ * The source and destination addresses of a message, and the key version and flags of its header, are authenticated
+ * as additional data, so a message cannot be replayed with a different sender or receiver. The other headers are only
+ * protected when the entire message is encrypted; otherwise they are neither encrypted nor authenticated, and can be
+ * modified in transit. Messages with a payload which are received unencrypted are dropped; only messages with an
+ * empty payload are sent unencrypted (unless the entire message is encrypted).<p/>
+ * Every thread has its own cipher, so encryption and decryption don't contend for a lock. The payload is encrypted
+ * directly into the buffer of the message sent down and decrypted directly into the buffer of the message passed up,
+ * without intermediate copies. When the entire message is encrypted, it is serialized into, and decrypted into, a
+ * buffer reused by the current thread. Message batches are decrypted in place.<p/>
+ * Requires a security provider which supports AES/GCM/NoPadding, e.g. the default provider of Java 8 or later.
+ * @author agent
+ * @since  3.6.5
+ */
+@Experimental
+@MBean(description="Protocol which encrypts and authenticates cluster traffic with AES-GCM")
+public class ENCRYPT_GCM extends Protocol {
+    protected static final String TRANSFORMATION="AES/GCM/NoPadding";
+    protected static final int    IV_LENGTH=12;        // bytes, the size recommended for GCM
+    protected static final int    TAG_LENGTH=16;       // bytes, the authentication tag appended to the ciphertext
+    protected static final int    MAX_POOLED_SIZE=1 << 16; // larger buffers are not kept by a thread
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+    @Property(description="Cryptographic Service Provider. The default provider is used when not set")
+    protected String  provider;
+
+    @Property(description="File on classpath that contains keystore repository")
+    protected String  key_store_name;
+
+    @Property(description="Password used to check the integrity/unlock the keystore. Change the default",
+              exposeAsManagedAttribute=false)
+    protected String  store_password="changeit"; // JDK default
+
+    @Property(description="Password for recovering the key. Same as store_password when not set",
+              exposeAsManagedAttribute=false)
+    protected String  key_password;
+
+    @Property(description="Alias used for recovering the key. Change the default",exposeAsManagedAttribute=false)
+    protected String  alias="mykey"; // JDK default
+
+    @Property(description="Encrypt the entire message (including headers), or only the payload")
+    protected boolean encrypt_entire_message;
+
+
+    /* --------------------------------------------- JMX  ---------------------------------------------- */
+    @ManagedAttribute(description="Number of messages encrypted")
+    protected final AtomicLong num_encrypted=new AtomicLong();
+
+    @ManagedAttribute(description="Number of messages decrypted")
+    protected final AtomicLong num_decrypted=new AtomicLong();
+
+    @ManagedAttribute(description="Number of messages dropped because they could not be decrypted or authenticated")
+    protected final AtomicLong num_decryption_failures=new AtomicLong();
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+    protected Address                   local_addr;
+
+    protected volatile VersionedKey     current_key, previous_key;
+
+    protected final ThreadLocal<CipherContext> contexts=new ThreadLocal<CipherContext>() {
+        protected CipherContext initialValue() {
+            try {
+                return new CipherContext(createCipher());
+            }
+            catch(Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+
+    public ENCRYPT_GCM setSecretKey(SecretKey key) throws Exception {
+        VersionedKey tmp=new VersionedKey(key), cur=current_key;
+        if(cur != null && cur.version == tmp.version)
+            return this;
+        previous_key=cur;
+        current_key=tmp;
+        return this;
+    }
+
+    public ENCRYPT_GCM setEncryptEntireMessage(boolean flag) {this.encrypt_entire_message=flag; return this;}
+    public boolean     encryptEntireMessage()                {return encrypt_entire_message;}
+
+    @ManagedAttribute(description="The version of the current key")
+    public int getKeyVersion() {
+        VersionedKey key=current_key;
+        return key != null? key.version : 0;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_encrypted.set(0);
+        num_decrypted.set(0);
+        num_decryption_failures.set(0);
+    }
+
+    public void init() throws Exception {
+        super.init();
+        createCipher(); // fails if the provider doesn't support AES-GCM
+        if(key_store_name != null)
+            setSecretKey(readKey());
+        if(current_key == null)
+            throw new IllegalStateException("no secret key: either key_store_name has to be set, or setSecretKey() " +
+                                              "has to be called before the channel is connected");
+    }
+
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.MSG:
+                Message msg=(Message)evt.getArg();
+                if(msg.getLength() == 0 && !encrypt_entire_message)
+                    break;
+                try {
+                    Message encrypted=encrypt(msg);
+                    num_encrypted.incrementAndGet();
+                    return down_prot.down(new Event(Event.MSG, encrypted));
+                }
+                catch(Exception ex) {
+                    log.warn("%s: failed encrypting message to %s: %s", local_addr, msg.getDest(), ex);
+                    return null;
+                }
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            GcmHeader hdr=(GcmHeader)msg.getHeader(id);
+            if(hdr != null) {
+                Message decrypted=decrypt(msg, hdr);
+                return decrypted != null? up_prot.up(new Event(Event.MSG, decrypted)) : null;
+            }
+            if(!isUnencryptedAllowed(msg))
+                return null;
+        }
+        return up_prot.up(evt);
+    }
+
+
+    public void up(MessageBatch batch) {
+        for(Message msg: batch) {
+            GcmHeader hdr=(GcmHeader)msg.getHeader(id);
+            if(hdr != null)
+                batch.replace(msg, decrypt(msg, hdr)); // removes msg if it could not be decrypted
+            else if(!isUnencryptedAllowed(msg))
+                batch.remove(msg);
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    /**
+     * Only messages with an empty payload are sent without a header (see {@link #down(Event)}), so a message with a
+     * payload but without a header was not sent by a member and is dropped
+     */
+    protected boolean isUnencryptedAllowed(Message msg) {
+        if(msg.getLength() == 0)
+            return true;
+        num_decryption_failures.incrementAndGet();
+        log.warn("%s: dropping unencrypted message from %s", local_addr, msg.getSrc());
+        return false;
+    }
+
+
+    protected Message encrypt(Message msg) throws Exception {
+        VersionedKey key=current_key;
+        CipherContext ctx=contexts.get();
+        GcmHeader hdr=new GcmHeader(encrypt_entire_message, key.version, ctx.nextIV());
+        Cipher cipher=ctx.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, key.key, new GCMParameterSpec(TAG_LENGTH * 8, hdr.iv));
+        if(msg.getSrc() == null) // the source is authenticated, so it has to be set before the transport does
+            msg.setSrc(local_addr);
+        updateAAD(ctx, msg.getSrc(), msg.getDest(), hdr);
+
+        if(!encrypt_entire_message) {
+            byte[] encrypted=new byte[cipher.getOutputSize(msg.getLength())];
+            int len=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), encrypted, 0);
+            // the original message is not modified (except for the source), as it may be retransmitted
+            return msg.copy(false).setBuffer(encrypted, 0, len).putHeader(id, hdr);
+        }
+
+        ByteArrayDataOutputStream out=ctx.output();
+        msg.writeTo(out);
+        byte[] encrypted=new byte[cipher.getOutputSize(out.position())];
+        int len=cipher.doFinal(out.buffer(), 0, out.position(), encrypted, 0);
+        // the headers are not copied: they're part of the ciphertext and will be restored by the receiver
+        return msg.copy(false, false).setBuffer(encrypted, 0, len).putHeader(id, hdr);
+    }
+
+
+    /** Returns the decrypted message, or null if msg was encrypted with an unknown key or failed authentication */
+    protected Message decrypt(Message msg, GcmHeader hdr) {
+        VersionedKey key=keyFor(hdr.key_version);
+        if(key == null) {
+            num_decryption_failures.incrementAndGet();
+            log.warn("%s: dropping message from %s: key version %d is unknown", local_addr, msg.getSrc(), hdr.key_version);
+            return null;
+        }
+        try {
+            CipherContext ctx=contexts.get();
+            Cipher cipher=ctx.cipher;
+            cipher.init(Cipher.DECRYPT_MODE, key.key, new GCMParameterSpec(TAG_LENGTH * 8, hdr.iv));
+            updateAAD(ctx, msg.getSrc(), msg.getDest(), hdr);
+            Message retval;
+            if(!hdr.encryptEntireMessage()) {
+                byte[] decrypted=new byte[cipher.getOutputSize(msg.getLength())];
+                int len=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), decrypted, 0);
+                // the received message is not modified, as it may be retransmitted
+                retval=msg.copy(false).setBuffer(decrypted, 0, len);
+            }
+            else {
+                // the payload is copied out of the buffer when the message is read, so the buffer can be reused
+                byte[] buf=ctx.buffer(cipher.getOutputSize(msg.getLength()));
+                int len=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), buf, 0);
+                retval=new Message(false);
+                retval.readFrom(new ByteArrayDataInputStream(buf, 0, len));
+                if(retval.getDest() == null)
+                    retval.setDest(msg.getDest());
+                if(retval.getSrc() == null)
+                    retval.setSrc(msg.getSrc());
+            }
+            num_decrypted.incrementAndGet();
+            return retval;
+        }
+        catch(Exception ex) {
+            num_decryption_failures.incrementAndGet();
+            log.warn("%s: dropping message from %s: decryption failed: %s", local_addr, msg.getSrc(), ex);
+            return null;
+        }
+    }
+
+    protected VersionedKey keyFor(int version) {
+        VersionedKey key=current_key;
+        if(key != null && key.version == version)
+            return key;
+        key=previous_key;
+        return key != null && key.version == version? key : null;
+    }
+
+    /** Authenticates the source and destination of a message, and the fields of its header except the IV */
+    protected static void updateAAD(CipherContext ctx, Address src, Address dest, GcmHeader hdr) throws Exception {
+        ByteArrayDataOutputStream out=ctx.output();
+        out.writeByte(hdr.flags);
+        out.writeInt(hdr.key_version);
+        Util.writeAddress(src, out);
+        Util.writeAddress(dest, out);
+        ctx.cipher.updateAAD(out.buffer(), 0, out.position());
+    }
+
+    protected Cipher createCipher() throws Exception {
+        return provider != null? Cipher.getInstance(TRANSFORMATION, provider) : Cipher.getInstance(TRANSFORMATION);
+    }
+
+    protected SecretKey readKey() throws Exception {
+        KeyStore store=KeyStore.getInstance("JCEKS"); // the default keystore type doesn't support secret keys
+        InputStream in=Thread.currentThread().getContextClassLoader().getResourceAsStream(key_store_name);
+        if(in == null)
+            in=new FileInputStream(key_store_name);
+        try {
+            store.load(in, store_password.toCharArray());
+            String pwd=key_password != null? key_password : store_password;
+            SecretKey key=(SecretKey)store.getKey(alias, pwd.toCharArray());
+            if(key == null)
+                throw new IllegalStateException("key '" + alias + "' not found in keystore " + key_store_name);
+            return key;
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
+
+    /** A secret key and its version, which is derived from the key and thus the same in all members */
+    protected static class VersionedKey {
+        protected final SecretKey key;
+        protected final int       version;
+
+        protected VersionedKey(SecretKey key) throws Exception {
+            this.key=key;
+            byte[] digest=MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+            this.version=(digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        }
+    }
+
+
+    /** The cipher, the source of IVs and the buffers used by a given thread */
+    protected static class CipherContext {
+        protected final Cipher            cipher;
+        protected final SecureRandom      random=new SecureRandom();
+        protected ByteArrayDataOutputStream out;
+        protected byte[]                  buf;
+
+        protected CipherContext(Cipher cipher) {
+            this.cipher=cipher;
+        }
+
+        /** Returns a random IV: a counter would need to be unique across all members, as they share the key */
+        protected byte[] nextIV() {
+            byte[] iv=new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            return iv;
+        }
+
+        protected ByteArrayDataOutputStream output() {
+            if(out == null || out.buffer().length > MAX_POOLED_SIZE)
+                out=new ByteArrayDataOutputStream(1024);
+            return out.position(0);
+        }
+
+        protected byte[] buffer(int size) {
+            if(buf != null && buf.length >= size)
+                return buf;
+            byte[] tmp=new byte[size];
+            if(size <= MAX_POOLED_SIZE)
+                buf=tmp;
+            return tmp;
+        }
+    }
+
+
+    public static class GcmHeader extends Header {
+        protected static final byte ENCRYPT_ENTIRE_MSG=1;
+
+        protected byte   flags;
+        protected int    key_version;
+        protected byte[] iv;
+
+        public GcmHeader() {}
+
+        public GcmHeader(boolean encrypt_entire_message, int key_version, byte[] iv) {
+            this.flags=encrypt_entire_message? ENCRYPT_ENTIRE_MSG : 0;
+            this.key_version=key_version;
+            this.iv=iv;
+        }
+
+        public boolean encryptEntireMessage() {return Util.isFlagSet(flags, ENCRYPT_ENTIRE_MSG);}
+        public int     keyVersion()           {return key_version;}
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(flags);
+            out.writeInt(key_version);
+            out.write(iv);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            flags=in.readByte();
+            key_version=in.readInt();
+            iv=new byte[IV_LENGTH];
+            in.readFully(iv);
+        }
+
+        public int size() {
+            return Global.BYTE_SIZE + Global.INT_SIZE + IV_LENGTH;
+        }
+
+        public String toString() {
+            return "[key version=" + key_version + (encryptEntireMessage()? ", entire msg" : "") + "]";
+        }
+    }
+}
@@ -134,7 +134,10 @@ abstract public class Executing extends Protocol {
         CREATE_RUN_REQUEST,     // request to backups from coordinator to create a new task request. Used by CENTRAL_LOCKING
         CREATE_CONSUMER_READY,  // request to backups from coordinator to create a new consumer ready. Used by CENTRAL_LOCKING
         DELETE_RUN_REQUEST,     // request to backups from coordinator to delete a task request. Used by CENTRAL_LOCKING
-        DELETE_CONSUMER_READY   // request to backups from coordinator to delete a consumer ready. Used by CENTRAL_LOCKING
+        DELETE_CONSUMER_READY,  // request to backups from coordinator to delete a consumer ready. Used by CENTRAL_LOCKING
+        RUN_BATCH,              // request to consumer from client with a batch of tasks to run. Used by PEER_EXECUTOR
+        LOAD,                   // multicast of the number of free consumers and queued tasks of a member. Used by PEER_EXECUTOR
+        STEAL_REQUEST           // request to client from an idle consumer to hand over queued tasks. Used by PEER_EXECUTOR
     }
     
     public Executing() {
@@ -530,6 +533,15 @@ abstract public class Executing extends Protocol {
                         owner = new Owner((Address)req.object, req.request);
                         handleRemoveRunRequest(owner);
                         break;
+                    case RUN_BATCH:
+                        handleTaskBatch(msg.getSrc(), (TaskBatch)req.object);
+                        break;
+                    case LOAD:
+                        handleLoad(msg.getSrc(), (Load)req.object);
+                        break;
+                    case STEAL_REQUEST:
+                        handleStealRequest(msg.getSrc(), (int)req.request);
+                        break;
                     default:
                         log.error("Request of type " + req.type + " not known");
                         break;
@@ -888,6 +900,18 @@ abstract public class Executing extends Protocol {
         }
     }
     
+    /** Handles a batch of tasks sent by a client; only used by protocols which batch task submissions */
+    protected void handleTaskBatch(Address sender, TaskBatch batch) {
+    }
+
+    /** Handles the load advertised by a member; only used by load-aware protocols */
+    protected void handleLoad(Address sender, Load load) {
+    }
+
+    /** Handles a request of an idle member to hand over up to num_tasks queued tasks */
+    protected void handleStealRequest(Address sender, int num_tasks) {
+    }
+
     protected void sendRequest(Address dest, Type type, long requestId, Object object) {
         Request req=new Request(type, object, requestId);
         Message msg=new Message(dest, req).putHeader(id, new ExecutorHeader());
@@ -1033,6 +1057,109 @@ abstract public class Executing extends Protocol {
     }
 
 
+    /**
+     * A number of serialized tasks (Runnables or Callables) with their request ids, sent to a consumer in a single
+     * message. Tasks are serialized when they're added, so that a task which cannot be serialized doesn't fail the
+     * entire batch
+     */
+    public static class TaskBatch implements Streamable {
+        protected boolean            stolen; // true if the batch is the response to a STEAL_REQUEST
+        protected final List<Long>   request_ids=new ArrayList<>();
+        protected final List<byte[]> tasks=new ArrayList<>();
+
+        public TaskBatch() {
+        }
+
+        public TaskBatch(boolean stolen) {
+            this.stolen=stolen;
+        }
+
+        public boolean isStolen()            {return stolen;}
+        public int     size()                {return request_ids.size();}
+        public boolean isEmpty()             {return request_ids.isEmpty();}
+        public long    getRequestId(int idx) {return request_ids.get(idx);}
+
+        public TaskBatch add(long request_id, Object task) throws Exception {
+            byte[] buf=Util.objectToByteBuffer(task);
+            request_ids.add(request_id);
+            tasks.add(buf);
+            return this;
+        }
+
+        public Object getTask(int idx) throws Exception {
+            return Util.objectFromByteBuffer(tasks.get(idx));
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeBoolean(stolen);
+            out.writeInt(request_ids.size());
+            for(int i=0; i < request_ids.size(); i++) {
+                byte[] buf=tasks.get(i);
+                out.writeLong(request_ids.get(i));
+                out.writeInt(buf.length);
+                out.write(buf);
+            }
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            stolen=in.readBoolean();
+            int size=in.readInt();
+            for(int i=0; i < size; i++) {
+                request_ids.add(in.readLong());
+                byte[] buf=new byte[in.readInt()];
+                in.readFully(buf);
+                tasks.add(buf);
+            }
+        }
+
+        public String toString() {
+            return request_ids.size() + " tasks" + (stolen? " (stolen)" : "");
+        }
+    }
+
+    /** The load of a member: the number of its idle consumers which have no task assigned, and its queued tasks */
+    public static class Load implements Streamable {
+        protected int free;
+        protected int queued;
+
+        public Load() {
+        }
+
+        public Load(int free, int queued) {
+            this.free=free;
+            this.queued=queued;
+        }
+
+        public int getFree()   {return free;}
+        public int getQueued() {return queued;}
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeInt(free);
+            out.writeInt(queued);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            free=in.readInt();
+            queued=in.readInt();
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Load))
+                return false;
+            Load other=(Load)obj;
+            return free == other.free && queued == other.queued;
+        }
+
+        public int hashCode() {
+            return free * 31 + queued;
+        }
+
+        public String toString() {
+            return "free=" + free + ", queued=" + queued;
+        }
+    }
+
+
     public static class ExecutorHeader extends Header {
 
         public ExecutorHeader() {
@@ -166,10 +166,13 @@ public class FRAG2 extends Protocol {
     }
 
     public void up(MessageBatch batch) {
+        ConcurrentMap<Long,FragEntry> frag_table=null; // all messages of a batch have the same sender
         for(Message msg: batch) {
             FragHeader hdr=(FragHeader)msg.getHeader(this.id);
             if(hdr != null) { // needs to be defragmented
-                Message assembled_msg=unfragment(msg,hdr);
+                if(frag_table == null)
+                    frag_table=getFragmentTable(batch.sender());
+                Message assembled_msg=unfragment(frag_table, msg, hdr);
                 if(assembled_msg != null)
                     // the reassembled msg has to be add in the right place (https://issues.jboss.org/browse/JGRP-1648),
                     // and canot be added to the tail of the batch !
@@ -238,7 +241,7 @@ public class FRAG2 extends Protocol {
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
                 Message frag_msg=msg.copy(false, i == 0);
                 frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
-                FragHeader hdr=new FragHeader(frag_id, i, num_frags);
+                FragHeader hdr=createFragHeader(frag_id, i, num_frags, msg.getLength(), (int)r.low - msg.getOffset());
                 frag_msg.putHeader(this.id, hdr);
                 down_prot.down(new Event(Event.MSG, frag_msg));
             }
@@ -257,21 +260,17 @@ public class FRAG2 extends Protocol {
      5. Return the message
      */
     protected Message unfragment(Message msg, FragHeader hdr) {
+        return unfragment(getFragmentTable(msg.getSrc()), msg, hdr);
+    }
+
+    protected Message unfragment(ConcurrentMap<Long,FragEntry> frag_table, Message msg, FragHeader hdr) {
         Address   sender=msg.getSrc();
         Message   assembled_msg=null;
-
-        ConcurrentMap<Long,FragEntry> frag_table=fragment_list.get(sender);
-        if(frag_table == null) {
-            frag_table=Util.createConcurrentMap(16, .075f, 16);
-            ConcurrentMap<Long,FragEntry> tmp=fragment_list.putIfAbsent(sender, frag_table);
-            if(tmp != null) // value was already present
-                frag_table=tmp;
-        }
         num_frags_received.incrementAndGet();
 
         FragEntry entry=frag_table.get(hdr.id);
         if(entry == null) {
-            entry=new FragEntry(hdr.num_frags);
+            entry=createFragEntry(hdr);
             FragEntry tmp=frag_table.putIfAbsent(hdr.id, entry);
             if(tmp != null)
                 entry=tmp;
@@ -279,7 +278,7 @@ public class FRAG2 extends Protocol {
 
         entry.lock();
         try {
-            entry.set(hdr.frag_id, msg);
+            entry.set(hdr, msg);
             if(entry.isComplete()) {
                 assembled_msg=entry.assembleMessage();
                 frag_table.remove(hdr.id);
@@ -295,6 +294,35 @@ public class FRAG2 extends Protocol {
         return assembled_msg;
     }
 
+    /** Returns the table of the fragments received from sender, creating it if needed */
+    protected ConcurrentMap<Long,FragEntry> getFragmentTable(Address sender) {
+        ConcurrentMap<Long,FragEntry> frag_table=fragment_list.get(sender);
+        if(frag_table == null) {
+            frag_table=Util.createConcurrentMap(16, .075f, 16);
+            ConcurrentMap<Long,FragEntry> tmp=fragment_list.putIfAbsent(sender, frag_table);
+            if(tmp != null) // value was already present
+                frag_table=tmp;
+        }
+        return frag_table;
+    }
+
+    /**
+     * Creates the header of a fragment
+     * @param frag_id The ID of the fragmented message
+     * @param index The index of the fragment (0 .. num_frags-1)
+     * @param num_frags The number of fragments
+     * @param original_length The length of the fragmented message
+     * @param offset The offset of the fragment's data in the fragmented message
+     */
+    protected FragHeader createFragHeader(long frag_id, int index, int num_frags, int original_length, int offset) {
+        return new FragHeader(frag_id, index, num_frags);
+    }
+
+    /** Creates the entry collecting the fragments of a message, on reception of its first fragment (hdr) */
+    protected FragEntry createFragEntry(FragHeader hdr) {
+        return new FragEntry(hdr.num_frags);
+    }
+
 
 
 
@@ -321,6 +349,11 @@ public class FRAG2 extends Protocol {
             fragments=new Message[tot_frags];
         }
 
+        /** Used by subclasses which don't keep the fragments */
+        protected FragEntry() {
+            fragments=null;
+        }
+
         /** Use to synchronize on FragEntry */
         public void lock() {
             lock.lock();
@@ -330,6 +363,15 @@ public class FRAG2 extends Protocol {
             lock.unlock();
         }
 
+        /**
+         * Adds a fragment
+         * @param hdr the header of the fragment
+         * @param frag the fragment, should not be null
+         */
+        public void set(FragHeader hdr, Message frag) {
+            set(hdr.frag_id, frag);
+        }
+
         /**
          * adds on fragmentation buffer to the message
          * @param frag_id the number of the fragment being added 0..(tot_num_of_frags - 1)
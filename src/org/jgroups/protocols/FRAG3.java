@@ -0,0 +1,75 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Message;
+import org.jgroups.annotations.MBean;
+import org.jgroups.util.FixedSizeBitSet;
+
+
+/**
+ * Fragmentation protocol which uses less memory to reassemble fragmented messages than {@link FRAG2}.<p/>
+ * When sending, the fragments reference slices of the original message's buffer, as in FRAG2. Every fragment
+ * carries the length of the original message and the offset of its data ({@link Frag3Header}). When the first fragment
+ * of a message is received, a buffer for the entire message is created, and every fragment copies its data into it
+ * at its offset. The fragments are not kept, so reassembling a message needs about half the memory of FRAG2, which
+ * keeps all fragments until the last one has been received and then copies them into a new buffer.<p/>
+ * FRAG3 and FRAG2 cannot be mixed in the same cluster.
+ * @author agent
+ * @since  3.6.5
+ */
+@MBean(description="Fragments messages larger than fragmentation size into smaller packets")
+public class FRAG3 extends FRAG2 {
+
+    protected FragHeader createFragHeader(long frag_id, int index, int num_frags, int original_length, int offset) {
+        return new Frag3Header(frag_id, index, num_frags, original_length, offset);
+    }
+
+    protected FRAG2.FragEntry createFragEntry(FragHeader hdr) {
+        return new FragEntry((Frag3Header)hdr);
+    }
+
+
+    /**
+     * Copies the data of each fragment directly into the buffer of the reassembled message. Not static, so that
+     * invalid fragments can be logged
+     */
+    protected class FragEntry extends FRAG2.FragEntry {
+        protected final byte[]          buffer;
+        protected final FixedSizeBitSet received;
+        protected Message               first; // the first fragment (without payload), has the headers of the message
+
+        protected FragEntry(Frag3Header hdr) {
+            buffer=new byte[hdr.original_length];
+            received=new FixedSizeBitSet(hdr.num_frags);
+        }
+
+        public void set(FragHeader h, Message frag) {
+            Frag3Header hdr=(Frag3Header)h;
+            // the header comes from the wire: don't let it write outside of the buffer
+            if(hdr.frag_id < 0 || hdr.frag_id >= received.size() || hdr.offset < 0
+              || frag.getLength() > buffer.length - hdr.offset) {
+                log.warn("%s: dropping invalid fragment from %s: frag_id=%d, offset=%d, length=%d (%s)",
+                         local_addr, frag.getSrc(), hdr.frag_id, hdr.offset, frag.getLength(), this);
+                return;
+            }
+            if(!received.set(hdr.frag_id)) // duplicate
+                return;
+            number_of_frags_recvd++;
+            if(hdr.frag_id == 0)
+                first=frag.copy(false);
+            System.arraycopy(frag.getRawBuffer(), frag.getOffset(), buffer, hdr.offset, frag.getLength());
+        }
+
+        public boolean isComplete() {
+            return number_of_frags_recvd == received.size();
+        }
+
+        protected Message assembleMessage() {
+            return first.setBuffer(buffer);
+        }
+
+        public String toString() {
+            return "[tot_frags=" + received.size() + ", number_of_frags_recvd=" + number_of_frags_recvd +
+              ", length=" + buffer.length + ']';
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.jgroups.protocols;
+
+import org.jgroups.util.Bits;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+
+/**
+ * Header used by {@link FRAG3}. In addition to the fields of {@link FragHeader}, every fragment carries the length of
+ * the fragmented message and the offset of its data in that message
+ * @author agent
+ * @since  3.6.5
+ */
+public class Frag3Header extends FragHeader {
+    public int original_length;
+    public int offset;
+
+
+    public Frag3Header() {
+    } // used for externalization
+
+    public Frag3Header(long id, int frag_id, int num_frags, int original_length, int offset) {
+        super(id, frag_id, num_frags);
+        this.original_length=original_length;
+        this.offset=offset;
+    }
+
+    public String toString() {
+        return "[id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags +
+          ", original_length=" + original_length + ", offset=" + offset + ']';
+    }
+
+
+    public void writeTo(DataOutput out) throws Exception {
+        super.writeTo(out);
+        Bits.writeInt(original_length, out);
+        Bits.writeInt(offset, out);
+    }
+
+    public int size() {
+        return super.size() + Bits.size(original_length) + Bits.size(offset);
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        super.readFrom(in);
+        original_length=Bits.readInt(in);
+        offset=Bits.readInt(in);
+    }
+
+}
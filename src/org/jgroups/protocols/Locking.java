@@ -10,6 +10,7 @@ import org.jgroups.blocks.locking.LockInfo;
 import org.jgroups.blocks.locking.LockNotification;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Bits;
+import org.jgroups.util.Histogram;
 import org.jgroups.util.Owner;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
@@ -22,6 +23,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -33,6 +35,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * Base locking protocol, handling most of the protocol communication with other instances. To use distributed locking,
  * {@link org.jgroups.blocks.locking.LockService} is placed on a channel. LockService talks to a subclass of Locking
  * via events.
+ * <p/>
+ * If a subclass enables lock caching ({@link #cacheLocks()}), an unlocked lock isn't released at the lock server, but
+ * cached by the client, which can then re-acquire it locally. When a different owner requests the lock, the server
+ * revokes the cached lock: the client releases it right away, or on unlock if it is currently held. Locks are cached
+ * per owner (see {@link #getOwner()}), so a cached lock is only re-acquired locally by the same owner.
  * @author Bela Ban
  * @since 2.12
  * @see org.jgroups.protocols.CENTRAL_LOCK
@@ -63,7 +70,18 @@ abstract public class Locking extends Protocol {
     protected final Set<LockNotification> lock_listeners=new CopyOnWriteArraySet<>();
 
     protected final static AtomicInteger  current_lock_id=new AtomicInteger(1);
-    
+
+    @ManagedAttribute(description="Number of lock acquisitions granted by the lock server")
+    protected final AtomicLong            num_remote_acquisitions=new AtomicLong();
+
+    @ManagedAttribute(description="Number of lock acquisitions of cached locks (without contacting the lock server)")
+    protected final AtomicLong            num_local_acquisitions=new AtomicLong();
+
+    @ManagedAttribute(description="Number of locks which were revoked by the lock server")
+    protected final AtomicLong            num_revocations=new AtomicLong();
+
+    /** Lock acquisition times (in microseconds) */
+    protected final Histogram             lock_latency=new Histogram();
 
 
     protected static enum Type {
@@ -79,7 +97,10 @@ abstract public class Locking extends Protocol {
         SIG_RET,           // response to alert of signal
         DELETE_LOCK_AWAIT, // request to delete a waiter
         CREATE_AWAITER,    // request to create a server lock await (sent by coordinator to backups). Used by CentralLockService
-        DELETE_AWAITER     // request to delete a server lock await (sent by coordinator to backups). Used by CentralLockService
+        DELETE_AWAITER,    // request to delete a server lock await (sent by coordinator to backups). Used by CentralLockService
+        REVOKE_LOCK,       // request to the owner of a lock to release it, as others are waiting for it (lock caching)
+        HANDOFF_DONE,      // sent by a member to a joiner after handing off the locks the joiner is now the server of
+        LOCK_IN_USE        // response to REVOKE_LOCK: the lock is held and will only be released on unlock (lock caching)
     }
 
 
@@ -116,6 +137,54 @@ abstract public class Locking extends Protocol {
         return view != null? view.toString() : null;
     }
 
+    @ManagedAttribute(description="Percentiles of the lock acquisition times (us)")
+    public String getLockLatency() {
+        return lock_latency.toString();
+    }
+
+    @ManagedAttribute(description="Median lock acquisition time (us)")
+    public long getLockLatencyP50() {
+        return lock_latency.percentile(50);
+    }
+
+    @ManagedAttribute(description="90th percentile of the lock acquisition times (us)")
+    public long getLockLatencyP90() {
+        return lock_latency.percentile(90);
+    }
+
+    @ManagedAttribute(description="99th percentile of the lock acquisition times (us)")
+    public long getLockLatencyP99() {
+        return lock_latency.percentile(99);
+    }
+
+    @ManagedAttribute(description="99.9th percentile of the lock acquisition times (us)")
+    public long getLockLatencyP999() {
+        return lock_latency.percentile(99.9);
+    }
+
+    @ManagedAttribute(description="Max lock acquisition time (us)")
+    public long getLockLatencyMax() {
+        return lock_latency.max();
+    }
+
+    @ManagedAttribute(description="Number of cached locks")
+    public int getNumCachedLocks() {
+        return client_lock_table.cachedLocks().size();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_remote_acquisitions.set(0);
+        num_local_acquisitions.set(0);
+        num_revocations.set(0);
+        lock_latency.clear();
+    }
+
+    /** Whether unlocked locks are cached (and re-acquired locally) until the lock server revokes them */
+    protected boolean cacheLocks() {
+        return false;
+    }
+
     public void init() throws Exception {
         super.init();
         lock_stripes=new Lock[lock_striping_size];
@@ -258,6 +327,15 @@ abstract public class Locking extends Protocol {
                     case DELETE_AWAITER:
                         handleDeleteAwaitingRequest(req.lock_name, req.owner);
                         break;
+                    case REVOKE_LOCK:
+                        handleRevokeLockRequest(msg.getSrc(), req.lock_name, req.lock_id, req.owner);
+                        break;
+                    case LOCK_IN_USE:
+                        handleLockInUseResponse(req);
+                        break;
+                    case HANDOFF_DONE:
+                        handleHandoffDone(msg.getSrc());
+                        break;
                     default:
                         log.error("Request of type %s not known", req.type);
                         break;
@@ -285,6 +363,18 @@ abstract public class Locking extends Protocol {
     }
 
 
+    @ManagedOperation(description="Releases all cached locks")
+    public void releaseCachedLocks() {
+        releaseCachedLocks(0);
+    }
+
+    /** Releases the cached locks which haven't been used for max_idle_time ms */
+    protected void releaseCachedLocks(long max_idle_time) {
+        long max_idle_ns=TimeUnit.NANOSECONDS.convert(max_idle_time, TimeUnit.MILLISECONDS);
+        for(ClientLock lock: client_lock_table.cachedLocks())
+            lock.releaseCached(max_idle_ns);
+    }
+
     @ManagedOperation(description="Dumps all locks")
     public String printLocks() {
         StringBuilder sb=new StringBuilder();
@@ -310,6 +400,8 @@ abstract public class Locking extends Protocol {
                 Response rsp=server_lock.handleView(members);
                 if(rsp != null)
                     responses.add(rsp);
+                if((rsp=server_lock.revokeIfContended()) != null)
+                    responses.add(rsp);
                 if(server_lock.isEmpty() && server_lock.current_owner == null && server_lock.condition.queue.isEmpty())
                     server_locks.remove(lock_name);
             }
@@ -378,7 +470,7 @@ abstract public class Locking extends Protocol {
 
 
     protected void handleLockRequest(Request req) {
-        Response rsp=null;
+        Response rsp=null, revoke=null;
         Lock lock=_getLock(req.lock_name);
         lock.lock();
         try {
@@ -392,6 +484,7 @@ abstract public class Locking extends Protocol {
                     notifyLockCreated(req.lock_name);
             }
             rsp=server_lock.handleRequest(req);
+            revoke=server_lock.revokeIfContended();
             if(server_lock.isEmpty() && server_lock.current_owner == null && server_lock.condition.queue.isEmpty())
                 server_locks.remove(req.lock_name);
         }
@@ -399,9 +492,11 @@ abstract public class Locking extends Protocol {
             lock.unlock();
         }
 
-        // moved outside the lock scope
+        // moved outside the lock scope; the grant is sent first, as the revocation may be for the new owner
         if(rsp != null)
             sendLockResponse(rsp.type, rsp.owner, rsp.lock_name, rsp.lock_id);
+        if(revoke != null)
+            sendLockResponse(revoke.type, revoke.owner, revoke.lock_name, revoke.lock_id);
     }
 
 
@@ -416,7 +511,38 @@ abstract public class Locking extends Protocol {
          if(lock != null)
              lock.lockDenied(lock_id);
     }
+
+    /** Releases a cached lock, or tells the lock server that the lock is in use and will be released on unlock */
+    protected void handleRevokeLockRequest(Address sender, String lock_name, int lock_id, Owner owner) {
+        ClientLock lock=client_lock_table.getLock(lock_name,owner,false);
+        if(lock == null || lock.revoke(lock_id))
+            send(sender, new Request(Type.LOCK_IN_USE, lock_name, owner, 0).lockId(lock_id));
+    }
+
+    /** The owner of a revoked lock holds it: zero-timeout trylocks queued for the lock are denied */
+    protected void handleLockInUseResponse(Request req) {
+        List<Response> responses=null;
+        Lock lock=_getLock(req.lock_name);
+        lock.lock();
+        try {
+            ServerLock server_lock=server_locks.get(req.lock_name);
+            if(server_lock != null)
+                responses=server_lock.handleLockInUse(req.owner);
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // moved outside the lock scope
+        if(responses != null)
+            for(Response rsp: responses)
+                sendLockResponse(rsp.type, rsp.owner, rsp.lock_name, rsp.lock_id);
+    }
     
+    /** Called when sender has handed off all locks of which we're now the lock server (PARTITIONED_LOCK) */
+    protected void handleHandoffDone(Address sender) {
+    }
+
     protected void handleAwaitRequest(String lock_name, Owner owner) {
         Lock lock=_getLock(lock_name);
         lock.lock();
@@ -620,8 +746,12 @@ abstract public class Locking extends Protocol {
     protected class ServerLock {
         protected final String          lock_name;
         protected Owner                 current_owner;
+        protected int                   current_lock_id; // 0 if unknown (e.g. lock copied from the coordinator)
         protected final List<Request>   queue=new ArrayList<>();
         protected final ServerCondition condition;
+        protected boolean               contended;       // a different owner requested the lock
+        protected boolean               revoke_sent;     // the current owner was asked to release the lock
+        protected boolean               in_use;          // the current owner replied that it holds the revoked lock
 
         public ServerLock(String lock_name) {
             this.lock_name=lock_name;
@@ -639,12 +769,16 @@ abstract public class Locking extends Protocol {
                 case GRANT_LOCK:
                     if(current_owner == null) {
                         setOwner(req.owner);
+                        current_lock_id=req.lock_id;
                         return new Response(Type.LOCK_GRANTED, req.owner, req.lock_name, req.lock_id);
                     }
                     if(current_owner.equals(req.owner))
                         return new Response(Type.LOCK_GRANTED, req.owner, req.lock_name, req.lock_id);
 
-                    if(req.is_trylock && req.timeout <= 0)
+                    contended=true;
+                    // with lock caching, the owner may only have cached the lock: the request is queued until the
+                    // owner either releases the lock (on revocation) or replies that it is in use (LOCK_IN_USE)
+                    if(req.is_trylock && req.timeout <= 0 && (!cacheLocks() || in_use))
                         return new Response(Type.LOCK_DENIED, req.owner, req.lock_name, req.lock_id);
                     addToQueue(req);
                     break;
@@ -754,13 +888,45 @@ abstract public class Locking extends Protocol {
             while((req=getNextRequest()) != null) {
                 if(req.type == Type.GRANT_LOCK) {
                     setOwner(req.owner);
+                    current_lock_id=req.lock_id;
                     return new Response(Type.LOCK_GRANTED, req.owner, req.lock_name, req.lock_id);
                 }
             }
             return null;
         }
 
+        /**
+         * Returns a REVOKE_LOCK request for the current owner if lock caching is enabled and a different owner requested
+         * the lock (or is waiting for it). The request is sent only once per owner
+         */
+        protected Response revokeIfContended() {
+            if(!cacheLocks() || current_owner == null || revoke_sent || !(contended || !isEmpty()))
+                return null;
+            revoke_sent=true;
+            return new Response(Type.REVOKE_LOCK, current_owner, lock_name, current_lock_id);
+        }
+
+        /** Denies the queued zero-timeout trylocks if the owner holds the lock; they'd otherwise wait for its unlock */
+        protected List<Response> handleLockInUse(Owner owner) {
+            if(current_owner == null || !current_owner.equals(owner))
+                return null;
+            in_use=true;
+            List<Response> responses=new ArrayList<>();
+            synchronized(queue) {
+                for(Iterator<Request> it=queue.iterator(); it.hasNext(); ) {
+                    Request req=it.next();
+                    if(req.type == Type.GRANT_LOCK && req.is_trylock && req.timeout <= 0) {
+                        it.remove();
+                        responses.add(new Response(Type.LOCK_DENIED, req.owner, req.lock_name, req.lock_id));
+                    }
+                }
+            }
+            return responses;
+        }
+
         protected void setOwner(Owner owner) {
+            contended=revoke_sent=in_use=false;
+            current_lock_id=0;
             if(owner == null) {
                 if(current_owner != null) {
                     Owner tmp=current_owner;
@@ -852,6 +1018,10 @@ abstract public class Locking extends Protocol {
         protected volatile boolean      is_trylock;
         protected long                  timeout;
         protected final ClientCondition condition;
+        protected volatile boolean      cached;       // unlocked, but still owned at the lock server (lock caching)
+        protected boolean               revoked;      // requested by a different owner: release (don't cache) on unlock
+        protected long                  cached_since; // ns
+        protected boolean               removed;      // removed from the client lock table
 
         // unique for locks for the same name:owner, can wrap around (that's ok)
         protected final int             lock_id=current_lock_id.getAndIncrement();
@@ -905,7 +1075,7 @@ abstract public class Locking extends Protocol {
         }
 
         public String toString() {
-            return name + " (id=" + lock_id + ", locked=" + acquired + ")";
+            return name + " (id=" + lock_id + ", locked=" + acquired + (cached? ", cached" : "") + ")";
         }
 
         protected synchronized void lockGranted(int lock_id) {
@@ -935,7 +1105,11 @@ abstract public class Locking extends Protocol {
                 return;
             if(throwInterrupt && Thread.interrupted())
                 throw new InterruptedException();
+            long start=System.nanoTime();
+            if(acquireCached(start))
+                return;
             owner=getOwner();
+            addToLockTable();
             sendGrantLockRequest(name, lock_id, owner, 0, false);
             boolean interrupted=false;
             while(!acquired) {
@@ -953,6 +1127,7 @@ abstract public class Locking extends Protocol {
             }
             if(interrupted)
                 Thread.currentThread().interrupt();
+            lockAcquired(start, false);
         }
 
         protected synchronized void _unlock(boolean force) {
@@ -960,26 +1135,96 @@ abstract public class Locking extends Protocol {
                 return;
             this.timeout=0;
             this.is_trylock=false;
+            if(!force && acquired && !denied && !revoked && cacheLocks()) {
+                // keep owning the lock at the server, so that it can be re-acquired locally
+                acquired=false;
+                cached=true;
+                cached_since=System.nanoTime();
+                notifyAll();
+                return;
+            }
             if(!denied)
                 sendReleaseLockRequest(name, owner);
-            acquired=denied=false;
+            acquired=denied=cached=revoked=false;
             notifyAll();
 
             client_lock_table.removeClientLock(name,owner);
+            removed=true;
             notifyLockDeleted(name);
             owner=null;
         }
 
+        /** Acquires a cached lock. Returns false if the lock is not cached */
+        protected synchronized boolean acquireCached(long start) {
+            if(!cached)
+                return false;
+            cached=false;
+            acquired=true;
+            lockAcquired(start, true);
+            return true;
+        }
+
+        /**
+         * The lock server asked for the lock: a cached lock is released now, a held (or just granted) lock when it is
+         * unlocked. Returns false if the lock was released, true if it is still in use
+         */
+        protected synchronized boolean revoke(int id) {
+            if(id != 0 && id != lock_id)
+                return true;
+            if(cached) {
+                num_revocations.incrementAndGet();
+                _unlock(true);
+                return false;
+            }
+            if(removed)
+                return false;
+            if(!revoked) {
+                num_revocations.incrementAndGet();
+                revoked=true;
+            }
+            return true;
+        }
+
+        /** Unlocks the lock and releases it at the lock server, even if lock caching is enabled */
+        protected synchronized void release() {
+            if(acquired || denied || cached)
+                _unlock(true);
+        }
+
+        /** Releases the lock if it has been cached for at least max_idle_ns */
+        protected synchronized void releaseCached(long max_idle_ns) {
+            if(cached && System.nanoTime() - cached_since >= max_idle_ns)
+                _unlock(true);
+        }
+
+        /** Adds the lock to the client lock table again if it was removed (e.g. by a revocation) after it was looked up */
+        protected void addToLockTable() {
+            if(removed) {
+                client_lock_table.addLock(this);
+                removed=false;
+            }
+        }
+
+        protected void lockAcquired(long start, boolean local) {
+            (local? num_local_acquisitions : num_remote_acquisitions).incrementAndGet();
+            lock_latency.add(TimeUnit.MICROSECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        }
+
         protected synchronized boolean acquireTryLock(long timeout, boolean use_timeout) throws InterruptedException {
             if(denied)
                 return false;
+            long acquire_start=System.nanoTime();
+            boolean requested=!acquired;
             if(!acquired) {
                 if(use_timeout && Thread.interrupted())
                     throw new InterruptedException();
+                if(acquireCached(acquire_start))
+                    return true;
                 is_trylock=true;
                 this.timeout=timeout;
                 if(owner == null)
                     owner=getOwner();
+                addToLockTable();
                 sendGrantLockRequest(name, lock_id, owner, timeout, true);
 
                 boolean interrupted = false;
@@ -1022,6 +1267,8 @@ abstract public class Locking extends Protocol {
             boolean retval=acquired && !denied;
             if(!acquired || denied)
                 _unlock(true);
+            else if(requested)
+                lockAcquired(acquire_start, false);
             return retval;
         }
     }
@@ -1051,6 +1298,14 @@ abstract public class Locking extends Protocol {
             return lock;
         }
 
+        protected synchronized void addLock(ClientLock lock) {
+            Map<Owner,ClientLock> owners=table.get(lock.name);
+            if(owners == null)
+                table.put(lock.name, owners=new HashMap<>());
+            if(!owners.containsKey(lock.owner))
+                owners.put(lock.owner, lock);
+        }
+
         protected synchronized void removeClientLock(String lock_name, Owner owner) {
             Map<Owner,ClientLock> owners=table.get(lock_name);
             if(owners != null) {
@@ -1070,14 +1325,23 @@ abstract public class Locking extends Protocol {
                     lock_list.addAll(map.values());
             }
             for(ClientLock lock: lock_list)
-                lock.unlock();
+                lock.release();
+        }
+
+        protected synchronized List<ClientLock> cachedLocks() {
+            List<ClientLock> retval=new ArrayList<>();
+            for(Map<Owner,ClientLock> map: table.values())
+                for(ClientLock lock: map.values())
+                    if(lock.cached)
+                        retval.add(lock);
+            return retval;
         }
 
         protected void resendPendingLockRequests() {
             if(!table.isEmpty()) {
                 for(Map<Owner,ClientLock> map: table.values()) {
                     for(ClientLock lock: map.values()) {
-                        if(!lock.acquired && !lock.denied)
+                        if(!lock.acquired && !lock.denied && !lock.cached)
                             sendGrantLockRequest(lock.name, lock.lock_id, lock.owner, lock.timeout, lock.is_trylock);
                     }
                 }
@@ -1107,7 +1371,9 @@ abstract public class Locking extends Protocol {
                         sb.append(", ");
                     sb.append(entry2.getKey());
                     ClientLock cl=entry2.getValue();
-                    if(!cl.acquired || cl.denied)
+                    if(cl.cached)
+                        sb.append(", cached");
+                    else if(!cl.acquired || cl.denied)
                         sb.append(", unlocked");
                 }
                 sb.append(")");
@@ -0,0 +1,471 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.View;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.ConsistentHashRing;
+import org.jgroups.blocks.locking.LockNotification;
+import org.jgroups.util.Owner;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+
+/**
+ * Locking protocol which spreads the lock servers over all members: the lock server of a lock is picked by consistent
+ * hashing of the lock name, so every member is the lock server for a part of the locks, and lock throughput scales
+ * with the cluster size (unlike {@link CENTRAL_LOCK}, where the coordinator is the lock server for all locks).<p/>
+ * Every member has num_virtual_nodes positions on a {@link ConsistentHashRing}; the lock server of a lock is the
+ * owner of the lock name's segment, and the next num_backups distinct members on the ring are its backups. The lock
+ * server replicates the owner and the awaiters of a lock to the backups of that lock.<p/>
+ * When the view changes, only the locks whose lock server changed are affected:
+ * <ul>
+ *     <li>When a lock server leaves or crashes, the first backup of a lock becomes its lock server</li>
+ *     <li>When a new member becomes the lock server of a lock (e.g. on a join), the previous lock server hands the
+ *         lock off to it and to the new backups</li>
+ *     <li>Members resend their pending lock requests for locks whose lock server left. A previous lock server which
+ *         is still a member forwards the queued lock requests of a handed off lock, and lock requests sent to it in
+ *         the old view, to the new lock server</li>
+ *     <li>A joiner defers lock requests until all existing members have handed off their locks to it, or until
+ *         handoff_timeout ms have elapsed (e.g. when several members joined at the same time)</li>
+ * </ul>
+ * As with CENTRAL_LOCK, locks are lost when a lock server and all of its backups crash at the same time.
+ * @author agent
+ * @since  3.6.5
+ * @see CENTRAL_LOCK
+ */
+@Experimental
+public class PARTITIONED_LOCK extends Locking implements LockNotification {
+
+    @Property(description="Number of backups of each lock. Server locks get replicated to these nodes as well")
+    protected int     num_backups=1;
+
+    @Property(description="Number of positions of every member on the hash ring. Higher values spread the locks " +
+      "more evenly over the members")
+    protected int     num_virtual_nodes=32;
+
+    @Property(description="By default, a lock owner is address:thread-id. If false, we only use the node's address. " +
+      "See https://issues.jboss.org/browse/JGRP-1886 for details")
+    protected boolean use_thread_id_for_lock_owner=true;
+
+    @Property(description="Max time (ms) a joiner waits for the existing members to hand off their locks before it " +
+      "serves lock requests")
+    protected long    handoff_timeout=5000;
+
+    @ManagedAttribute(description="Number of locks handed off to a new lock server")
+    protected final AtomicLong num_handoffs=new AtomicLong();
+
+    @ManagedAttribute(description="Number of lock requests forwarded to the lock server (sent in a previous view)")
+    protected final AtomicLong num_forwarded_requests=new AtomicLong();
+
+    /** The lock server of a lock is the owner of the lock name on the ring; rebuilt on every view change */
+    protected volatile ConsistentHashRing ring=createRing(Collections.<Address>emptyList(), num_virtual_nodes);
+
+    /** Lock requests received while we (a joiner) wait for lock handoffs. Guards the fields below, too */
+    protected final List<Request> deferred_requests=new ArrayList<>();
+
+    /** The members which haven't yet sent us HANDOFF_DONE after we joined */
+    protected final Set<Address>  pending_handoffs=new HashSet<>();
+
+    /** The members which sent us HANDOFF_DONE before we installed our first view */
+    protected final Set<Address>  handoffs_received=new HashSet<>();
+
+    protected boolean             joined, draining;
+
+
+    public PARTITIONED_LOCK() {
+        super();
+        addLockListener(this);
+    }
+
+    public int getNumberOfBackups() {
+        return num_backups;
+    }
+
+    public PARTITIONED_LOCK setNumberOfBackups(int num_backups) {
+        this.num_backups=num_backups;
+        return this;
+    }
+
+    public int getNumVirtualNodes() {
+        return num_virtual_nodes;
+    }
+
+    public PARTITIONED_LOCK setNumVirtualNodes(int num_virtual_nodes) {
+        this.num_virtual_nodes=num_virtual_nodes;
+        return this;
+    }
+
+    @ManagedAttribute(description="Number of locks for which this member is the lock server")
+    public int getNumServerLocks() {
+        int retval=0;
+        for(String lock_name: server_locks.keySet())
+            if(isLockServer(lock_name))
+                retval++;
+        return retval;
+    }
+
+    @ManagedAttribute(description="Number of locks for which this member is a backup")
+    public int getNumBackupLocks() {
+        return server_locks.size() - getNumServerLocks();
+    }
+
+    /** Returns the lock server of the given lock, or null if there are no members */
+    public Address getLockServer(String lock_name) {
+        return ring.owner(lock_name);
+    }
+
+    /** Returns the lock server of the given lock, followed by its backups */
+    public List<Address> getLockServers(String lock_name) {
+        return ring.owners(lock_name, num_backups + 1);
+    }
+
+    @ManagedOperation(description="Prints the lock server and backups of the given lock")
+    public String printLockServers(String lock_name) {
+        return getLockServers(lock_name).toString();
+    }
+
+    public boolean isLockServer(String lock_name) {
+        return local_addr != null && local_addr.equals(getLockServer(lock_name));
+    }
+
+    public long getHandoffTimeout() {
+        return handoff_timeout;
+    }
+
+    public PARTITIONED_LOCK setHandoffTimeout(long handoff_timeout) {
+        this.handoff_timeout=handoff_timeout;
+        return this;
+    }
+
+    @ManagedAttribute(description="The members which haven't yet handed off their locks to this (joining) member")
+    public String getPendingHandoffs() {
+        synchronized(deferred_requests) {
+            return pending_handoffs.toString();
+        }
+    }
+
+    public void stop() {
+        synchronized(deferred_requests) {
+            joined=draining=false;
+            pending_handoffs.clear();
+            handoffs_received.clear();
+            deferred_requests.clear();
+        }
+        super.stop();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_handoffs.set(0);
+        num_forwarded_requests.set(0);
+    }
+
+    protected Owner getOwner() {
+        return use_thread_id_for_lock_owner? super.getOwner(): new Owner(local_addr, -1);
+    }
+
+    protected void sendGrantLockRequest(String lock_name, int lock_id, Owner owner, long timeout, boolean is_trylock) {
+        sendRequest(lockServer(lock_name, Type.GRANT_LOCK), Type.GRANT_LOCK, lock_name, lock_id, owner, timeout, is_trylock);
+    }
+
+    protected void sendReleaseLockRequest(String lock_name, Owner owner) {
+        sendRequest(lockServer(lock_name, Type.RELEASE_LOCK), Type.RELEASE_LOCK, lock_name, owner, 0, false);
+    }
+
+    protected void sendAwaitConditionRequest(String lock_name, Owner owner) {
+        sendRequest(lockServer(lock_name, Type.LOCK_AWAIT), Type.LOCK_AWAIT, lock_name, owner, 0, false);
+    }
+
+    protected void sendSignalConditionRequest(String lock_name, boolean all) {
+        Type type=all? Type.COND_SIG_ALL : Type.COND_SIG;
+        sendRequest(lockServer(lock_name, type), type, lock_name, null, 0, false);
+    }
+
+    protected void sendDeleteAwaitConditionRequest(String lock_name, Owner owner) {
+        sendRequest(lockServer(lock_name, Type.DELETE_LOCK_AWAIT), Type.DELETE_LOCK_AWAIT, lock_name, owner, 0, false);
+    }
+
+    protected Address lockServer(String lock_name, Type type) {
+        Address dest=getLockServer(lock_name);
+        if(dest == null)
+            throw new IllegalStateException("No lock server available, cannot send " + type + " request");
+        return dest;
+    }
+
+
+    /** Lock requests are deferred until we've joined and all existing members have handed off their locks to us */
+    protected void handleLockRequest(Request req) {
+        if(req.type == Type.GRANT_LOCK || req.type == Type.RELEASE_LOCK) {
+            synchronized(deferred_requests) {
+                if(!joined || draining || !pending_handoffs.isEmpty()) {
+                    deferred_requests.add(req);
+                    return;
+                }
+            }
+        }
+        processLockRequest(req);
+    }
+
+    /** Lock requests sent to us in a previous view are forwarded to the current lock server */
+    protected void processLockRequest(Request req) {
+        if(req.type == Type.GRANT_LOCK || req.type == Type.RELEASE_LOCK) {
+            Address server=getLockServer(req.lock_name);
+            if(server != null && !server.equals(local_addr)) {
+                num_forwarded_requests.incrementAndGet();
+                log.trace("%s: forwarding %s to lock server %s", local_addr, req, server);
+                send(server, req);
+                return;
+            }
+        }
+        super.handleLockRequest(req);
+    }
+
+    /**
+     * A backup replaces its copy of the lock, but a new lock server may already have queued (resent) lock requests
+     * when the lock is handed off to it, so its server lock is updated rather than replaced
+     */
+    protected void handleCreateLockRequest(String lock_name, Owner owner) {
+        if(view != null && !view.containsMember(owner.getAddress()))
+            return; // the owner left while the lock was being handed off
+        if(!isLockServer(lock_name)) {
+            super.handleCreateLockRequest(lock_name, owner);
+            return;
+        }
+        Lock lock=_getLock(lock_name);
+        lock.lock();
+        try {
+            ServerLock server_lock=server_locks.get(lock_name);
+            if(server_lock == null)
+                server_locks.put(lock_name, new ServerLock(lock_name, owner));
+            else if(server_lock.current_owner == null)
+                server_lock.current_owner=owner;
+            else if(!server_lock.current_owner.equals(owner))
+                log.warn("%s: lock %s is owned by %s, discarding owner %s of handed off lock",
+                         local_addr, lock_name, server_lock.current_owner, owner);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    protected void handleHandoffDone(Address sender) {
+        synchronized(deferred_requests) {
+            if(!joined) {
+                handoffs_received.add(sender);
+                return;
+            }
+            if(!pending_handoffs.remove(sender) || !pending_handoffs.isEmpty())
+                return;
+        }
+        log.trace("%s: received all lock handoffs", local_addr);
+        processDeferredRequests();
+    }
+
+
+    public void handleView(View view) {
+        View prev_view=this.view;
+        ConsistentHashRing old_ring=ring;
+        ring=createRing(view.getMembers(), num_virtual_nodes);
+
+        // hand off the locks of which we were the lock server and update the backups of our locks. This is done
+        // before the base class processes the queues of the server locks, which must not grant locks we don't own anymore
+        updateServerLocks(old_ring, view);
+        if(prev_view != null && prev_view.containsMember(local_addr)) {
+            for(Address mbr: view.getMembers())
+                if(!prev_view.containsMember(mbr))
+                    sendRequest(mbr, Type.HANDOFF_DONE, null, null, 0, false);
+        }
+        super.handleView(view);
+        waitForHandoffs(view);
+
+        // resend the lock requests of pending client locks whose lock server left (others are forwarded by it)
+        for(Map<Owner,ClientLock> map: client_lock_table.values()) {
+            for(ClientLock lock: map.values()) {
+                if(lock.acquired || lock.denied)
+                    continue;
+                Address old_server=old_ring.owner(lock.name);
+                if(old_server == null || !view.containsMember(old_server))
+                    sendGrantLockRequest(lock.name, lock.lock_id, lock.owner, lock.timeout, lock.is_trylock);
+            }
+        }
+    }
+
+    /** When we join, lock requests are deferred until all existing members have handed off their locks to us */
+    protected void waitForHandoffs(View view) {
+        boolean done;
+        synchronized(deferred_requests) {
+            if(!joined) {
+                if(!view.containsMember(local_addr))
+                    return;
+                joined=true;
+                pending_handoffs.addAll(view.getMembers());
+                pending_handoffs.remove(local_addr);
+                pending_handoffs.removeAll(handoffs_received);
+                handoffs_received.clear();
+                if(!pending_handoffs.isEmpty()) {
+                    log.trace("%s: waiting for lock handoffs from %s", local_addr, pending_handoffs);
+                    getTransport().getTimer().schedule(new Runnable() {
+                        public void run() {
+                            synchronized(deferred_requests) {
+                                if(pending_handoffs.isEmpty())
+                                    return;
+                                log.warn("%s: no lock handoffs received from %s after %d ms", local_addr,
+                                         pending_handoffs, handoff_timeout);
+                                pending_handoffs.clear();
+                            }
+                            processDeferredRequests();
+                        }
+
+                        public String toString() {
+                            return PARTITIONED_LOCK.class.getSimpleName() + ": HandoffTimeout";
+                        }
+                    }, handoff_timeout, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            else if(pending_handoffs.isEmpty() || !pending_handoffs.retainAll(view.getMembers()))
+                return;
+            done=pending_handoffs.isEmpty();
+        }
+        if(done)
+            processDeferredRequests();
+    }
+
+    /** Processes the deferred lock requests in the order in which they were received */
+    protected void processDeferredRequests() {
+        synchronized(deferred_requests) {
+            if(draining)
+                return;
+            draining=true;
+        }
+        for(;;) {
+            List<Request> requests;
+            synchronized(deferred_requests) {
+                if(deferred_requests.isEmpty()) {
+                    draining=false;
+                    return;
+                }
+                requests=new ArrayList<>(deferred_requests);
+                deferred_requests.clear();
+            }
+            for(Request req: requests)
+                processLockRequest(req);
+        }
+    }
+
+    public void lockCreated(String name) {
+    }
+
+    public void lockDeleted(String name) {
+    }
+
+    public void locked(String lock_name, Owner owner) {
+        if(isLockServer(lock_name))
+            updateBackups(Type.CREATE_LOCK, lock_name, owner);
+    }
+
+    public void unlocked(String lock_name, Owner owner) {
+        if(isLockServer(lock_name))
+            updateBackups(Type.DELETE_LOCK, lock_name, owner);
+    }
+
+    public void awaiting(String lock_name, Owner owner) {
+        if(isLockServer(lock_name))
+            updateBackups(Type.CREATE_AWAITER, lock_name, owner);
+    }
+
+    public void awaited(String lock_name, Owner owner) {
+        if(isLockServer(lock_name))
+            updateBackups(Type.DELETE_AWAITER, lock_name, owner);
+    }
+
+    protected void updateBackups(Type type, String lock_name, Owner owner) {
+        List<Address> servers=getLockServers(lock_name);
+        for(int i=1; i < servers.size(); i++)
+            sendRequest(servers.get(i), type, lock_name, owner, 0, false);
+    }
+
+
+    /**
+     * Compares the lock servers of all server locks in the old and new ring. Locks we're no longer the lock server of
+     * are handed off to the new lock server and backups, and are dropped or turned into backups. New backups of the
+     * locks we're the lock server of are sent a copy of the lock.
+     */
+    protected void updateServerLocks(ConsistentHashRing old_ring, View view) {
+        for(Map.Entry<String,ServerLock> entry: server_locks.entrySet()) {
+            String lock_name=entry.getKey();
+            List<Address> old_servers=old_ring.owners(lock_name, num_backups + 1),
+              new_servers=ring.owners(lock_name, num_backups + 1);
+            if(old_servers.equals(new_servers))
+                continue;
+            boolean was_server=!old_servers.isEmpty() && old_servers.get(0).equals(local_addr),
+              is_server=!new_servers.isEmpty() && new_servers.get(0).equals(local_addr);
+
+            List<Address> copy_to=null;
+            Lock lock=_getLock(lock_name);
+            lock.lock();
+            try {
+                ServerLock server_lock=entry.getValue();
+                if(is_server) { // we're still (or have become) the lock server: copy the lock to the new backups
+                    copy_to=new ArrayList<>(new_servers.subList(1, new_servers.size()));
+                    if(was_server)
+                        copy_to.removeAll(old_servers);
+                }
+                else if(was_server) { // the lock server changed: hand off the lock to the new lock server and backups
+                    copy_to=new ArrayList<>(new_servers);
+                    num_handoffs.incrementAndGet();
+                    if(new_servers.contains(local_addr)) { // we're a backup now: only the owner and awaiters are kept
+                        ServerLock backup=new ServerLock(lock_name, server_lock.current_owner);
+                        backup.condition.queue.addAll(server_lock.condition.queue);
+                        server_locks.put(lock_name, backup);
+                    }
+                    else
+                        server_locks.remove(lock_name);
+                }
+                else if(!new_servers.contains(local_addr)) // we're neither lock server nor backup
+                    server_locks.remove(lock_name);
+                if(copy_to != null && !copy_to.isEmpty())
+                    copyLockTo(server_lock, copy_to, view);
+                if(was_server && !is_server && !new_servers.isEmpty()) {
+                    // forward the queued lock requests; they're received after the lock itself (FIFO)
+                    synchronized(server_lock.queue) {
+                        for(Request req: server_lock.queue)
+                            if(view.containsMember(req.owner.getAddress()))
+                                send(new_servers.get(0), req);
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    protected void copyLockTo(ServerLock lock, List<Address> targets, View view) {
+        log.trace("%s: copying lock %s to %s", local_addr, lock.lock_name, targets);
+        Owner owner=lock.current_owner;
+        List<Owner> awaiters;
+        synchronized(lock.condition) {
+            awaiters=new ArrayList<>(lock.condition.queue);
+        }
+        for(Address target: targets) {
+            if(owner != null && view.containsMember(owner.getAddress()))
+                sendRequest(target, Type.CREATE_LOCK, lock.lock_name, owner, 0, false);
+            for(Owner awaiter: awaiters)
+                if(view.containsMember(awaiter.getAddress()))
+                    sendRequest(target, Type.CREATE_AWAITER, lock.lock_name, awaiter, 0, false);
+        }
+    }
+
+
+    protected static ConsistentHashRing createRing(List<Address> members, int num_virtual_nodes) {
+        return new ConsistentHashRing(members, num_virtual_nodes, ConsistentHashRing.DEFAULT_SEGMENTS);
+    }
+}
@@ -0,0 +1,602 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.View;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.executor.ExecutionService.DistributedFuture;
+import org.jgroups.blocks.executor.ExecutorEvent;
+import org.jgroups.blocks.executor.ExecutorNotification;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+
+
+/**
+ * Executor protocol which balances tasks over all members, without a central coordinator. Every member advertises
+ * its load: the number of its idle consumers (threads running an
+ * {@link org.jgroups.blocks.executor.ExecutionRunner}) and the number of tasks it has queued.<p/>
+ * A submitted task is run by an idle local consumer if there is one. Otherwise it is sent to the member advertising
+ * the most free consumers; tasks sent to the same member are batched into a single message. Tasks for which no
+ * consumer is free stay queued at the submitter, and idle members steal them in batches from the member with the
+ * longest queue. A member which receives more tasks than it has free consumers (because the advertised load was
+ * stale) rejects the excess tasks, and the submitter queues them again.<p/>
+ * Contrary to {@link CENTRAL_EXECUTOR}, no member has to see every task and no state is replicated to backups: a
+ * task is owned by its submitter until it completed, and is dispatched again when the member running it leaves.
+ * @author agent
+ * @since  3.6.5
+ * @see CENTRAL_EXECUTOR
+ */
+@Experimental
+public class PEER_EXECUTOR extends Executing {
+
+    @Property(description="Max time (ms) between a change of the local load and its advertisement to all members")
+    protected long load_interval=5;
+
+    @Property(description="Max number of tasks sent to a member in a single message")
+    protected int  max_batch_size=100;
+
+    @ManagedAttribute(description="Number of tasks submitted locally and run by a local consumer")
+    protected final AtomicLong num_local_tasks=new AtomicLong();
+
+    @ManagedAttribute(description="Number of tasks sent to members advertising free consumers")
+    protected final AtomicLong num_pushed_tasks=new AtomicLong();
+
+    @ManagedAttribute(description="Number of tasks stolen from other members")
+    protected final AtomicLong num_stolen_tasks=new AtomicLong();
+
+    @ManagedAttribute(description="Number of tasks rejected because no local consumer was free")
+    protected final AtomicLong num_rejected_tasks=new AtomicLong();
+
+    @ManagedAttribute(description="Number of task batches sent")
+    protected final AtomicLong num_batches_sent=new AtomicLong();
+
+    @ManagedAttribute(description="Number of load advertisements sent")
+    protected final AtomicLong num_load_updates=new AtomicLong();
+
+    /** The last load advertised by the other members, adjusted for the tasks we sent to them since */
+    protected final Map<Address,Load> loads=new HashMap<>();
+
+    /** Tasks (sent by a client or stolen) which have been assigned to a local consumer, but not yet picked up.
+     * Guarded by _consumerLock, as are the fields below */
+    protected final Deque<Runnable>   assigned=new ArrayDeque<>();
+
+    protected final Condition         task_assigned=_consumerLock.newCondition();
+
+    /** Number of local consumers waiting for a task; the free consumers are idle - assigned.size() */
+    protected int                     idle;
+
+    /** The member we're currently stealing tasks from, or null */
+    protected Address                 steal_target;
+
+    /** Set when we wanted to steal while a steal request was pending: we steal again when it has been answered */
+    protected boolean                 steal_again;
+
+    protected final AtomicBoolean     dispatching=new AtomicBoolean(), dispatch_needed=new AtomicBoolean();
+
+    protected final AtomicBoolean     load_update_scheduled=new AtomicBoolean();
+
+    protected volatile Load           last_load;
+
+    protected final Runnable          dispatcher=new Runnable() {
+        public void run() {
+            do {
+                try {
+                    while(dispatch_needed.compareAndSet(true, false))
+                        dispatchQueuedTasks();
+                }
+                finally {
+                    dispatching.set(false);
+                }
+            }
+            while(dispatch_needed.get() && dispatching.compareAndSet(false, true)); // dispatch() was called meanwhile
+            advertiseLoad();
+        }
+    };
+
+
+    public PEER_EXECUTOR() {
+        super();
+    }
+
+    public long          getLoadInterval()            {return load_interval;}
+    public PEER_EXECUTOR setLoadInterval(long i)      {this.load_interval=i; return this;}
+    public int           getMaxBatchSize()            {return max_batch_size;}
+    public PEER_EXECUTOR setMaxBatchSize(int size)    {this.max_batch_size=size; return this;}
+
+    @ManagedAttribute(description="Number of idle local consumers which have no task assigned")
+    public int getFreeConsumers() {
+        _consumerLock.lock();
+        try {
+            return idle - assigned.size();
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description="Number of locally submitted tasks which haven't yet been picked up by a consumer")
+    public int getQueuedTasks() {
+        return _awaitingConsumer.size();
+    }
+
+    @ManagedOperation(description="Prints the last load advertised by each member")
+    public String printLoads() {
+        StringBuilder sb=new StringBuilder(local_addr + ": " + currentLoad());
+        synchronized(loads) {
+            for(Map.Entry<Address,Load> entry: loads.entrySet())
+                sb.append("\n").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_local_tasks.set(0);
+        num_pushed_tasks.set(0);
+        num_stolen_tasks.set(0);
+        num_rejected_tasks.set(0);
+        num_batches_sent.set(0);
+        num_load_updates.set(0);
+    }
+
+    public void stop() {
+        super.stop();
+        synchronized(loads) {
+            loads.clear();
+        }
+        last_load=null;
+    }
+
+    public Object down(Event evt) {
+        if(evt.getType() == ExecutorEvent.CONSUMER_READY)
+            return takeTask();
+        return super.down(evt);
+    }
+
+    public void handleView(View view) {
+        List<Address> members=view.getMembers();
+        boolean new_members=false;
+        synchronized(loads) {
+            loads.keySet().retainAll(members);
+            for(Address mbr: members) {
+                if(!mbr.equals(local_addr) && !loads.containsKey(mbr)) {
+                    loads.put(mbr, new Load());
+                    new_members=true;
+                }
+            }
+        }
+        _consumerLock.lock();
+        try {
+            if(steal_target != null && !members.contains(steal_target))
+                steal_target=null; // the steal request will never be answered
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+
+        // dispatches the tasks run by left members again
+        super.handleView(view);
+
+        synchronized(_awaitingReturn) {
+            for(Iterator<Owner> it=_awaitingReturn.keySet().iterator(); it.hasNext();) {
+                if(!members.contains(it.next().getAddress()))
+                    it.remove();
+            }
+        }
+        if(new_members)
+            last_load=null; // the new members need to get our load
+        advertiseLoad();
+        steal();
+    }
+
+
+    /** Called by a consumer thread: blocks until a task is available, or the thread is interrupted */
+    protected Runnable takeTask() {
+        Thread current=Thread.currentThread();
+        Runnable runnable=null;
+        boolean steal=true;
+        List<Runnable> excess=null;
+        _consumerLock.lock();
+        try {
+            idle++;
+            try {
+                while((runnable=nextTask()) == null) {
+                    if(steal) { // try to steal once before blocking; further steals are triggered by load updates
+                        steal=false;
+                        _consumerLock.unlock();
+                        try {
+                            steal();
+                            advertiseLoad();
+                        }
+                        finally {
+                            _consumerLock.lock();
+                        }
+                        continue;
+                    }
+                    task_assigned.await();
+                }
+            }
+            finally {
+                idle--;
+                // tasks were assigned to this consumer, but it was interrupted before it picked one up
+                while(assigned.size() > idle) {
+                    if(excess == null)
+                        excess=new ArrayList<>();
+                    excess.add(assigned.pollLast());
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            if(log.isDebugEnabled())
+                log.debug("Consumer " + current.getId() + " stopped via interrupt");
+            current.interrupt();
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+
+        if(excess != null)
+            for(Runnable task: excess)
+                rejectTask(task);
+        advertiseLoad();
+        if(runnable != null)
+            _runnableThreads.put(runnable, current);
+        return runnable;
+    }
+
+    /** Returns the next task assigned to a local consumer, or else the next locally submitted task. Called with
+     * _consumerLock held */
+    protected Runnable nextTask() {
+        Runnable runnable=assigned.poll();
+        if(runnable != null)
+            return runnable;
+        while((runnable=_awaitingConsumer.poll()) != null) {
+            Long requestId=_requestId.get(runnable);
+            if(requestId == null) // the task was cancelled
+                continue;
+            Owner owner=new Owner(local_addr, requestId);
+            _awaitingReturn.put(owner, runnable);
+            _running.put(runnable, owner);
+            num_local_tasks.incrementAndGet();
+            return runnable;
+        }
+        return null;
+    }
+
+    /** Assigns a task to a free local consumer. Returns false if no consumer is free */
+    protected boolean assignTask(Runnable runnable, Owner owner) {
+        _consumerLock.lock();
+        try {
+            if(idle - assigned.size() <= 0)
+                return false;
+            _running.put(runnable, owner);
+            assigned.add(runnable);
+            task_assigned.signal();
+            return true;
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+    }
+
+    /** Hands an assigned task back to its submitter, as it could not be picked up by a consumer */
+    protected void rejectTask(Runnable runnable) {
+        Owner owner=_running.remove(runnable);
+        if(owner == null)
+            return;
+        num_rejected_tasks.incrementAndGet();
+        sendRequest(owner.getAddress(), Type.RUN_REJECTED, owner.getRequestId(), null);
+        last_load=null;
+    }
+
+    /**
+     * Dispatches the locally submitted tasks: idle local consumers are woken up to pick them up, and the tasks which
+     * cannot be run locally are sent to the members with free consumers by a timer thread. Only one dispatcher runs
+     * at a time, so submitters don't block, and tasks submitted while the dispatcher sends a batch end up in the
+     * next batch
+     */
+    protected void dispatch() {
+        _consumerLock.lock();
+        try {
+            if(idle - assigned.size() > 0)
+                task_assigned.signalAll();
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+        dispatch_needed.set(true);
+        if(dispatching.compareAndSet(false, true)) {
+            try {
+                getTransport().getTimer().execute(dispatcher);
+            }
+            catch(RejectedExecutionException ex) { // the timer was stopped
+                dispatching.set(false);
+            }
+        }
+    }
+
+    protected void dispatchQueuedTasks() {
+        int queued=_awaitingConsumer.size() - Math.max(0, getFreeConsumers());
+
+        // only the tasks which cannot be run by local consumers are sent to other members
+        Map<Address,TaskBatch> batches=new HashMap<>();
+        for(; queued > 0; queued--) {
+            Address dest=pickConsumer();
+            if(dest == null)
+                break;
+            Runnable runnable=_awaitingConsumer.poll();
+            if(runnable == null) {
+                releaseConsumer(dest);
+                break;
+            }
+            TaskBatch batch=batches.get(dest);
+            if(batch == null)
+                batches.put(dest, batch=new TaskBatch(false));
+            if(addToBatch(batch, dest, runnable)) {
+                num_pushed_tasks.incrementAndGet();
+                if(batch.size() >= max_batch_size) {
+                    num_batches_sent.incrementAndGet();
+                    sendRequest(dest, Type.RUN_BATCH, -1, batches.remove(dest));
+                }
+            }
+            else
+                releaseConsumer(dest);
+        }
+        for(Map.Entry<Address,TaskBatch> entry: batches.entrySet()) {
+            if(!entry.getValue().isEmpty()) {
+                num_batches_sent.incrementAndGet();
+                sendRequest(entry.getKey(), Type.RUN_BATCH, -1, entry.getValue());
+            }
+        }
+    }
+
+    /** Adds a task to a batch for dest and registers dest as the member running it. Returns false if the task was
+     * cancelled or cannot be serialized */
+    protected boolean addToBatch(TaskBatch batch, Address dest, Runnable runnable) {
+        Long requestId=_requestId.get(runnable);
+        if(requestId == null)
+            return false;
+        Object task=runnable instanceof DistributedFuture? ((DistributedFuture<?>)runnable).getCallable() : runnable;
+        try {
+            batch.add(requestId, task);
+        }
+        catch(Exception e) {
+            _requestId.remove(runnable);
+            ExecutorNotification notification=notifiers.remove(runnable);
+            if(notification != null) // same exception as thrown by a Message which cannot serialize its payload
+                notification.throwableEncountered(new IllegalArgumentException(e));
+            else
+                log.error("failed serializing task " + task, e);
+            return false;
+        }
+        _awaitingReturn.put(new Owner(dest, requestId), runnable);
+        return true;
+    }
+
+    /** Picks the member with the most free consumers and takes one of them. Returns null if no member has any */
+    protected Address pickConsumer() {
+        Address dest=null;
+        int max=0;
+        synchronized(loads) {
+            for(Map.Entry<Address,Load> entry: loads.entrySet()) {
+                int free=entry.getValue().free;
+                if(free > max) {
+                    max=free;
+                    dest=entry.getKey();
+                }
+            }
+            if(dest != null)
+                loads.get(dest).free--;
+        }
+        return dest;
+    }
+
+    protected void releaseConsumer(Address dest) {
+        synchronized(loads) {
+            Load load=loads.get(dest);
+            if(load != null)
+                load.free++;
+        }
+    }
+
+    /** Asks the member with the longest queue for as many tasks as we have free consumers, unless we have queued
+     * tasks ourselves or a steal request is already pending */
+    protected void steal() {
+        Address target=null;
+        int num;
+        _consumerLock.lock();
+        try {
+            num=idle - assigned.size();
+            if(num <= 0 || !_awaitingConsumer.isEmpty())
+                return;
+            if(steal_target != null) {
+                steal_again=true;
+                return;
+            }
+            int max=0;
+            synchronized(loads) {
+                for(Map.Entry<Address,Load> entry: loads.entrySet()) {
+                    if(entry.getValue().queued > max) {
+                        max=entry.getValue().queued;
+                        target=entry.getKey();
+                    }
+                }
+            }
+            if(target == null)
+                return;
+            steal_target=target;
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+        sendRequest(target, Type.STEAL_REQUEST, num, null);
+    }
+
+    protected void handleStealRequest(Address sender, int num_tasks) {
+        TaskBatch batch=new TaskBatch(true);
+        Runnable runnable;
+        while(batch.size() < num_tasks && (runnable=_awaitingConsumer.poll()) != null)
+            addToBatch(batch, sender, runnable);
+        num_batches_sent.incrementAndGet();
+        sendRequest(sender, Type.RUN_BATCH, -1, batch); // sent even when empty, so that the sender can steal again
+        if(batch.isEmpty())
+            last_load=null; // the sender's view of our load is stale: correct it even if our load didn't change
+        advertiseLoad();
+    }
+
+    protected void handleTaskBatch(Address sender, TaskBatch batch) {
+        boolean steal=false;
+        if(batch.isStolen()) {
+            _consumerLock.lock();
+            try {
+                if(sender.equals(steal_target))
+                    steal_target=null;
+                steal=!batch.isEmpty() || steal_again;
+                steal_again=false;
+            }
+            finally {
+                _consumerLock.unlock();
+            }
+        }
+
+        for(int i=0; i < batch.size(); i++) {
+            long requestId=batch.getRequestId(i);
+            Runnable runnable;
+            try {
+                runnable=toRunnable(batch.getTask(i));
+            }
+            catch(Exception e) {
+                sendRequest(sender, Type.RESULT_EXCEPTION, requestId, e);
+                continue;
+            }
+            if(assignTask(runnable, new Owner(sender, requestId))) {
+                if(batch.isStolen())
+                    num_stolen_tasks.incrementAndGet();
+            }
+            else {
+                num_rejected_tasks.incrementAndGet();
+                sendRequest(sender, Type.RUN_REJECTED, requestId, null);
+                last_load=null; // the sender's view of our load is stale
+            }
+        }
+        if(steal)
+            steal();
+        advertiseLoad();
+    }
+
+    protected void handleLoad(Address sender, Load load) {
+        if(local_addr.equals(sender))
+            return;
+        synchronized(loads) {
+            loads.put(sender, load);
+        }
+        if(load.free > 0 && !_awaitingConsumer.isEmpty())
+            dispatch();
+        else if(load.queued > 0)
+            steal();
+    }
+
+    protected void handleTaskRejectedResponse(Address source, long requestId) {
+        // the member which rejected the task will advertise its actual load shortly
+        if(!local_addr.equals(source)) {
+            synchronized(loads) {
+                Load load=loads.get(source);
+                if(load != null)
+                    load.free=0;
+            }
+        }
+        super.handleTaskRejectedResponse(source, requestId);
+    }
+
+    protected void handleInterruptRequest(Address source, long requestId) {
+        Owner owner=new Owner(source, requestId);
+        _consumerLock.lock();
+        try {
+            // the task hasn't yet been picked up by a consumer: simply drop it
+            for(Iterator<Runnable> it=assigned.iterator(); it.hasNext();) {
+                Runnable runnable=it.next();
+                if(owner.equals(_running.get(runnable))) {
+                    it.remove();
+                    _running.remove(runnable);
+                    return;
+                }
+            }
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+        super.handleInterruptRequest(source, requestId);
+    }
+
+    /** Advertises our load to all members after at most load_interval ms, if it changed */
+    protected void advertiseLoad() {
+        if(local_addr == null || !load_update_scheduled.compareAndSet(false, true))
+            return;
+        try {
+            getTransport().getTimer().schedule(new Runnable() {
+                public void run() {
+                    load_update_scheduled.set(false);
+                    sendLoad();
+                }
+            }, load_interval, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException ex) { // the timer was stopped
+            load_update_scheduled.set(false);
+        }
+    }
+
+    protected void sendLoad() {
+        Load load=currentLoad();
+        if(load.equals(last_load))
+            return;
+        last_load=load;
+        num_load_updates.incrementAndGet();
+        sendRequest(null, Type.LOAD, -1, load);
+    }
+
+    protected Load currentLoad() {
+        return new Load(Math.max(0, getFreeConsumers()), _awaitingConsumer.size());
+    }
+
+    protected Runnable toRunnable(Object task) {
+        if(task instanceof Runnable)
+            return (Runnable)task;
+        if(task instanceof Callable) {
+            @SuppressWarnings("unchecked")
+            Callable<Object> callable=(Callable<Object>)task;
+            return new FutureTask<>(callable);
+        }
+        throw new IllegalArgumentException("task " + task + " is neither a Runnable nor a Callable");
+    }
+
+    // @see org.jgroups.protocols.Executing#sendToCoordinator(org.jgroups.protocols.Executing.Type, long, org.jgroups.Address)
+    @Override
+    protected void sendToCoordinator(Type type, long requestId, Address address) {
+        // there is no coordinator: a (re)submitted task is dispatched by its submitter
+        if(type == Type.RUN_REQUEST)
+            dispatch();
+    }
+
+    @Override
+    protected void sendNewRunRequest(Owner source) {
+    }
+
+    @Override
+    protected void sendRemoveRunRequest(Owner source) {
+    }
+
+    @Override
+    protected void sendNewConsumerRequest(Owner source) {
+    }
+
+    @Override
+    protected void sendRemoveConsumerRequest(Owner source) {
+    }
+}
@@ -61,6 +61,24 @@ public class RELAY2 extends Protocol {
       "get deprecated soon")
     protected boolean                                  warn_when_ftc_missing=false;
 
+    @Property(description="If true, messages queued for the same remote site master are relayed as a single " +
+      "message over the bridge. All sites need to use the same setting",writable=false)
+    protected boolean                                  relay_batching=false;
+
+    @Property(description="Max number of messages relayed in a single batch",writable=false)
+    protected int                                      max_relay_batch_size=100;
+
+    @Property(description="Max number of bytes (payload) relayed in a single batch",writable=false)
+    protected int                                      max_relay_batch_bytes=64000;
+
+    @Property(description="Max number of messages queued for a remote site master. Senders block when the queue " +
+      "is full. Only used if relay_batching is true",writable=false)
+    protected int                                      relay_queue_capacity=10000;
+
+    @Property(description="Whether or not to compress (with LZ4) the batches relayed over the bridge. " +
+      "Only used if relay_batching is true",writable=false)
+    protected boolean                                  compress_relay_batches=false;
+
 
     /* ---------------------------------------------    Fields    ------------------------------------------------ */
 
@@ -127,6 +145,11 @@ public class RELAY2 extends Protocol {
     public RELAY2 enableAddressTagging(boolean flag) {enable_address_tagging=flag; return this;}
     public RELAY2 relayMulticasts(boolean flag)      {relay_multicasts=flag;       return this;}
     public RELAY2 asyncRelayCreation(boolean flag)   {async_relay_creation=flag;   return this;}
+    public RELAY2 relayBatching(boolean flag)        {relay_batching=flag;         return this;}
+    public RELAY2 maxRelayBatchSize(int size)        {max_relay_batch_size=size;   return this;}
+    public RELAY2 maxRelayBatchBytes(int size)       {max_relay_batch_bytes=size;  return this;}
+    public RELAY2 relayQueueCapacity(int size)       {relay_queue_capacity=size;   return this;}
+    public RELAY2 compressRelayBatches(boolean flag) {compress_relay_batches=flag; return this;}
 
     public String  site()                            {return site;}
     public List<String> siteNames()                  {return getSites();}
@@ -135,9 +158,15 @@ public class RELAY2 extends Protocol {
     public boolean enableAddressTagging()            {return enable_address_tagging;}
     public boolean relayMulticasts()                 {return relay_multicasts;}
     public boolean asyncRelayCreation()              {return async_relay_creation;}
+    public boolean relayBatching()                   {return relay_batching;}
+    public int     maxRelayBatchSize()               {return max_relay_batch_size;}
+    public int     maxRelayBatchBytes()              {return max_relay_batch_bytes;}
+    public int     relayQueueCapacity()              {return relay_queue_capacity;}
+    public boolean compressRelayBatches()            {return compress_relay_batches;}
     public Address getLocalAddress()                 {return local_addr;}
     public TimeScheduler getTimer()                  {return timer;}
     public void incrementRelayed()                   {relayed.incrementAndGet();}
+    public void addToRelayed(int num)                {relayed.addAndGet(num);}
     public void addToRelayedTime(long delta)         {relayed_time.addAndGet(delta);}
 
 
@@ -205,6 +234,9 @@ public class RELAY2 extends Protocol {
         forward_to_local_mbr_time.set(0);
         local_deliveries.set(0);
         local_delivery_time.set(0);
+        Relayer tmp=relayer;
+        if(tmp != null)
+            tmp.resetStats();
     }
 
     public View getBridgeView(String cluster_name) {
@@ -236,6 +268,8 @@ public class RELAY2 extends Protocol {
             log.warn("max_size_masters was " + max_site_masters + ", changed to 1");
             max_site_masters=1;
         }
+        if(relay_batching && (max_relay_batch_size < 1 || relay_queue_capacity < 1))
+            throw new IllegalArgumentException("max_relay_batch_size and relay_queue_capacity need to be positive");
         if(config != null)
             parseSiteConfiguration(sites);
 
@@ -303,6 +337,12 @@ public class RELAY2 extends Protocol {
         return relayer != null? relayer.printRoutes() : "n/a (not site master)";
     }
 
+    @ManagedOperation(description="Prints the number of messages and bytes relayed, the average send time and the " +
+      "throughput of each route. Only available if we're a site master and stats are enabled")
+    public String printRouteStats() {
+        return relayer != null? relayer.printRouteStats() : "n/a (not site master)";
+    }
+
     /**
      * Returns the bridge channel to a given site
      * @param site_name The site name, e.g. "SFO"
@@ -360,7 +400,7 @@ public class RELAY2 extends Protocol {
                 // forward to the coordinator unless we're the coord (then route the message directly)
                 if(!is_site_master) {
                     long start=stats? System.nanoTime() : 0;
-                    Address site_master=pickSiteMaster();
+                    Address site_master=pickSiteMaster(target);
                     if(site_master == null)
                         throw new IllegalStateException("site master is null");
                     forwardTo(site_master, target, sender, msg, max_site_masters == 1);
@@ -521,7 +561,8 @@ public class RELAY2 extends Protocol {
             return;
         }
 
-        Relayer.Route route=tmp.getRoute(target_site);
+        // messages to a site master are spread by sender, all others by destination
+        Relayer.Route route=tmp.getRoute(target_site, dest instanceof SiteMaster? sender : dest);
         if(route == null) {
             log.error(local_addr + ": no route to " + target_site + ": dropping message");
             sendSiteUnreachableTo(sender, target_site);
@@ -535,7 +576,7 @@ public class RELAY2 extends Protocol {
     /** Sends the message via all bridges excluding the excluded_sites bridges */
     protected void sendToBridges(Address sender, final Message msg, String ... excluded_sites) {
         Relayer tmp=relayer;
-        List<Relayer.Route> routes=tmp != null? tmp.getRoutes(excluded_sites) : null;
+        List<Relayer.Route> routes=tmp != null? tmp.getRoutes(sender, excluded_sites) : null;
         if(routes == null)
             return;
         for(Relayer.Route route: routes) {
@@ -583,7 +624,7 @@ public class RELAY2 extends Protocol {
         boolean send_to_coord=false;
         if(dest instanceof SiteUUID) {
             if(dest instanceof SiteMaster) {
-                local_dest=pickSiteMaster();
+                local_dest=pickSiteMaster(sender);
                 if(local_dest == null)
                     throw new IllegalStateException("site master was null");
                 send_to_coord=true;
@@ -708,9 +749,25 @@ public class RELAY2 extends Protocol {
         return retval;
     }
 
-    /** Returns a random site master from site_masters */
-    protected Address pickSiteMaster() {
-        return Util.pickRandomElement(site_masters);
+    /**
+     * Picks a site master from site_masters by hashing key (the destination or the sender of a message). This spreads
+     * the load over all site masters, but messages with the same key always take the same path, preserving their order
+     */
+    protected Address pickSiteMaster(Address key) {
+        return pick(site_masters, key, 0);
+    }
+
+    /**
+     * Picks an element of list by hashing key, or a random element if key is null. Different seeds make different
+     * picks for the same key, e.g. a local site master and the route to a remote site master are picked independently
+     */
+    protected static <T> T pick(List<T> list, Object key, int seed) {
+        if(list == null || list.isEmpty())
+            return null;
+        if(key == null)
+            return Util.pickRandomElement(list);
+        long hash=((key.hashCode() + seed) * 0x9E3779B9) & 0xFFFFFFFFL; // the high bits are well mixed
+        return list.get((int)((hash * list.size()) >>> 32));
     }
 
 
@@ -719,6 +776,7 @@ public class RELAY2 extends Protocol {
         public static final byte DATA             = 1;
         public static final byte SITE_UNREACHABLE = 2; // final_dest is a SiteMaster
         public static final byte HOST_UNREACHABLE = 3; // final_dest is a SiteUUID (not currently used)
+        public static final byte BATCH            = 4; // the payload is a batch of relayed messages
 
         protected byte    type;
         protected Address final_dest;
@@ -759,6 +817,7 @@ public class RELAY2 extends Protocol {
                 case DATA:             return "DATA";
                 case SITE_UNREACHABLE: return "SITE_UNREACHABLE";
                 case HOST_UNREACHABLE: return "HOST_UNREACHABLE";
+                case BATCH:            return "BATCH";
                 default:               return "<unknown>";
             }
         }
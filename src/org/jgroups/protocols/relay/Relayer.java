@@ -4,17 +4,24 @@ import org.jgroups.*;
 import org.jgroups.logging.Log;
 import org.jgroups.protocols.relay.config.RelayConfig;
 import org.jgroups.stack.AddressGenerator;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Compressor;
+import org.jgroups.util.LZ4Compressor;
 import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Maintains bridges and routing table. Does the routing of outgoing messages and dispatches incoming messages to
  * the right members.<p/>
+ * If {@link RELAY2#relayBatching()} is true, messages are queued per route and the messages queued while a thread is
+ * sending are relayed as a single (optionally compressed) message by that thread.<p/>
  * A Relayer cannot be reused once it is stopped, but a new Relayer instance must be created.
  * @author Bela Ban
  * @since 3.2
@@ -36,6 +43,17 @@ public class Relayer {
 
     protected boolean                           stats;
 
+    /** Uncompresses batches received over the bridges; one per thread as compressors are not thread-safe */
+    protected final ThreadLocal<Compressor>     compressors=new ThreadLocal<Compressor>() {
+        protected Compressor initialValue() {return new LZ4Compressor();}
+    };
+
+    /** Batches smaller than this are sent uncompressed */
+    protected static final int                  MIN_COMPRESSION_SIZE=512;
+
+    /** Set in the first byte of the payload of a batch if the rest of the payload is compressed */
+    protected static final byte                 COMPRESSED=1;
+
     // Used to store messages for a site with status UNKNOWN. Messages will be flushed when the status changes to UP, or
     // a SITE-UNREACHABLE message will be sent to each member *once* when the status changes to DOWN
     // protected final ConcurrentMap<String,BlockingQueue<Message>> fwd_queue=new ConcurrentHashMap<String,BlockingQueue<Message>>();
@@ -121,6 +139,21 @@ public class Relayer {
 
 
 
+    public synchronized String printRouteStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String,List<Route>> entry: routes.entrySet())
+            for(Route route: entry.getValue())
+                sb.append(entry.getKey() + " --> ").append(route.printStats()).append("\n");
+        return sb.toString();
+    }
+
+    public synchronized void resetStats() {
+        for(List<Route> list: routes.values())
+            for(Route route: list)
+                route.resetStats();
+    }
+
+
     /**
      * Grabs a random route
      * @param site
@@ -131,6 +164,14 @@ public class Relayer {
         return list == null? null : Util.pickRandomElement(list);
     }
 
+    /**
+     * Picks the route by hashing key, so that all messages with the same key (e.g. the same destination) are relayed
+     * by the same remote site master, in order
+     */
+    protected synchronized Route getRoute(String site, Address key) {
+        return RELAY2.pick(routes.get(site), key, site.hashCode());
+    }
+
     protected List<String> getSiteNames() {
         return new ArrayList<>(routes.keySet());
     }
@@ -150,6 +191,17 @@ public class Relayer {
         return retval;
     }
 
+    /** Returns one route per site (picked by hashing key), excluding the routes to excluded_sites */
+    protected synchronized List<Route> getRoutes(Address key, String ... excluded_sites) {
+        List<Route> retval=new ArrayList<>(routes.size());
+        for(Map.Entry<String,List<Route>> entry: routes.entrySet()) {
+            Route route=RELAY2.pick(entry.getValue(), key, entry.getKey().hashCode());
+            if(route != null && !isExcluded(route, excluded_sites))
+                retval.add(route);
+        }
+        return retval;
+    }
+
     protected View getBridgeView(String cluster_name) {
         if(cluster_name == null || bridges == null)
             return null;
@@ -178,34 +230,174 @@ public class Relayer {
      */
     public class Route implements Comparable<Route> {
         /** SiteUUID: address of the site master */
-        protected final Address   site_master;
-        protected final JChannel  bridge;
+        protected final Address                site_master;
+        protected final JChannel               bridge;
+
+        /** Messages waiting to be relayed; null if batching is disabled */
+        protected final BlockingQueue<Message> queue;
+
+        /** Number of queued messages; the thread incrementing it from 0 sends until it drops to 0 again */
+        protected final AtomicInteger          queued=new AtomicInteger(0);
+
+        /** Compresses batches; only used by the thread sending the queued messages */
+        protected final Compressor             compressor;
+
+        protected final AtomicLong             num_relayed=new AtomicLong(0);
+        protected final AtomicLong             bytes_relayed=new AtomicLong(0);  // payload of the relayed messages
+        protected final AtomicLong             num_sends=new AtomicLong(0);      // messages sent over the bridge
+        protected final AtomicLong             bytes_sent=new AtomicLong(0);     // payload sent over the bridge
+        protected final AtomicLong             send_time=new AtomicLong(0);      // ns spent sending over the bridge
 
         public Route(Address site_master, JChannel bridge) {
             this.site_master=site_master;
             this.bridge=bridge;
+            this.queue=relay.relayBatching()? new ArrayBlockingQueue<Message>(relay.relayQueueCapacity()) : null;
+            this.compressor=relay.relayBatching() && relay.compressRelayBatches()? new LZ4Compressor() : null;
         }
 
         public JChannel           bridge()                               {return bridge;}
         public Address            siteMaster()                           {return site_master;}
+        public long               numRelayed()                           {return num_relayed.get();}
+        public long               bytesRelayed()                         {return bytes_relayed.get();}
+        public long               numSends()                             {return num_sends.get();}
+        public long               bytesSent()                            {return bytes_sent.get();}
+
+        /** The average time (in microseconds) to send a message (or batch) over the bridge */
+        public double avgSendTime() {
+            long sends=num_sends.get();
+            return sends > 0? send_time.get() / 1000.0 / sends : 0;
+        }
+
+        /** The number of messages relayed per second of send time */
+        public long msgsPerSec() {
+            long time=send_time.get();
+            return time > 0? (long)(num_relayed.get() / (time / 1000000000.0)) : 0;
+        }
+
+        /** The number of (uncompressed) bytes relayed per second of send time */
+        public long bytesPerSec() {
+            long time=send_time.get();
+            return time > 0? (long)(bytes_relayed.get() / (time / 1000000000.0)) : 0;
+        }
+
+        public void resetStats() {
+            num_relayed.set(0);
+            bytes_relayed.set(0);
+            num_sends.set(0);
+            bytes_sent.set(0);
+            send_time.set(0);
+        }
+
+        public String printStats() {
+            long sends=num_sends.get();
+            return String.format("%s: %d msgs (%s) relayed in %d sends (%s), avg msgs/send=%.2f, " +
+                                   "avg send time=%.2f us, %d msgs/s, %s/s",
+                                 site_master, num_relayed.get(), Util.printBytes(bytes_relayed.get()), sends,
+                                 Util.printBytes(bytes_sent.get()), sends > 0? num_relayed.get() / (double)sends : 0.0,
+                                 avgSendTime(), msgsPerSec(), Util.printBytes(bytesPerSec()));
+        }
 
         public void send(Address final_destination, Address original_sender, final Message msg) {
             if(log.isTraceEnabled())
                 log.trace("routing message to " + final_destination + " via " + site_master);
-            long start=stats? System.nanoTime() : 0;
             try {
                 Message copy=createMessage(site_master, final_destination, original_sender, msg);
-                bridge.send(copy);
-                if(stats) {
-                    relay.addToRelayedTime(System.nanoTime() - start);
-                    relay.incrementRelayed();
+                if(queue == null) {
+                    send(copy, 1, copy.getLength());
+                    return;
                 }
+                queue.put(copy); // blocks when the queue is full
+                if(queued.getAndIncrement() != 0)
+                    return; // the thread which incremented queued from 0 sends our message
+                sendQueuedMessages();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("interrupted relaying message to " + site_master);
             }
             catch(Exception e) {
                 log.error("failure relaying message", e);
             }
         }
 
+        /** Sends queued messages in batches, until no more messages are queued */
+        protected void sendQueuedMessages() {
+            int max_size=relay.maxRelayBatchSize(), max_bytes=relay.maxRelayBatchBytes();
+            List<Message> batch=new ArrayList<>(Math.min(max_size, 64));
+            int removed;
+            do {
+                Message msg;
+                int bytes=0;
+                while(batch.size() < max_size && bytes < max_bytes && (msg=queue.poll()) != null) {
+                    batch.add(msg);
+                    bytes+=msg.getLength();
+                }
+                removed=batch.size();
+                try {
+                    if(removed == 1 && compressor == null)
+                        send(batch.get(0), 1, bytes);
+                    else if(removed > 0)
+                        send(createBatch(batch), removed, bytes);
+                }
+                catch(Exception e) {
+                    log.error("failure relaying " + removed + " messages to " + site_master, e);
+                }
+                batch.clear();
+            }
+            while(queued.addAndGet(-removed) > 0);
+        }
+
+        protected void send(Message msg, int num_msgs, int bytes) throws Exception {
+            long start=stats? System.nanoTime() : 0;
+            bridge.send(msg);
+            if(stats) {
+                long time=System.nanoTime() - start;
+                relay.addToRelayedTime(time);
+                relay.addToRelayed(num_msgs);
+                num_relayed.addAndGet(num_msgs);
+                bytes_relayed.addAndGet(bytes);
+                num_sends.incrementAndGet();
+                bytes_sent.addAndGet(msg.getLength());
+                send_time.addAndGet(time);
+            }
+        }
+
+        /**
+         * Creates a message containing all messages of the batch. The payload is a flags byte, followed by the number
+         * of messages and the messages (without addresses). If compression is enabled and the payload is big enough,
+         * everything after the flags byte is compressed, and the flags byte is followed by the uncompressed length
+         */
+        protected Message createBatch(List<Message> batch) throws Exception {
+            int size=Global.BYTE_SIZE + Global.INT_SIZE;
+            boolean oob=true;
+            for(Message msg: batch) {
+                size+=(int)msg.size();
+                oob=oob && msg.isFlagSet(Message.Flag.OOB);
+            }
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+            out.writeByte(0);
+            out.writeInt(batch.size());
+            for(Message msg: batch)
+                msg.writeToNoAddrs(null, out);
+
+            byte[] buf=out.buffer();
+            int length=out.position();
+            if(compressor != null && length >= MIN_COMPRESSION_SIZE) {
+                int uncompressed_length=length - Global.BYTE_SIZE;
+                byte[] compressed=new byte[length];
+                int compressed_size=compressor.compress(buf, Global.BYTE_SIZE, uncompressed_length, compressed,
+                                                        Global.BYTE_SIZE + Global.INT_SIZE, uncompressed_length - Global.INT_SIZE - 1);
+                if(compressed_size > 0) {
+                    ByteBuffer.wrap(compressed).put(COMPRESSED).putInt(uncompressed_length);
+                    buf=compressed;
+                    length=Global.BYTE_SIZE + Global.INT_SIZE + compressed_size;
+                }
+            }
+            Message retval=new Message(site_master, buf, 0, length)
+              .putHeader(relay.getId(), new RELAY2.Relay2Header(RELAY2.Relay2Header.BATCH, null, null));
+            return oob? retval.setFlag(Message.Flag.OOB) : retval;
+        }
+
         public int compareTo(Route o) {
             return site_master.compareTo(o.siteMaster());
         }
@@ -260,7 +452,47 @@ public class Relayer {
                 log.warn("received a message without a relay header; discarding it");
                 return;
             }
-            relay.handleRelayMessage(hdr, msg);
+            if(hdr.type != RELAY2.Relay2Header.BATCH) {
+                relay.handleRelayMessage(hdr, msg);
+                return;
+            }
+            try {
+                for(Message m: readBatch(msg)) {
+                    RELAY2.Relay2Header h=(RELAY2.Relay2Header)m.getHeader(relay.getId());
+                    if(h != null)
+                        relay.handleRelayMessage(h, m);
+                }
+            }
+            catch(Exception e) {
+                log.error("failed reading batch from " + msg.getSrc(), e);
+            }
+        }
+
+        protected List<Message> readBatch(Message msg) throws Exception {
+            byte[] buf=msg.getRawBuffer();
+            int offset=msg.getOffset(), length=msg.getLength();
+            if(buf[offset] == COMPRESSED) {
+                int uncompressed_length=ByteBuffer.wrap(buf, offset + Global.BYTE_SIZE, Global.INT_SIZE).getInt();
+                byte[] tmp=new byte[uncompressed_length];
+                int skip=Global.BYTE_SIZE + Global.INT_SIZE;
+                compressors.get().uncompress(buf, offset + skip, length - skip, tmp, 0, uncompressed_length);
+                buf=tmp;
+                offset=0;
+                length=uncompressed_length;
+            }
+            else {
+                offset+=Global.BYTE_SIZE;
+                length-=Global.BYTE_SIZE;
+            }
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, offset, length);
+            int num=in.readInt();
+            List<Message> retval=new ArrayList<>(num);
+            for(int i=0; i < num; i++) {
+                Message m=new Message(false);
+                m.readFrom(in);
+                retval.add(m);
+            }
+            return retval;
         }
 
         /** The view contains a list of SiteUUIDs. Adjust the routing table based on the SiteUUIDs UUID and site
@@ -145,6 +145,21 @@ public class GossipData implements SizeStreamable {
         }
     }
 
+    /**
+     * Reads everything but the buffer
+     * @return The length of the buffer, which follows in the input stream, or -1 if there is no buffer
+     */
+    @SuppressWarnings("unchecked")
+    public int readFromSkipPayload(DataInput in) throws Exception {
+        type=in.readByte();
+        group=Bits.readString(in);
+        addr=Util.readAddress(in);
+        logical_name=Bits.readString(in);
+        mbrs=(List<Address>)Util.readAddresses(in, LinkedList.class);
+        physical_addr=(PhysicalAddress)Util.readAddress(in);
+        return in.readByte() == 1? in.readInt() : -1;
+    }
+
 
     public int size() {
         int retval=Global.BYTE_SIZE; // type
@@ -0,0 +1,814 @@
+package org.jgroups.stack;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.jmx.JmxConfigurator;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.protocols.PingData;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+
+import javax.management.MBeanServer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector-based version of {@link GossipRouter}. Instead of using a thread per client connection, all connections
+ * are multiplexed over a few event loops, each running its own {@link Selector}. The protocol is the same as that of
+ * GossipRouter, so existing clients ({@link RouterStub}, e.g. used by TUNNEL or TCPGOSSIP) can be used.<p/>
+ * MESSAGE requests are not unmarshalled: only the header is read to determine group and destination, and the bytes of
+ * the request are forwarded as is. The buffer data from a client is read into is shared by all messages read into it
+ * (and all of their destinations), so messages are not copied. At the end of each iteration of an event loop, the
+ * messages queued for a client are written with a single gathering write.
+ * @author agent
+ * @since  3.6.5
+ */
+public class NioGossipRouter {
+
+    @ManagedAttribute(description="server port on which the router accepts client connections", writable=true)
+    protected int     port=GossipRouter.PORT;
+
+    @ManagedAttribute(description="address to which the router should bind", writable=true, name="bind_address")
+    protected String  bind_addr;
+
+    @ManagedAttribute(description="time (in msecs) until idle connections are closed. 0 means don't expire", writable=true)
+    protected long    expiry_time;
+
+    @Property(description="The max queue size of backlogged connections")
+    protected int     backlog=1000;
+
+    @Property(description="Number of event loops (threads) handling the client connections")
+    protected int     num_loops=Runtime.getRuntime().availableProcessors();
+
+    @Property(description="Size (in bytes) of the buffers into which data from clients is read. A buffer is shared by " +
+      "all messages read into it, and is reclaimed when all of them have been forwarded")
+    protected int     read_buffer_size=64 * 1024;
+
+    @Property(description="Max number of bytes queued for a client. Messages to a client with more bytes queued are " +
+      "dropped (and retransmitted by the sender)")
+    protected int     max_queued_bytes=10 * 1024 * 1024;
+
+    @Property(description="Max number of messages written to a client with a single (gathering) write")
+    protected int     max_write_batch=512;
+
+    @Property(description="Whether or not TCP_NODELAY is set on client connections")
+    protected boolean tcp_nodelay=true;
+
+    protected boolean jmx;
+
+    protected boolean registered;
+
+    /** Maintains associations between groups and their members */
+    protected final ConcurrentMap<String,ConcurrentMap<Address,Connection>> routing_table=new ConcurrentHashMap<>();
+
+    /** Physical addresses of the logical addresses, used mainly by TCPGOSSIP */
+    protected final ConcurrentMap<Address,PhysicalAddress> address_mappings=new ConcurrentHashMap<>();
+
+    protected final Set<Connection>      connections=Collections.newSetFromMap(new ConcurrentHashMap<Connection,Boolean>());
+
+    protected final AtomicBoolean        running=new AtomicBoolean(false);
+
+    protected ServerSocketChannel        srv_channel;
+
+    protected EventLoop[]                loops;
+
+    protected final AtomicInteger        next_loop=new AtomicInteger(0);
+
+    protected ThreadFactory              thread_factory=new DefaultThreadFactory("gossip-loop", true, true);
+
+    protected Timer                      timer;
+
+    protected final Log                  log=LogFactory.getLog(this.getClass());
+
+    protected final AtomicLong           msgs_received=new AtomicLong(0);   // MESSAGE requests received from clients
+    protected final AtomicLong           bytes_received=new AtomicLong(0);
+    protected final AtomicLong           msgs_forwarded=new AtomicLong(0);  // messages written to clients
+    protected final AtomicLong           bytes_forwarded=new AtomicLong(0);
+    protected final AtomicLong           num_writes=new AtomicLong(0);
+    protected final AtomicLong           msgs_dropped=new AtomicLong(0);
+    protected volatile long              stats_start=System.nanoTime();
+
+
+    public NioGossipRouter() {
+    }
+
+    public NioGossipRouter(int port, String bind_addr) {
+        this(port, bind_addr, false, 0);
+    }
+
+    public NioGossipRouter(int port, String bind_addr, boolean jmx, long expiry_time) {
+        this.port=port;
+        this.bind_addr=bind_addr;
+        this.jmx=jmx;
+        this.expiry_time=expiry_time;
+    }
+
+    public int             getPort()                         {return port;}
+    public NioGossipRouter setPort(int port)                 {this.port=port; return this;}
+    public String          getBindAddress()                  {return bind_addr;}
+    public NioGossipRouter setBindAddress(String addr)       {this.bind_addr=addr; return this;}
+    public long            getExpiryTime()                   {return expiry_time;}
+    public NioGossipRouter setExpiryTime(long time)          {this.expiry_time=time; return this;}
+    public int             getBacklog()                      {return backlog;}
+    public NioGossipRouter setBacklog(int backlog)           {this.backlog=backlog; return this;}
+    public int             getNumLoops()                     {return num_loops;}
+    public NioGossipRouter setNumLoops(int num)              {this.num_loops=num; return this;}
+    public int             getReadBufferSize()               {return read_buffer_size;}
+    public NioGossipRouter setReadBufferSize(int size)       {this.read_buffer_size=size; return this;}
+    public int             getMaxQueuedBytes()               {return max_queued_bytes;}
+    public NioGossipRouter setMaxQueuedBytes(int max)        {this.max_queued_bytes=max; return this;}
+    public int             getMaxWriteBatch()                {return max_write_batch;}
+    public NioGossipRouter setMaxWriteBatch(int max)         {this.max_write_batch=max; return this;}
+    public boolean         getTcpNodelay()                   {return tcp_nodelay;}
+    public NioGossipRouter setTcpNodelay(boolean flag)       {this.tcp_nodelay=flag; return this;}
+    public ThreadFactory   getThreadFactory()                {return thread_factory;}
+    public NioGossipRouter setThreadFactory(ThreadFactory f) {this.thread_factory=f; return this;}
+
+    @ManagedAttribute(description="operational status", name="running")
+    public boolean isRunning()                               {return running.get();}
+
+    @ManagedAttribute(description="Number of client connections")
+    public int     getNumConnections()                       {return connections.size();}
+
+    @ManagedAttribute(description="Number of messages received from clients")
+    public long    getMsgsReceived()                         {return msgs_received.get();}
+
+    @ManagedAttribute(description="Number of bytes received from clients")
+    public long    getBytesReceived()                        {return bytes_received.get();}
+
+    @ManagedAttribute(description="Number of messages forwarded to clients (a multicast counts once per client)")
+    public long    getMsgsForwarded()                        {return msgs_forwarded.get();}
+
+    @ManagedAttribute(description="Number of bytes forwarded to clients")
+    public long    getBytesForwarded()                       {return bytes_forwarded.get();}
+
+    @ManagedAttribute(description="Number of messages which were dropped as too many bytes were queued for a client")
+    public long    getMsgsDropped()                          {return msgs_dropped.get();}
+
+    @ManagedAttribute(description="Average number of messages written to a client with a single write")
+    public double  getAvgMsgsPerWrite() {
+        long writes=num_writes.get();
+        return writes > 0? msgs_forwarded.get() / (double)writes : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages forwarded per second (since start or the last reset of the stats)")
+    public long    getMsgsForwardedPerSec() {
+        double secs=(System.nanoTime() - stats_start) / 1000000000.0;
+        return secs > 0? (long)(msgs_forwarded.get() / secs) : 0;
+    }
+
+    @ManagedAttribute(description="Number of bytes forwarded per second (since start or the last reset of the stats)")
+    public long    getBytesForwardedPerSec() {
+        double secs=(System.nanoTime() - stats_start) / 1000000000.0;
+        return secs > 0? (long)(bytes_forwarded.get() / secs) : 0;
+    }
+
+    @ManagedOperation(description="Resets all stats")
+    public void resetStats() {
+        msgs_received.set(0);
+        bytes_received.set(0);
+        msgs_forwarded.set(0);
+        bytes_forwarded.set(0);
+        num_writes.set(0);
+        msgs_dropped.set(0);
+        stats_start=System.nanoTime();
+    }
+
+    @ManagedOperation(description="Prints the routing stats")
+    public String printStats() {
+        return String.format("connections=%d, received=%d msgs (%s), forwarded=%d msgs (%s), dropped=%d msgs, " +
+                               "avg msgs/write=%.2f, %d msgs/s, %s/s",
+                             getNumConnections(), getMsgsReceived(), Util.printBytes(getBytesReceived()),
+                             getMsgsForwarded(), Util.printBytes(getBytesForwarded()), getMsgsDropped(),
+                             getAvgMsgsPerWrite(), getMsgsForwardedPerSec(), Util.printBytes(getBytesForwardedPerSec()));
+    }
+
+
+    @ManagedOperation(description="Starts the router: binds the server socket and starts the event loops")
+    public void start() throws Exception {
+        if(!running.compareAndSet(false, true))
+            throw new Exception("Router already started.");
+        if(jmx && !registered) {
+            MBeanServer server=Util.getMBeanServer();
+            JmxConfigurator.register(this, server, "jgroups:name=NioGossipRouter");
+            registered=true;
+        }
+        try {
+            srv_channel=ServerSocketChannel.open();
+            InetAddress addr=bind_addr != null? InetAddress.getByName(bind_addr) : null;
+            srv_channel.bind(new InetSocketAddress(addr, port), backlog);
+            srv_channel.configureBlocking(false);
+
+            loops=new EventLoop[Math.max(1, num_loops)];
+            for(int i=0; i < loops.length; i++)
+                loops[i]=new EventLoop();
+            srv_channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            for(int i=0; i < loops.length; i++)
+                loops[i].start("NioGossipRouter-" + (i+1));
+        }
+        catch(Exception ex) {
+            stop();
+            throw ex;
+        }
+
+        if(expiry_time > 0) {
+            timer=new Timer(true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    sweep();
+                }
+            }, expiry_time, expiry_time);
+        }
+        stats_start=System.nanoTime();
+        log.info("router started on %s with %d event loop(s)", srv_channel.getLocalAddress(), loops.length);
+    }
+
+    @ManagedOperation(description="Closes all connections, the server socket and stops the event loops")
+    public void stop() {
+        if(!running.compareAndSet(true, false))
+            return;
+        if(timer != null)
+            timer.cancel();
+        Util.close(srv_channel);
+        clear();
+        if(loops != null)
+            for(EventLoop loop: loops)
+                if(loop != null)
+                    loop.stop();
+        log.debug("router stopped");
+    }
+
+    @ManagedOperation(description="Closes all connections and clears the routing table (leaves the server socket open)")
+    public void clear() {
+        for(Connection conn: connections)
+            conn.close(false);
+        routing_table.clear();
+    }
+
+    public void destroy() {
+    }
+
+    @ManagedOperation(description="dumps the contents of the routing table")
+    public String dumpRoutingTable() {
+        if(routing_table.isEmpty())
+            return "empty routing table";
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String,ConcurrentMap<Address,Connection>> entry: routing_table.entrySet())
+            sb.append(entry.getKey()).append(": ").append(Util.printListWithDelimiter(entry.getValue().keySet(), ", "))
+              .append("\n");
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="dumps the mappings between logical and physical addresses")
+    public String dumpAddressMappings() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,PhysicalAddress> entry: address_mappings.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
+
+    /** Closes connections which haven't received any requests for expiry_time ms */
+    protected void sweep() {
+        long now=System.currentTimeMillis();
+        for(Connection conn: connections)
+            if(now - conn.timestamp > expiry_time)
+                conn.close(false);
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel ch;
+        while((ch=srv_channel.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(tcp_nodelay);
+            EventLoop loop=loops[(next_loop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            Connection conn=new Connection(ch, loop);
+            connections.add(conn);
+            log.debug("accepted connection from %s", ch.getRemoteAddress());
+            loop.register(conn);
+        }
+    }
+
+    protected void route(Address dest, String group, byte[] buf, int offset, int length) {
+        if(dest == null) {
+            ConcurrentMap<Address,Connection> map=group != null? routing_table.get(group) : null;
+            if(map == null || map.isEmpty()) {
+                log.warn("didn't find any members for group %s", group);
+                return;
+            }
+            for(Connection conn: map.values())
+                conn.send(ByteBuffer.wrap(buf, offset, length));
+            return;
+        }
+        Connection conn=findConnection(group, dest);
+        if(conn == null) {
+            log.trace("cannot find %s in the routing table, \nrouting table=%s\n", dest, dumpRoutingTable());
+            return;
+        }
+        conn.send(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    protected Connection findConnection(String group, Address addr) {
+        if(group == null || addr == null)
+            return null;
+        ConcurrentMap<Address,Connection> map=routing_table.get(group);
+        return map != null? map.get(addr) : null;
+    }
+
+    protected void addToGroup(String group, Address addr, Connection conn) {
+        if(group == null)
+            return;
+        synchronized(routing_table) {
+            ConcurrentMap<Address,Connection> map=routing_table.get(group);
+            if(map == null)
+                routing_table.put(group, map=new ConcurrentHashMap<>());
+            map.put(addr, conn);
+        }
+    }
+
+    protected void removeEntry(String group, Address addr) {
+        if(group != null) {
+            ConcurrentMap<Address,Connection> map=routing_table.get(group);
+            if(map != null && map.remove(addr) != null) {
+                log.trace("removed %s from group %s", addr, group);
+                removeGroupIfEmpty(group);
+            }
+        }
+        else {
+            for(Map.Entry<String,ConcurrentMap<Address,Connection>> entry: routing_table.entrySet())
+                if(entry.getValue().remove(addr) != null)
+                    removeGroupIfEmpty(entry.getKey());
+        }
+        address_mappings.remove(addr);
+        UUID.remove(addr);
+    }
+
+    protected void removeGroupIfEmpty(String group) {
+        synchronized(routing_table) {
+            ConcurrentMap<Address,Connection> map=routing_table.get(group);
+            if(map != null && map.isEmpty())
+                routing_table.remove(group);
+        }
+    }
+
+    protected static ByteBuffer marshal(GossipData data, Address suspect) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(data.size() + Util.size(suspect) + 16);
+        data.writeTo(out);
+        if(suspect != null)
+            Util.writeAddress(suspect, out);
+        return ByteBuffer.wrap(out.buffer(), 0, out.position());
+    }
+
+
+    /**
+     * Runs a selector handling a subset of the client connections. Connections are only read from and written to by
+     * their event loop; other threads queue messages for a connection and then wake up its event loop
+     */
+    protected class EventLoop implements Runnable {
+        protected final Selector          selector;
+        protected final Queue<Connection> registrations=new ConcurrentLinkedQueue<>();  // new connections
+        protected final Queue<Connection> writes=new ConcurrentLinkedQueue<>();         // connections with queued messages
+        protected final AtomicBoolean     wakeup_pending=new AtomicBoolean(false);
+        protected Thread                  thread;
+
+        protected EventLoop() throws IOException {
+            selector=Selector.open();
+        }
+
+        protected void start(String name) {
+            thread=thread_factory.newThread(this, name);
+            thread.start();
+        }
+
+        protected void stop() {
+            selector.wakeup();
+            if(thread == null)
+                return;
+            try {
+                thread.join(1000);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void register(Connection conn) {
+            registrations.add(conn);
+            wakeup();
+        }
+
+        protected void write(Connection conn) {
+            writes.add(conn);
+            wakeup();
+        }
+
+        protected void wakeup() {
+            if(Thread.currentThread() != thread && wakeup_pending.compareAndSet(false, true))
+                selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while(running.get()) {
+                    try {
+                        selector.select();
+                        wakeup_pending.set(false);
+                        Connection conn;
+                        for(Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();) {
+                            SelectionKey key=it.next();
+                            it.remove();
+                            if(!key.isValid())
+                                continue;
+                            if(key.isAcceptable()) {
+                                accept();
+                                continue;
+                            }
+                            conn=(Connection)key.attachment();
+                            if(key.isReadable())
+                                conn.read();
+                            if(key.isValid() && key.isWritable())
+                                conn.flush();
+                        }
+                        // registers new connections (possibly accepted in this iteration)
+                        while((conn=registrations.poll()) != null)
+                            conn.register(selector);
+                        // writes all messages queued in this iteration (and by other event loops)
+                        while((conn=writes.poll()) != null)
+                            conn.flush();
+                    }
+                    catch(ClosedSelectorException ex) {
+                        break;
+                    }
+                    catch(Throwable t) {
+                        if(running.get())
+                            log.error("failure in event loop", t);
+                    }
+                }
+            }
+            finally {
+                Util.close(selector);
+            }
+        }
+    }
+
+
+    /** A client connection. Reading and writing is done by the event loop, messages can be queued by any thread */
+    protected class Connection {
+        protected final SocketChannel     ch;
+        protected final EventLoop         loop;
+        protected SelectionKey            key;
+
+        // Data read from the client. Requests in [0 .. start) have been processed; as messages in this range may still
+        // be queued for other clients, data is only appended, or read into a new buffer
+        protected ByteBuffer              in;
+        protected int                     start;
+        protected boolean                 shared;  // true if messages of the current buffer have been queued
+
+        protected final Queue<ByteBuffer> out=new ConcurrentLinkedQueue<>();
+        protected final AtomicInteger     queued_bytes=new AtomicInteger(0);
+        protected final AtomicBoolean     write_pending=new AtomicBoolean(false); // true if added to loop.writes
+        protected final ByteBuffer[]      write_bufs=new ByteBuffer[Math.max(1, max_write_batch)];
+        protected int                     num_write_bufs; // buffers in write_bufs which haven't been written (fully)
+
+        protected final List<Address>     logical_addrs=new CopyOnWriteArrayList<>();
+        protected final Set<String>       known_groups=Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+        protected volatile long           timestamp=System.currentTimeMillis();
+        protected final AtomicBoolean     closed=new AtomicBoolean(false);
+
+        protected Connection(SocketChannel ch, EventLoop loop) {
+            this.ch=ch;
+            this.loop=loop;
+            this.in=ByteBuffer.allocate(read_buffer_size);
+        }
+
+        protected void register(Selector selector) throws IOException {
+            if(!closed.get())
+                key=ch.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /** Queues a message (or response) for this client. Can be called by any thread */
+        protected void send(ByteBuffer buf) {
+            if(closed.get())
+                return;
+            int size=buf.remaining();
+            if(queued_bytes.get() > 0 && queued_bytes.get() + size > max_queued_bytes) {
+                msgs_dropped.incrementAndGet();
+                return;
+            }
+            queued_bytes.addAndGet(size);
+            out.add(buf);
+            if(write_pending.compareAndSet(false, true))
+                loop.write(this);
+        }
+
+        protected void read() {
+            try {
+                int num=ch.read(in);
+                if(num < 0)
+                    throw new EOFException("connection closed by " + ch.getRemoteAddress());
+                if(num > 0) {
+                    timestamp=System.currentTimeMillis();
+                    processRequests();
+                }
+            }
+            catch(Exception ex) {
+                if(!closed.get())
+                    log.debug("closing connection %s: %s", this, ex);
+                close(true);
+            }
+        }
+
+        /** Processes all complete requests in the read buffer and makes room for the remaining data */
+        protected void processRequests() throws Exception {
+            byte[] buf=in.array();
+            int end=in.position(), needed=0;
+            while(start < end) {
+                ByteArrayDataInputStream input=new ByteArrayDataInputStream(buf, start, end - start);
+                GossipData request=new GossipData();
+                int payload;
+                try {
+                    payload=request.readFromSkipPayload(input);
+                }
+                catch(EOFException eof) { // incomplete header
+                    break;
+                }
+                int length=input.position() - start + Math.max(0, payload);
+                if(start + length > end) { // incomplete payload
+                    needed=length;
+                    break;
+                }
+                handleRequest(request, buf, start, length, input.position(), payload);
+                start+=length;
+            }
+
+            int remaining=end - start;
+            if(remaining == 0 && !shared) { // nothing refers to the buffer: reuse it
+                in.clear();
+                start=0;
+            }
+            else if(in.capacity() - start < Math.max(needed, remaining + 1) || !in.hasRemaining()) {
+                // not enough room at the end of the buffer: move the remaining data to a new one
+                ByteBuffer tmp=ByteBuffer.allocate(Math.max(read_buffer_size, Math.max(needed, remaining * 2)));
+                tmp.put(buf, start, remaining);
+                in=tmp;
+                start=0;
+                shared=false;
+            }
+        }
+
+        protected void handleRequest(GossipData request, byte[] buf, int offset, int length,
+                                     int payload_offset, int payload_length) throws Exception {
+            Address addr=request.getAddress();
+            String group=request.getGroup();
+            if(group != null)
+                known_groups.add(group);
+            if(log.isTraceEnabled())
+                log.trace("received %s", request);
+
+            switch(request.getType()) {
+                case GossipRouter.MESSAGE:
+                    if(payload_length <= 0) {
+                        log.warn("received null message");
+                        break;
+                    }
+                    msgs_received.incrementAndGet();
+                    bytes_received.addAndGet(length);
+                    shared=true;
+                    route(addr, group, buf, offset, length); // the request is forwarded as is
+                    break;
+                case GossipRouter.CONNECT:
+                    handleConnect(request, addr, group);
+                    break;
+                case GossipRouter.PING: // the client doesn't expect a response
+                    break;
+                case GossipRouter.GOSSIP_GET:
+                    handleGossipGet(group);
+                    break;
+                case GossipRouter.DISCONNECT:
+                    removeEntry(group, addr);
+                    logical_addrs.remove(addr);
+                    send(marshal(new GossipData(GossipRouter.DISCONNECT_OK), null));
+                    break;
+                case GossipRouter.CLOSE:
+                    close(false);
+                    break;
+                default:
+                    if(payload_length > 0) // unknown request: unmarshal the buffer, to be on the safe side
+                        request.buffer=Arrays.copyOfRange(buf, payload_offset, payload_offset + payload_length);
+                    log.warn("received unknown request %s", request);
+                    break;
+            }
+        }
+
+        protected void handleConnect(GossipData request, Address addr, String group) {
+            try {
+                Connection existing=findConnection(group, addr);
+                if(existing != null && existing != this) {
+                    log.debug("found old connection %s for %s; closing it", existing, addr);
+                    existing.close(false);
+                }
+                String logical_name=request.getLogicalName();
+                if(logical_name != null && addr instanceof UUID)
+                    UUID.add(addr, logical_name);
+                logical_addrs.add(addr);
+                addToGroup(group, addr, this);
+                if(request.getPhysicalAddress() != null)
+                    address_mappings.put(addr, request.getPhysicalAddress());
+                send(ByteBuffer.wrap(new byte[]{GossipRouter.CONNECT_OK}));
+                log.debug("connection handshake completed, added %s to group %s", addr, group);
+            }
+            catch(Exception ex) {
+                removeEntry(group, addr);
+                send(ByteBuffer.wrap(new byte[]{GossipRouter.OP_FAIL}));
+                log.warn("failed connecting %s to group %s: %s", addr, group, ex);
+            }
+        }
+
+        protected void handleGossipGet(String group) throws Exception {
+            List<PingData> mbrs=new ArrayList<>();
+            ConcurrentMap<Address,Connection> map=group != null? routing_table.get(group) : null;
+            if(map != null)
+                for(Address logical_addr: map.keySet())
+                    mbrs.add(new PingData(logical_addr, true, UUID.get(logical_addr), address_mappings.get(logical_addr)));
+            ByteArrayDataOutputStream output=new ByteArrayDataOutputStream(mbrs.size() * 50 + 2);
+            output.writeShort(mbrs.size());
+            for(PingData data: mbrs)
+                data.writeTo(output);
+            send(ByteBuffer.wrap(output.buffer(), 0, output.position()));
+            log.debug("responded to GOSSIP_GET with %s", mbrs);
+        }
+
+        /** Writes as many queued messages as possible, in batches of max_write_batch messages. Called by the event loop */
+        protected void flush() {
+            write_pending.set(false); // set before draining the queue, so messages queued from now on are written too
+            if(closed.get())
+                return;
+            try {
+                for(;;) {
+                    ByteBuffer buf;
+                    while(num_write_bufs < write_bufs.length && (buf=out.poll()) != null)
+                        write_bufs[num_write_bufs++]=buf;
+                    if(num_write_bufs == 0)
+                        break;
+                    long written=ch.write(write_bufs, 0, num_write_bufs);
+                    int done=0;
+                    while(done < num_write_bufs && !write_bufs[done].hasRemaining())
+                        done++;
+                    if(done > 0) {
+                        System.arraycopy(write_bufs, done, write_bufs, 0, num_write_bufs - done);
+                        Arrays.fill(write_bufs, num_write_bufs - done, num_write_bufs, null);
+                        num_write_bufs-=done;
+                    }
+                    queued_bytes.addAndGet((int)-written);
+                    num_writes.incrementAndGet();
+                    msgs_forwarded.addAndGet(done);
+                    bytes_forwarded.addAndGet(written);
+                    if(num_write_bufs > 0) { // the socket's send buffer is full: continue when the socket is writable
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            catch(Exception ex) {
+                log.debug("failed writing to %s: %s", this, ex);
+                close(true);
+            }
+        }
+
+        /**
+         * Closes the connection and removes its addresses from the routing table. If the connection was torn down
+         * abnormally, the other members of its groups are sent a SUSPECT for each of its addresses
+         * (https://jira.jboss.org/jira/browse/JGRP-902)
+         */
+        protected void close(boolean suspect) {
+            if(!closed.compareAndSet(false, true))
+                return;
+            if(suspect)
+                sendSuspects();
+            Util.close(ch);
+            connections.remove(this);
+            for(Address addr: logical_addrs)
+                removeEntry(null, addr);
+            out.clear();
+        }
+
+        protected void sendSuspects() {
+            for(String group: known_groups) {
+                ConcurrentMap<Address,Connection> map=routing_table.get(group);
+                if(map == null)
+                    continue;
+                for(Connection conn: map.values()) {
+                    if(conn == this)
+                        continue;
+                    for(Address addr: logical_addrs) {
+                        try {
+                            conn.send(marshal(new GossipData(GossipRouter.SUSPECT), addr));
+                        }
+                        catch(Exception e) {
+                            // intentionally ignored
+                        }
+                    }
+                }
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder("Connection[peer: ");
+            try {
+                sb.append(ch.getRemoteAddress());
+            }
+            catch(IOException e) {
+                sb.append("n/a");
+            }
+            if(!logical_addrs.isEmpty())
+                sb.append(", logical_addrs: ").append(Util.printListWithDelimiter(logical_addrs, ", "));
+            return sb.append("]").toString();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        NioGossipRouter router=new NioGossipRouter(GossipRouter.PORT, null, true, 60000);
+        for(int i=0; i < args.length; i++) {
+            String arg=args[i];
+            if("-port".equals(arg)) {
+                router.setPort(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if("-bindaddress".equals(arg) || "-bind_addr".equals(arg)) {
+                router.setBindAddress(args[++i]);
+                continue;
+            }
+            if("-backlog".equals(arg)) {
+                router.setBacklog(Integer.parseInt(args[++i]));
+                continue;
+            }
+            if("-expiry".equals(arg)) {
+                router.setExpiryTime(Long.parseLong(args[++i]));
+                continue;
+            }
+            if("-jmx".equals(arg)) {
+                router.jmx=Boolean.valueOf(args[++i]);
+                continue;
+            }
+            if("-loops".equals(arg)) {
+                router.setNumLoops(Integer.parseInt(args[++i]));
+                continue;
+            }
+            help();
+            return;
+        }
+        System.out.println("NioGossipRouter is starting. CTRL-C to exit JVM");
+        router.start();
+        final NioGossipRouter tmp=router;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                tmp.stop();
+            }
+        });
+        // the event loop threads are daemons
+        while(router.isRunning())
+            Util.sleep(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    static void help() {
+        System.out.println();
+        System.out.println("NioGossipRouter [-port <port>] [-bind_addr <address>] [options]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println();
+        System.out.println("    -backlog <backlog>    - Max queue size of backlogged connections.");
+        System.out.println();
+        System.out.println("    -jmx <true|false>     - Expose attributes and operations via JMX.");
+        System.out.println();
+        System.out.println("    -expiry <msecs>       - Time for closing idle connections. 0");
+        System.out.println("                            means don't expire.");
+        System.out.println();
+        System.out.println("    -loops <num>          - Number of event loops (threads) handling connections.");
+        System.out.println("                            Defaults to the number of cores.");
+        System.out.println();
+    }
+}
@@ -10,6 +10,8 @@ import org.jgroups.protocols.TUNNEL.StubReceiver;
 import org.jgroups.util.Responses;
 import org.jgroups.util.Util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.net.InetAddress;
@@ -206,8 +208,10 @@ public class RouterStub implements Comparable<RouterStub> {
                 sock.setTcpNoDelay(tcp_nodelay);
                 sock.setKeepAlive(true);
                 Util.connect(sock, dest, sock_conn_timeout);
-                output=new DataOutputStream(sock.getOutputStream());
-                input=new DataInputStream(sock.getInputStream());
+                // buffered: a request is written with a single write, and the messages sent by the router in a batch
+                // are read with a single read (all requests are flushed)
+                output=new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 8192));
+                input=new DataInputStream(new BufferedInputStream(sock.getInputStream(), 65536));
                 connectionStateChanged(ConnectionStatus.CONNECTION_ESTABLISHED);
             }
             catch(Exception e) {
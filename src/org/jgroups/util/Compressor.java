@@ -0,0 +1,27 @@
+package org.jgroups.util;
+
+/**
+ * Compresses and uncompresses byte arrays. Used by {@link org.jgroups.protocols.COMPRESS}, which creates one instance
+ * per thread, so implementations don't need to be thread-safe. Implementations need a public no-arg constructor.
+ * @author agent
+ * @since  3.6.5
+ */
+public interface Compressor {
+
+    /**
+     * Compresses length bytes of src, starting at offset, into dest
+     * @return the number of bytes written to dest, or -1 if the compressed data would exceed max_length bytes
+     */
+    int compress(byte[] src, int offset, int length, byte[] dest, int dest_offset, int max_length);
+
+    /**
+     * Uncompresses length bytes of src, starting at offset, into dest
+     * @param original_length the length of the data before compression
+     * @return the number of bytes written to dest (original_length)
+     * @throws Exception if the data is corrupt
+     */
+    int uncompress(byte[] src, int offset, int length, byte[] dest, int dest_offset, int original_length) throws Exception;
+
+    /** Releases resources held by this compressor */
+    void destroy();
+}
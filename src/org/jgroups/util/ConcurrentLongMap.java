@@ -0,0 +1,257 @@
+package org.jgroups.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concurrent hashmap with primitive long keys. Keys are not boxed, so adding and removing entries doesn't create any
+ * garbage (except when a segment's table needs to grow).
+ * <p/>
+ * The map is striped into a number of segments, each of which is an open-addressing hash table (linear probing) guarded
+ * by its own lock. Keys are spread over segments and slots with a multiplicative hash, so sequential keys (e.g. request
+ * IDs) are distributed evenly.
+ * <p/>
+ * Null values are not allowed. Iteration ({@link #forEach(Visitor)}, {@link #values()}) is weakly consistent: it
+ * visits one segment after the other, and changes to segments not yet visited are reflected.
+ * @author agent
+ * @since  3.6.5
+ */
+public class ConcurrentLongMap<V> {
+    protected final Segment<V>[] segments;
+    protected final int          segment_shift;
+
+    protected static final int   DEFAULT_INITIAL_CAPACITY=16; // per segment
+    protected static final long  GOLDEN_RATIO=0x9E3779B97F4A7C15L;
+
+
+    public interface Visitor<V> {
+        /**
+         * Called for each entry of the map
+         * @return True to continue the iteration, false to stop it
+         */
+        boolean visit(long key, V value);
+    }
+
+
+    /** Creates a map with a number of segments derived from the number of cores */
+    public ConcurrentLongMap() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a map
+     * @param concurrency_level The number of segments; rounded up to the next power of 2
+     */
+    public ConcurrentLongMap(int concurrency_level) {
+        int num_segments=Math.max(1, Util.getNextHigherPowerOfTwo(Math.min(concurrency_level, 1 << 16)));
+        @SuppressWarnings("unchecked")
+        Segment<V>[] tmp=(Segment<V>[])new Segment<?>[num_segments];
+        segments=tmp;
+        for(int i=0; i < segments.length; i++)
+            segments[i]=new Segment<>(DEFAULT_INITIAL_CAPACITY);
+        segment_shift=32 - Integer.numberOfTrailingZeros(num_segments);
+    }
+
+
+    public V get(long key) {
+        int hash=hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /** Adds or replaces a value and returns the previous value, or null */
+    public V put(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int hash=hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    /** Adds a value if no value is associated with key yet; returns the existing value or null if added */
+    public V putIfAbsent(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int hash=hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /** Removes the entry for key; returns the removed value, or null if not present */
+    public V remove(long key) {
+        int hash=hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int retval=0;
+        for(Segment<V> segment: segments)
+            retval+=segment.size();
+        return retval;
+    }
+
+    public boolean isEmpty() {
+        for(Segment<V> segment: segments)
+            if(segment.size() > 0)
+                return false;
+        return true;
+    }
+
+    public void clear() {
+        for(Segment<V> segment: segments)
+            segment.clear();
+    }
+
+    /** Calls the visitor for every entry. The visitor is invoked with the segment's lock held */
+    public void forEach(Visitor<V> visitor) {
+        for(Segment<V> segment: segments)
+            if(!segment.forEach(visitor))
+                return;
+    }
+
+    /** Returns a copy of all values */
+    public List<V> values() {
+        final List<V> retval=new ArrayList<>(size());
+        forEach(new Visitor<V>() {
+            public boolean visit(long key, V value) {
+                retval.add(value);
+                return true;
+            }
+        });
+        return retval;
+    }
+
+    public String toString() {
+        final StringBuilder sb=new StringBuilder("{");
+        forEach(new Visitor<V>() {
+            public boolean visit(long key, V value) {
+                if(sb.length() > 1)
+                    sb.append(", ");
+                sb.append(key).append('=').append(value);
+                return true;
+            }
+        });
+        return sb.append('}').toString();
+    }
+
+
+    protected Segment<V> segmentFor(int hash) {
+        return segments[segment_shift == 32? 0 : hash >>> segment_shift];
+    }
+
+    protected static int hash(long key) {
+        long h=key * GOLDEN_RATIO;
+        return (int)(h ^ (h >>> 32));
+    }
+
+
+    /** An open-addressing hash table with linear probing. An empty slot is denoted by a null value */
+    protected static class Segment<V> {
+        protected long[]   keys;
+        protected Object[] values;
+        protected int      size;
+
+        protected Segment(int capacity) {
+            keys=new long[capacity];
+            values=new Object[capacity];
+        }
+
+        protected synchronized int size() {return size;}
+
+        @SuppressWarnings("unchecked")
+        protected synchronized V get(long key, int hash) {
+            int mask=keys.length - 1;
+            for(int i=hash & mask; values[i] != null; i=(i + 1) & mask)
+                if(keys[i] == key)
+                    return (V)values[i];
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected synchronized V put(long key, int hash, V value, boolean only_if_absent) {
+            int mask=keys.length - 1;
+            int i=hash & mask;
+            for(; values[i] != null; i=(i + 1) & mask) {
+                if(keys[i] == key) {
+                    V old=(V)values[i];
+                    if(!only_if_absent)
+                        values[i]=value;
+                    return old;
+                }
+            }
+            keys[i]=key;
+            values[i]=value;
+            if(++size * 2 > keys.length) // max load factor of 0.5 keeps probe sequences short
+                resize(keys.length * 2);
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected synchronized V remove(long key, int hash) {
+            int mask=keys.length - 1;
+            int i=hash & mask;
+            for(; values[i] != null; i=(i + 1) & mask) {
+                if(keys[i] == key) {
+                    V old=(V)values[i];
+                    delete(i);
+                    size--;
+                    return old;
+                }
+            }
+            return null;
+        }
+
+        protected synchronized void clear() {
+            if(keys.length > DEFAULT_INITIAL_CAPACITY) {
+                keys=new long[DEFAULT_INITIAL_CAPACITY];
+                values=new Object[DEFAULT_INITIAL_CAPACITY];
+            }
+            else
+                java.util.Arrays.fill(values, null);
+            size=0;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected synchronized boolean forEach(Visitor<V> visitor) {
+            for(int i=0; i < values.length; i++)
+                if(values[i] != null && !visitor.visit(keys[i], (V)values[i]))
+                    return false;
+            return true;
+        }
+
+        /** Removes the entry at index and shifts back subsequent entries of the same probe sequence (no tombstones) */
+        protected void delete(int index) {
+            int mask=keys.length - 1;
+            int hole=index;
+            for(int i=(hole + 1) & mask; values[i] != null; i=(i + 1) & mask) {
+                int home=hash(keys[i]) & mask;
+                // move the entry at i into the hole if its home slot isn't cyclically within (hole, i]
+                boolean movable=hole <= i? (home <= hole || home > i) : (home <= hole && home > i);
+                if(movable) {
+                    keys[hole]=keys[i];
+                    values[hole]=values[i];
+                    hole=i;
+                }
+            }
+            values[hole]=null;
+        }
+
+        protected void resize(int new_capacity) {
+            long[]   old_keys=keys;
+            Object[] old_values=values;
+            keys=new long[new_capacity];
+            values=new Object[new_capacity];
+            int mask=new_capacity - 1;
+            for(int i=0; i < old_values.length; i++) {
+                if(old_values[i] == null)
+                    continue;
+                int j=hash(old_keys[i]) & mask;
+                while(values[j] != null)
+                    j=(j + 1) & mask;
+                keys[j]=old_keys[i];
+                values[j]=old_values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.jgroups.util;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressor based on {@link java.util.zip.Deflater} and {@link java.util.zip.Inflater}. Optionally uses a preset
+ * dictionary, which improves the compression of small messages considerably: such messages are too short to contain
+ * many repetitions, but typically share a lot of content (e.g. class names, field names, keys) with other messages.
+ * The dictionary should contain data typical for the messages sent, and can be created from sample messages with
+ * {@link #trainDictionary(Collection,int)}. Sender and receivers need to use the same dictionary.
+ * @author agent
+ * @since  3.6.5
+ */
+public class DeflateCompressor implements Compressor {
+    protected static final int GRAM_SIZE=8; // size of the substrings counted when training a dictionary
+
+    protected final Deflater deflater;
+    protected final Inflater inflater=new Inflater();
+    protected final byte[]   dictionary;
+
+    public DeflateCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    public DeflateCompressor(int compression_level, byte[] dictionary) {
+        this.deflater=new Deflater(compression_level);
+        this.dictionary=dictionary;
+    }
+
+    public byte[] dictionary() {return dictionary;}
+
+    public int compress(byte[] src, int offset, int length, byte[] dest, int dest_offset, int max_length) {
+        deflater.reset();
+        if(dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int compressed_size=deflater.deflate(dest, dest_offset, max_length);
+        return deflater.finished()? compressed_size : -1;
+    }
+
+    public int uncompress(byte[] src, int offset, int length, byte[] dest, int dest_offset, int original_length) throws Exception {
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        int size=inflater.inflate(dest, dest_offset, original_length);
+        if(size == 0 && inflater.needsDictionary()) {
+            if(dictionary == null)
+                throw new DataFormatException("data was compressed with a dictionary, but no dictionary is set");
+            inflater.setDictionary(dictionary); // throws an exception if the dictionary is not the one used by the sender
+            size=inflater.inflate(dest, dest_offset, original_length);
+        }
+        if(size != original_length)
+            throw new DataFormatException("uncompressed " + size + " bytes, but expected " + original_length);
+        return size;
+    }
+
+    public void destroy() {
+        deflater.end();
+        inflater.end();
+    }
+
+
+    /**
+     * Creates a dictionary from sample messages. Samples whose content is shared with most other samples are picked
+     * first; every sample picked has to contribute content not yet in the dictionary. As deflate encodes near
+     * references more compactly, the most valuable content is placed at the end of the dictionary.
+     * @param samples The sample messages, e.g. the payloads of messages captured from a running system
+     * @param max_size The max size of the dictionary. Deflate only uses the last 32K of a dictionary
+     * @return The dictionary
+     */
+    public static byte[] trainDictionary(Collection<byte[]> samples, int max_size) {
+        // number of samples containing a given substring
+        Map<ByteBuffer,Integer> frequencies=new HashMap<>();
+        for(byte[] sample: samples)
+            for(ByteBuffer gram: grams(sample))
+                frequencies.put(gram, frequencies.containsKey(gram)? frequencies.get(gram) + 1 : 1);
+
+        List<byte[]> candidates=new ArrayList<>(samples), picked=new ArrayList<>();
+        Set<ByteBuffer> covered=new HashSet<>();
+        int size=0;
+        while(size < max_size && !candidates.isEmpty()) {
+            byte[] best=null;
+            long best_score=0;
+            for(byte[] candidate: candidates) {
+                long score=0;
+                for(ByteBuffer gram: grams(candidate)) {
+                    int freq=frequencies.get(gram);
+                    if(freq > 1 && !covered.contains(gram))
+                        score+=freq;
+                }
+                if(score > best_score) {
+                    best_score=score;
+                    best=candidate;
+                }
+            }
+            if(best == null)
+                break;
+            candidates.remove(best);
+            if(best.length > max_size - size)
+                best=Arrays.copyOf(best, max_size - size);
+            covered.addAll(grams(best));
+            picked.add(best);
+            size+=best.length;
+        }
+
+        byte[] dictionary=new byte[size];
+        int pos=size;
+        for(byte[] sample: picked) { // the first sample picked goes to the end
+            pos-=sample.length;
+            System.arraycopy(sample, 0, dictionary, pos, sample.length);
+        }
+        return dictionary;
+    }
+
+    protected static Set<ByteBuffer> grams(byte[] sample) {
+        Set<ByteBuffer> retval=new HashSet<>();
+        for(int i=0; i + GRAM_SIZE <= sample.length; i++)
+            retval.add(ByteBuffer.wrap(sample, i, GRAM_SIZE).slice());
+        return retval;
+    }
+}
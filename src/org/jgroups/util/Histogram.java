@@ -0,0 +1,87 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of non-negative values (e.g. latencies) in buckets of exponentially increasing size, so
+ * that percentiles can be computed with constant memory. Every power of 2 is divided into 8 sub-buckets, so a
+ * percentile is off by at most 12.5%; values below 8 are recorded exactly.
+ * <p/>
+ * Adding a value is lock-free; percentiles computed while values are added are approximations.
+ * @author agent
+ * @since  3.6.5
+ */
+public class Histogram {
+    protected static final int      SUB_BUCKET_BITS=3;
+    protected static final int      SUB_BUCKETS=1 << SUB_BUCKET_BITS;
+
+    protected final AtomicLongArray buckets=new AtomicLongArray((Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    protected final AtomicLong      count=new AtomicLong();
+    protected final AtomicLong      sum=new AtomicLong();
+    protected final AtomicLong      max=new AtomicLong();
+
+
+    public Histogram add(long value) {
+        if(value < 0)
+            value=0;
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for(long tmp=max.get(); value > tmp && !max.compareAndSet(tmp, value); tmp=max.get())
+            ;
+        return this;
+    }
+
+    public long   count()   {return count.get();}
+    public long   max()     {return max.get();}
+    public double average() {long num=count.get(); return num > 0? sum.get() / (double)num : 0;}
+
+    /**
+     * Returns the value below or at which the given percentage of all values are, e.g. percentile(99) returns the
+     * value which is greater than or equal to 99% of the values. Returns 0 if no values have been added
+     */
+    public long percentile(double percentage) {
+        long num=count.get();
+        if(num == 0)
+            return 0;
+        long rank=Math.max(1, (long)Math.ceil(percentage / 100.0 * num)), total=0;
+        for(int i=0; i < buckets.length(); i++) {
+            total+=buckets.get(i);
+            if(total >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void clear() {
+        for(int i=0; i < buckets.length(); i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public String toString() {
+        return String.format("p50=%d p90=%d p99=%d p99.9=%d max=%d (%d values)",
+                             percentile(50), percentile(90), percentile(99), percentile(99.9), max(), count());
+    }
+
+
+    protected static int index(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int exp=63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+        int sub=(int)(value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** The highest value recorded in the bucket with the given index */
+    protected static long upperBound(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift=index / SUB_BUCKETS - 1, sub=index % SUB_BUCKETS;
+        long lower=(long)(SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,163 @@
+package org.jgroups.util;
+
+import java.util.Arrays;
+
+/**
+ * Fast compressor in pure Java, using the LZ4 block format (https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md).
+ * Compresses and uncompresses several times faster than {@link DeflateCompressor}, at the expense of a lower
+ * compression ratio.<p/>
+ * The data is a sequence of literals (bytes copied as is) and matches (references to bytes already seen). Matches are
+ * found with a hash table of the positions of 4 byte sequences, which is reused by the next compression.
+ * @author agent
+ * @since  3.6.5
+ */
+public class LZ4Compressor implements Compressor {
+    protected static final int MIN_MATCH=4;
+    protected static final int LAST_LITERALS=5;   // the last 5 bytes are always literals
+    protected static final int MF_LIMIT=12;       // the last match has to start at least 12 bytes before the end
+    protected static final int MAX_OFFSET=0xFFFF;
+    protected static final int HASH_BITS=12;
+    protected static final int SKIP_TRIGGER=6;    // skip ahead faster in data which doesn't compress
+
+    protected final int[] table=new int[1 << HASH_BITS]; // positions of 4 byte sequences, by hash
+
+
+    public int compress(byte[] src, int offset, int length, byte[] dest, int dest_offset, int max_length) {
+        int end=offset + length, dest_end=dest_offset + max_length, dp=dest_offset;
+        int anchor=offset; // start of the literals not yet written
+        int ip=offset, match_limit=end - LAST_LITERALS, mf_limit=end - MF_LIMIT;
+
+        if(length >= MF_LIMIT + 1) {
+            Arrays.fill(table, -1);
+            while(ip < mf_limit) {
+                int seq=readInt(src, ip), hash=hash(seq), ref=table[hash];
+                table[hash]=ip;
+                if(ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    ip+=1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+                while(ip > anchor && ref > offset && src[ip-1] == src[ref-1]) { // extend the match backwards
+                    ip--;
+                    ref--;
+                }
+                int match_len=MIN_MATCH;
+                while(ip + match_len < match_limit && src[ip + match_len] == src[ref + match_len])
+                    match_len++;
+
+                if((dp=writeSequence(src, anchor, ip - anchor, ip - ref, match_len, dest, dp, dest_end)) < 0)
+                    return -1;
+                ip+=match_len;
+                anchor=ip;
+                if(ip < mf_limit) // makes the position before the next sequence findable
+                    table[hash(readInt(src, ip - 2))]=ip - 2;
+            }
+        }
+        if((dp=writeLiterals(src, anchor, end - anchor, 0, dest, dp, dest_end)) < 0)
+            return -1;
+        return dp - dest_offset;
+    }
+
+
+    public int uncompress(byte[] src, int offset, int length, byte[] dest, int dest_offset, int original_length) throws Exception {
+        int ip=offset, end=offset + length, op=dest_offset, dest_end=dest_offset + original_length;
+        for(;;) {
+            if(ip >= end)
+                throw new IllegalStateException("input is truncated at position " + (ip - offset));
+            int token=src[ip++] & 0xff;
+
+            int literals=token >>> 4;
+            if(literals == 0x0F) {
+                int b;
+                do {
+                    if(ip >= end)
+                        throw new IllegalStateException("literal length is truncated at position " + (ip - offset));
+                    literals+=(b=src[ip++] & 0xff);
+                }
+                while(b == 0xFF);
+            }
+            if(literals < 0 || literals > end - ip || literals > dest_end - op)
+                throw new IllegalStateException("literals at position " + (ip - offset) + " exceed the buffer");
+            System.arraycopy(src, ip, dest, op, literals);
+            ip+=literals;
+            op+=literals;
+            if(ip == end) // the last sequence has no match
+                break;
+
+            if(ip + 2 > end)
+                throw new IllegalStateException("match offset is truncated at position " + (ip - offset));
+            int match_offset=(src[ip] & 0xff) | (src[ip+1] & 0xff) << 8;
+            ip+=2;
+            int ref=op - match_offset;
+            if(match_offset == 0 || ref < dest_offset)
+                throw new IllegalStateException("invalid match offset " + match_offset + " at position " + (ip - offset));
+            int match_len=token & 0x0F;
+            if(match_len == 0x0F) {
+                int b;
+                do {
+                    if(ip >= end)
+                        throw new IllegalStateException("match length is truncated at position " + (ip - offset));
+                    match_len+=(b=src[ip++] & 0xff);
+                }
+                while(b == 0xFF);
+            }
+            match_len+=MIN_MATCH;
+            if(match_len < 0 || match_len > dest_end - op)
+                throw new IllegalStateException("match at position " + (ip - offset) + " exceeds the buffer");
+            if(match_offset >= match_len)
+                System.arraycopy(dest, ref, dest, op, match_len);
+            else { // overlapping copy, e.g. a run of the same byte
+                for(int i=0; i < match_len; i++)
+                    dest[op+i]=dest[ref+i];
+            }
+            op+=match_len;
+        }
+        if(op != dest_end)
+            throw new IllegalStateException("uncompressed " + (op - dest_offset) + " bytes, but expected " + original_length);
+        return original_length;
+    }
+
+    public void destroy() {
+    }
+
+
+    /** Writes a token, the literals and a match. Returns the new position in dest, or -1 if dest is too small */
+    protected static int writeSequence(byte[] src, int literal_pos, int literals, int match_offset, int match_len,
+                                       byte[] dest, int dp, int dest_end) {
+        int ml=match_len - MIN_MATCH;
+        if((dp=writeLiterals(src, literal_pos, literals, Math.min(ml, 0x0F), dest, dp, dest_end)) < 0)
+            return -1;
+        if(dp + 2 + (ml >= 0x0F? (ml - 0x0F) / 0xFF + 1 : 0) > dest_end)
+            return -1;
+        dest[dp++]=(byte)match_offset;
+        dest[dp++]=(byte)(match_offset >>> 8);
+        if(ml >= 0x0F)
+            dp=writeLength(ml - 0x0F, dest, dp);
+        return dp;
+    }
+
+    /** Writes the token (with the given match nibble) and the literals */
+    protected static int writeLiterals(byte[] src, int pos, int literals, int match_nibble, byte[] dest, int dp, int dest_end) {
+        if(dp + 1 + (literals >= 0x0F? (literals - 0x0F) / 0xFF + 1 : 0) + literals > dest_end)
+            return -1;
+        dest[dp++]=(byte)(Math.min(literals, 0x0F) << 4 | match_nibble);
+        if(literals >= 0x0F)
+            dp=writeLength(literals - 0x0F, dest, dp);
+        System.arraycopy(src, pos, dest, dp, literals);
+        return dp + literals;
+    }
+
+    protected static int writeLength(int len, byte[] dest, int dp) {
+        for(; len >= 0xFF; len-=0xFF)
+            dest[dp++]=(byte)0xFF;
+        dest[dp++]=(byte)len;
+        return dp;
+    }
+
+    protected static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    protected static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos+1] & 0xff) << 8 | (buf[pos+2] & 0xff) << 16 | (buf[pos+3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,69 @@
+package org.jgroups.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the chunks written by a {@link StateChunkWriter}, one at a time, so that state can be applied as it arrives.
+ * Only one chunk is held in memory. Typical use:
+ * <pre>
+ * StateChunkReader reader=new StateChunkReader(istream);
+ * for(int num; (num=reader.nextChunk()) > 0;) {
+ *     DataInput in=reader.input();
+ *     for(int i=0; i &lt; num; i++)
+ *         // read and apply an entry from in
+ * }
+ * </pre>
+ * This class is not thread safe.
+ * @author agent
+ * @since  3.6.5
+ */
+public class StateChunkReader {
+    protected final DataInputStream    in;
+    protected byte[]                   buf=new byte[1024];
+    protected ByteArrayDataInputStream chunk;
+    protected int                      num_chunks;
+    protected long                     total_entries, total_bytes;
+
+    /** Creates a reader. The stream is not closed by the reader */
+    public StateChunkReader(InputStream in) {
+        this.in=in instanceof DataInputStream? (DataInputStream)in : new DataInputStream(in);
+    }
+
+    public int  numChunks()   {return num_chunks;}
+    public long numEntries()  {return total_entries;}
+    public long numBytes()    {return total_bytes;}
+
+    /**
+     * Reads the next chunk, blocking until it has been received
+     * @return The number of entries in the chunk, which can then be read from {@link #input()}, or 0 if the end of the
+     * state has been reached
+     * @throws EOFException If the stream ended before the end marker was read (e.g. the state provider failed)
+     */
+    public int nextChunk() throws IOException {
+        int num_entries=in.readInt();
+        if(num_entries <= 0) {
+            chunk=null;
+            return 0;
+        }
+        int len=in.readInt();
+        if(len > buf.length)
+            buf=new byte[Math.max(len, buf.length * 2)];
+        in.readFully(buf, 0, len);
+        chunk=new ByteArrayDataInputStream(buf, 0, len);
+        num_chunks++;
+        total_entries+=num_entries;
+        total_bytes+=len;
+        return num_entries;
+    }
+
+    /** Returns the input of the current chunk, or null if no chunk has been read or the end has been reached */
+    public DataInput input() {return chunk;}
+
+    public String toString() {
+        return String.format("%d entries in %d chunks (%d bytes)", total_entries, num_chunks, total_bytes);
+    }
+}
@@ -0,0 +1,83 @@
+package org.jgroups.util;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes state as a sequence of bounded chunks, so that a state provider can stream a large state (e.g. in
+ * {@link org.jgroups.MessageListener#getState(java.io.OutputStream)}) without first copying or serializing it as a
+ * whole, and a state requester can apply it chunk by chunk as it arrives (see {@link StateChunkReader}).
+ * <p/>
+ * Entries are written to {@link #output()}, in whatever per-entry format the caller chooses, followed by a call to
+ * {@link #entryWritten()}. When the current chunk exceeds chunk_size bytes, it is written to the underlying stream.
+ * {@link #close()} writes the last chunk and the end marker. The format is a sequence of
+ * {@code [int num_entries][int length][length bytes]}, terminated by an int of 0.
+ * <p/>
+ * This class is not thread safe.
+ * @author agent
+ * @since  3.6.5
+ */
+public class StateChunkWriter {
+    protected final DataOutputStream          out;
+    protected final int                       chunk_size;
+    protected final ByteArrayDataOutputStream chunk;
+    protected int                             num_entries;   // in the current chunk
+    protected int                             num_chunks;
+    protected long                            total_entries, total_bytes;
+
+    /**
+     * Creates a writer
+     * @param out The stream to write the chunks to. Not closed by {@link #close()}
+     * @param chunk_size The max size (in bytes) of a chunk. A chunk is exceeded by at most the size of its last entry
+     */
+    public StateChunkWriter(OutputStream out, int chunk_size) {
+        if(chunk_size <= 0)
+            throw new IllegalArgumentException("chunk_size (" + chunk_size + ") needs to be positive");
+        this.out=out instanceof DataOutputStream? (DataOutputStream)out : new DataOutputStream(out);
+        this.chunk_size=chunk_size;
+        this.chunk=new ByteArrayDataOutputStream(chunk_size + (chunk_size >> 2));
+    }
+
+    public int  numChunks()    {return num_chunks;}
+    public long numEntries()   {return total_entries;}
+    public long numBytes()     {return total_bytes;}
+
+    /** Returns the output the next entry is written to */
+    public DataOutput output() {return chunk;}
+
+    /** Needs to be called after an entry has been written to {@link #output()}; writes the chunk when full */
+    public void entryWritten() throws IOException {
+        num_entries++;
+        total_entries++;
+        if(chunk.position() >= chunk_size)
+            flush();
+    }
+
+    /** Writes the current chunk (if not empty) to the underlying stream */
+    public void flush() throws IOException {
+        if(num_entries == 0)
+            return;
+        int len=chunk.position();
+        out.writeInt(num_entries);
+        out.writeInt(len);
+        out.write(chunk.buffer(), 0, len);
+        out.flush();
+        total_bytes+=len;
+        num_chunks++;
+        num_entries=0;
+        chunk.position(0);
+    }
+
+    /** Writes the current chunk and the end marker. The underlying stream is flushed, but not closed */
+    public void close() throws IOException {
+        flush();
+        out.writeInt(0);
+        out.flush();
+    }
+
+    public String toString() {
+        return String.format("%d entries in %d chunks (%d bytes)", total_entries, num_chunks, total_bytes);
+    }
+}
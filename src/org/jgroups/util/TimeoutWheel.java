@@ -0,0 +1,236 @@
+package org.jgroups.util;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel which expires large numbers of long IDs (e.g. request IDs) with a single thread. Contrary to
+ * {@link HashedTimingWheel}, no task (and future) is created per ID: an ID and its expiration time are appended to the
+ * slot of the tick at which it expires, so adding is O(1) and doesn't create any garbage.
+ * <p/>
+ * IDs are not removed from the wheel when they complete before expiring: when an ID's slot comes up, the
+ * {@link Handler} is invoked and needs to ignore IDs which already completed. Every entry of a slot is visited once per
+ * rotation, so the cost of expiration is bounded by the number of outstanding IDs divided by the number of slots.
+ * <p/>
+ * The thread is started on the first {@link #add(long,long)} and stopped by {@link #stop()}; it can be restarted.
+ * Expiration is accurate to one tick.
+ * @author agent
+ * @since  3.6.5
+ */
+public class TimeoutWheel implements Runnable {
+    protected static final Log    log=LogFactory.getLog(TimeoutWheel.class);
+
+    protected final Slot[]        slots;
+    protected final int           mask;
+    protected final long          tick; // ms
+    protected final Handler       handler;
+    protected ThreadFactory       thread_factory; // guarded by this
+    protected final String        thread_name;
+    protected volatile Thread     runner;
+
+    /** The next tick to be processed by the runner */
+    protected volatile long       next_tick;
+
+    /** IDs expired in the current tick; only accessed by the runner */
+    protected long[]              expired=new long[16];
+
+
+    public interface Handler {
+        /** Called when the expiration time of id has elapsed. Called by the wheel's thread */
+        void expired(long id);
+    }
+
+
+    /**
+     * Creates a wheel
+     * @param num_slots The number of slots; rounded up to a power of 2
+     * @param tick The duration (ms) of a tick, which is also the granularity of expiration
+     * @param handler The handler to be called when an ID expires
+     * @param thread_factory The factory used to create the thread, or null (a default factory is used then)
+     * @param thread_name The name of the thread
+     */
+    public TimeoutWheel(int num_slots, long tick, Handler handler, ThreadFactory thread_factory, String thread_name) {
+        if(tick <= 0)
+            throw new IllegalArgumentException("tick (" + tick + ") needs to be positive");
+        int size=Util.getNextHigherPowerOfTwo(num_slots);
+        slots=new Slot[size];
+        for(int i=0; i < slots.length; i++)
+            slots[i]=new Slot();
+        this.mask=size - 1;
+        this.tick=tick;
+        this.handler=handler;
+        this.thread_factory=thread_factory;
+        this.thread_name=thread_name;
+    }
+
+    /** Sets the factory used to create the thread; takes effect the next time the thread is started */
+    public synchronized TimeoutWheel threadFactory(ThreadFactory f) {this.thread_factory=f; return this;}
+    public synchronized ThreadFactory threadFactory()               {return thread_factory;}
+
+    public long    tick()      {return tick;}
+    public int     numSlots()  {return slots.length;}
+    public boolean isRunning() {return runner != null;}
+
+    /** Returns the number of entries in the wheel, including entries which already completed but haven't expired yet */
+    public int size() {
+        int retval=0;
+        for(Slot slot: slots)
+            retval+=slot.size();
+        return retval;
+    }
+
+
+    /**
+     * Adds an ID which expires after timeout ms. Starts the wheel's thread if not yet running
+     * @param id The ID
+     * @param timeout The time (ms) after which the handler is called for id
+     */
+    public void add(long id, long timeout) {
+        if(runner == null)
+            start();
+        long expiration=now() + Math.max(0, timeout);
+        long expiration_tick=(expiration + tick - 1) / tick;
+        // the runner may advance next_tick concurrently: retry if the slot's tick has already been processed
+        for(;;) {
+            long t=Math.max(next_tick, expiration_tick);
+            if(slots[(int)(t & mask)].add(id, expiration, t, this))
+                break;
+        }
+    }
+
+    public synchronized void start() {
+        if(runner != null)
+            return;
+        next_tick=now() / tick + 1;
+        ThreadFactory factory=thread_factory != null? thread_factory : new DefaultThreadFactory(thread_name, true);
+        runner=factory.newThread(this, thread_name);
+        runner.setDaemon(true);
+        runner.start();
+    }
+
+    /** Stops the thread and removes all entries */
+    public synchronized void stop() {
+        Thread tmp=runner;
+        runner=null;
+        if(tmp != null) {
+            tmp.interrupt();
+            try {
+                tmp.join(tick * 2);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for(Slot slot: slots)
+            slot.clear();
+    }
+
+    public void run() {
+        final Thread current=Thread.currentThread();
+        while(runner == current) {
+            long now=now();
+            long wait_time=next_tick * tick - now;
+            if(wait_time > 0) {
+                try {
+                    Thread.sleep(wait_time);
+                }
+                catch(InterruptedException e) {
+                    if(runner != current)
+                        break;
+                }
+                continue;
+            }
+            // process all ticks that are due (more than one if we fell behind)
+            for(long t=next_tick; t * tick <= now; t++) {
+                next_tick=t + 1; // IDs added from now on go into later slots
+                expire(slots[(int)(t & mask)], now);
+            }
+        }
+    }
+
+    public String toString() {
+        return String.format("%d slots, tick=%d ms, %d entries%s", slots.length, tick, size(), isRunning()? "" : " (stopped)");
+    }
+
+
+    protected void expire(Slot slot, long now) {
+        int num=slot.removeExpired(now, this);
+        for(int i=0; i < num; i++) {
+            try {
+                handler.expired(expired[i]);
+            }
+            catch(Throwable t) {
+                log.error("failed expiring " + expired[i], t);
+            }
+        }
+    }
+
+    protected static long now() {
+        return TimeUnit.MILLISECONDS.convert(System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+
+    /** The IDs and expiration times of a slot, stored in parallel arrays */
+    protected static class Slot {
+        protected long[] ids=new long[4];
+        protected long[] expirations=new long[4];
+        protected int    size;
+
+        protected synchronized int size() {return size;}
+
+        /**
+         * Adds an entry to the slot for tick t, unless the runner already started processing tick t (it advances
+         * next_tick before processing a slot, and processes a slot with the slot's lock held)
+         * @return True if added, false if t has already been processed (or is being processed)
+         */
+        protected synchronized boolean add(long id, long expiration, long t, TimeoutWheel wheel) {
+            if(t < wheel.next_tick)
+                return false;
+            if(size == ids.length) {
+                ids=java.util.Arrays.copyOf(ids, size * 2);
+                expirations=java.util.Arrays.copyOf(expirations, size * 2);
+            }
+            ids[size]=id;
+            expirations[size]=expiration;
+            size++;
+            return true;
+        }
+
+        /**
+         * Copies the IDs which expired into wheel.expired and compacts the remaining ones (which expire in a later
+         * rotation)
+         * @return The number of expired IDs
+         */
+        protected synchronized int removeExpired(long now, TimeoutWheel wheel) {
+            int num_expired=0, num_remaining=0;
+            for(int i=0; i < size; i++) {
+                if(expirations[i] <= now) {
+                    if(num_expired == wheel.expired.length)
+                        wheel.expired=java.util.Arrays.copyOf(wheel.expired, num_expired * 2);
+                    wheel.expired[num_expired++]=ids[i];
+                }
+                else {
+                    ids[num_remaining]=ids[i];
+                    expirations[num_remaining]=expirations[i];
+                    num_remaining++;
+                }
+            }
+            size=num_remaining;
+            if(size == 0 && ids.length > 1024) { // shrink after a burst
+                ids=new long[4];
+                expirations=new long[4];
+            }
+            return num_expired;
+        }
+
+        protected synchronized void clear() {
+            size=0;
+            if(ids.length > 4) {
+                ids=new long[4];
+                expirations=new long[4];
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.jgroups.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Marshals and unmarshals instances of a given (application) type in a compact binary format. Used for types which
+ * cannot implement {@link Streamable} themselves, e.g. because they're not under the control of the application.
+ * Codecs are registered with {@link org.jgroups.conf.CodecRegistry}.
+ * @author agent
+ * @since  3.6.5
+ */
+public interface TypeCodec<T> {
+
+    /** Write the state of obj to an output stream */
+    void writeTo(T obj, DataOutput out) throws Exception;
+
+    /** Create an instance and read its state from an input stream */
+    T readFrom(DataInput in) throws Exception;
+}
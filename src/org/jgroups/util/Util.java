@@ -3,6 +3,7 @@ package org.jgroups.util;
 import org.jgroups.*;
 import org.jgroups.TimeoutException;
 import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.conf.CodecRegistry;
 import org.jgroups.jmx.JmxConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.protocols.*;
@@ -46,9 +47,16 @@ public class Util {
     private static final NumberFormat f;
 
     private static final Map<Class<? extends Object>,Byte> PRIMITIVE_TYPES=new HashMap<>(15);
+
+    /** Buffers larger than this are not kept for reuse by {@link #objectToByteBuffer(Object)} */
+    private static final int MAX_REUSED_BUFFER_SIZE=64 * 1024;
+
+    /** An output buffer per thread, reused when marshalling objects with {@link #objectToByteBuffer(Object)} */
+    private static final ThreadLocal<ByteArrayDataOutputStream> marshalling_buffer=new ThreadLocal<>();
     private static final byte TYPE_NULL=0;
     private static final byte TYPE_STREAMABLE=1;
     private static final byte TYPE_SERIALIZABLE=2;
+    private static final byte TYPE_CODEC=3; // marshalled by a codec registered with CodecRegistry
 
     private static final byte TYPE_BOOLEAN=10;
     private static final byte TYPE_BYTE=11;
@@ -469,6 +477,11 @@ public class Util {
     }
 
 
+    /** Whether instances of clazz are marshalled as a primitive type (including String and byte[]) */
+    public static boolean isPrimitiveType(Class<?> clazz) {
+        return PRIMITIVE_TYPES.containsKey(clazz);
+    }
+
     /**
      * Creates an object from a byte buffer
      */
@@ -494,6 +507,9 @@ public class Util {
                 DataInput in=new ByteArrayDataInputStream(buffer,offset + 1,length - 1);
                 retval=readGenericStreamable(in, loader);
                 break;
+            case TYPE_CODEC:
+                retval=readWithCodec(new ByteArrayDataInputStream(buffer,offset + 1,length - 1));
+                break;
             case TYPE_SERIALIZABLE: // the object is Externalizable or Serializable
                 InputStream in_stream=new ByteArrayInputStream(buffer,offset + 1,length - 1);
                 in=new ObjectInputStreamWithClassloader(in_stream, loader);
@@ -535,20 +551,39 @@ public class Util {
 
     /**
      * Serializes/Streams an object into a byte buffer.
-     * The object has to implement interface Serializable or Externalizable or Streamable.
+     * The object has to implement interface Serializable or Externalizable or Streamable, or a codec for its
+     * class has to be registered with {@link CodecRegistry}.
      */
     public static byte[] objectToByteBuffer(Object obj) throws Exception {
         if(obj == null)
             return ByteBuffer.allocate(Global.BYTE_SIZE).put(TYPE_NULL).array();
 
         if(obj instanceof Streamable) {
-            final ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(512);
-            out.write(TYPE_STREAMABLE);
-            writeGenericStreamable((Streamable)obj,out);
-            return Arrays.copyOf(out.buf,out.position());
+            final ByteArrayDataOutputStream out=acquireMarshallingBuffer();
+            try {
+                out.write(TYPE_STREAMABLE);
+                writeGenericStreamable((Streamable)obj,out);
+                return Arrays.copyOf(out.buf,out.position());
+            }
+            finally {
+                releaseMarshallingBuffer(out);
+            }
         }
 
         Byte type=PRIMITIVE_TYPES.get(obj.getClass());
+        CodecRegistry.Entry codec;
+        if(type == null && (codec=CodecRegistry.get(obj.getClass())) != null) {
+            final ByteArrayDataOutputStream out=acquireMarshallingBuffer();
+            try {
+                out.write(TYPE_CODEC);
+                writeWithCodec(obj, codec, out);
+                return Arrays.copyOf(out.buf,out.position());
+            }
+            finally {
+                releaseMarshallingBuffer(out);
+            }
+        }
+
         if(type == null) { // will throw an exception if object is not serializable
             final ByteArrayOutputStream out_stream=new ByteArrayOutputStream(512);
             out_stream.write(TYPE_SERIALIZABLE);
@@ -611,6 +646,7 @@ public class Util {
         }
 
         Byte type;
+        CodecRegistry.Entry codec;
         if(obj instanceof Streamable) {  // use Streamable if we can
             out.write(TYPE_STREAMABLE);
             writeGenericStreamable((Streamable)obj,out);
@@ -670,6 +706,10 @@ public class Util {
                     throw new IllegalArgumentException("type " + type + " is invalid");
             }
         }
+        else if((codec=CodecRegistry.get(obj.getClass())) != null) { // same order as in objectToByteBuffer()
+            out.write(TYPE_CODEC);
+            writeWithCodec(obj, codec, out);
+        }
         else { // will throw an exception if object is not serializable
             out.write(TYPE_SERIALIZABLE);
             ObjectOutputStream tmp=new ObjectOutputStream(out instanceof ByteArrayDataOutputStream?
@@ -699,6 +739,9 @@ public class Util {
             case TYPE_STREAMABLE:
                 retval=readGenericStreamable(in, loader);
                 break;
+            case TYPE_CODEC:
+                retval=readWithCodec(in);
+                break;
             case TYPE_SERIALIZABLE: // the object is Externalizable or Serializable
                 InputStream is=in instanceof ByteArrayDataInputStream?
                   new org.jgroups.util.InputStreamAdapter((ByteArrayDataInputStream)in) : (InputStream)in;
@@ -763,6 +806,38 @@ public class Util {
     }
 
 
+    @SuppressWarnings("unchecked")
+    protected static void writeWithCodec(Object obj, CodecRegistry.Entry entry, DataOutput out) throws Exception {
+        out.writeShort(entry.id());
+        ((TypeCodec<Object>)entry.codec()).writeTo(obj, out);
+    }
+
+    protected static Object readWithCodec(DataInput in) throws Exception {
+        short id=in.readShort();
+        CodecRegistry.Entry entry=CodecRegistry.get(id);
+        if(entry == null)
+            throw new IllegalStateException("no codec registered for ID " + id);
+        return entry.codec().readFrom(in);
+    }
+
+    /**
+     * Returns the output buffer of the current thread. If the buffer is already in use (e.g. by a nested call to
+     * {@link #objectToByteBuffer(Object)}), a new buffer is created
+     */
+    protected static ByteArrayDataOutputStream acquireMarshallingBuffer() {
+        ByteArrayDataOutputStream out=marshalling_buffer.get();
+        if(out == null)
+            return new ByteArrayDataOutputStream(512);
+        marshalling_buffer.set(null);
+        return out.position(0);
+    }
+
+    protected static void releaseMarshallingBuffer(ByteArrayDataOutputStream out) {
+        if(out.buffer().length <= MAX_REUSED_BUFFER_SIZE)
+            marshalling_buffer.set(out);
+    }
+
+
     public static Streamable streamableFromByteBuffer(Class<? extends Streamable> cl,byte[] buffer) throws Exception {
         return streamableFromByteBuffer(cl,buffer,0,buffer.length);
     }
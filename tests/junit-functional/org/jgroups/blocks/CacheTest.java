@@ -0,0 +1,84 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.testng.annotations.Test;
+
+/**
+ * Tests eviction of bounded {@link Cache}s
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class CacheTest {
+
+    public static void testLru() {
+        Cache<Integer,String> cache=new Cache<>();
+        cache.setEvictionPolicy(new Cache.LruPolicy<Integer>());
+        cache.setMaxNumberOfEntries(5);
+        for(int i=1; i <= 5; i++)
+            cache.put(i, "v" + i, 0);
+        assert cache.get(1) != null; // 2 is now the least recently used key
+        cache.put(6, "v6", 0);
+        assert cache.getSize() == 5;
+        assert cache.get(2) == null;
+        assert cache.get(1) != null && cache.get(6) != null;
+        assert cache.getEvictions() == 1;
+        assert cache.getMisses() == 1;
+        cache.stop();
+    }
+
+    public static void testMaxWeight() {
+        Cache<String,byte[]> cache=new Cache<>();
+        cache.setWeigher(new Cache.Weigher<String,byte[]>() {
+            public int weigh(String key, byte[] value) {return value.length;}
+        });
+        cache.setMaxWeight(10000);
+        for(int i=0; i < 100; i++)
+            cache.put("key" + i, new byte[1000], 0);
+        System.out.println("size=" + cache.getSize() + ", weight=" + cache.getTotalWeight());
+        assert cache.getTotalWeight() <= 10000;
+        assert cache.getSize() == 10;
+        assert cache.getEvictions() == 90;
+
+        cache.put("big", new byte[5000], 0);
+        assert cache.getTotalWeight() <= 10000;
+        cache.remove("big");
+        assert cache.getTotalWeight() <= 5000;
+        cache.stop();
+    }
+
+    /** Keys which are read frequently survive a scan of keys read only once */
+    public static void testFrequentKeysSurviveScan() {
+        Cache<Integer,Integer> cache=new Cache<>();
+        cache.setMaxNumberOfEntries(100);
+        for(int i=0; i < 50; i++)
+            cache.put(i, i, 0);
+        for(int round=0; round < 20; round++)
+            for(int i=0; i < 50; i++)
+                cache.get(i);
+
+        for(int i=1000; i < 11000; i++) // the scan
+            cache.put(i, i, 0);
+
+        int hot=0;
+        for(int i=0; i < 50; i++)
+            if(cache.get(i) != null)
+                hot++;
+        System.out.println("hot keys in cache: " + hot + ", policy: " + cache.getEvictionPolicy());
+        assert cache.getSize() == 100;
+        assert hot >= 45 : "only " + hot + " of the frequently accessed keys are in the cache";
+        cache.stop();
+    }
+
+    public static void testBoundAfterPuts() {
+        Cache<Integer,Integer> cache=new Cache<>();
+        for(int i=0; i < 100; i++)
+            cache.put(i, i, 0);
+        assert cache.getTotalWeight() == 100;
+        cache.setMaxNumberOfEntries(20);
+        assert cache.getSize() == 20;
+        assert cache.getEvictions() == 80;
+        assert cache.getHitRatio() == 0;
+        cache.stop();
+    }
+}
@@ -0,0 +1,90 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.UUID;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests {@link ConsistentHashRing}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class ConsistentHashRingTest {
+
+    public static void testOwners() {
+        List<Address> mbrs=createMembers(5);
+        ConsistentHashRing ring=new ConsistentHashRing(mbrs);
+        System.out.println("ring = " + ring);
+        for(int i=0; i < 1000; i++) {
+            String key="key-" + i;
+            Address owner=ring.owner(key);
+            assert mbrs.contains(owner);
+            List<Address> owners=ring.owners(key, 3);
+            assert owners.size() == 3 && owners.get(0).equals(owner);
+            assert new HashSet<>(owners).size() == 3 : "owners are not distinct: " + owners;
+            assert ring.owners(key, -1).size() == 5;
+            assert ring.owners(key, 10).size() == 5;
+        }
+
+        // the order of the members is irrelevant
+        List<Address> reversed=new ArrayList<>(mbrs);
+        Collections.reverse(reversed);
+        ConsistentHashRing ring2=new ConsistentHashRing(reversed);
+        assert ring2.hasMembers(mbrs);
+        assert ring2.changedSegments(ring).isEmpty();
+    }
+
+    public static void testEmptyRing() {
+        ConsistentHashRing ring=new ConsistentHashRing(Collections.<Address>emptyList());
+        assert ring.owner("key") == null;
+        assert ring.owners("key", 2).isEmpty();
+    }
+
+    public static void testBalance() {
+        List<Address> mbrs=createMembers(10);
+        ConsistentHashRing ring=new ConsistentHashRing(mbrs, 128, 4096);
+        Map<Address,Integer> load=ring.segmentsPerMember();
+        System.out.println("segments per member: " + load);
+        int avg=ring.numSegments() / mbrs.size();
+        for(int num: load.values())
+            assert num > avg / 2 && num < avg * 2 : "unbalanced: " + load;
+    }
+
+    /** A joining member only takes over segments from others; all other segments keep their owner */
+    public static void testMinimalRebalancing() {
+        List<Address> mbrs=createMembers(8);
+        ConsistentHashRing old_ring=new ConsistentHashRing(mbrs);
+        Address joiner=UUID.randomUUID();
+        List<Address> new_mbrs=new ArrayList<>(mbrs);
+        new_mbrs.add(joiner);
+        ConsistentHashRing new_ring=new ConsistentHashRing(new_mbrs);
+
+        BitSet changed=new_ring.changedSegments(old_ring);
+        System.out.println("changed segments: " + changed.cardinality() + " of " + new_ring.numSegments());
+        assert !changed.isEmpty();
+        assert changed.cardinality() < new_ring.numSegments() / 4;
+        for(int i=0; i < new_ring.numSegments(); i++) {
+            if(changed.get(i))
+                assert new_ring.owner(i).equals(joiner);
+            else
+                assert new_ring.owner(i).equals(old_ring.owner(i));
+        }
+
+        // when the joiner leaves again, exactly its segments move back to their previous owners
+        BitSet lost=old_ring.segmentsLostBy(joiner, new_ring);
+        assert lost.equals(changed);
+        assert old_ring.segmentsLostBy(mbrs.get(0), new_ring).isEmpty();
+    }
+
+
+    protected static List<Address> createMembers(int num) {
+        List<Address> retval=new ArrayList<>(num);
+        for(int i=0; i < num; i++)
+            retval.add(UUID.randomUUID());
+        return retval;
+    }
+}
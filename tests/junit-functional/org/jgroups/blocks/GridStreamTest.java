@@ -0,0 +1,146 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests read-ahead, write-behind and positional reads of {@link GridInputStream} and {@link GridOutputStream}. The
+ * file is written by one member and read by the other; chunks are spread across both members
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class GridStreamTest {
+    protected ReplCache<String,byte[]>            data1, data2;
+    protected ReplCache<String,GridFile.Metadata> metadata1, metadata2;
+    protected GridFilesystem                      fs1, fs2;
+    protected static final String PROPS="SHARED_LOOPBACK:SHARED_LOOPBACK_PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS:FRAG2";
+    protected static final String FILE="/grid/file";
+    protected static final int    CHUNK_SIZE=1000, LENGTH=CHUNK_SIZE * 20 + 123;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        data1=start(new ReplCache<String,byte[]>(PROPS, "GridStreamTest-data"));
+        data2=start(new ReplCache<String,byte[]>(PROPS, "GridStreamTest-data"));
+        metadata1=start(new ReplCache<String,GridFile.Metadata>(PROPS, "GridStreamTest-metadata"));
+        metadata2=start(new ReplCache<String,GridFile.Metadata>(PROPS, "GridStreamTest-metadata"));
+        for(int i=0; i < 20 && !(data2.getView().contains("(2)") && metadata2.getView().contains("(2)")); i++)
+            Util.sleep(500);
+        fs1=new GridFilesystem(data1, metadata1, (short)1, CHUNK_SIZE);
+        fs2=new GridFilesystem(data2, metadata2, (short)1, CHUNK_SIZE);
+        assert fs1.getFile("/grid").mkdirs();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        fs2.stop();
+        fs1.stop();
+        for(ReplCache<?,?> cache: Arrays.asList(metadata2, metadata1, data2, data1))
+            cache.stop();
+    }
+
+
+    public void testWriteBehindAndReadAhead() throws Exception {
+        fs1.setWriteBehind(4);
+        fs2.setReadAhead(4);
+        byte[] buf=create(LENGTH);
+        write(fs1, FILE, buf, 333);
+        assert data1.getL2Cache().getSize() > 0 && data2.getL2Cache().getSize() > 0;
+        assert data1.getL2Cache().getSize() + data2.getL2Cache().getSize() == 21;
+
+        InputStream in=fs2.getInput(FILE);
+        byte[] tmp=new byte[LENGTH + 100];
+        int total=0;
+        for(int num; (num=in.read(tmp, total, Math.min(777, tmp.length - total))) > 0;)
+            total+=num;
+        in.close();
+        assert total == LENGTH : "read " + total + " bytes";
+        assert Arrays.equals(Arrays.copyOf(tmp, total), buf);
+    }
+
+    /** Without write-behind, the file is written with asynchronous puts, and read chunk by chunk */
+    public void testWriteAndReadWithoutPipelining() throws Exception {
+        byte[] buf=create(LENGTH);
+        write(fs1, FILE, buf, 1500);
+        InputStream in=fs2.getInput(FILE);
+        byte[] tmp=new byte[LENGTH];
+        int total=0;
+        for(int b; (b=in.read()) != -1;)
+            tmp[total++]=(byte)b;
+        assert total == LENGTH && Arrays.equals(tmp, buf);
+    }
+
+    /** Positional reads don't move the stream; position() and skip() move it, also with chunks being prefetched */
+    public void testPositionalReadsAndSeeking() throws Exception {
+        fs1.setWriteBehind(2);
+        fs2.setReadAhead(3);
+        byte[] buf=create(LENGTH);
+        write(fs1, FILE, buf, CHUNK_SIZE);
+        GridInputStream in=(GridInputStream)fs2.getInput(FILE);
+
+        byte[] tmp=new byte[2500];
+        int num=in.read(1500, tmp, 0, tmp.length); // spans 3 chunks
+        assert num == 2500;
+        assert Arrays.equals(tmp, Arrays.copyOfRange(buf, 1500, 4000));
+        assert in.position() == 0;
+        num=in.read(LENGTH - 10, tmp, 0, tmp.length); // past the end
+        assert num == 10;
+        assert Arrays.equals(Arrays.copyOf(tmp, 10), Arrays.copyOfRange(buf, LENGTH - 10, LENGTH));
+        assert in.read(LENGTH, tmp, 0, tmp.length) == -1;
+
+        assert in.read(tmp, 0, 100) == 100;
+        assert Arrays.equals(Arrays.copyOf(tmp, 100), Arrays.copyOf(buf, 100));
+        assert in.position() == 100;
+        assert in.available() == CHUNK_SIZE - 100;
+
+        in.position(12345); // skips prefetched chunks
+        assert in.read(tmp, 0, 1000) == 1000;
+        assert Arrays.equals(Arrays.copyOf(tmp, 1000), Arrays.copyOfRange(buf, 12345, 13345));
+
+        in.position(500); // backwards
+        assert in.read() == (buf[500] & 0xff);
+        assert in.skip(1000) == 1000 && in.position() == 1501;
+        assert in.read(tmp, 0, 10) == 10;
+        assert Arrays.equals(Arrays.copyOf(tmp, 10), Arrays.copyOfRange(buf, 1501, 1511));
+
+        assert in.skip(LENGTH) == LENGTH - 1511;
+        assert in.read() == -1;
+        in.close();
+    }
+
+
+    /** Writes buf in writes of at most write_size bytes, and waits until fs2 sees the length of the file */
+    protected void write(GridFilesystem fs, String path, byte[] buf, int write_size) throws Exception {
+        OutputStream out=fs.getOutput(path);
+        for(int off=0; off < buf.length; off+=write_size)
+            out.write(buf, off, Math.min(write_size, buf.length - off));
+        out.close();
+        for(int i=0; i < 20 && fs2.getFile(path).length() != buf.length; i++)
+            Util.sleep(200);
+        assert fs2.getFile(path).length() == buf.length : "length: " + fs2.getFile(path).length();
+        Util.sleep(200); // without write-behind, chunks are written asynchronously
+    }
+
+    protected static <K,V> ReplCache<K,V> start(ReplCache<K,V> cache) throws Exception {
+        cache.setCallTimeout(5000);
+        cache.setHashFunctionFactory(new ReplCache.HashFunctionFactory<K>() { // spreads the chunks evenly
+            public ReplCache.HashFunction<K> create() {return new ReplCache.VirtualNodeHashFunction<>();}
+        });
+        cache.start();
+        return cache;
+    }
+
+    protected static byte[] create(int length) {
+        byte[] retval=new byte[length];
+        for(int i=0; i < length; i++)
+            retval[i]=(byte)(i * 7 + 3);
+        return retval;
+    }
+}
@@ -0,0 +1,125 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.DefaultTimeScheduler;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests {@link L1Invalidator}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class L1InvalidatorTest {
+    protected static final Address A=UUID.randomUUID(), B=UUID.randomUUID(), C=UUID.randomUUID();
+
+    public static void testInvalidateImmediately() {
+        MySender<String> sender=new MySender<>();
+        L1Invalidator<String> inv=new L1Invalidator<>(sender, null).interval(0);
+        inv.addHolder("name", A);
+        inv.addHolder("name", B);
+        inv.addHolder("age", B);
+        assert inv.numTrackedKeys() == 2;
+
+        inv.invalidate("name", null);
+        assert sender.get(A).equals(Collections.singletonList("name"));
+        assert sender.get(B).equals(Collections.singletonList("name"));
+        assert inv.numTrackedKeys() == 1;
+
+        // nobody has fetched "name" since it was modified
+        sender.clear();
+        inv.invalidate("name", null);
+        assert sender.isEmpty();
+        assert inv.numInvalidations() == 2 && inv.numMessages() == 2;
+    }
+
+    public static void testExcludedHolderKeepsCopy() {
+        MySender<String> sender=new MySender<>();
+        L1Invalidator<String> inv=new L1Invalidator<>(sender, null).interval(0);
+        inv.addHolder("name", A);
+        inv.addHolder("name", B);
+        inv.invalidate("name", A);
+        assert sender.get(A) == null;
+        assert sender.get(B).equals(Collections.singletonList("name"));
+
+        sender.clear();
+        inv.invalidate("name", B);
+        assert sender.get(A).equals(Collections.singletonList("name"));
+        assert sender.get(B) == null;
+    }
+
+    public static void testBatching() throws Exception {
+        TimeScheduler timer=new DefaultTimeScheduler(1);
+        try {
+            MySender<Integer> sender=new MySender<>();
+            L1Invalidator<Integer> inv=new L1Invalidator<>(sender, timer).interval(100);
+            for(int i=0; i < 10; i++) {
+                inv.addHolder(i, A);
+                inv.addHolder(i, C);
+            }
+            for(int i=0; i < 10; i++)
+                inv.invalidate(i, null);
+            assert sender.isEmpty();
+
+            for(int i=0; i < 20 && inv.numMessages() < 2; i++)
+                Util.sleep(100);
+            assert inv.numMessages() == 2 : "expected 2 messages: " + inv;
+            assert sender.get(A).size() == 10 && sender.get(C).size() == 10;
+            assert inv.numInvalidations() == 20;
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    public static void testMaxBatchSize() {
+        TimeScheduler timer=new DefaultTimeScheduler(1);
+        try {
+            MySender<Integer> sender=new MySender<>();
+            L1Invalidator<Integer> inv=new L1Invalidator<>(sender, timer).interval(60000).maxBatchSize(5);
+            for(int i=0; i < 5; i++) {
+                inv.addHolder(i, A);
+                inv.invalidate(i, null);
+            }
+            assert sender.get(A).size() == 5 && inv.numMessages() == 1;
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    public static void testRetainAll() {
+        MySender<String> sender=new MySender<>();
+        L1Invalidator<String> inv=new L1Invalidator<>(sender, null).interval(0);
+        inv.addHolder("name", A);
+        inv.addHolder("name", B);
+        inv.addHolder("age", B);
+        inv.retainAll(Arrays.asList(A, C));
+        assert inv.numTrackedKeys() == 1;
+        inv.invalidate("name", null);
+        assert sender.get(B) == null;
+        assert sender.get(A).equals(Collections.singletonList("name"));
+
+        // C gets the index freed by B
+        inv.addHolder("age", C);
+        sender.clear();
+        inv.invalidate("age", null);
+        assert sender.keySet().equals(Collections.singleton(C));
+    }
+
+
+    protected static class MySender<K> extends HashMap<Address,List<K>> implements L1Invalidator.Sender<K> {
+        public synchronized void sendInvalidations(Address dest, Collection<K> keys) {
+            List<K> list=get(dest);
+            if(list == null)
+                put(dest, list=new ArrayList<>());
+            list.addAll(keys);
+        }
+    }
+}
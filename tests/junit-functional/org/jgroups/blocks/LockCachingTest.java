@@ -0,0 +1,248 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.locking.LockService;
+import org.jgroups.protocols.CENTRAL_LOCK;
+import org.jgroups.protocols.Locking;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Tests lock caching of {@link CENTRAL_LOCK}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class LockCachingTest {
+    protected JChannel    a, b;
+    protected LockService s1, s2;
+    protected static final String LOCK="cached-lock";
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        s1=new LockService(a);
+        a.connect("LockCachingTest");
+        b=createChannel("B");
+        s2=new LockService(b);
+        b.connect("LockCachingTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        Util.close(b, a);
+    }
+
+
+    /** Re-acquiring a cached lock doesn't contact the coordinator */
+    public void testLocalReacquisition() {
+        Lock lock=s2.getLock(LOCK);
+        for(int i=0; i < 100; i++) {
+            lock.lock();
+            lock.unlock();
+        }
+        CENTRAL_LOCK prot=locking(b);
+        assert getValue(prot, "num_remote_acquisitions") == 1;
+        assert getValue(prot, "num_local_acquisitions") == 99;
+        assert prot.getNumCachedLocks() == 1;
+        System.out.println("lock latency: " + prot.getLockLatency());
+    }
+
+    /** A cached lock is revoked when a different member requests it */
+    public void testRevocationOfCachedLock() throws Exception {
+        Lock lock2=s2.getLock(LOCK);
+        lock2.lock();
+        lock2.unlock();
+        assert locking(b).getNumCachedLocks() == 1;
+
+        Lock lock1=s1.getLock(LOCK);
+        assert lock1.tryLock(5000, TimeUnit.MILLISECONDS);
+        try {
+            assert getValue(locking(b), "num_revocations") == 1;
+            waitForNoCachedLocks(b);
+            assert !lock2.tryLock() : "lock is held by A";
+        }
+        finally {
+            lock1.unlock();
+        }
+    }
+
+    /** A lock revoked while it is held is released on unlock */
+    public void testRevocationOfHeldLock() throws Exception {
+        final Lock lock2=s2.getLock(LOCK);
+        lock2.lock();
+        final CountDownLatch acquired=new CountDownLatch(1);
+        Thread locker=new Thread() {
+            public void run() {
+                Lock lock1=s1.getLock(LOCK);
+                lock1.lock();
+                acquired.countDown();
+                lock1.unlock();
+            }
+        };
+        locker.start();
+        for(int i=0; i < 20 && getValue(locking(b), "num_revocations") == 0; i++)
+            Util.sleep(100);
+        assert getValue(locking(b), "num_revocations") == 1;
+        assert acquired.getCount() == 1 : "A must not get the lock while B holds it";
+        lock2.unlock();
+        assert acquired.await(5000, TimeUnit.MILLISECONDS);
+        locker.join(5000);
+        waitForNoCachedLocks(b);
+    }
+
+    /** A zero-timeout tryLock() revokes an unused cached lock and gets it */
+    public void testTryLockRevokesCachedLock() throws Exception {
+        Lock lock2=s2.getLock(LOCK);
+        lock2.lock();
+        lock2.unlock();
+        assert locking(b).getNumCachedLocks() == 1;
+
+        Lock lock1=s1.getLock(LOCK);
+        assert lock1.tryLock() : "the cached lock should have been revoked";
+        try {
+            assert getValue(locking(b), "num_revocations") == 1;
+            waitForNoCachedLocks(b);
+        }
+        finally {
+            lock1.unlock();
+        }
+    }
+
+    /** A zero-timeout tryLock() is denied if the lock is held by a different member, and the lock is released on unlock */
+    public void testTryLockOnHeldLock() throws Exception {
+        Lock lock2=s2.getLock(LOCK);
+        lock2.lock();
+        Lock lock1=s1.getLock(LOCK);
+        try {
+            assert !lock1.tryLock() : "lock is held by B";
+            assert !lock1.tryLock() : "lock is held by B";
+        }
+        finally {
+            lock2.unlock();
+        }
+        assert locking(b).getNumCachedLocks() == 0 : "the revoked lock must not be cached";
+        assert lock1.tryLock(5000, TimeUnit.MILLISECONDS);
+        lock1.unlock();
+    }
+
+    /** unlockAll() releases cached locks, too */
+    public void testUnlockAllReleasesCachedLocks() throws Exception {
+        Lock lock2=s2.getLock(LOCK), other=s2.getLock("other-lock");
+        lock2.lock();
+        lock2.unlock();
+        other.lock();
+        assert locking(b).getNumCachedLocks() == 1;
+
+        s2.unlockAll();
+        assert locking(b).getNumCachedLocks() == 0;
+        Lock lock1=s1.getLock(LOCK), other1=s1.getLock("other-lock");
+        assert lock1.tryLock(5000, TimeUnit.MILLISECONDS);
+        assert other1.tryLock(5000, TimeUnit.MILLISECONDS);
+        assert getValue(locking(b), "num_revocations") == 0;
+        lock1.unlock();
+        other1.unlock();
+    }
+
+
+    /** Locks are cached per owner: a different thread of the same member revokes the cached lock */
+    public void testCachedLockNotSharedBetweenThreads() throws Exception {
+        final Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        assert locking(b).getNumCachedLocks() == 1;
+
+        final AtomicBoolean acquired=new AtomicBoolean();
+        Thread other=new Thread() {
+            public void run() {
+                try {
+                    acquired.set(lock.tryLock(5000, TimeUnit.MILLISECONDS));
+                }
+                catch(InterruptedException e) {
+                }
+                finally {
+                    if(acquired.get())
+                        lock.unlock();
+                }
+            }
+        };
+        other.start();
+        other.join(10000);
+        assert acquired.get();
+        assert getValue(locking(b), "num_revocations") == 1;
+        assert getValue(locking(b), "num_remote_acquisitions") == 2;
+    }
+
+    /** With use_thread_id_for_lock_owner=false, the lock is owned by the member, and all its threads use the cached lock */
+    public void testCachedLockSharedBetweenThreadsWithoutThreadIds() throws Exception {
+        Util.close(b, a);
+        a=createChannel("A");
+        locking(a).setValue("use_thread_id_for_lock_owner", false);
+        s1=new LockService(a);
+        a.connect("LockCachingTest");
+
+        final Lock lock=s1.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        Thread other=new Thread() {
+            public void run() {
+                lock.lock();
+                lock.unlock();
+            }
+        };
+        other.start();
+        other.join(10000);
+        assert getValue(locking(a), "num_remote_acquisitions") == 1;
+        assert getValue(locking(a), "num_local_acquisitions") == 1;
+        assert getValue(locking(a), "num_revocations") == 0;
+    }
+
+
+    /** Unused cached locks are released after lock_lease_time ms */
+    public void testLeaseExpiration() throws Exception {
+        Util.close(b, a);
+        a=createChannel("A");
+        locking(a).setLockLeaseTime(500);
+        s1=new LockService(a);
+        a.connect("LockCachingTest");
+
+        Lock lock=s1.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        assert locking(a).getNumCachedLocks() == 1;
+        waitForNoCachedLocks(a);
+        lock.lock();
+        lock.unlock();
+        assert getValue(locking(a), "num_remote_acquisitions") == 2;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack(new CENTRAL_LOCK().setLockCaching(true));
+        return new JChannel(stack).name(name);
+    }
+
+    protected static void waitForNoCachedLocks(JChannel ch) {
+        for(int i=0; i < 50 && locking(ch).getNumCachedLocks() > 0; i++)
+            Util.sleep(100);
+        assert locking(ch).getNumCachedLocks() == 0;
+    }
+
+    protected static CENTRAL_LOCK locking(JChannel ch) {
+        return (CENTRAL_LOCK)ch.getProtocolStack().findProtocol(CENTRAL_LOCK.class);
+    }
+
+    protected static long getValue(Locking prot, String field) {
+        return ((Number)Util.getField(Util.getField(Locking.class, field), prot)).longValue();
+    }
+}
@@ -0,0 +1,229 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.StreamListener;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Tests streams sent with {@link JChannel#openStream(Address)}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class MessageStreamsTest {
+    protected JChannel a, b, c;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        c=createChannel("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        Util.close(c, b, a);
+    }
+
+
+    public void testUnicastStream() throws Exception {
+        byte[] data=createData(5 * 1000 * 1000);
+        Reader reader=new Reader();
+        b.setStreamListener(reader);
+        OutputStream out=a.openStream(b.getAddress());
+        for(int i=0; i < data.length; i+=7000)  // writes of any size
+            out.write(data, i, Math.min(7000, data.length - i));
+        out.close();
+
+        reader.await();
+        assert reader.sender.equals(a.getAddress());
+        assert reader.bytes.get() == data.length;
+        assert reader.checksum == checksum(data);
+        assert b.getStreams().numReceivedStreams() == 0;
+    }
+
+    public void testMulticastStream() throws Exception {
+        byte[] data=createData(1000 * 1000);
+        Reader r1=new Reader(), r2=new Reader(), r3=new Reader();
+        a.setStreamListener(r1);
+        b.setStreamListener(r2);
+        c.setStreamListener(r3);
+        OutputStream out=a.openStream(null);
+        out.write(data);
+        out.close();
+        for(Reader reader: new Reader[]{r1, r2, r3}) {
+            reader.await();
+            assert reader.checksum == checksum(data);
+        }
+    }
+
+    public void testEmptyStream() throws Exception {
+        Reader reader=new Reader();
+        b.setStreamListener(reader);
+        a.openStream(b.getAddress()).close();
+        reader.await();
+        assert reader.bytes.get() == 0;
+    }
+
+    /** A slow reader blocks the writer, and the unread data is not buffered by the receiver */
+    public void testSlowReaderBlocksWriter() throws Exception {
+        final byte[] data=createData(10 * 1000 * 1000);
+        final CountDownLatch start_reading=new CountDownLatch(1);
+        Reader reader=new Reader() {
+            public void streamReceived(Address sender, InputStream in) throws Exception {
+                start_reading.await();
+                super.streamReceived(sender, in);
+            }
+        };
+        b.setStreamListener(reader);
+        final AtomicLong written=new AtomicLong();
+        final OutputStream out=a.openStream(b.getAddress());
+        Thread writer=new Thread() {
+            public void run() {
+                try {
+                    for(int i=0; i < data.length; i+=10000) {
+                        out.write(data, i, 10000);
+                        written.addAndGet(10000);
+                    }
+                    out.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        Util.sleep(2000);
+        System.out.println("written before the reader started reading: " + written);
+        assert writer.isAlive();
+        assert written.get() < data.length / 2 : "the writer should have been blocked, but wrote " + written;
+
+        start_reading.countDown();
+        writer.join(20000);
+        reader.await();
+        assert reader.checksum == checksum(data);
+    }
+
+    /** Reading a stream whose sender left before closing it fails */
+    public void testSenderLeaves() throws Exception {
+        final CountDownLatch failed=new CountDownLatch(1);
+        b.setStreamListener(new StreamListener() {
+            public void streamReceived(Address sender, InputStream in) throws Exception {
+                byte[] buf=new byte[1000];
+                try {
+                    while(in.read(buf) != -1)
+                        ;
+                }
+                catch(IOException ex) {
+                    System.out.println("caught exception as expected: " + ex);
+                    failed.countDown();
+                }
+            }
+        });
+        OutputStream out=a.openStream(b.getAddress());
+        out.write(createData(100000));
+        out.flush();
+        Util.close(a);
+        assert failed.await(10000, TimeUnit.MILLISECONDS);
+    }
+
+    /** The chunks of a stream received without a listener are dropped until EOF, even if a listener is set meanwhile */
+    public void testStreamWithoutListenerIsDiscarded() throws Exception {
+        MessageStreams streams=b.getStreams();
+        assert streams.handle(chunk(a.getAddress(), MessageStreams.StreamHeader.DATA, new byte[100]));
+        assert streams.numReceivedStreams() == 0 && streams.numDiscardedStreams() == 1;
+
+        b.setStreamListener(new Reader());
+        assert streams.handle(chunk(a.getAddress(), MessageStreams.StreamHeader.DATA, new byte[100]));
+        assert streams.numReceivedStreams() == 0 && streams.numDiscardedStreams() == 1;
+
+        assert streams.handle(chunk(a.getAddress(), MessageStreams.StreamHeader.EOF, null));
+        assert streams.numReceivedStreams() == 0 && streams.numDiscardedStreams() == 0;
+    }
+
+    /** A header of a different class under the ID of MessageStreams is not mistaken for a chunk of a stream */
+    public void testForeignHeaderIsIgnored() throws Exception {
+        short id=ClassConfigurator.getProtocolId(MessageStreams.class);
+        Message msg=new Message(null, a.getAddress(), "hello").putHeader(id, new TpHeader("demo"));
+        assert !b.getStreams().handle(msg);
+        assert b.getStreams().numReceivedStreams() == 0;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=new JChannel(new SHARED_LOOPBACK(),
+                                 new SHARED_LOOPBACK_PING(),
+                                 new NAKACK2().setValue("use_mcast_xmit", false),
+                                 new UNICAST3(),
+                                 new STABLE().setValue("max_bytes", 500000),
+                                 new GMS().joinTimeout(1000).setValue("print_local_addr", false),
+                                 new UFC().setValue("max_credits", 1000000).setValue("max_block_time", 30000),
+                                 new MFC().setValue("max_credits", 1000000).setValue("max_block_time", 30000),
+                                 new FRAG2().fragSize(8000)).name(name);
+        ch.connect("MessageStreamsTest");
+        return ch;
+    }
+
+    protected static Message chunk(Address sender, byte type, byte[] data) {
+        short id=ClassConfigurator.getProtocolId(MessageStreams.class);
+        return new Message(null, sender, data).putHeader(id, new MessageStreams.StreamHeader(type, 7));
+    }
+
+    protected static byte[] createData(int size) {
+        byte[] data=new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    protected static long checksum(byte[] data) {
+        CRC32 crc=new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+
+    protected static class Reader implements StreamListener {
+        protected final CountDownLatch done=new CountDownLatch(1);
+        protected final AtomicLong     bytes=new AtomicLong();
+        protected volatile Address     sender;
+        protected volatile long        checksum;
+
+        public void streamReceived(Address sender, InputStream in) throws Exception {
+            this.sender=sender;
+            CRC32 crc=new CRC32();
+            byte[] buf=new byte[5000];
+            int num;
+            while((num=in.read(buf)) != -1) {
+                crc.update(buf, 0, num);
+                bytes.addAndGet(num);
+            }
+            checksum=crc.getValue();
+            done.countDown();
+        }
+
+        protected void await() throws InterruptedException {
+            assert done.await(20000, TimeUnit.MILLISECONDS) : "stream was not received";
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests {@link NioMemcachedConnector} with the text and the binary protocol
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class NioMemcachedConnectorTest {
+    protected PartitionedHashMap<String,byte[]> cache;
+    protected NioMemcachedConnector             connector;
+    protected Socket                            sock;
+    protected DataInputStream                   in;
+    protected OutputStream                      out;
+    protected static final String PROPS="SHARED_LOOPBACK:SHARED_LOOPBACK_PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS";
+    protected static final byte   GET=0x00, SET=0x01, DELETE=0x04, NOOP=0x0a, GETK=0x0c, GETKQ=0x0d;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        cache=new PartitionedHashMap<>(PROPS, "NioMemcachedConnectorTest");
+        cache.setCallTimeout(5000);
+        cache.start();
+        connector=new NioMemcachedConnector(InetAddress.getLoopbackAddress(), 0, cache).setBufferSize(256).setMaxRequestSize(100000);
+        connector.start();
+        sock=new Socket(InetAddress.getLoopbackAddress(), connector.getLocalAddress().getPort());
+        sock.setSoTimeout(10000);
+        in=new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        out=sock.getOutputStream();
+    }
+
+    @AfterMethod
+    protected void destroy() throws Exception {
+        Util.close(sock);
+        connector.stop();
+        cache.stop();
+    }
+
+
+    public void testTextProtocol() throws Exception {
+        send("set name 0 0 4\r\nBela\r\n");
+        assert readLine().equals("STORED");
+        send("get name\r\n");
+        assert readLine().equals("VALUE name 0 4");
+        assert readLine().equals("Bela");
+        assert readLine().equals("END");
+        send("get unknown\r\n");
+        assert readLine().equals("END");
+        assert stat("bulk_gets") == 0 : "single-key gets must not be counted as bulk gets";
+
+        send("set age 0 0 2 noreply\r\n50\r\nget name age unknown\r\n");
+        assert readLine().equals("VALUE name 0 4");
+        assert readLine().equals("Bela");
+        assert readLine().equals("VALUE age 0 2");
+        assert readLine().equals("50");
+        assert readLine().equals("END");
+        assert stat("bulk_gets") == 1;
+
+        send("gets age\r\n");
+        assert readLine().equals("VALUE age 0 2 0");
+        assert readLine().equals("50");
+        assert readLine().equals("END");
+
+        send("delete age\r\nget age\r\nbla\r\n");
+        assert readLine().equals("DELETED");
+        assert readLine().equals("END");
+        assert readLine().equals("ERROR");
+        assert stat("cmd_get") == 7 && stat("get_hits") == 4 && stat("cmd_set") == 2 && stat("cmd_delete") == 1;
+    }
+
+    /** A request arriving in pieces is processed when complete */
+    public void testPartialRequest() throws Exception {
+        for(String piece: Arrays.asList("se", "t name 0 0 ", "4\r\nBe", "la", "\r", "\n"))
+            send(piece);
+        assert readLine().equals("STORED");
+        assert Arrays.equals(cache.get("name"), "Bela".getBytes());
+    }
+
+    /** Values larger than the buffers make them grow; the value is returned intact */
+    public void testLargeValue() throws Exception {
+        byte[] val=new byte[50000];
+        for(int i=0; i < val.length; i++)
+            val[i]=(byte)('a' + i % 26);
+        send("set large 0 0 " + val.length + "\r\n");
+        out.write(val);
+        send("\r\n");
+        assert readLine().equals("STORED");
+        send("get large\r\n");
+        assert readLine().equals("VALUE large 0 " + val.length);
+        byte[] tmp=new byte[val.length];
+        in.readFully(tmp);
+        assert Arrays.equals(tmp, val);
+        assert readLine().isEmpty();
+        assert readLine().equals("END");
+    }
+
+    public void testRequestTooLarge() throws Exception {
+        send("set large 0 0 200000\r\n");
+        assert readLine().startsWith("SERVER_ERROR");
+        assert in.read() == -1 : "connection should have been closed";
+    }
+
+    public void testBinaryProtocol() throws Exception {
+        out.write(binaryRequest(SET, 1, "name", "Bela".getBytes()));
+        Response rsp=readResponse();
+        assert rsp.opcode == SET && rsp.status == 0 && rsp.opaque == 1;
+
+        out.write(binaryRequest(GET, 2, "name", null));
+        rsp=readResponse();
+        assert rsp.opcode == GET && rsp.status == 0 && rsp.key == null && new String(rsp.value).equals("Bela");
+
+        out.write(binaryRequest(GETK, 3, "unknown", null));
+        rsp=readResponse();
+        assert rsp.status == 1 && rsp.key.equals("unknown");
+
+        out.write(binaryRequest(DELETE, 4, "name", null));
+        assert readResponse().status == 0;
+        assert cache.get("name") == null;
+        assert stat("bulk_gets") == 0;
+    }
+
+    /** A pipeline of GETKQs is served with a single bulk get; misses are not reported, the NOOP ends the pipeline */
+    public void testBinaryGetPipeline() throws Exception {
+        for(int i=1; i <= 5; i++)
+            cache.put("key-" + i, ("value-" + i).getBytes());
+        ByteArrayOutputStream pipeline=new ByteArrayOutputStream();
+        for(int i=1; i <= 7; i++)
+            pipeline.write(binaryRequest(GETKQ, i, "key-" + i, null));
+        pipeline.write(binaryRequest(NOOP, 100, null, null));
+        out.write(pipeline.toByteArray());
+        for(int i=1; i <= 5; i++) {
+            Response rsp=readResponse();
+            assert rsp.opcode == GETKQ && rsp.opaque == i && rsp.key.equals("key-" + i);
+            assert new String(rsp.value).equals("value-" + i);
+        }
+        Response rsp=readResponse();
+        assert rsp.opcode == NOOP && rsp.opaque == 100;
+        assert stat("bulk_gets") == 1;
+    }
+
+    /** Text and binary requests can be mixed on the same connection */
+    public void testMixedProtocols() throws Exception {
+        out.write(binaryRequest(SET, 1, "name", "Bela".getBytes()));
+        send("get name\r\n");
+        assert readResponse().status == 0;
+        assert readLine().equals("VALUE name 0 4");
+        assert readLine().equals("Bela");
+        assert readLine().equals("END");
+    }
+
+
+    protected void send(String s) throws IOException {
+        out.write(s.getBytes());
+        out.flush();
+    }
+
+    protected String readLine() throws IOException {
+        StringBuilder sb=new StringBuilder();
+        for(int c; (c=in.read()) != '\n';) {
+            if(c == -1)
+                throw new EOFException();
+            if(c != '\r')
+                sb.append((char)c);
+        }
+        return sb.toString();
+    }
+
+    protected long stat(String name) throws IOException {
+        send("stats\r\n");
+        long retval=-1;
+        for(String line; !(line=readLine()).equals("END");) {
+            String[] comps=line.split(" ");
+            if(comps[1].equals(name))
+                retval=Long.parseLong(comps[2]);
+        }
+        return retval;
+    }
+
+    protected static byte[] binaryRequest(byte opcode, int opaque, String key, byte[] value) {
+        byte[] key_bytes=key != null? key.getBytes() : new byte[0];
+        int extras_length=opcode == SET? 8 : 0, value_length=value != null? value.length : 0;
+        int body_length=extras_length + key_bytes.length + value_length;
+        ByteBuffer buf=ByteBuffer.allocate(24 + body_length);
+        buf.put((byte)0x80).put(opcode).putShort((short)key_bytes.length).put((byte)extras_length).put((byte)0)
+          .putShort((short)0).putInt(body_length).putInt(opaque).putLong(0);
+        if(extras_length > 0)
+            buf.putInt(0).putInt(0); // flags and expiration
+        buf.put(key_bytes);
+        if(value != null)
+            buf.put(value);
+        return buf.array();
+    }
+
+    protected Response readResponse() throws IOException {
+        assert in.readByte() == (byte)0x81;
+        Response rsp=new Response();
+        rsp.opcode=in.readByte();
+        int key_length=in.readShort() & 0xffff, extras_length=in.readByte() & 0xff;
+        in.readByte();
+        rsp.status=in.readShort();
+        int body_length=in.readInt();
+        rsp.opaque=in.readInt();
+        in.readLong();
+        in.skipBytes(extras_length);
+        if(key_length > 0) {
+            byte[] key=new byte[key_length];
+            in.readFully(key);
+            rsp.key=new String(key);
+        }
+        rsp.value=new byte[body_length - extras_length - key_length];
+        in.readFully(rsp.value);
+        return rsp;
+    }
+
+    protected static class Response {
+        protected byte   opcode;
+        protected short  status;
+        protected int    opaque;
+        protected String key;
+        protected byte[] value;
+    }
+}
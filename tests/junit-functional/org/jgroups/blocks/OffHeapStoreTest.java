@@ -0,0 +1,125 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link OffHeapStore}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class OffHeapStoreTest {
+
+    public static void testPutGetFree() {
+        OffHeapStore store=new OffHeapStore(4096, 1 << 20);
+        byte[] buf=create(100, 1);
+        OffHeapStore.Ref ref=store.put(buf);
+        assert ref.length() == 100;
+        assert Arrays.equals(store.get(ref), buf);
+        assert store.size() == 1 && store.usedBytes() == 128;
+        assert store.allocatedBytes() == 4096;
+
+        assert store.free(ref);
+        assert store.get(ref) == null;
+        assert !store.free(ref) : "double free must be ignored";
+        assert store.size() == 0 && store.usedBytes() == 0;
+    }
+
+    /** A ref to a freed array stays stale when its chunk is reused */
+    public static void testStaleRefAfterReuse() {
+        OffHeapStore store=new OffHeapStore(4096, 1 << 20);
+        OffHeapStore.Ref ref=store.put(create(50, 1));
+        store.free(ref);
+        byte[] buf=create(50, 2);
+        OffHeapStore.Ref ref2=store.put(buf);
+        assert store.get(ref) == null;
+        assert Arrays.equals(store.get(ref2), buf);
+        assert !store.free(ref);
+        assert store.size() == 1;
+    }
+
+    public static void testChunkSizes() {
+        OffHeapStore store=new OffHeapStore(4096, 1 << 20);
+        assert store.chunkSize(1) == 64;
+        assert store.chunkSize(64) == 64;
+        assert store.chunkSize(65) == 128;
+        assert store.chunkSize(4096) == 4096;
+        assert store.chunkSize(5000) == 5000;
+    }
+
+    public static void testLargeArray() {
+        OffHeapStore store=new OffHeapStore(4096, 1 << 20);
+        byte[] buf=create(10000, 3);
+        OffHeapStore.Ref ref=store.put(buf);
+        assert Arrays.equals(store.get(ref), buf);
+        assert store.allocatedBytes() == 10000;
+        store.free(ref);
+        assert store.allocatedBytes() == 0;
+    }
+
+    /** A ref to a freed huge array doesn't match a new slab which got the id of the released slab */
+    public static void testStaleRefAfterHugeArrayFreed() {
+        OffHeapStore store=new OffHeapStore(4096, 1 << 20);
+        OffHeapStore.Ref ref=store.put(create(10000, 1));
+        assert store.free(ref);
+        byte[] buf=create(10000, 2);
+        OffHeapStore.Ref ref2=store.put(buf); // reuses the slab id of ref
+        assert store.get(ref) == null;
+        assert !store.free(ref);
+        assert Arrays.equals(store.get(ref2), buf);
+        assert store.size() == 1;
+
+        byte[] small=create(100, 3);
+        assert store.free(ref2);
+        OffHeapStore.Ref ref3=store.put(small); // a regular slab with the same id
+        assert store.get(ref2) == null && store.get(ref) == null;
+        assert !store.free(ref2);
+        assert Arrays.equals(store.get(ref3), small);
+    }
+
+    /** Refs taken before clear() don't match the slabs allocated after it */
+    public static void testStaleRefAfterClear() {
+        OffHeapStore store=new OffHeapStore(4096, 1 << 20);
+        OffHeapStore.Ref ref=store.put(create(100, 1)), huge=store.put(create(10000, 1));
+        store.clear();
+        byte[] buf=create(100, 2), huge_buf=create(10000, 2);
+        OffHeapStore.Ref ref2=store.put(buf), huge2=store.put(huge_buf);
+        assert store.get(ref) == null && store.get(huge) == null;
+        assert !store.free(ref) && !store.free(huge);
+        assert Arrays.equals(store.get(ref2), buf);
+        assert Arrays.equals(store.get(huge2), huge_buf);
+        assert store.size() == 2;
+    }
+
+    public static void testMaxSize() {
+        OffHeapStore store=new OffHeapStore(1024, 4096);
+        List<OffHeapStore.Ref> refs=new ArrayList<>();
+        for(int i=0; i < 16; i++) {
+            OffHeapStore.Ref ref=store.put(create(256, i));
+            assert ref != null;
+            refs.add(ref);
+        }
+        assert store.put(create(256, 0)) == null : "store should be full";
+        assert store.put(create(10, 0)) == null : "no slab for a different chunk size";
+        store.free(refs.get(0));
+        assert store.put(create(200, 0)) != null;
+
+        store.clear();
+        for(OffHeapStore.Ref ref: refs)
+            assert store.get(ref) == null;
+        assert store.allocatedBytes() == 0;
+    }
+
+
+    protected static byte[] create(int length, int seed) {
+        byte[] retval=new byte[length];
+        for(int i=0; i < length; i++)
+            retval[i]=(byte)(i + seed);
+        return retval;
+    }
+}
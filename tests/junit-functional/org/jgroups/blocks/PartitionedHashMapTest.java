@@ -0,0 +1,123 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests the bulk operations of {@link PartitionedHashMap}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class PartitionedHashMapTest {
+    protected PartitionedHashMap<String,String> a, b;
+    protected static final String PROPS="SHARED_LOOPBACK:SHARED_LOOPBACK_PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS:FRAG2";
+    protected static final int    NUM=100;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=create(null);
+        b=create(null);
+        waitForView(a, b);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        b.stop();
+        a.stop();
+    }
+
+
+    /** The default is the hash function of previous versions, so that members of a mixed-version cluster agree on owners */
+    public void testDefaultHashFunction() throws Exception {
+        PartitionedHashMap<String,String> map=new PartitionedHashMap<>(PROPS, "PartitionedHashMapTest-default");
+        map.start();
+        try {
+            assert map.getHashFunction() instanceof PartitionedHashMap.ConsistentHashFunction : map.getHashFunction();
+        }
+        finally {
+            map.stop();
+        }
+    }
+
+
+    /** putAll() stores every key at its owner, getAll() returns the values of all keys, from both members */
+    public void testPutAllAndGetAll() {
+        a.putAll(entries("value"));
+        Util.sleep(500); // putAll() is asynchronous
+        assert a.getL2Cache().getSize() > 0 && b.getL2Cache().getSize() > 0; // keys are spread across both members
+        assert a.getL2Cache().getSize() + b.getL2Cache().getSize() == NUM;
+
+        Map<String,String> expected=entries("value");
+        for(PartitionedHashMap<String,String> map: Arrays.asList(a, b)) {
+            Map<String,String> values=map.getAll(expected.keySet());
+            assert values.equals(expected) : "values of " + map.getLocalAddress() + ": " + values;
+        }
+
+        List<String> keys=new ArrayList<>(expected.keySet());
+        keys.add("unknown");
+        assert b.getAll(keys).size() == NUM;
+        assert b.getAll(Collections.<String>emptyList()).isEmpty();
+    }
+
+    /** Values fetched by getAll() are served from the L1 cache, until putAll() of a different member modifies them */
+    public void testGetAllWithL1Invalidation() throws Exception {
+        destroy();
+        a=create(new Cache<String,String>());
+        b=create(new Cache<String,String>());
+        waitForView(a, b);
+
+        Map<String,String> expected=entries("v1");
+        a.putAll(expected);
+        Util.sleep(500);
+        assert b.getAll(expected.keySet()).equals(expected);
+        long remote_gets=b.getNumRemoteGets();
+        assert b.getAll(expected.keySet()).equals(expected);
+        assert b.getNumRemoteGets() == remote_gets; // all values are served from the L1 cache
+        assert b.getNumL1Hits() >= NUM;
+
+        expected=entries("v2");
+        a.putAll(expected);
+        for(int i=0; i < 20; i++) {
+            if(b.getAll(expected.keySet()).equals(expected))
+                break;
+            Util.sleep(500);
+        }
+        assert b.getAll(expected.keySet()).equals(expected);
+    }
+
+
+    protected static PartitionedHashMap<String,String> create(Cache<String,String> l1_cache) throws Exception {
+        PartitionedHashMap<String,String> map=new PartitionedHashMap<>(PROPS, "PartitionedHashMapTest");
+        map.setL1Invalidation(true);
+        map.setL1Cache(l1_cache);
+        map.setCallTimeout(5000);
+        map.setHashFunction(new PartitionedHashMap.VirtualNodeHashFunction<String>()); // spreads the keys evenly
+        map.start();
+        return map;
+    }
+
+    protected static void waitForView(PartitionedHashMap<?,?> ... maps) {
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(PartitionedHashMap<?,?> map: maps)
+                done=done && map.getView().contains("(" + maps.length + ")");
+            if(done)
+                return;
+            Util.sleep(500);
+        }
+        throw new AssertionError("views did not converge");
+    }
+
+    protected static Map<String,String> entries(String prefix) {
+        Map<String,String> map=new HashMap<>(NUM);
+        for(int i=1; i <= NUM; i++)
+            map.put("key-" + i, prefix + "-" + i);
+        return map;
+    }
+}
@@ -0,0 +1,180 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.locking.LockService;
+import org.jgroups.protocols.PARTITIONED_LOCK;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Tests {@link PARTITIONED_LOCK}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class PartitionedLockTest {
+    protected JChannel    a, b, c, d;
+    protected LockService s1, s2, s3, s4;
+    protected static final int NUM_LOCKS=20;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        s1=new LockService(a);
+        a.connect("PartitionedLockTest");
+        b=createChannel("B");
+        s2=new LockService(b);
+        b.connect("PartitionedLockTest");
+        c=createChannel("C");
+        s3=new LockService(c);
+        c.connect("PartitionedLockTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        Util.close(d, c, b, a);
+    }
+
+
+    /** All members agree on the lock server of a lock, and every member is the lock server of some locks */
+    public void testLockServersAreSpread() {
+        Set<Address> servers=new HashSet<>();
+        for(int i=0; i < 100; i++) {
+            String name="lock-" + i;
+            Address server=locking(a).getLockServer(name);
+            assert server.equals(locking(b).getLockServer(name)) && server.equals(locking(c).getLockServer(name));
+            List<Address> list=locking(a).getLockServers(name);
+            assert list.size() == 2 && !list.get(0).equals(list.get(1)) : "lock server and 1 backup expected: " + list;
+            servers.add(server);
+        }
+        assert servers.size() == 3 : "every member should be a lock server: " + servers;
+    }
+
+    public void testMutualExclusion() throws Exception {
+        for(int i=0; i < NUM_LOCKS; i++) {
+            String name="lock-" + i;
+            Lock lock2=s2.getLock(name), lock1=s1.getLock(name);
+            lock2.lock();
+            try {
+                assert !lock1.tryLock() : name + " is held by B";
+            }
+            finally {
+                lock2.unlock();
+            }
+            assert lock1.tryLock(5000, TimeUnit.MILLISECONDS) : name + " should have been released by B";
+            lock1.unlock();
+        }
+        int total=0;
+        for(int i=0; i < 20 && (total=numServerLocks(a, b, c)) > 0; i++) // the last RELEASE_LOCK is sent asynchronously
+            Util.sleep(100);
+        assert total == 0 : "all server locks should have been removed, but found " + total;
+    }
+
+    /** A lock survives the crash of its lock server, as the backup takes over */
+    public void testFailoverToBackup() throws Exception {
+        String name=lockServedBy(b);
+        Lock lock1=s1.getLock(name), lock3=s3.getLock(name);
+        lock1.lock();
+        Util.close(b);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, c);
+        assert !locking(a).getLockServer(name).equals(b.getAddress());
+
+        assert !lock3.tryLock(500, TimeUnit.MILLISECONDS) : name + " is still held by A";
+        lock1.unlock();
+        assert lock3.tryLock(5000, TimeUnit.MILLISECONDS);
+        lock3.unlock();
+    }
+
+    /** Locks and pending lock requests are handed off to a joining member which becomes their lock server */
+    public void testHandoffOnJoin() throws Exception {
+        final List<Lock> locks=new ArrayList<>(NUM_LOCKS);
+        for(int i=0; i < NUM_LOCKS; i++) {
+            Lock lock=s1.getLock("lock-" + i);
+            lock.lock();
+            locks.add(lock);
+        }
+
+        // B waits for all locks held by A
+        final CountDownLatch acquired=new CountDownLatch(NUM_LOCKS);
+        List<Thread> waiters=new ArrayList<>(NUM_LOCKS);
+        for(int i=0; i < NUM_LOCKS; i++) {
+            final Lock lock=s2.getLock("lock-" + i);
+            Thread waiter=new Thread() {
+                public void run() {
+                    lock.lock();
+                    acquired.countDown();
+                    lock.unlock();
+                }
+            };
+            waiter.start();
+            waiters.add(waiter);
+        }
+        Util.sleep(500);
+        assert acquired.getCount() == NUM_LOCKS;
+
+        d=createChannel("D");
+        s4=new LockService(d);
+        d.connect("PartitionedLockTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+        Util.sleep(500);
+
+        long handoffs=getHandoffs(a) + getHandoffs(b) + getHandoffs(c);
+        System.out.println("D is lock server of " + locking(d).getNumServerLocks() + " locks, handoffs: " + handoffs);
+        assert locking(d).getNumServerLocks() > 0 : "D should be the lock server of some locks";
+        assert handoffs > 0;
+
+        for(int i=0; i < NUM_LOCKS; i++)
+            assert !s4.getLock("lock-" + i).tryLock() : "lock-" + i + " is held by A";
+        assert acquired.getCount() == NUM_LOCKS;
+
+        for(Lock lock: locks)
+            lock.unlock();
+        assert acquired.await(10000, TimeUnit.MILLISECONDS) : acquired.getCount() + " locks were not acquired by B";
+        for(Thread waiter: waiters)
+            waiter.join(5000);
+    }
+
+
+    /** Returns the name of a lock whose lock server is the given channel */
+    protected String lockServedBy(JChannel ch) {
+        for(int i=0;; i++) {
+            String name="lock-" + i;
+            if(locking(ch).isLockServer(name))
+                return name;
+        }
+    }
+
+    protected static int numServerLocks(JChannel ... channels) {
+        int retval=0;
+        for(JChannel ch: channels)
+            retval+=locking(ch).getNumServerLocks();
+        return retval;
+    }
+
+    protected static long getHandoffs(JChannel ch) {
+        return ((Number)Util.getField(Util.getField(PARTITIONED_LOCK.class, "num_handoffs"), locking(ch))).longValue();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack(new PARTITIONED_LOCK());
+        return new JChannel(stack).name(name);
+    }
+
+    protected static PARTITIONED_LOCK locking(JChannel ch) {
+        return (PARTITIONED_LOCK)ch.getProtocolStack().findProtocol(PARTITIONED_LOCK.class);
+    }
+}
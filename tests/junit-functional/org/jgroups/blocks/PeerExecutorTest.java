@@ -0,0 +1,155 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.executor.ExecutionRunner;
+import org.jgroups.blocks.executor.ExecutionService;
+import org.jgroups.protocols.PEER_EXECUTOR;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link PEER_EXECUTOR}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class PeerExecutorTest {
+    protected JChannel           a, b, c;
+    protected ExecutionService   service;
+    protected final List<Thread> runners=new ArrayList<>();
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        c=createChannel("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        service=new ExecutionService(a);
+    }
+
+    @AfterMethod
+    protected void cleanup() throws InterruptedException {
+        for(Thread runner: runners)
+            runner.interrupt();
+        for(Thread runner: runners)
+            runner.join(5000);
+        runners.clear();
+        Util.close(c, b, a);
+    }
+
+
+    /** Tasks submitted faster than they can be run by the submitter are spread over all members */
+    public void testTasksAreSpread() throws Exception {
+        for(JChannel ch: new JChannel[]{a, b, c})
+            startRunners(ch, 2);
+        Util.sleep(500); // wait for the loads to be advertised
+
+        List<Future<String>> futures=new ArrayList<>();
+        for(int i=0; i < 60; i++)
+            futures.add(service.submit(new Sleeper(20)));
+        Set<String> members=new HashSet<>();
+        for(Future<String> future: futures)
+            members.add(future.get(10000, TimeUnit.MILLISECONDS));
+        System.out.println("tasks were run by " + members);
+        assert members.size() == 3 : "all members should have run tasks: " + members;
+        assert get(a, "num_local_tasks") > 0;
+        assert get(a, "num_pushed_tasks") + get(b, "num_stolen_tasks") + get(c, "num_stolen_tasks") > 0;
+    }
+
+    /** A task is run by a local consumer if one is free, without sending any messages */
+    public void testLocalConsumerIsPreferred() throws Exception {
+        for(JChannel ch: new JChannel[]{a, b, c})
+            startRunners(ch, 1);
+        Util.sleep(500);
+
+        PEER_EXECUTOR prot=(PEER_EXECUTOR)a.getProtocolStack().findProtocol(PEER_EXECUTOR.class);
+        for(int i=0; i < 10; i++) {
+            // the consumer of A may not yet be waiting for the next task after it returned the previous result
+            for(int j=0; j < 20 && prot.getFreeConsumers() == 0; j++)
+                Util.sleep(50);
+            assert service.submit(new Sleeper(0)).get(10000, TimeUnit.MILLISECONDS).equals("A");
+        }
+        assert get(a, "num_local_tasks") == 10;
+        assert get(a, "num_batches_sent") == 0;
+    }
+
+    /** Idle members steal the tasks queued at a member without any consumers */
+    public void testStealing() throws Exception {
+        List<Future<String>> futures=new ArrayList<>();
+        for(int i=0; i < 20; i++)
+            futures.add(service.submit(new Sleeper(10)));
+        Util.sleep(200);
+        assert ((PEER_EXECUTOR)a.getProtocolStack().findProtocol(PEER_EXECUTOR.class)).getQueuedTasks() == 20;
+
+        startRunners(b, 2);
+        for(Future<String> future: futures)
+            assert future.get(10000, TimeUnit.MILLISECONDS).equals("B");
+        assert get(b, "num_stolen_tasks") > 0;
+    }
+
+    /** A task run by a member which leaves is run again by a different member */
+    public void testConsumerLeaves() throws Exception {
+        startRunners(b, 1);
+        Util.sleep(500);
+        Future<String> future=service.submit(new Sleeper(2000));
+        Util.sleep(500); // B is running the task
+
+        startRunners(c, 1);
+        Util.close(b);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, c);
+        assert future.get(10000, TimeUnit.MILLISECONDS).equals("C");
+    }
+
+
+    protected void startRunners(JChannel ch, int num) {
+        ExecutionRunner runner=new ExecutionRunner(ch);
+        for(int i=0; i < num; i++) {
+            Thread thread=new Thread(runner, ch.getName());
+            runners.add(thread);
+            thread.start();
+        }
+    }
+
+    protected static long get(JChannel ch, String field) {
+        PEER_EXECUTOR prot=(PEER_EXECUTOR)ch.getProtocolStack().findProtocol(PEER_EXECUTOR.class);
+        return ((Number)Util.getField(Util.getField(PEER_EXECUTOR.class, field), prot)).longValue();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack(new PEER_EXECUTOR());
+        JChannel ch=new JChannel(stack).name(name);
+        ch.connect("PeerExecutorTest");
+        return ch;
+    }
+
+
+    /** Sleeps for the given time and returns the name of the member which ran it */
+    protected static class Sleeper implements Callable<String>, Serializable {
+        private static final long serialVersionUID=-1386278211093155458L;
+        protected final long sleep_time;
+
+        public Sleeper(long sleep_time) {
+            this.sleep_time=sleep_time;
+        }
+
+        public String call() throws Exception {
+            if(sleep_time > 0)
+                Thread.sleep(sleep_time);
+            String name=Thread.currentThread().getName(); // "<member>- Task Runner"
+            return name.substring(0, name.indexOf('-'));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ObjectStreamClass;
+import java.util.*;
+
+/**
+ * Tests the bulk operations of {@link ReplCache}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED},singleThreaded=true)
+public class ReplCacheTest {
+    protected ReplCache<String,String> a, b;
+    protected static final String PROPS="SHARED_LOOPBACK:SHARED_LOOPBACK_PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS:FRAG2";
+    protected static final int    NUM=100;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=create();
+        b=create();
+        for(int i=0; i < 20 && !(a.getView().contains("(2)") && b.getView().contains("(2)")); i++)
+            Util.sleep(500);
+        assert a.getView().contains("(2)") && b.getView().contains("(2)");
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        b.stop();
+        a.stop();
+    }
+
+
+    /** The default is the hash function of previous versions, so that members of a mixed-version cluster agree on owners */
+    public void testDefaultHashFunction() throws Exception {
+        ReplCache<String,String> cache=new ReplCache<>(PROPS, "ReplCacheTest-default");
+        cache.start();
+        try {
+            assert cache.getHashFunction() instanceof ReplCache.ConsistentHashFunction : cache.getHashFunction();
+        }
+        finally {
+            cache.stop();
+        }
+    }
+
+
+    /** Values are serialized with the fields and serialVersionUID of previous versions, so persisted values can be read */
+    public void testValueSerializationFormat() throws Exception {
+        ObjectStreamClass desc=ObjectStreamClass.lookup(ReplCache.Value.class);
+        assert desc.getSerialVersionUID() == -2892941069742740027L;
+        assert desc.getField("val").getType() == Object.class;
+        assert desc.getField("replication_count").getType() == short.class;
+
+        ReplCache.Value<String> val=new ReplCache.Value<>("hello", (short)2);
+        ReplCache.Value<?> copy=(ReplCache.Value<?>)Util.objectFromByteBuffer(Util.objectToByteBuffer(val));
+        assert copy.getVal().equals("hello") && copy.getReplicationCount() == 2;
+    }
+
+
+    /** With a replication count of 1, every key is stored only by the member it hashes to */
+    public void testPutAllAndGetAll() {
+        Map<String,String> expected=entries("value");
+        a.putAll(expected, (short)1, 0, true);
+        assert a.getL2Cache().getSize() > 0 && b.getL2Cache().getSize() > 0;
+        assert a.getL2Cache().getSize() + b.getL2Cache().getSize() == NUM;
+        for(ReplCache<String,String> cache: Arrays.asList(a, b)) {
+            Map<String,String> values=cache.getAll(expected.keySet());
+            assert values.equals(expected) : "values of " + cache.getLocalAddress() + ": " + values;
+        }
+
+        List<String> keys=new ArrayList<>(expected.keySet());
+        keys.add("unknown");
+        assert b.getAll(keys).size() == NUM;
+        assert b.getAll(Collections.<String>emptyList()).isEmpty();
+    }
+
+    /** With a replication count of -1, all keys are stored everywhere and getAll() doesn't need to contact anyone */
+    public void testPutAllReplicatedEverywhere() {
+        Map<String,String> expected=entries("value");
+        b.putAll(expected, (short)-1, 0, true);
+        assert a.getL2Cache().getSize() == NUM && b.getL2Cache().getSize() == NUM;
+        assert a.getAll(expected.keySet()).equals(expected);
+    }
+
+
+    protected static ReplCache<String,String> create() throws Exception {
+        ReplCache<String,String> cache=new ReplCache<>(PROPS, "ReplCacheTest");
+        cache.setCallTimeout(5000);
+        cache.setHashFunctionFactory(new ReplCache.HashFunctionFactory<String>() { // spreads the keys evenly
+            public ReplCache.HashFunction<String> create() {return new ReplCache.VirtualNodeHashFunction<>();}
+        });
+        cache.start();
+        return cache;
+    }
+
+    protected static Map<String,String> entries(String prefix) {
+        Map<String,String> map=new HashMap<>(NUM);
+        for(int i=1; i <= NUM; i++)
+            map.put("key-" + i, prefix + "-" + i);
+        return map;
+    }
+}
@@ -0,0 +1,136 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.protocols.pbcast.STATE;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/**
+ * Tests {@link ReplicatedTree}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ReplicatedTreeTest {
+    protected static final Address A=Util.createRandomAddress("A");
+
+    /** The joiner gets nodeAdded() notifications for all nodes of the transferred tree */
+    public void testStateTransferNotifiesNodesCreated() throws Exception {
+        ReplicatedTree provider=new ReplicatedTree(), joiner=new ReplicatedTree();
+        provider.put("/a/b", "name", "Bela");
+        provider.put("/a/c", null);
+        MyListener listener=new MyListener();
+        joiner.addReplicatedTreeListener(listener);
+        transferState(provider, joiner);
+        System.out.println("added=" + listener.added);
+        assert listener.added.equals(Arrays.asList("/", "/a", "/a/b", "/a/c"));
+        assert listener.modified.isEmpty();
+        assert "Bela".equals(joiner.get("/a/b", "name"));
+    }
+
+    /** Messages logged by the joiner which are already contained in the state are not applied again */
+    public void testCatchUpSkipsMessagesContainedInState() throws Exception {
+        ReplicatedTree provider=new ReplicatedTree(), joiner=new ReplicatedTree();
+        MyListener listener=new MyListener();
+        joiner.addReplicatedTreeListener(listener);
+        joiner.startCatchUp();
+        for(ReplicatedTree tree: Arrays.asList(provider, joiner)) {
+            tree.receive(message(1, ReplicatedTree.Op.put("/a", Collections.<String,Object>singletonMap("x", 1))));
+            tree.receive(message(2, ReplicatedTree.Op.removeKey("/a", "x"), ReplicatedTree.Op.put("/b", null)));
+        }
+        Message msg=message(3, ReplicatedTree.Op.put("/a", Collections.<String,Object>singletonMap("x", 3)));
+        joiner.receive(msg); // received after the state has been taken
+        transferState(provider, joiner);
+        provider.receive(msg);
+
+        System.out.println("added=" + listener.added + ", modified=" + listener.modified);
+        assert listener.added.equals(Arrays.asList("/", "/a", "/b"));
+        assert listener.modified.equals(Collections.singletonList("/a"));
+        assert Integer.valueOf(3).equals(joiner.get("/a", "x"));
+        assert joiner.exists("/b");
+        assert joiner.applied_seqnos.equals(provider.applied_seqnos);
+    }
+
+    /** A put() is replicated even when the local copy already has the value, and fires nodeModified() everywhere */
+    public void testPutEqualToLocalCopyIsReplicated() throws Exception {
+        JChannel a=create("A"), b=create("B");
+        try {
+            a.connect("ReplicatedTreeTest");
+            ReplicatedTree t1=new ReplicatedTree(a);
+            b.connect("ReplicatedTreeTest");
+            ReplicatedTree t2=new ReplicatedTree(b);
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            t1.put("/a", "x", 1);
+            waitFor(t2, "/a", "x", 1);
+
+            t1.setRemoteCalls(false);
+            t1.put("/a", "x", 2); // local copy only
+            t1.setRemoteCalls(true);
+            MyListener l1=new MyListener(), l2=new MyListener();
+            t1.addReplicatedTreeListener(l1);
+            t2.addReplicatedTreeListener(l2);
+
+            t1.put("/a", "x", 2);
+            waitFor(t2, "/a", "x", 2);
+            HashMap<String,Object> data=new HashMap<>();
+            data.put("x", 2);
+            t1.put("/a", data); // no-op
+            t2.put("/a", "x", 2); // no-op
+            for(int i=0; i < 20 && (l1.modified.size() < 3 || l2.modified.size() < 3); i++)
+                Util.sleep(100);
+            System.out.println("modified: " + l1.modified + ", " + l2.modified);
+            assert l1.modified.equals(Arrays.asList("/a", "/a", "/a"));
+            assert l2.modified.equals(Arrays.asList("/a", "/a", "/a"));
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static void waitFor(ReplicatedTree tree, String fqn, String key, Object value) {
+        for(int i=0; i < 20 && !value.equals(tree.get(fqn, key)); i++)
+            Util.sleep(100);
+        assert value.equals(tree.get(fqn, key)) : "value of " + fqn + "/" + key + ": " + tree.get(fqn, key);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(), new NAKACK2(), new UNICAST3(),
+                            new STABLE(), new GMS(), new STATE()).name(name);
+    }
+
+    protected static void transferState(ReplicatedTree provider, ReplicatedTree joiner) throws Exception {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        provider.getState(out);
+        joiner.setState(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    protected static Message message(long seqno, ReplicatedTree.Op ... ops) throws Exception {
+        return new Message(null, ReplicatedTree.writeOps(seqno, Arrays.asList(ops))).src(A);
+    }
+
+
+    protected static class MyListener implements ReplicatedTree.ReplicatedTreeListener {
+        protected final List<String> added=new ArrayList<>(), modified=new ArrayList<>();
+
+        public void nodeAdded(String fqn)    {added.add(fqn);}
+        public void nodeRemoved(String fqn)  {}
+        public void nodeModified(String fqn) {modified.add(fqn);}
+        public void viewChange(View new_view) {}
+    }
+}
@@ -18,12 +18,14 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of tests to test the RpcDispatcher.
@@ -170,6 +172,123 @@ public class RpcDispatcherTest {
     }
 
 
+    public void testBatch() throws Exception {
+        List<MethodCall> calls=new ArrayList<>();
+        calls.add(new MethodCall("foo", null, null));
+        calls.add(new MethodCall("throwException", null, null));
+        calls.add(new MethodCall("foo", null, null));
+        List<RspList<Object>> rsps=disp1.callRemoteMethodsBatch(null, calls, new RequestOptions(ResponseMode.GET_ALL, 5000));
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 3;
+        for(int i: new int[]{0, 2}) {
+            RspList<Object> list=rsps.get(i);
+            assert list.size() == 3;
+            assert list.getValue(a.getAddress()).equals(1);
+            assert list.getValue(b.getAddress()).equals(2);
+            assert list.getValue(c.getAddress()).equals(3);
+        }
+        for(Rsp<Object> rsp: rsps.get(1).values())
+            assert rsp.getException() != null && rsp.getValue() == null;
+    }
+
+
+    public void testBatchWithNullOptions() throws Exception {
+        List<MethodCall> calls=Arrays.asList(new MethodCall("foo", null, null), new MethodCall("foo", null, null));
+        List<RspList<Object>> rsps=disp1.callRemoteMethodsBatch(null, calls, null);
+        assert rsps.size() == 2;
+        for(RspList<Object> list: rsps)
+            assert list.size() == 3 && list.getValue(c.getAddress()).equals(3);
+    }
+
+
+    /** Tests that a batch sent to a subset of the members is anycast to that subset only */
+    public void testBatchToSubset() throws Exception {
+        List<MethodCall> calls=Arrays.asList(new MethodCall("foo", null, null), new MethodCall("foo", null, null));
+        List<Address> dests=Arrays.asList(a.getAddress(), b.getAddress());
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_ALL, 5000);
+        List<RspList<Object>> rsps=disp1.callRemoteMethodsBatch(dests, calls, opts);
+        System.out.println("rsps:\n" + rsps);
+        assert !opts.getAnycasting() : "options passed to the call must not be modified";
+        assert rsps.size() == 2;
+        for(RspList<Object> list: rsps)
+            assert list.size() == 2 && list.getValue(a.getAddress()).equals(1) && list.getValue(b.getAddress()).equals(2);
+
+        Util.sleep(500); // a batch multicast to all members would have been invoked on C, too
+        ServerObject server_obj=(ServerObject)disp3.getServerObject();
+        assert server_obj.num_foo_calls.get() == 0 : "C invoked " + server_obj.num_foo_calls + " calls";
+        assert ((ServerObject)disp2.getServerObject()).num_foo_calls.get() == 2;
+    }
+
+
+    public void testBatchWithResponseFilter() throws Exception {
+        List<MethodCall> calls=Arrays.asList(new MethodCall("foo", null, null), new MethodCall("foo", null, null));
+        RspFilter filter=new RspFilter() {
+            public boolean isAcceptable(Object response, Address sender) {return true;}
+            public boolean needMoreResponses()                           {return true;}
+        };
+        try {
+            disp1.callRemoteMethodsBatch(null, calls, new RequestOptions(ResponseMode.GET_ALL, 5000, false, filter));
+            assert false : "response filters should be rejected";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+
+    public void testCoalescedReplies() throws Exception {
+        disp2.coalesceReplies(true);
+        disp3.coalesceReplies(true);
+        List<Future<RspList<Object>>> futures=new ArrayList<>();
+        for(int i=0; i < 10; i++)
+            futures.add(disp1.<Object>callRemoteMethodsWithFuture(null, new MethodCall("foo", null, null),
+                                                                  new RequestOptions(ResponseMode.GET_ALL, 5000)));
+        for(Future<RspList<Object>> future: futures) {
+            RspList<Object> rsps=future.get(10, TimeUnit.SECONDS);
+            assert rsps.size() == 3;
+            assert rsps.getValue(b.getAddress()).equals(2);
+            assert rsps.getValue(c.getAddress()).equals(3);
+        }
+    }
+
+
+    /**
+     * The bulk category executes only 1 request at a time, so 3 sleep() calls are executed one after the other,
+     * while calls of foo() in the high-priority category are executed right away
+     */
+    public void testDispatchPool() throws Exception {
+        DispatchPool pool=new DispatchPool(2).addCategory("bulk", 0, 1, 10).addCategory("fast", 10, 0, 0)
+          .mapMethod("sleep", "bulk").mapMethod("foo", "fast");
+        disp2.dispatchPool(pool);
+        try {
+            MethodCall sleep=new MethodCall("sleep", new Object[]{500L}, new Class[]{long.class});
+            List<Future<Long>> futures=new ArrayList<>();
+            for(int i=0; i < 3; i++)
+                futures.add(disp1.<Long>callRemoteMethodWithFuture(b.getAddress(), sleep, new RequestOptions(ResponseMode.GET_ALL, 5000)));
+
+            long start=System.currentTimeMillis();
+            Object rsp=disp1.callRemoteMethod(b.getAddress(), "foo", null, null, new RequestOptions(ResponseMode.GET_ALL, 5000));
+            long time=System.currentTimeMillis() - start;
+            System.out.println("foo() returned " + rsp + " in " + time + " ms\n" + pool.printStats());
+            assert rsp.equals(2);
+            assert time < 1000 : "foo() should not have been blocked by the sleep() calls, but took " + time + " ms";
+
+            for(Future<Long> future: futures)
+                future.get(5, TimeUnit.SECONDS);
+            DispatchPool.Category bulk=pool.category("bulk");
+            for(int i=0; i < 20 && bulk.numCompleted() < 3; i++) // stats are updated after the response has been sent
+                Util.sleep(50);
+            System.out.println(pool.printStats());
+            assert bulk.numCompleted() == 3 && pool.category("fast").numCompleted() == 1;
+            assert bulk.avgServiceTime() >= 400 : "avg service time: " + bulk.avgServiceTime();
+            assert bulk.avgWaitTime() > 0;
+            assert pool.getQueueSize() == 0;
+        }
+        finally {
+            pool.stop();
+        }
+    }
+
     public void testUnicastException()  {
         try {
             disp1.callRemoteMethod(b.getAddress(), "throwException", null, null, new RequestOptions(ResponseMode.GET_ALL, 5000));
@@ -281,6 +400,116 @@ public class RpcDispatcherTest {
     }
 
 
+    /** Nobody blocks on the future, so the correlator needs to expire the request when the timeout elapses */
+    public void testFutureExpiration() throws Exception {
+        MyFutureListener<RspList<Long>> listener=new MyFutureListener<>();
+        Future<RspList<Long>> future=disp1.callRemoteMethodsWithFuture(null, new MethodCall("sleep", new Object[]{3000L}, new Class[]{long.class}),
+                                                                       new RequestOptions(ResponseMode.GET_ALL, 500), listener);
+        for(int i=0; i < 20 && !listener.isDone(); i++)
+            Util.sleep(100);
+        assert listener.isDone() && future.isDone();
+        RspList<Long> rsps=future.get();
+        System.out.println("responses are:\n" + rsps);
+        assert rsps.numReceived() == 0;
+        assert disp1.corr.numPendingRequests() == 0 : "request table should be empty: " + disp1.corr.requests;
+    }
+
+    /** A caller blocking on the future with a longer timeout than that of the request gets all responses */
+    public void testFutureGetWithLongerTimeout() throws Exception {
+        Future<RspList<Long>> future=disp1.callRemoteMethodsWithFuture(null, new MethodCall("sleep", new Object[]{1000L}, new Class[]{long.class}),
+                                                                       new RequestOptions(ResponseMode.GET_ALL, 200));
+        RspList<Long> rsps=future.get(10000, TimeUnit.MILLISECONDS);
+        System.out.println("responses are:\n" + rsps);
+        assert rsps.numReceived() == 3;
+        assert disp1.corr.numPendingRequests() == 0 : "request table should be empty: " + disp1.corr.requests;
+    }
+
+    /** The request's timeout elapsed while a caller was blocked in get(): the request expires when get() times out */
+    public void testFutureExpirationAfterGet() throws Exception {
+        Future<RspList<Long>> future=disp1.callRemoteMethodsWithFuture(null, new MethodCall("sleep", new Object[]{3000L}, new Class[]{long.class}),
+                                                                       new RequestOptions(ResponseMode.GET_ALL, 200));
+        try {
+            future.get(500, TimeUnit.MILLISECONDS);
+            assert false : "get() should have thrown a TimeoutException";
+        }
+        catch(TimeoutException ex) {
+            System.out.println("caught TimeoutException as expected");
+        }
+        assert future.isDone();
+        assert disp1.corr.numPendingRequests() == 0 : "request table should be empty: " + disp1.corr.requests;
+    }
+
+    public void testStreaming() throws Exception {
+        final List<Rsp<Integer>> list=new ArrayList<>();
+        Future<RspList<Integer>> future=disp1.callRemoteMethodsStreaming(null, new MethodCall("foo", null, null),
+                                                                          new RequestOptions(ResponseMode.GET_ALL, 5000),
+                                                                          new RspHandler<Integer>() {
+                                                                              public synchronized boolean handle(Rsp<Integer> rsp) {
+                                                                                  list.add(rsp);
+                                                                                  return true;
+                                                                              }
+                                                                          });
+        RspList<Integer> rsps=future.get(10, TimeUnit.SECONDS);
+        System.out.println("responses are:\n" + rsps);
+        assert rsps.numReceived() == 3;
+        synchronized(list) {
+            assert list.size() == 3 : "handler should have been invoked 3 times, but was invoked " + list.size() + " times";
+        }
+    }
+
+    /** The handler terminates the call after the first response; the request needs to be removed right away */
+    public void testStreamingWithEarlyCompletion() throws Exception {
+        Future<RspList<Integer>> future=disp1.callRemoteMethodsStreaming(null, new MethodCall("foo", null, null),
+                                                                          new RequestOptions(ResponseMode.GET_ALL, 5000),
+                                                                          new RspHandler<Integer>() {
+                                                                              public boolean handle(Rsp<Integer> rsp) {
+                                                                                  return false;
+                                                                              }
+                                                                          });
+        RspList<Integer> rsps=future.get(10, TimeUnit.SECONDS);
+        System.out.println("responses are:\n" + rsps);
+        assert future.isDone();
+        assert rsps.numReceived() >= 1;
+        assert disp1.corr.requests.isEmpty() : "request table should be empty: " + disp1.corr.requests;
+    }
+
+    public void testRspStream() throws Exception {
+        RspStream<Integer> stream=disp1.callRemoteMethodsStreaming(null, new MethodCall("foo", null, null),
+                                                                   new RequestOptions(ResponseMode.GET_ALL, 5000), 1);
+        int count=0, sum=0;
+        for(Rsp<Integer> rsp: stream) {
+            System.out.println("rsp = " + rsp);
+            assert rsp.wasReceived();
+            sum+=rsp.getValue();
+            count++;
+        }
+        assert !stream.timedOut();
+        assert count == 3 && sum == 6 : "count=" + count + ", sum=" + sum;
+    }
+
+    /** A consumer which doesn't fetch responses must not block the delivery of other messages from the same senders */
+    public void testRspStreamWithSlowConsumer() throws Exception {
+        RspStream<Integer> stream=disp1.callRemoteMethodsStreaming(null, new MethodCall("foo", null, null),
+                                                                   new RequestOptions(ResponseMode.GET_ALL, 5000), 1);
+        RspList<Object> rsps=disp1.callRemoteMethods(null, new MethodCall("foo", null, null),
+                                                     new RequestOptions(ResponseMode.GET_ALL, 5000));
+        assert rsps.numReceived() == 3 : "responses: " + rsps;
+        int count=0;
+        for(Rsp<Integer> rsp: stream)
+            if(rsp.wasReceived())
+                count++;
+        assert count == 3;
+    }
+
+    public void testRspStreamClose() throws Exception {
+        RspStream<Long> stream=disp1.callRemoteMethodsStreaming(null, new MethodCall("sleep", new Object[]{2000L}, new Class[]{long.class}),
+                                                                new RequestOptions(ResponseMode.GET_ALL, 5000), 10);
+        stream.close();
+        assert !stream.hasNext();
+        assert stream.future().isDone();
+        assert disp1.corr.requests.isEmpty() : "request table should be empty: " + disp1.corr.requests;
+    }
+
     public void testFuture() throws Exception {
         MethodCall sleep=new MethodCall("sleep", new Object[]{5000L}, new Class[]{long.class});
         Future<RspList<Object>> future=disp1.callRemoteMethodsWithFuture(null, sleep, new RequestOptions(ResponseMode.GET_ALL, 5000L, false, null));
@@ -673,10 +902,11 @@ public class RpcDispatcherTest {
      */
     private static class ServerObject {
         int i;
+        final AtomicInteger num_foo_calls=new AtomicInteger(0);
         public ServerObject(int i) {
             this.i=i;
         }
-        public int foo() {return i;}
+        public int foo() {num_foo_calls.incrementAndGet(); return i;}
         
         public static long sleep(long timeout) {
             // System.out.println("sleep()");
@@ -0,0 +1,263 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests {@link COMPRESS} and the {@link Compressor} implementations
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class COMPRESS_Test {
+    protected static final Random RANDOM=new Random();
+
+    @DataProvider
+    static Object[][] compressors() {
+        return new Object[][] {
+          {"deflate"},
+          {"lz4"}
+        };
+    }
+
+
+    public void testLZ4RoundTrip() throws Exception {
+        LZ4Compressor comp=new LZ4Compressor();
+        for(int size: new int[]{0, 1, 4, 12, 13, 14, 100, 1000, 70000, 200000}) {
+            check(comp, random(size), false);
+            check(comp, repetitive(size), true);
+            check(comp, text(size), true);
+        }
+        byte[] runs=new byte[10000]; // long runs of the same byte: overlapping matches and long lengths
+        Arrays.fill(runs, 5000, 10000, (byte)1);
+        check(comp, runs, true);
+    }
+
+    public void testLZ4Compresses() {
+        byte[] data=text(10000);
+        byte[] compressed=new byte[data.length];
+        int size=new LZ4Compressor().compress(data, 0, data.length, compressed, 0, data.length);
+        assert size > 0 && size < data.length / 2 : "compressed size: " + size;
+    }
+
+    public void testLZ4WithOffset() throws Exception {
+        byte[] data=text(2000), src=new byte[data.length + 20], dest=new byte[data.length * 2];
+        System.arraycopy(data, 0, src, 10, data.length);
+        LZ4Compressor comp=new LZ4Compressor();
+        int size=comp.compress(src, 10, data.length, dest, 5, dest.length - 5);
+        byte[] uncompressed=new byte[data.length + 3];
+        comp.uncompress(dest, 5, size, uncompressed, 3, data.length);
+        assert Arrays.equals(Arrays.copyOfRange(uncompressed, 3, uncompressed.length), data);
+    }
+
+    public void testLZ4MaxLength() {
+        byte[] data=random(1000), dest=new byte[2000];
+        assert new LZ4Compressor().compress(data, 0, data.length, dest, 0, data.length) == -1;
+    }
+
+    public void testLZ4CorruptInput() {
+        byte[] data=text(1000), compressed=new byte[1000];
+        LZ4Compressor comp=new LZ4Compressor();
+        int size=comp.compress(data, 0, data.length, compressed, 0, compressed.length);
+        try {
+            comp.uncompress(compressed, 0, size - 1, new byte[data.length], 0, data.length);
+            assert false : "truncated input should have been detected";
+        }
+        catch(Exception ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    /** Frames cut inside a length or an offset are rejected, and nothing outside of the given range is read */
+    public void testLZ4TruncatedFrame() throws Exception {
+        byte[][] frames={
+          {(byte)0xF0},                   // literal length continues in the next byte
+          {(byte)0x10, 'a', 1},           // only 1 byte of the match offset
+          {(byte)0x1F, 'a', 1, 0}         // match length continues in the next byte
+        };
+        LZ4Compressor comp=new LZ4Compressor();
+        for(byte[] frame: frames) {
+            byte[] src=new byte[frame.length + 10]; // the bytes after the frame would form a valid continuation
+            Arrays.fill(src, (byte)1);
+            System.arraycopy(frame, 0, src, 0, frame.length);
+            try {
+                comp.uncompress(src, 0, frame.length, new byte[1000], 0, 1000);
+                assert false : "truncated frame " + Arrays.toString(frame) + " should have been rejected";
+            }
+            catch(IllegalStateException ex) {
+                System.out.println("caught exception as expected: " + ex);
+            }
+            try {
+                comp.uncompress(frame, 0, frame.length, new byte[1000], 0, 1000);
+                assert false : "truncated frame " + Arrays.toString(frame) + " should have been rejected";
+            }
+            catch(IllegalStateException ex) {
+            }
+        }
+    }
+
+    public void testDeflateRoundTrip() throws Exception {
+        DeflateCompressor comp=new DeflateCompressor(1, null);
+        for(int size: new int[]{1, 100, 70000}) {
+            check(comp, random(size), false);
+            check(comp, text(size), true);
+        }
+        comp.destroy();
+    }
+
+    public void testDictionary() throws Exception {
+        List<byte[]> samples=new ArrayList<>();
+        for(int i=0; i < 100; i++)
+            samples.add(record(i));
+        byte[] dictionary=DeflateCompressor.trainDictionary(samples, 4096);
+        assert dictionary.length > 0 && dictionary.length <= 4096;
+
+        DeflateCompressor plain=new DeflateCompressor(9, null), with_dict=new DeflateCompressor(9, dictionary);
+        byte[] data=record(1000), buf=new byte[data.length * 2];
+        int plain_size=plain.compress(data, 0, data.length, buf, 0, buf.length);
+        int dict_size=check(with_dict, data, true);
+        System.out.printf("%d bytes: %d bytes without dictionary, %d bytes with dictionary\n", data.length, plain_size, dict_size);
+        assert dict_size < plain_size;
+
+        try {
+            plain.uncompress(buf, 0, with_dict.compress(data, 0, data.length, buf, 0, buf.length),
+                             new byte[data.length], 0, data.length);
+            assert false : "uncompressing without the dictionary should fail";
+        }
+        catch(Exception ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+        plain.destroy();
+        with_dict.destroy();
+    }
+
+    @Test(dataProvider="compressors")
+    public void testProtocol(String compressor) throws Exception {
+        COMPRESS sender=create(compressor), receiver=create(compressor);
+        Observer observer=new Observer();
+        sender.setDownProtocol(observer);
+        receiver.setUpProtocol(observer);
+
+        byte[] data=text(5000);
+        sender.down(new Event(Event.MSG, new Message(null, data)));
+        sender.down(new Event(Event.MSG, new Message(null, "small")));
+        Message compressed=observer.down.get(0);
+        assert compressed.getHeader(sender.getId()) != null && compressed.getLength() < data.length;
+        assert observer.down.get(1).getHeader(sender.getId()) == null : "messages below min_size are not compressed";
+
+        receiver.up(new Event(Event.MSG, compressed));
+        assert Arrays.equals(observer.up.get(0).getBuffer(), data);
+
+        MessageBatch batch=new MessageBatch(observer.down);
+        receiver.up(batch);
+        Message[] msgs=batch.array();
+        assert Arrays.equals(msgs[0].getBuffer(), data);
+        assert msgs[1].getObject().equals("small");
+        sender.destroy();
+        receiver.destroy();
+    }
+
+
+    /** At most pool_size idle compressors are kept, the others are destroyed when they're returned */
+    public void testPoolIsBounded() throws Exception {
+        COMPRESS prot=new COMPRESS().setPoolSize(2);
+        prot.init();
+        List<COMPRESS.Context> contexts=new ArrayList<>();
+        for(int i=0; i < 5; i++)
+            contexts.add(prot.acquire());
+        for(COMPRESS.Context ctx: contexts)
+            prot.release(ctx);
+        assert prot.getIdleCompressors() == 2;
+
+        byte[] data=text(1000), buf=new byte[data.length];
+        for(COMPRESS.Context ctx: contexts.subList(2, contexts.size())) {
+            try {
+                ctx.compressor.compress(data, 0, data.length, buf, 0, buf.length);
+                assert false : "the compressor should have been destroyed";
+            }
+            catch(Exception expected) {
+            }
+        }
+        COMPRESS.Context ctx=prot.acquire();
+        assert contexts.subList(0, 2).contains(ctx) : "an idle compressor should have been reused";
+        prot.release(ctx);
+        prot.destroy();
+        assert prot.getIdleCompressors() == 0;
+    }
+
+
+    protected static int check(Compressor comp, byte[] data, boolean compressible) throws Exception {
+        byte[] compressed=new byte[data.length * 2 + 100];
+        int size=comp.compress(data, 0, data.length, compressed, 0, compressed.length);
+        assert size >= 0;
+        if(compressible && data.length > 100)
+            assert size < data.length : String.format("%d bytes compressed to %d bytes", data.length, size);
+        byte[] uncompressed=new byte[data.length];
+        assert comp.uncompress(compressed, 0, size, uncompressed, 0, data.length) == data.length;
+        assert Arrays.equals(uncompressed, data);
+        return size;
+    }
+
+    protected static COMPRESS create(String compressor) throws Exception {
+        COMPRESS prot=new COMPRESS().setCompressor(compressor).setMinSize(100);
+        prot.init();
+        return prot;
+    }
+
+    protected static byte[] random(int size) {
+        byte[] retval=new byte[size];
+        RANDOM.nextBytes(retval);
+        return retval;
+    }
+
+    protected static byte[] repetitive(int size) {
+        byte[] retval=new byte[size];
+        for(int i=0; i < size; i++)
+            retval[i]=(byte)(i % 7);
+        return retval;
+    }
+
+    protected static byte[] text(int size) {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; sb.length() < size; i++)
+            sb.append("key-").append(RANDOM.nextInt(1000)).append("=value-").append(i % 13).append(", ");
+        return Arrays.copyOf(sb.toString().getBytes(), size);
+    }
+
+    /** A small message, typical for a given application */
+    protected static byte[] record(int id) {
+        return String.format("{\"type\":\"org.example.session.SessionUpdate\",\"id\":%d,\"owner\":\"node-%d\"," +
+                               "\"attributes\":{\"lastAccessed\":%d,\"maxInactiveInterval\":1800}}",
+                             id, id % 5, 1400000000000L + id * 1000).getBytes();
+    }
+
+
+    protected static class Observer extends Protocol {
+        protected final List<Message> down=new ArrayList<>(), up=new ArrayList<>();
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                down.add((Message)evt.getArg());
+            return null;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                up.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+        }
+    }
+}
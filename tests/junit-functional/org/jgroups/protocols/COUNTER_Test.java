@@ -0,0 +1,165 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.atomic.Counter;
+import org.jgroups.blocks.atomic.CounterService;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests value reservation and update coalescing of {@link COUNTER}. A is the coordinator, so B's updates are sent to A
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class COUNTER_Test {
+    protected JChannel       a, b;
+    protected CounterService s1, s2;
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=create("A");
+        a.connect("COUNTER_Test");
+        b=create("B");
+        b.connect("COUNTER_Test");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        s1=new CounterService(a);
+        s2=new CounterService(b);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(b, a);
+    }
+
+
+    /** A reserving counter contacts the coordinator once per range; its values are unique across members */
+    public void testReservation() {
+        Counter c1=s1.getOrCreateCounter("id", 0, 10), c2=s2.getOrCreateCounter("id", 0, 10);
+        long prev=0;
+        for(int i=0; i < 25; i++) {
+            long val=c2.incrementAndGet();
+            assert val > prev;
+            prev=val;
+        }
+        assert prev == 25;
+        COUNTER.CounterStats stats=counter(b).getStats("id");
+        assert stats.num_ops.get() == 25;
+        assert stats.num_reservations.get() == 3 && stats.num_requests.get() == 3;
+        assert c1.get() == 30; // the coordinator has handed out 3 ranges
+
+        Set<Long> values=new HashSet<>();
+        for(int i=0; i < 50; i++) {
+            assert values.add(c1.incrementAndGet());
+            assert values.add(c2.incrementAndGet());
+        }
+        for(long val=prev + 1; val <= 25 + 100; val++) // no value is lost while there are no view changes
+            assert values.contains(val) : "missing " + val;
+    }
+
+    /** set() and compareAndSet() drop the reserved range, so values are handed out relative to the new value */
+    public void testReservationAfterSet() {
+        Counter c=s2.getOrCreateCounter("id", 0, 10);
+        assert c.incrementAndGet() == 1;
+        c.set(100);
+        assert c.incrementAndGet() == 101;
+        assert c.compareAndSet(110, 200);
+        assert c.incrementAndGet() == 201;
+        assert c.addAndGet(20) == 230 : "deltas larger than the range are added to the value at the coordinator";
+    }
+
+    /** A reserving counter cannot be decremented, as the coordinator would hand out reserved values again */
+    public void testReservationRejectsNegativeDelta() {
+        Counter c=s2.getOrCreateCounter("id", 0, 10);
+        assert c.incrementAndGet() == 1;
+        try {
+            c.addAndGet(-5);
+            assert false : "a negative delta should have been rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+        try {
+            c.decrementAndGet();
+            assert false : "decrementAndGet() should have been rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+        assert c.get() == 10 : "the counter must not have been changed: " + c.get();
+        for(int i=2; i <= 10; i++)
+            assert c.incrementAndGet() == i;
+        assert c.incrementAndGet() == 11;
+    }
+
+    /** Coalescing is off by default: every update is a separate request to the coordinator */
+    public void testNoCoalescingByDefault() throws Exception {
+        assert !counter(a).getCoalesceUpdates() && !counter(b).getCoalesceUpdates();
+        Set<Long> values=incrementConcurrently(s2.getOrCreateCounter("counter", 0), 10, 50);
+        assert values.size() == 500;
+        COUNTER.CounterStats stats=counter(b).getStats("counter");
+        assert stats.num_requests.get() == 500;
+        assert counter(b).num_coalesced_updates.get() == 0;
+    }
+
+    /** Concurrent updates are coalesced; every caller still gets a unique value, as if the updates had been serialized */
+    public void testCoalescing() throws Exception {
+        counter(b).setCoalesceUpdates(true);
+        Counter c=s2.getOrCreateCounter("counter", 0);
+        Set<Long> values=incrementConcurrently(c, 10, 50);
+        for(long val=1; val <= 500; val++)
+            assert values.contains(val) : "missing " + val;
+        long requests=counter(b).getStats("counter").num_requests.get(), coalesced=counter(b).num_coalesced_updates.get();
+        System.out.println("requests=" + requests + ", coalesced=" + coalesced);
+        assert requests + coalesced == 500;
+        assert c.get() == 500 && s1.getOrCreateCounter("counter", 0).get() == 500;
+    }
+
+
+    protected static Set<Long> incrementConcurrently(final Counter counter, int num_threads, final int num_incrs) throws Exception {
+        final Set<Long> values=Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[num_threads];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < num_incrs; j++)
+                            values.add(counter.incrementAndGet());
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert values.size() == num_threads * num_incrs : "values: " + values.size();
+        return values;
+    }
+
+    protected static COUNTER counter(JChannel ch) {
+        return (COUNTER)ch.getProtocolStack().findProtocol(COUNTER.class);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS(),
+                            new COUNTER()).name(name);
+    }
+}
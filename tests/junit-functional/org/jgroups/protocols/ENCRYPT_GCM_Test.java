@@ -0,0 +1,204 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link ENCRYPT_GCM}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ENCRYPT_GCM_Test {
+    protected static final short   TP_ID=ClassConfigurator.getProtocolId(UDP.class);
+    protected static final Address SRC=Util.createRandomAddress("A");
+
+    public void testRoundTrip() throws Exception {
+        SecretKey key=createKey();
+        Message received=sendAndReceive(create(key, false), create(key, false), new Message(null, SRC, "hello world"));
+        assert received != null;
+        assert received.getObject().equals("hello world");
+    }
+
+    public void testPayloadIsEncrypted() throws Exception {
+        ENCRYPT_GCM sender=create(createKey(), false);
+        Observer observer=new Observer();
+        sender.setDownProtocol(observer);
+        byte[] payload="hello world".getBytes();
+        Message msg=new Message(null, SRC, payload);
+        sender.down(new Event(Event.MSG, msg));
+
+        Message sent=observer.down.get(0);
+        assert sent != msg && Arrays.equals(msg.getBuffer(), payload) : "the original message must not be modified";
+        assert sent.getLength() == payload.length + ENCRYPT_GCM.TAG_LENGTH;
+        assert !Arrays.equals(sent.getBuffer(), Arrays.copyOf(payload, payload.length + ENCRYPT_GCM.TAG_LENGTH));
+    }
+
+    public void testEntireMessage() throws Exception {
+        SecretKey key=createKey();
+        Message msg=new Message(null, SRC, "hello world").putHeader(TP_ID, new TpHeader("demo"));
+        Message received=sendAndReceive(create(key, true), create(key, true), msg);
+        assert received != null;
+        assert received.getObject().equals("hello world");
+        assert received.getSrc().equals(SRC);
+        assert received.getHeader(TP_ID) != null;
+    }
+
+    public void testWrongKeyIsDropped() throws Exception {
+        ENCRYPT_GCM receiver=create(createKey(), false);
+        assert sendAndReceive(create(createKey(), false), receiver, new Message(null, SRC, "hello world")) == null;
+        assert receiver.num_decryption_failures.get() == 1;
+    }
+
+    public void testModifiedMessageIsDropped() throws Exception {
+        SecretKey key=createKey();
+        ENCRYPT_GCM sender=create(key, false), receiver=create(key, false);
+        Observer observer=new Observer();
+        sender.setDownProtocol(observer);
+        receiver.setUpProtocol(observer);
+        sender.down(new Event(Event.MSG, new Message(null, SRC, "hello world")));
+        Message sent=observer.down.get(0);
+        sent.getRawBuffer()[sent.getOffset()]^=1;
+        receiver.up(new Event(Event.MSG, sent));
+        assert observer.up.isEmpty();
+        assert receiver.num_decryption_failures.get() == 1;
+    }
+
+    /** The source and destination are authenticated, so a message cannot be passed off as sent by a different member */
+    public void testModifiedAddressesAreDropped() throws Exception {
+        SecretKey key=createKey();
+        for(boolean entire_msg: new boolean[]{false, true}) {
+            ENCRYPT_GCM sender=create(key, entire_msg), receiver=create(key, entire_msg);
+            Observer observer=new Observer();
+            sender.setDownProtocol(observer);
+            receiver.setUpProtocol(observer);
+            sender.down(new Event(Event.MSG, new Message(null, SRC, "hello world")));
+            sender.down(new Event(Event.MSG, new Message(null, SRC, "hello world")));
+            observer.down.get(0).setSrc(Util.createRandomAddress("B"));
+            observer.down.get(1).setDest(Util.createRandomAddress("C"));
+            for(Message msg: observer.down)
+                receiver.up(new Event(Event.MSG, msg));
+            assert observer.up.isEmpty();
+            assert receiver.num_decryption_failures.get() == 2;
+        }
+    }
+
+    /** A message with a payload but without a header was not encrypted by a member, and is dropped */
+    public void testUnencryptedMessageIsDropped() throws Exception {
+        ENCRYPT_GCM receiver=create(createKey(), false);
+        Observer observer=new Observer();
+        receiver.setUpProtocol(observer);
+        receiver.up(new Event(Event.MSG, new Message(null, SRC, "plaintext")));
+        receiver.up(new Event(Event.MSG, new Message(null, SRC, null))); // empty messages are not encrypted
+        assert observer.up.size() == 1 && observer.up.get(0).getLength() == 0;
+
+        List<Message> list=Arrays.asList(new Message(null, SRC, "plaintext"), new Message(null, SRC, null));
+        MessageBatch batch=new MessageBatch(null, SRC, null, true, list);
+        receiver.up(batch);
+        assert batch.size() == 1 : batch;
+        for(Message msg: batch)
+            assert msg.getLength() == 0;
+        assert receiver.num_decryption_failures.get() == 2;
+    }
+
+    public void testKeyChange() throws Exception {
+        SecretKey key1=createKey(), key2=createKey();
+        ENCRYPT_GCM sender=create(key1, false), receiver=create(key1, false);
+        Observer observer=new Observer();
+        sender.setDownProtocol(observer);
+        sender.down(new Event(Event.MSG, new Message(null, SRC, "old key")));
+
+        receiver.setSecretKey(key2);
+        sender.setSecretKey(key2);
+        assert sender.getKeyVersion() == receiver.getKeyVersion();
+        sender.down(new Event(Event.MSG, new Message(null, SRC, "new key")));
+
+        receiver.setUpProtocol(observer);
+        for(Message msg: observer.down) // the message encrypted with the previous key is still decrypted
+            receiver.up(new Event(Event.MSG, msg));
+        assert observer.up.size() == 2;
+        assert observer.up.get(0).getObject().equals("old key") && observer.up.get(1).getObject().equals("new key");
+    }
+
+    public void testBatch() throws Exception {
+        SecretKey key=createKey();
+        ENCRYPT_GCM sender=create(key, false), receiver=create(key, false);
+        Observer observer=new Observer();
+        sender.setDownProtocol(observer);
+        receiver.setUpProtocol(observer);
+        for(int i=1; i <= 10; i++)
+            sender.down(new Event(Event.MSG, new Message(null, SRC, i)));
+        Message unencrypted=new Message(null, SRC, null); // empty messages are not encrypted
+        sender.down(new Event(Event.MSG, unencrypted));
+        Message tampered=observer.down.get(4);
+        tampered.getRawBuffer()[tampered.getOffset()]^=1;
+
+        MessageBatch batch=new MessageBatch(null, SRC, null, true, observer.down);
+        receiver.up(batch);
+        assert observer.batches.size() == 1;
+        assert batch.size() == 10 : "the tampered message should have been removed: " + batch.size();
+        List<Integer> list=new ArrayList<>();
+        for(Message msg: batch)
+            if(msg.getLength() > 0)
+                list.add((Integer)msg.getObject());
+        assert list.equals(Arrays.asList(1, 2, 3, 4, 6, 7, 8, 9, 10)) : list;
+    }
+
+
+    protected static Message sendAndReceive(ENCRYPT_GCM sender, ENCRYPT_GCM receiver, Message msg) {
+        Observer observer=new Observer();
+        sender.setDownProtocol(observer);
+        receiver.setUpProtocol(observer);
+        sender.down(new Event(Event.MSG, msg));
+        assert observer.down.size() == 1;
+        receiver.up(new Event(Event.MSG, observer.down.get(0)));
+        return observer.up.isEmpty()? null : observer.up.get(0);
+    }
+
+    protected static ENCRYPT_GCM create(SecretKey key, boolean encrypt_entire_message) throws Exception {
+        ENCRYPT_GCM prot=new ENCRYPT_GCM().setSecretKey(key).setEncryptEntireMessage(encrypt_entire_message);
+        prot.init();
+        return prot;
+    }
+
+    protected static SecretKey createKey() throws Exception {
+        KeyGenerator generator=KeyGenerator.getInstance("AES");
+        generator.init(128);
+        return generator.generateKey();
+    }
+
+
+    protected static class Observer extends Protocol {
+        protected final List<Message>      down=new ArrayList<>(), up=new ArrayList<>();
+        protected final List<MessageBatch> batches=new ArrayList<>();
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                down.add((Message)evt.getArg());
+            return null;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                up.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            batches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link FRAG3}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class FRAG3_Test {
+    protected static final int     FRAG_SIZE=1000;
+    protected static final Address SRC=Util.createRandomAddress("A");
+    protected static final short   TP_ID=(short)1;
+
+    /** Fragments reference the buffer of the original message */
+    public void testFragmentsReferenceOriginalBuffer() throws Exception {
+        FRAG3 frag=create();
+        Observer observer=new Observer();
+        frag.setDownProtocol(observer);
+        byte[] buf=createBuffer(10500);
+        frag.down(new Event(Event.MSG, new Message(null, SRC, buf, 100, 10000)));
+
+        assert observer.down.size() == 10;
+        for(int i=0; i < observer.down.size(); i++) {
+            Message msg=observer.down.get(i);
+            Frag3Header hdr=(Frag3Header)msg.getHeader(frag.getId());
+            assert msg.getRawBuffer() == buf;
+            assert msg.getOffset() == 100 + i * FRAG_SIZE && msg.getLength() == FRAG_SIZE;
+            assert hdr.frag_id == i && hdr.num_frags == 10 && hdr.original_length == 10000 && hdr.offset == i * FRAG_SIZE;
+        }
+    }
+
+    /** Fragments received in any order (and duplicates) are reassembled into a buffer of the original size */
+    public void testReassembly() throws Exception {
+        FRAG3 frag=create();
+        Observer observer=new Observer();
+        frag.setDownProtocol(observer);
+        frag.setUpProtocol(observer);
+        byte[] buf=createBuffer(10500);
+        frag.down(new Event(Event.MSG, new Message(null, SRC, buf).putHeader(TP_ID, new TpHeader("demo"))));
+        List<Message> fragments=new ArrayList<>(observer.down);
+        assert fragments.size() == 11;
+        Collections.shuffle(fragments);
+        fragments.add(3, fragments.get(0)); // duplicate
+
+        for(Message fragment: fragments)
+            frag.up(new Event(Event.MSG, fragment));
+        assert observer.up.size() == 1;
+        Message msg=observer.up.get(0);
+        assert msg.getRawBuffer().length == buf.length && msg.getOffset() == 0;
+        assert Arrays.equals(msg.getBuffer(), buf);
+        assert msg.getHeader(TP_ID) != null : "the headers of the original message should have been restored";
+        assert msg.getSrc().equals(SRC);
+    }
+
+    /** Fragments whose header points outside of the reassembly buffer are dropped; the message is still reassembled */
+    public void testInvalidFragmentsAreDropped() throws Exception {
+        FRAG3 frag=create();
+        Observer observer=new Observer();
+        frag.setUpProtocol(observer);
+        byte[] buf=createBuffer(1500);
+        Frag3Header[] invalid={
+          new Frag3Header(1, 1, 2, buf.length, 1000),  // data beyond the end of the buffer
+          new Frag3Header(1, 1, 2, buf.length, -1),    // negative offset
+          new Frag3Header(1, 2, 2, buf.length, 500),   // frag_id >= num_frags
+          new Frag3Header(1, -1, 2, buf.length, 500)   // negative frag_id
+        };
+        for(Frag3Header hdr: invalid)
+            frag.up(new Event(Event.MSG, new Message(null, SRC, buf, 0, 1000).putHeader(frag.getId(), hdr)));
+        assert observer.up.isEmpty();
+
+        frag.up(new Event(Event.MSG, new Message(null, SRC, buf, 0, 1000)
+          .putHeader(frag.getId(), new Frag3Header(1, 0, 2, buf.length, 0))));
+        assert observer.up.isEmpty() : "the invalid fragments must not have been counted";
+        frag.up(new Event(Event.MSG, new Message(null, SRC, buf, 1000, 500)
+          .putHeader(frag.getId(), new Frag3Header(1, 1, 2, buf.length, 1000))));
+        assert observer.up.size() == 1;
+        assert Arrays.equals(observer.up.get(0).getBuffer(), buf);
+    }
+
+    /** A batch of fragments of interleaved messages is replaced with the reassembled messages */
+    public void testBatch() throws Exception {
+        FRAG3 frag=create();
+        Observer observer=new Observer();
+        frag.setDownProtocol(observer);
+        frag.setUpProtocol(observer);
+        byte[] buf1=createBuffer(2500), buf2=createBuffer(3000);
+        frag.down(new Event(Event.MSG, new Message(null, SRC, buf1)));
+        frag.down(new Event(Event.MSG, new Message(null, SRC, "not fragmented")));
+        frag.down(new Event(Event.MSG, new Message(null, SRC, buf2)));
+        List<Message> list=new ArrayList<>(observer.down);
+        list.add(list.remove(1)); // interleave the 2 fragmented messages
+        MessageBatch batch=new MessageBatch(null, SRC, null, true, list);
+        frag.up(batch);
+
+        assert observer.batches.size() == 1;
+        assert batch.size() == 3 : "batch should have 3 messages: " + batch.size();
+        List<byte[]> buffers=new ArrayList<>();
+        for(Message msg: batch)
+            buffers.add(msg.getBuffer());
+        assert Util.objectFromByteBuffer(buffers.get(0)).equals("not fragmented");
+        assert Arrays.equals(buffers.get(1), buf2) && Arrays.equals(buffers.get(2), buf1); // buf1 was completed last
+    }
+
+
+    protected static FRAG3 create() {
+        FRAG3 frag=new FRAG3();
+        frag.fragSize(FRAG_SIZE);
+        return frag;
+    }
+
+    protected static byte[] createBuffer(int size) {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)i;
+        return buf;
+    }
+
+
+    protected static class Observer extends Protocol {
+        protected final List<Message>      down=new ArrayList<>(), up=new ArrayList<>();
+        protected final List<MessageBatch> batches=new ArrayList<>();
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                down.add((Message)evt.getArg());
+            return null;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                up.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            batches.add(batch);
+        }
+    }
+}
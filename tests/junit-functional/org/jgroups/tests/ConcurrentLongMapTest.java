@@ -0,0 +1,151 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ConcurrentLongMap;
+import org.jgroups.util.TimeoutWheel;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests {@link ConcurrentLongMap} and {@link TimeoutWheel}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ConcurrentLongMapTest {
+
+    public void testPutGetRemove() {
+        ConcurrentLongMap<String> map=new ConcurrentLongMap<>(4);
+        assert map.isEmpty();
+        assert map.put(1, "one") == null;
+        assert map.put(2, "two") == null;
+        assert map.put(1, "uno").equals("one");
+        assert map.putIfAbsent(1, "eins").equals("uno");
+        assert map.get(1).equals("uno");
+        assert map.size() == 2;
+        assert map.remove(1).equals("uno");
+        assert map.remove(1) == null;
+        assert map.get(1) == null && map.get(2).equals("two");
+        assert map.size() == 1;
+        map.clear();
+        assert map.isEmpty();
+    }
+
+    /** Adds and removes many sequential and random keys, growing the segments, and compares against a HashMap */
+    public void testManyKeys() {
+        ConcurrentLongMap<Long> map=new ConcurrentLongMap<>(2);
+        Map<Long,Long> expected=new HashMap<>();
+        Random random=new Random(42);
+        for(long i=1; i <= 20000; i++) {
+            long key=i % 3 == 0? random.nextLong() : i;
+            map.put(key, key);
+            expected.put(key, key);
+        }
+        assert map.size() == expected.size();
+        int count=0;
+        for(Long key: new ArrayList<>(expected.keySet())) {
+            if(count++ % 2 == 0) {
+                assert map.remove(key).equals(key);
+                expected.remove(key);
+            }
+        }
+        assert map.size() == expected.size();
+        for(Map.Entry<Long,Long> entry: expected.entrySet())
+            assert entry.getValue().equals(map.get(entry.getKey())) : "missing key " + entry.getKey();
+        assert new HashSet<>(map.values()).equals(new HashSet<>(expected.values()));
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentLongMap<Long> map=new ConcurrentLongMap<>();
+        final int NUM_THREADS=8, NUM=10000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            final long base=i * (long)NUM;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    for(long j=base; j < base + NUM; j++)
+                        map.put(j, j);
+                    for(long j=base; j < base + NUM; j+=2)
+                        map.remove(j);
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(20000);
+        assert map.size() == NUM_THREADS * NUM / 2 : "size is " + map.size();
+        for(long j=1; j < NUM_THREADS * NUM; j+=2)
+            assert map.get(j) == j;
+    }
+
+    public void testTimeoutWheel() throws Exception {
+        final Set<Long> expired=Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+        TimeoutWheel wheel=new TimeoutWheel(8, 10, new TimeoutWheel.Handler() {
+            public void expired(long id) {
+                expired.add(id);
+            }
+        }, null, "TimeoutWheelTest");
+        try {
+            for(long i=1; i <= 10; i++)
+                wheel.add(i, i * 50); // spans multiple rotations of the wheel (8 * 10 ms)
+            Util.sleep(200);
+            assert expired.containsAll(Arrays.asList(1L, 2L, 3L)) : "expired: " + expired;
+            assert !expired.contains(10L) : "expired: " + expired;
+            for(int i=0; i < 20 && expired.size() < 10; i++)
+                Util.sleep(100);
+            assert expired.size() == 10 : "expired: " + expired;
+            assert wheel.size() == 0;
+        }
+        finally {
+            wheel.stop();
+        }
+        assert !wheel.isRunning();
+    }
+
+    /** IDs added while the wheel advances its tick must not end up in a slot which was just processed */
+    public void testTimeoutWheelConcurrentAdds() throws Exception {
+        final Set<Long> expired=Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+        final TimeoutWheel wheel=new TimeoutWheel(512, 10, new TimeoutWheel.Handler() { // a rotation takes 5 seconds
+            public void expired(long id) {
+                expired.add(id);
+            }
+        }, null, "TimeoutWheelTest");
+        final AtomicLong ids=new AtomicLong();
+        final long end=System.currentTimeMillis() + 1000;
+        Thread[] adders=new Thread[4];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread() {
+                public void run() {
+                    while(System.currentTimeMillis() < end) {
+                        wheel.add(ids.incrementAndGet(), 1);
+                        Util.sleep(0, 100000);
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        try {
+            for(Thread adder: adders)
+                adder.join();
+            for(int i=0; i < 20 && expired.size() < ids.get(); i++)
+                Util.sleep(100);
+            assert expired.size() == ids.get() : String.format("expired %d of %d IDs", expired.size(), ids.get());
+        }
+        finally {
+            wheel.stop();
+        }
+    }
+}
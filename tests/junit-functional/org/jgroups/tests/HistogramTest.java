@@ -0,0 +1,69 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Histogram;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link Histogram}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class HistogramTest {
+
+    public void testEmpty() {
+        Histogram h=new Histogram();
+        assert h.count() == 0 && h.max() == 0;
+        assert h.percentile(99) == 0;
+        assert h.average() == 0;
+    }
+
+    public void testSmallValuesAreExact() {
+        Histogram h=new Histogram();
+        for(int i=1; i <= 5; i++)
+            h.add(i);
+        assert h.count() == 5;
+        assert h.percentile(20) == 1;
+        assert h.percentile(60) == 3;
+        assert h.percentile(100) == 5;
+        assert h.average() == 3.0;
+    }
+
+    public void testPercentiles() {
+        Histogram h=new Histogram();
+        for(int i=1; i <= 10000; i++)
+            h.add(i);
+        System.out.println("h = " + h);
+        assertWithin(h.percentile(50), 5000);
+        assertWithin(h.percentile(90), 9000);
+        assertWithin(h.percentile(99), 9900);
+        assert h.percentile(100) == 10000;
+        assert h.max() == 10000;
+    }
+
+    public void testLargeValues() {
+        Histogram h=new Histogram().add(Long.MAX_VALUE).add(Long.MAX_VALUE / 3);
+        assert h.max() == Long.MAX_VALUE;
+        assert h.percentile(100) == Long.MAX_VALUE;
+        assert h.percentile(50) >= Long.MAX_VALUE / 3;
+    }
+
+    public void testNegativeValues() {
+        Histogram h=new Histogram().add(-5);
+        assert h.count() == 1 && h.max() == 0;
+    }
+
+    public void testClear() {
+        Histogram h=new Histogram();
+        for(int i=0; i < 100; i++)
+            h.add(i * 100);
+        h.clear();
+        assert h.count() == 0 && h.max() == 0 && h.percentile(50) == 0;
+    }
+
+    /** The value of a percentile must not be more than 12.5% larger than the expected value */
+    protected static void assertWithin(long actual, long expected) {
+        assert actual >= expected && actual <= expected * 1.125 : String.format("%d not within [%d .. %d]", actual, expected, (long)(expected * 1.125));
+    }
+}
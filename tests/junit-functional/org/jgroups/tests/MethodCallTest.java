@@ -6,10 +6,17 @@ import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.blocks.MethodCall;
 import org.jgroups.blocks.MethodLookup;
+import org.jgroups.conf.CodecRegistry;
+import org.jgroups.util.Bits;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.TypeCodec;
 import org.jgroups.util.Util;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -323,6 +330,89 @@ public class MethodCallTest {
     }
 
 
+    /** Calls marshalled by members older than 3.6.5 Java serialize the types */
+    public static void testUnmarshallingOldFormat() throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(256);
+        out.write(2); // TYPES
+        Bits.writeString("foo", out);
+        out.write(2);
+        Util.objectToStream(int.class, out);
+        Util.objectToStream(String.class, out);
+        writeArgs(out, 35, "Bela");
+        MethodCall call=new MethodCall();
+        call.readFrom(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        assert call.invoke(new TargetClass()).equals(Boolean.TRUE);
+
+        out=new ByteArrayDataOutputStream(256);
+        out.write(1); // METHOD
+        Bits.writeString("foo", out);
+        out.write(1);
+        Util.objectToStream(new Class<?>[]{int.class, String.class}, out);
+        Util.objectToStream(TargetClass.class, out);
+        writeArgs(out, 22, "Bela");
+        call=new MethodCall();
+        call.readFrom(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        assert call.invoke(new TargetClass()).equals(Boolean.TRUE);
+    }
+
+
+    public static void testMarshallingWithCodec() throws Exception {
+        CodecRegistry.add((short)500, Point.class, new TypeCodec<Point>() {
+            public void writeTo(Point obj, DataOutput out) throws Exception {
+                out.writeInt(obj.x);
+                out.writeInt(obj.y);
+            }
+
+            public Point readFrom(DataInput in) throws Exception {
+                return new Point(in.readInt(), in.readInt());
+            }
+        });
+        try {
+            MethodCall mc=new MethodCall("move", new Object[]{new Point(1,2), 5}, new Class<?>[]{Point.class, int.class});
+            MethodCall call2=marshalAndUnmarshal(mc);
+            System.out.println("call2 = " + call2);
+            assert call2.getArgs()[0] instanceof Point;
+            assert ((Point)call2.getArgs()[0]).x == 1 && ((Point)call2.getArgs()[0]).y == 2;
+            assert call2.getArgs()[1].equals(5);
+            Point retval=(Point)call2.invoke(new PointTarget());
+            assert retval.x == 6 && retval.y == 7;
+
+            byte[] buf=Util.objectToByteBuffer(new Point(3,4));
+            assert buf.length == 1 + Global.SHORT_SIZE + 2 * Global.INT_SIZE;
+            Point p=(Point)Util.objectFromByteBuffer(buf);
+            assert p.x == 3 && p.y == 4;
+        }
+        finally {
+            CodecRegistry.remove((short)500);
+        }
+    }
+
+
+    /** Primitive types and Streamables are always marshalled without a codec, so no codec can be registered for them */
+    public static void testCodecForPrimitiveOrStreamableIsRejected() {
+        TypeCodec<Object> codec=new TypeCodec<Object>() {
+            public void writeTo(Object obj, DataOutput out) throws Exception {}
+            public Object readFrom(DataInput in) throws Exception {return null;}
+        };
+        for(Class<?> clazz: new Class<?>[]{String.class, Integer.class, byte[].class, org.jgroups.util.UUID.class}) {
+            try {
+                CodecRegistry.add((short)501, clazz, codec);
+                CodecRegistry.remove((short)501);
+                assert false : "registering a codec for " + clazz.getName() + " should have failed";
+            }
+            catch(IllegalArgumentException expected) {
+            }
+        }
+        assert CodecRegistry.get((short)501) == null;
+    }
+
+
+    private static void writeArgs(DataOutput out, Object ... args) throws Exception {
+        out.write(args.length);
+        for(Object arg: args)
+            Util.objectToStream(arg, out);
+    }
+
     private static MethodCall marshalAndUnmarshal(MethodCall m) throws Exception {
         byte[] buf=Util.objectToByteBuffer(m);
         System.out.println("marshalled buffer size: " + buf.length + " bytes");
@@ -330,6 +420,24 @@ public class MethodCallTest {
     }
 
 
+    protected static class Point {
+        protected final int x, y;
+
+        public Point(int x, int y) {
+            this.x=x;
+            this.y=y;
+        }
+
+        public String toString() {return "(" + x + "," + y + ")";}
+    }
+
+    public static class PointTarget {
+        public static Point move(Point p, int offset) {
+            return new Point(p.x + offset, p.y + offset);
+        }
+    }
+
+
     public static class Target {
 
         public static String someMethod(String arg) {
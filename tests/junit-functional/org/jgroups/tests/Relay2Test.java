@@ -6,15 +6,19 @@ import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.protocols.relay.Relayer;
+import org.jgroups.protocols.relay.SiteUUID;
 import org.jgroups.protocols.relay.config.RelayConfig;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Various RELAY2-related tests
@@ -248,8 +252,79 @@ public class Relay2Test {
 
 
 
+    /**
+     * Sites LON and SFO have 2 site masters each. Multiple threads in A (site master) and C (not a site master) send
+     * to members of SFO; the messages are relayed in batches, which are compressed. Checks that all messages are
+     * received in order
+     */
+    public void testBatchingWithMultipleSiteMasters() throws Exception {
+        a=createNode(LON, "A", LON_CLUSTER, 2, null);
+        b=createNode(LON, "B", LON_CLUSTER, 2, null);
+        c=createNode(LON, "C", LON_CLUSTER, 2, null);
+        OrderReceiver[] receivers={new OrderReceiver(), new OrderReceiver(), new OrderReceiver()};
+        x=createNode(SFO, "X", SFO_CLUSTER, 2, receivers[0]);
+        y=createNode(SFO, "Y", SFO_CLUSTER, 2, receivers[1]);
+        z=createNode(SFO, "Z", SFO_CLUSTER, 2, receivers[2]);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 100, a, b, c);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 100, x, y, z);
+        waitForBridgeView(4, 20000, 100, a, b, x, y); // A, B, X and Y are site masters
+
+        final Address[] targets={siteAddress(x, SFO), siteAddress(y, SFO), siteAddress(z, SFO)};
+        final int num_threads=4, num_msgs=500;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[num_threads];
+        for(int i=0; i < senders.length; i++) {
+            final int id=i;
+            senders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=1; j <= num_msgs; j++) {
+                            byte[] buf=new byte[500]; // zeroes beyond the first 8 bytes: compresses well
+                            ByteBuffer.wrap(buf).putInt(id).putInt(j);
+                            (id % 2 == 0? a : c).send(targets[j % targets.length], buf);
+                        }
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join(30000);
+
+        long deadline=System.currentTimeMillis() + 20000;
+        while(System.currentTimeMillis() < deadline && total(receivers) < num_threads * num_msgs)
+            Util.sleep(100);
+        assert total(receivers) == num_threads * num_msgs : "received " + total(receivers) + " messages";
+        for(OrderReceiver receiver: receivers)
+            assert receiver.errors.isEmpty() : receiver.errors;
+
+        long relayed=0;
+        for(JChannel ch: Arrays.asList(a, b)) {
+            RELAY2 relay=(RELAY2)ch.getProtocolStack().findProtocol(RELAY2.class);
+            System.out.println(ch.getName() + ":\n" + relay.printRouteStats());
+            relayed+=relay.getNumRelayed();
+        }
+        assert relayed == num_threads * num_msgs : "relayed " + relayed + " messages";
+    }
+
+
     protected JChannel createNode(String site_name, String node_name, String cluster_name,
                                   Receiver receiver) throws Exception {
+        return createNode(site_name, node_name, cluster_name, 1, receiver);
+    }
+
+    protected JChannel createNode(String site_name, String node_name, String cluster_name, int max_site_masters,
+                                  Receiver receiver) throws Exception {
+        RELAY2 relay=createRELAY2(site_name);
+        if(max_site_masters > 1) {
+            relay.setValue("max_site_masters", max_site_masters);
+            relay.relayBatching(true).compressRelayBatches(true);
+        }
         JChannel ch=new JChannel(new SHARED_LOOPBACK(),
                                  new SHARED_LOOPBACK_PING(),
                                  new MERGE3().setValue("max_interval", 3000).setValue("min_interval", 1000),
@@ -257,7 +332,7 @@ public class Relay2Test {
                                  new UNICAST3(),
                                  new GMS().setValue("print_local_addr", false),
                                  new FORWARD_TO_COORD(),
-                                 createRELAY2(site_name)).name(node_name);
+                                 relay).name(node_name);
         if(receiver != null)
             ch.setReceiver(receiver);
         if(cluster_name != null)
@@ -356,6 +431,34 @@ public class Relay2Test {
     }
 
 
+    protected static Address siteAddress(JChannel ch, String site) {
+        return new SiteUUID((UUID)ch.getAddress(), ch.getName(), site);
+    }
+
+    protected static int total(OrderReceiver ... receivers) {
+        int retval=0;
+        for(OrderReceiver receiver: receivers)
+            retval+=receiver.received.get();
+        return retval;
+    }
+
+
+    /** Checks that the messages of each sender thread are received in order */
+    protected static class OrderReceiver extends ReceiverAdapter {
+        protected final Map<Integer,Integer>        last=new ConcurrentHashMap<>();
+        protected final List<String>                errors=Collections.synchronizedList(new ArrayList<String>());
+        protected final AtomicInteger               received=new AtomicInteger(0);
+
+        public void receive(Message msg) {
+            ByteBuffer buf=ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            int sender=buf.getInt(), seqno=buf.getInt();
+            Integer prev=last.put(sender, seqno);
+            if(prev != null && seqno <= prev)
+                errors.add(String.format("sender %d: received %d after %d", sender, seqno, prev));
+            received.incrementAndGet();
+        }
+    }
+
     protected static class MyReceiver extends ReceiverAdapter {
         protected final List<Integer> list=new ArrayList<>(5);
 
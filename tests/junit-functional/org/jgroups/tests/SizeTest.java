@@ -691,6 +691,16 @@ public class SizeTest {
         _testSize(hdr);
     }
 
+    public static void testFrag3Header() throws Exception {
+        _testSize(new Frag3Header(322649, 2, 10, 100000, 20000));
+        _testSize(new Frag3Header(Long.MAX_VALUE, 0, 1, Integer.MAX_VALUE, 0));
+    }
+
+    public static void testGcmHeader() throws Exception {
+        _testSize(new ENCRYPT_GCM.GcmHeader(false, 322649, new byte[12]));
+        _testSize(new ENCRYPT_GCM.GcmHeader(true, -1, new byte[12]));
+    }
+
 
     public static void testIpAddress() throws Exception {
         IpAddress addr=new IpAddress();
@@ -0,0 +1,176 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.GossipData;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.GossipRouter;
+import org.jgroups.stack.NioGossipRouter;
+import org.jgroups.stack.RouterStub;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link NioGossipRouter}
+ * @author agent
+ * @since  3.6.5
+ */
+@Test(groups={Global.STACK_INDEPENDENT,Global.GOSSIP_ROUTER,Global.EAP_EXCLUDED},singleThreaded=true)
+public class NioGossipRouterTest {
+    protected static final String GROUP="demo";
+    protected NioGossipRouter     router;
+    protected RouterStub          stub_a, stub_b, stub_c;
+    protected JChannel            a, b, c;
+    protected int                 port;
+    protected InetAddress         bind_addr;
+    protected String              bind_addr_str;
+
+    @BeforeClass
+    protected void init() throws Exception {
+        StackType type=Util.getIpStackType();
+        bind_addr_str=type == StackType.IPv6? "::1" : "127.0.0.1";
+        bind_addr=InetAddress.getByName(bind_addr_str);
+    }
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        port=ResourceManager.getNextTcpPort(bind_addr);
+        router=new NioGossipRouter(port, bind_addr_str).setNumLoops(2).setReadBufferSize(1024);
+        router.start();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    protected void tearDown() throws Exception {
+        Util.close(c, b, a);
+        for(RouterStub stub: Arrays.asList(stub_c, stub_b, stub_a))
+            if(stub != null)
+                stub.destroy();
+        router.stop();
+    }
+
+
+    /** Sends unicasts and multicasts (bigger than the router's read buffer) between stubs */
+    public void testMessages() throws Exception {
+        Address addr_a=Util.createRandomAddress("A"), addr_b=Util.createRandomAddress("B");
+        stub_a=connect(addr_a);
+        stub_b=connect(addr_b);
+        for(int size: new int[]{1, 1000, 5000, 500000}) {
+            byte[] buf=create(size);
+            stub_a.sendToMember(GROUP, addr_b, buf, 0, buf.length);
+            assert Arrays.equals(receive(stub_b).getBuffer(), buf);
+        }
+        byte[] buf=create(2000);
+        stub_b.sendToAllMembers(GROUP, buf, 0, buf.length);
+        assert Arrays.equals(receive(stub_a).getBuffer(), buf);
+        assert Arrays.equals(receive(stub_b).getBuffer(), buf);
+
+        for(int i=0; i < 20 && router.getMsgsForwarded() < 8; i++)
+            Util.sleep(100);
+        System.out.println("stats: " + router.printStats());
+        assert router.getMsgsReceived() == 5;
+        assert router.getMsgsForwarded() == 2 + 4 + 2; // 2 CONNECT_OK responses, 4 unicasts, 1 multicast to 2 members
+    }
+
+    public void testGossipGet() throws Exception {
+        Address addr_a=Util.createRandomAddress("A"), addr_b=Util.createRandomAddress("B");
+        stub_a=connect(addr_a);
+        stub_b=connect(addr_b);
+        stub_c=new RouterStub(bind_addr_str, port, bind_addr, null);
+        stub_c.doConnect();
+        Responses rsps=new Responses(false);
+        stub_c.getMembers(GROUP, rsps);
+        System.out.println("rsps = " + rsps);
+        assert rsps.size() == 2;
+        assert rsps.containsResponseFrom(addr_a) && rsps.containsResponseFrom(addr_b);
+    }
+
+    /** Closing a connection abnormally sends a SUSPECT to the other members of the group */
+    public void testSuspect() throws Exception {
+        Address addr_a=Util.createRandomAddress("A"), addr_b=Util.createRandomAddress("B");
+        stub_a=connect(addr_a);
+        stub_b=connect(addr_b);
+        stub_b.getSocket().close();
+        GossipData data=receive(stub_a);
+        assert data.getType() == GossipRouter.SUSPECT;
+        Address suspect=Util.readAddress(stub_a.getInputStream());
+        assert suspect.equals(addr_b);
+        stub_b=null;
+
+        for(int i=0; i < 20 && router.getNumConnections() > 1; i++)
+            Util.sleep(100);
+        assert router.getNumConnections() == 1;
+        assert router.dumpRoutingTable().contains(addr_a.toString()) && !router.dumpRoutingTable().contains(addr_b.toString());
+    }
+
+    /** Members of a cluster using TUNNEL send multicasts, which are forwarded by the router */
+    public void testTunnel() throws Exception {
+        MyReceiver ra=new MyReceiver(), rb=new MyReceiver(), rc=new MyReceiver();
+        a=createTunnelChannel("A", ra);
+        b=createTunnelChannel("B", rb);
+        c=createTunnelChannel("C", rc);
+        Util.waitUntilAllChannelsHaveSameSize(20000, 500, a, b, c);
+
+        final int NUM=500;
+        for(int i=0; i < NUM; i++)
+            for(JChannel ch: Arrays.asList(a, b, c))
+                ch.send(null, i);
+        for(int i=0; i < 20 && (ra.count.get() < NUM * 3 || rb.count.get() < NUM * 3 || rc.count.get() < NUM * 3); i++)
+            Util.sleep(500);
+        System.out.printf("A: %d, B: %d, C: %d msgs\nstats: %s\n", ra.count.get(), rb.count.get(), rc.count.get(),
+                          router.printStats());
+        for(MyReceiver r: Arrays.asList(ra, rb, rc))
+            assert r.count.get() == NUM * 3;
+        assert router.getMsgsForwarded() >= NUM * 3 * 3;
+    }
+
+
+    protected RouterStub connect(Address addr) throws Exception {
+        RouterStub stub=new RouterStub(bind_addr_str, port, bind_addr, null);
+        stub.connect(GROUP, addr, UUID.get(addr), new IpAddress(bind_addr, 7800));
+        return stub;
+    }
+
+    protected static GossipData receive(RouterStub stub) throws Exception {
+        DataInputStream in=stub.getInputStream();
+        GossipData data=new GossipData();
+        data.readFrom(in);
+        return data;
+    }
+
+    protected static byte[] create(int size) {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)i;
+        return buf;
+    }
+
+    protected JChannel createTunnelChannel(String name, Receiver receiver) throws Exception {
+        TUNNEL tunnel=(TUNNEL)new TUNNEL().setValue("bind_addr", bind_addr).setValue("reconnect_interval", 1000);
+        tunnel.setGossipRouterHosts(bind_addr.getHostAddress() + "[" + port + "]");
+        JChannel ch=new JChannel(tunnel, new PING(), new MERGE3().setValue("min_interval",1000).setValue("max_interval",3000),
+                                 new NAKACK2().setValue("use_mcast_xmit", false), new UNICAST3(), new STABLE(),
+                                 new GMS().joinTimeout(1000)).name(name);
+        ch.setReceiver(receiver);
+        ch.connect(GROUP);
+        return ch;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final AtomicInteger count=new AtomicInteger(0);
+
+        public void receive(Message msg) {
+            count.incrementAndGet();
+        }
+    }
+}
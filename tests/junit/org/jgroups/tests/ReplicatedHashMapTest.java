@@ -3,6 +3,7 @@ package org.jgroups.tests;
 import org.jgroups.Global;
 import org.jgroups.JChannel;
 import org.jgroups.blocks.ReplicatedHashMap;
+import org.jgroups.util.Util;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.AfterMethod;
@@ -12,6 +13,7 @@ import org.testng.annotations.Test;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Test methods for ReplicatedHashMap
@@ -234,6 +236,123 @@ public class ReplicatedHashMapTest extends ChannelTestBase {
         assertTrue(this.map2.isEmpty());
     }
 
+    /** Mutations of a few hot keys are collapsed and replicated in a few batches */
+    public void testBatching() {
+        map1.setBatchInterval(100);
+        try {
+            for(int i=1; i <= 1000; i++)
+                map1.put("key" + (i % 5), "value" + i);
+            map1.remove("key0");
+            assertEquals("value999", map1.put("key4", "value1001")); // sees the pending value
+            map1.putIfAbsent("key1", "bla"); // not batched: sends the pending batch first, so "key1" is present
+            map1.flush();
+            assertEquals("value996", map2.get("key1"));
+            assertEquals(4, map2.size());
+            assertEquals("value1001", map2.get("key4"));
+            assertFalse(map2.containsKey("key0"));
+            assertEquals(map1, map2);
+            long batches=map1.getNumBatches(), collapsed=map1.getNumCollapsedMutations();
+            System.out.println("batches=" + batches + ", collapsed=" + collapsed + ", batched=" + map1.getNumBatchedMutations());
+            assertTrue(batches < 10);
+            assertTrue(collapsed > 900);
+
+            map1.clear();
+            map1.put("key7", "value7");
+            map1.flush();
+            assertEquals(1, map2.size());
+            assertEquals("value7", map2.get("key7"));
+        }
+        finally {
+            map1.setBatchInterval(0);
+        }
+    }
+
+    /** Conditional operations see the writes still pending in the batch */
+    public void testConditionalOpsWithPendingBatch() {
+        map1.setBatchInterval(10000);
+        try {
+            map1.put("a", "1");
+            assertEquals("1", map1.putIfAbsent("a", "2"));
+            map1.put("b", "1");
+            assertTrue(map1.replace("b", "1", "2"));
+            map1.put("c", "1");
+            assertTrue(map1.remove("c", "1"));
+            map1.put("d", "1");
+            assertEquals("1", map1.replace("d", "2"));
+            map1.flush();
+            assertEquals("1", map2.get("a"));
+            assertEquals("2", map2.get("b"));
+            assertFalse(map2.containsKey("c"));
+            assertEquals("2", map2.get("d"));
+            assertEquals(map1, map2);
+        }
+        finally {
+            map1.setBatchInterval(0);
+        }
+    }
+
+    /** The state is sent in many small chunks while map1 is being updated; the joiner catches up with the updates */
+    public void testChunkedStateTransfer() throws Exception {
+        for(int i=1; i <= 1000; i++)
+            map1.put("key" + i, "value" + i);
+        map1.setStateChunkSize(512);
+        map2.setStateChunkSize(512);
+        final AtomicBoolean running=new AtomicBoolean(true);
+        Thread updater=new Thread() {
+            public void run() {
+                for(int i=1; running.get(); i++) {
+                    map1.put("key" + (i % 1000 + 1), "new-value" + i);
+                    map1.remove("key" + ((i + 500) % 1000 + 1));
+                }
+            }
+        };
+        ReplicatedHashMap<String,String> map3=null;
+        updater.start();
+        try {
+            JChannel c3=createChannel((JChannel)map1.getChannel());
+            map3=new ReplicatedHashMap<>(c3);
+            c3.connect("ReplicatedHashMapTest");
+            map3.start(10000);
+            Util.sleep(200);
+        }
+        finally {
+            running.set(false);
+            updater.join(10000);
+        }
+        try {
+            for(int i=0; i < 20 && !map3.equals(map1); i++)
+                Util.sleep(500);
+            assertEquals(map1, map3);
+        }
+        finally {
+            map1.setStateChunkSize(64 * 1024);
+            map2.setStateChunkSize(64 * 1024);
+            map3.stop();
+        }
+    }
+
+    /** Tests that a state sent in the format of versions prior to 3.6.5 is recognized and applied */
+    public void testLegacyStateFormat() throws Exception {
+        for(int i=1; i <= 100; i++)
+            map1.put("key" + i, "value" + i);
+        map1.setLegacyStateFormat(true);
+        map2.setLegacyStateFormat(true);
+        ReplicatedHashMap<String,String> map3=null;
+        try {
+            JChannel c3=createChannel((JChannel)map1.getChannel());
+            map3=new ReplicatedHashMap<>(c3);
+            c3.connect("ReplicatedHashMapTest");
+            map3.start(10000);
+            assertEquals(map1, map3);
+        }
+        finally {
+            map1.setLegacyStateFormat(false);
+            map2.setLegacyStateFormat(false);
+            if(map3 != null)
+                map3.stop();
+        }
+    }
+
     public void testKeySet() {
         Map<String,String> all1=new HashMap<>();
         all1.put("key1", "value1");